@@ -0,0 +1,117 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Measures Lz4 and CompressedBlocks throughput, in MB/s of uncompressed data, compressing and
+ * decompressing on one thread and in parallel blocks.
+ *
+ * Usage: BlockCompressionBenchmark [file...]
+ * Without files, uses 64 MB of synthetic data shaped like compiled assets: quantized vertices of a
+ * smooth surface, 16-bit triangle indices, and incompressible bytes standing in for already
+ * compressed data.
+ */
+public final class BlockCompressionBenchmark {
+    private static byte[] syntheticAssets(int size) {
+        ByteBuffer data = ByteBuffer.allocate(size).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        Random random = new Random(1);
+        int grid = 512;
+        while (data.remaining() >= 16) {
+            int section = random.nextInt(3);
+            int n = Math.min(data.remaining() / 16, 1 << 14);
+            for (int i = 0; i < n && data.remaining() >= 16; ++i) {
+                if (section == 0) {
+                    // A vertex: 16-bit position, oct-encoded normal and half-float texcoord
+                    int x = i % grid, y = i / grid;
+                    data.putShort((short)(x * 128));
+                    data.putShort((short)(y * 128));
+                    data.putShort((short)(Math.sin(x * 0.05) * Math.cos(y * 0.05) * 16384));
+                    data.putShort((short)(x * 64 + random.nextInt(4)));
+                    data.putShort((short)(y * 64 + random.nextInt(4)));
+                    data.putShort((short)0x3C00);
+                    data.putInt(x << 16 | y);
+                } else if (section == 1) {
+                    // Two triangles of a grid quad, and two of the next
+                    for (int q = 0; q < 2; ++q) {
+                        int a = (2 * i + q) % (grid * grid - grid - 1);
+                        data.putShort((short)a);
+                        data.putShort((short)(a + grid));
+                        data.putShort((short)(a + 1));
+                        data.putShort((short)(a + 1));
+                    }
+                } else {
+                    for (int j = 0; j < 16; ++j)
+                        data.put((byte)random.nextInt(256));
+                }
+            }
+        }
+        return data.array();
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private static double bestMBps(long bytes, int iterations, Run run) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; ++i) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return bytes / 1e6 / (best / 1e9);
+    }
+
+    private static void run(String name, byte[] data) throws IOException {
+        int blockSize = CompressedBlocks.DEFAULT_BLOCK_SIZE;
+        int iterations = 7;
+
+        byte[] blocks = CompressedBlocks.compress(data, data.length, blockSize);
+        if (!Arrays.equals(data, CompressedBlocks.decompress(ByteBuffer.wrap(blocks), data.length)))
+            throw new IllegalStateException("CompressedBlocks round trip failed");
+
+        // One thread: the blocks one after another with Lz4 directly
+        final int nBlocks = (data.length + blockSize - 1) / blockSize;
+        final byte[][] compressed = new byte[nBlocks][];
+        final int[] table = Lz4.newHashTable();
+        final byte[] scratch = new byte[Lz4.maxCompressedLength(blockSize)];
+        Run compressSerial = () -> {
+            for (int b = 0; b < nBlocks; ++b) {
+                int n = Math.min(blockSize, data.length - b * blockSize);
+                compressed[b] = Arrays.copyOf(scratch, Lz4.compress(data, b * blockSize, n, scratch, 0, table));
+            }
+        };
+        compressSerial.run();
+        final byte[] out = new byte[data.length];
+        Run decompressSerial = () -> {
+            for (int b = 0; b < nBlocks; ++b) {
+                int n = Math.min(blockSize, data.length - b * blockSize);
+                Lz4.decompress(compressed[b], 0, compressed[b].length, out, b * blockSize, n);
+            }
+        };
+
+        double serialCompress = bestMBps(data.length, iterations, compressSerial);
+        double serialDecompress = bestMBps(data.length, iterations, decompressSerial);
+        double parallelCompress = bestMBps(data.length, iterations,
+                () -> CompressedBlocks.compress(data, data.length, blockSize));
+        double parallelDecompress = bestMBps(data.length, iterations,
+                () -> CompressedBlocks.decompress(ByteBuffer.wrap(blocks), data.length));
+
+        System.out.printf("%-24s %8.1f MB -> %8.1f MB (%5.1f%%)%n", name, data.length / 1e6, blocks.length / 1e6,
+                          100.0 * blocks.length / data.length);
+        System.out.printf("  1 thread:   compress %8.1f MB/s   decompress %8.1f MB/s%n", serialCompress, serialDecompress);
+        System.out.printf("  parallel:   compress %8.1f MB/s   decompress %8.1f MB/s (%d cores)%n",
+                          parallelCompress, parallelDecompress, Runtime.getRuntime().availableProcessors());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            run("synthetic assets", syntheticAssets(64 << 20));
+            return;
+        }
+        for (String arg : args) {
+            run(new File(arg).getName(), Files.readAllBytes(new File(arg).toPath()));
+        }
+    }
+}
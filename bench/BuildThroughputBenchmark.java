@@ -0,0 +1,468 @@
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Measures whole builds: generates a reproducible synthetic corpus of meshes and shaders, runs
+ * DataCompiler on it in a separate JVM, with stand-in metal tools that take a configurable time per
+ * call, and reports wall time, assets per second, peak RSS and GC time for each scenario:
+ * <pre>
+ * clean      nothing built yet (no outputs, build state or shader cache)
+ * noop       everything up to date
+ * touch      one mesh and one shader changed
+ * </pre>
+ * Each scenario is run several times and the median run reported. Results can be saved as a baseline
+ * and later runs compared against it; a scenario whose wall time, GC time or peak RSS grows by more
+ * than the threshold is reported as a regression, and the benchmark exits with status 1.
+ *
+ * The corpus is a mesh directory of grid .obj files with height noise, sharing a .mtl file and split
+ * between its materials with usemtl; a shader directory of .metal files, each with a number of
+ * F_nn flags that change its source and all including a common header; and a manifest listing them.
+ *
+ * Usage: BuildThroughputBenchmark [options] [-- DataCompiler options]
+ *   --corpus <dir>         generate the corpus in dir and keep it (default: a temporary directory)
+ *   --meshes <n>           number of meshes (default: 16)
+ *   --mesh-size <n>        each mesh is an n x n grid (default: 128)
+ *   --materials <n>        materials each mesh is split between (default: 4)
+ *   --shaders <n>          number of shaders (default: 8)
+ *   --flags <n>            F_nn flags per shader, giving 2^n permutations (default: 4)
+ *   --tool-latency-ms <n>  time each call of a stand-in metal tool takes (default: 20)
+ *   --runs <n>             runs of each scenario (default: 3)
+ *   --baseline <file>      compare against the baseline in file
+ *   --save-baseline        write the results to the baseline file instead of comparing
+ *   --threshold <percent>  growth reported as a regression (default: 10)
+ */
+public final class BuildThroughputBenchmark {
+    private static final String[] SCENARIOS = {"clean", "noop", "touch"};
+    private static final String MANIFEST = "manifest.txt";
+    private static final String STATE = "build-state.txt";
+    private static final String SHADER_CACHE = "shader-cache";
+
+    // Differences in wall or GC time below this are noise, however large relative to the baseline
+    private static final long MIN_WALL_REGRESSION_MILLIS = 50;
+
+    static class Corpus {
+        int meshes = 16;
+        int meshSize = 128;
+        int materials = 4;
+        int shaders = 8;
+        int flags = 4;
+        int toolLatencyMillis = 20;
+
+        int assetCount() {
+            return meshes + shaders;
+        }
+
+        String describe() {
+            return String.format("%d meshes of %dx%d, %d materials; %d shaders with %d flags; tool latency %d ms",
+                                 meshes, meshSize, meshSize, materials, shaders, flags, toolLatencyMillis);
+        }
+    }
+
+    /** The measurements of one DataCompiler run. */
+    static class RunStats {
+        int exitCode;
+        long processMillis;
+        long wallMillis;
+        long gcMillis;
+        long gcCount;
+        long peakRssKb;
+        long peakHeapKb;
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeTool(File file, String body) throws IOException {
+        writeFile(file, "#!/bin/sh\n" + body);
+        if (!file.setExecutable(true))
+            throw new IOException("Couldn't make " + file + " executable");
+    }
+
+    private static String meshName(int i) {
+        return String.format("Meshes/mesh%02d.obj", i);
+    }
+
+    private static String shaderName(int i) {
+        return String.format("Shaders/shader%02d.metal", i);
+    }
+
+    private static void writeMesh(File file, int size, int materials, Random random) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            out.write("mtllib materials.mtl\n");
+            for (int y = 0; y < size; ++y) {
+                for (int x = 0; x < size; ++x) {
+                    double h = Math.sin(x * 0.1) * Math.cos(y * 0.1) + random.nextDouble() * 0.01;
+                    out.write(String.format(Locale.ROOT, "v %.6f %.6f %.6f%n", x / (double)size, h, y / (double)size));
+                    out.write(String.format(Locale.ROOT, "vn %.6f %.6f %.6f%n", -Math.cos(x * 0.1) * 0.1, 1.0,
+                                            Math.sin(y * 0.1) * 0.1));
+                    out.write(String.format(Locale.ROOT, "vt %.6f %.6f%n", x / (double)size, y / (double)size));
+                }
+            }
+            int rowsPerMaterial = Math.max(1, (size - 1 + materials - 1) / materials);
+            for (int y = 0; y < size - 1; ++y) {
+                if (y % rowsPerMaterial == 0)
+                    out.write("usemtl material" + (y / rowsPerMaterial) + "\n");
+                for (int x = 0; x < size - 1; ++x) {
+                    int a = y * size + x + 1;
+                    int b = a + size;
+                    out.write(String.format("f %d/%d/%d %d/%d/%d %d/%d/%d%n", a, a, a, b, b, b, a + 1, a + 1, a + 1));
+                    out.write(String.format("f %d/%d/%d %d/%d/%d %d/%d/%d%n", a + 1, a + 1, a + 1, b, b, b, b + 1, b + 1, b + 1));
+                }
+            }
+        }
+    }
+
+    private static void writeShader(File file, int index, int flags) throws IOException {
+        StringBuilder source = new StringBuilder();
+        source.append("#include \"common.h\"\n\n");
+        for (int f = 0; f < flags; ++f) {
+            source.append(String.format("#ifdef F_%02dFeature%d%n", f, f));
+            source.append(String.format("float feature%d(float x) { return x * %d.0; }%n", f, f + index + 2));
+            source.append("#endif\n");
+        }
+        source.append("\nfragment float4 shader").append(index).append("(float4 color [[stage_in]]) {\n");
+        source.append("    return color;\n}\n");
+        writeFile(file, source.toString());
+    }
+
+    /**
+     * Generates the corpus in dir: meshes, shaders, the manifest, output directories, and the
+     * stand-in metal tools in dir/tools.
+     */
+    private static void generate(File dir, Corpus corpus) throws IOException {
+        for (String sub : new String[] {"Meshes", "Shaders", "tools", "Assets/Meshes", "Assets/Shaders"}) {
+            File d = new File(dir, sub);
+            if (!d.isDirectory() && !d.mkdirs())
+                throw new IOException("Couldn't create " + d);
+        }
+        Random random = new Random(1);
+        StringBuilder manifest = new StringBuilder();
+
+        StringBuilder mtl = new StringBuilder();
+        for (int m = 0; m < corpus.materials; ++m) {
+            mtl.append("newmtl material").append(m).append('\n');
+            mtl.append("map_Kd Textures/material").append(m).append(".png\n");
+        }
+        writeFile(new File(dir, "Meshes/materials.mtl"), mtl.toString());
+        for (int i = 0; i < corpus.meshes; ++i) {
+            writeMesh(new File(dir, meshName(i)), corpus.meshSize, corpus.materials, random);
+            manifest.append(meshName(i)).append('\n');
+        }
+
+        writeFile(new File(dir, "Shaders/common.h"), "#include <metal_stdlib>\nusing namespace metal;\n");
+        for (int i = 0; i < corpus.shaders; ++i) {
+            writeShader(new File(dir, shaderName(i)), i, corpus.flags);
+            manifest.append(shaderName(i)).append('\n');
+        }
+        writeFile(new File(dir, MANIFEST), manifest.toString());
+
+        String sleep = String.format(Locale.ROOT, "sleep %.3f\n", corpus.toolLatencyMillis / 1000.0);
+        writeTool(new File(dir, "tools/metal"),
+                  "if [ \"$1\" = \"--version\" ]; then echo \"stand-in metal\"; exit 0; fi\n" +
+                  "out=\"\"; args=\"$*\"\n" +
+                  "while [ $# -gt 0 ]; do if [ \"$1\" = \"-o\" ]; then out=\"$2\"; shift; fi; shift; done\n" +
+                  sleep +
+                  "echo \"$args\" > \"$out\"; head -c 16384 /dev/zero >> \"$out\"\n");
+        writeTool(new File(dir, "tools/metal-ar"), sleep + "cp \"$3\" \"$2\"\n");
+        writeTool(new File(dir, "tools/metallib"), sleep + "cp \"$3\" \"$2\"\n");
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String absoluteClassPath() {
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPath.length() != 0)
+                classPath.append(File.pathSeparator);
+            classPath.append(new File(entry).getAbsolutePath());
+        }
+        return classPath.toString();
+    }
+
+    /**
+     * Runs DataCompiler on the corpus in a new JVM, through childMain, returning what it measured.
+     */
+    private static RunStats runBuild(File dir, String name, List<String> compilerArgs) throws IOException, InterruptedException {
+        File statsFile = new File(dir, "stats-" + name + ".properties");
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.add(BuildThroughputBenchmark.class.getName());
+        command.add("--child");
+        command.add(statsFile.getPath());
+        command.add(MANIFEST);
+        command.add("--state");
+        command.add(STATE);
+        command.add("--shader-cache");
+        command.add(SHADER_CACHE);
+        command.add("--metal-toolchain");
+        command.add(new File(dir, "tools").getAbsolutePath());
+        command.addAll(compilerArgs);
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).directory(dir).redirectErrorStream(true)
+                .redirectOutput(new File(dir, "build-" + name + ".log")).start();
+        process.waitFor();
+        long processMillis = (System.nanoTime() - start) / 1000000;
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(statsFile)) {
+            properties.load(in);
+        }
+        RunStats stats = new RunStats();
+        stats.exitCode = Integer.parseInt(properties.getProperty("exitCode"));
+        stats.processMillis = processMillis;
+        stats.wallMillis = Long.parseLong(properties.getProperty("wallMillis"));
+        stats.gcMillis = Long.parseLong(properties.getProperty("gcMillis"));
+        stats.gcCount = Long.parseLong(properties.getProperty("gcCount"));
+        stats.peakRssKb = Long.parseLong(properties.getProperty("peakRssKb"));
+        stats.peakHeapKb = Long.parseLong(properties.getProperty("peakHeapKb"));
+        return stats;
+    }
+
+    /**
+     * Puts the corpus in the state the scenario starts from.
+     */
+    private static void prepare(File dir, String scenario, int run) throws IOException {
+        if (scenario.equals("clean")) {
+            new File(dir, STATE).delete();
+            deleteRecursively(new File(dir, SHADER_CACHE));
+            for (String sub : new String[] {"Assets/Meshes", "Assets/Shaders"}) {
+                File[] outputs = new File(dir, sub).listFiles();
+                if (outputs != null) {
+                    for (File output : outputs) {
+                        output.delete();
+                    }
+                }
+            }
+        } else if (scenario.equals("touch")) {
+            // Different content each run, so nothing is found in the shader cache
+            String comment = "# touched " + run + "\n";
+            Files.write(new File(dir, meshName(0)).toPath(), comment.getBytes(StandardCharsets.UTF_8),
+                        java.nio.file.StandardOpenOption.APPEND);
+            Files.write(new File(dir, shaderName(0)).toPath(),
+                        ("// touched " + run + "\n").getBytes(StandardCharsets.UTF_8),
+                        java.nio.file.StandardOpenOption.APPEND);
+        }
+    }
+
+    private static RunStats median(List<RunStats> runs) {
+        List<RunStats> sorted = new ArrayList<RunStats>(runs);
+        Collections.sort(sorted, (a, b) -> Long.compare(a.wallMillis, b.wallMillis));
+        return sorted.get(sorted.size() / 2);
+    }
+
+    private static String formatKb(long kb) {
+        return kb < 0 ? "n/a" : String.format("%.1f MB", kb / 1024.0);
+    }
+
+    /**
+     * Compares a measurement against the baseline, printing and returning whether it regressed.
+     */
+    private static boolean compare(String scenario, String metric, long value, Properties baseline, double threshold,
+                                   long minDifference) {
+        String stored = baseline.getProperty(scenario + "." + metric);
+        if (stored == null || value < 0)
+            return false;
+        long base = Long.parseLong(stored);
+        if (base < 0)
+            return false;
+        double change = base == 0 ? 0 : 100.0 * (value - base) / base;
+        boolean regressed = change > threshold && value - base > minDifference;
+        System.out.printf("  %-6s %-10s %10d vs baseline %10d (%+.1f%%)%s%n", scenario, metric, value, base, change,
+                          regressed ? "  REGRESSION" : "");
+        return regressed;
+    }
+
+    /**
+     * The entry point of the JVM running DataCompiler: runs it with args and writes what it measured
+     * to statsFile.
+     */
+    private static void childMain(String statsFile, String[] args) throws IOException {
+        ConsoleBuffer.install();
+        long start = System.nanoTime();
+        int exitCode = DataCompiler.run(args);
+        long wallMillis = (System.nanoTime() - start) / 1000000;
+
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                peakHeap += pool.getPeakUsage().getUsed();
+        }
+        // The high-water mark of the resident set, where the OS reports it (Linux)
+        long peakRssKb = -1;
+        File status = new File("/proc/self/status");
+        if (status.exists()) {
+            for (String line : Files.readAllLines(status.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmHWM:"))
+                    peakRssKb = Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty("exitCode", Integer.toString(exitCode));
+        properties.setProperty("wallMillis", Long.toString(wallMillis));
+        properties.setProperty("gcMillis", Long.toString(gcMillis));
+        properties.setProperty("gcCount", Long.toString(gcCount));
+        properties.setProperty("peakRssKb", Long.toString(peakRssKb));
+        properties.setProperty("peakHeapKb", Long.toString(peakHeap / 1024));
+        try (OutputStream out = new FileOutputStream(statsFile)) {
+            properties.store(out, null);
+        }
+        System.exit(exitCode);
+    }
+
+    private static int parseInt(String[] args, int i) {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        return Integer.parseInt(args[i]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("--child")) {
+            childMain(args[1], Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
+
+        Corpus corpus = new Corpus();
+        File corpusDir = null;
+        File baselineFile = null;
+        boolean saveBaseline = false;
+        double threshold = 10;
+        int runs = 3;
+        List<String> compilerArgs = new ArrayList<String>();
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("--")) {
+                compilerArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            } else if (arg.equals("--corpus")) {
+                corpusDir = new File(args[++i]);
+            } else if (arg.equals("--meshes")) {
+                corpus.meshes = parseInt(args, ++i);
+            } else if (arg.equals("--mesh-size")) {
+                corpus.meshSize = parseInt(args, ++i);
+            } else if (arg.equals("--materials")) {
+                corpus.materials = parseInt(args, ++i);
+            } else if (arg.equals("--shaders")) {
+                corpus.shaders = parseInt(args, ++i);
+            } else if (arg.equals("--flags")) {
+                corpus.flags = parseInt(args, ++i);
+            } else if (arg.equals("--tool-latency-ms")) {
+                corpus.toolLatencyMillis = parseInt(args, ++i);
+            } else if (arg.equals("--runs")) {
+                runs = parseInt(args, ++i);
+            } else if (arg.equals("--baseline")) {
+                baselineFile = new File(args[++i]);
+            } else if (arg.equals("--save-baseline")) {
+                saveBaseline = true;
+            } else if (arg.equals("--threshold")) {
+                threshold = Double.parseDouble(args[++i]);
+            } else {
+                System.out.println("Unknown option " + arg);
+                System.exit(2);
+            }
+        }
+        if (saveBaseline && baselineFile == null) {
+            System.out.println("--save-baseline needs --baseline <file>");
+            System.exit(2);
+        }
+
+        boolean keepCorpus = corpusDir != null;
+        if (corpusDir == null)
+            corpusDir = Files.createTempDirectory("build-bench").toFile();
+        String description = corpus.describe() + (compilerArgs.isEmpty() ? "" : "; " + String.join(" ", compilerArgs));
+        System.out.println("Corpus: " + description);
+        System.out.printf("%d runs per scenario, median reported; %d cores%n", runs,
+                          Runtime.getRuntime().availableProcessors());
+
+        Properties results = new Properties();
+        results.setProperty("corpus", description);
+        boolean failed = false;
+        try {
+            generate(corpusDir, corpus);
+            System.out.printf("%-6s %10s %10s %12s %10s %8s %12s %12s%n", "", "wall", "process", "assets/s", "GC", "GCs",
+                              "peak RSS", "peak heap");
+            for (String scenario : SCENARIOS) {
+                List<RunStats> stats = new ArrayList<RunStats>();
+                for (int run = 0; run < runs; ++run) {
+                    if (scenario.equals("noop") && run == 0)
+                        runBuild(corpusDir, "warmup", compilerArgs);
+                    prepare(corpusDir, scenario, run);
+                    RunStats s = runBuild(corpusDir, scenario, compilerArgs);
+                    if (s.exitCode != 0) {
+                        System.out.printf("Build failed in scenario %s; see %s%n", scenario,
+                                          new File(corpusDir, "build-" + scenario + ".log"));
+                        failed = true;
+                    }
+                    stats.add(s);
+                }
+                RunStats m = median(stats);
+                System.out.printf("%-6s %7d ms %7d ms %12.1f %7d ms %8d %12s %12s%n", scenario, m.wallMillis,
+                                  m.processMillis, corpus.assetCount() / (m.wallMillis / 1000.0), m.gcMillis, m.gcCount,
+                                  formatKb(m.peakRssKb), formatKb(m.peakHeapKb));
+                results.setProperty(scenario + ".wallMillis", Long.toString(m.wallMillis));
+                results.setProperty(scenario + ".gcMillis", Long.toString(m.gcMillis));
+                results.setProperty(scenario + ".peakRssKb", Long.toString(m.peakRssKb));
+            }
+        } finally {
+            if (!keepCorpus)
+                deleteRecursively(corpusDir);
+        }
+        if (failed)
+            System.exit(1);
+
+        if (saveBaseline) {
+            try (OutputStream out = new FileOutputStream(baselineFile)) {
+                results.store(out, "BuildThroughputBenchmark baseline");
+            }
+            System.out.println("Saved baseline to " + baselineFile);
+        } else if (baselineFile != null) {
+            Properties baseline = new Properties();
+            try (InputStream in = new FileInputStream(baselineFile)) {
+                baseline.load(in);
+            }
+            if (!description.equals(baseline.getProperty("corpus"))) {
+                System.out.println("Baseline was measured on a different corpus (" + baseline.getProperty("corpus") +
+                                   "); not comparing");
+                System.exit(2);
+            }
+            System.out.printf("Compared with %s (threshold %.1f%%):%n", baselineFile, threshold);
+            boolean regressed = false;
+            for (String scenario : SCENARIOS) {
+                regressed |= compare(scenario, "wallMillis", Long.parseLong(results.getProperty(scenario + ".wallMillis")),
+                                     baseline, threshold, MIN_WALL_REGRESSION_MILLIS);
+                regressed |= compare(scenario, "gcMillis", Long.parseLong(results.getProperty(scenario + ".gcMillis")),
+                                     baseline, threshold, MIN_WALL_REGRESSION_MILLIS);
+                regressed |= compare(scenario, "peakRssKb", Long.parseLong(results.getProperty(scenario + ".peakRssKb")),
+                                     baseline, threshold, 0);
+            }
+            if (regressed) {
+                System.out.println("Performance regressed");
+                System.exit(1);
+            }
+        }
+    }
+}
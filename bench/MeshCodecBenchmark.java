@@ -0,0 +1,150 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Measures how small MeshCodec makes the vertices and indices of meshes, and how fast they decode,
+ * in MB/s of decoded data, checking that every mesh decodes back to exactly what was encoded.
+ *
+ * Usage: MeshCodecBenchmark [file.mdg...]
+ * Without files, uses a synthetic 1024 x 1024 grid of quantized vertices (16-bit positions on a
+ * smooth surface, oct-encoded normals and 16-bit texcoords), with its triangles in row order. Files
+ * must be version 1 .mdg files, as written without --encode-meshes.
+ */
+public final class MeshCodecBenchmark {
+    private static final int VERTEX_SIZE = 16;
+
+    private static final class Mesh {
+        byte[] vertices;
+        int nVertices;
+        int vertexSize;
+        int[] componentSizes;
+        int[] indices;
+        int indexSize;
+    }
+
+    private static Mesh syntheticGrid(int n) {
+        Mesh mesh = new Mesh();
+        mesh.nVertices = n * n;
+        mesh.vertexSize = VERTEX_SIZE;
+        mesh.componentSizes = QuantizedVertexFormat.componentSizes(QuantizedVertexFormat.FLAG_POSITION_UNORM16 |
+                                                                   QuantizedVertexFormat.FLAG_TEXCOORD_UNORM16);
+        mesh.indexSize = 4;
+        ByteBuffer vertices = ByteBuffer.allocate(mesh.nVertices * VERTEX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (int y = 0; y < n; ++y) {
+            for (int x = 0; x < n; ++x) {
+                double h = Math.sin(x * 0.02) * Math.cos(y * 0.03);
+                vertices.putShort((short)(x * 65535 / (n - 1)));
+                vertices.putShort((short)((h + 1) * 32767));
+                vertices.putShort((short)(y * 65535 / (n - 1)));
+                vertices.putShort((short)0);
+                vertices.putShort((short)((Math.cos(x * 0.02) * 0.3 + 1) * 16383));
+                vertices.putShort((short)((Math.sin(y * 0.03) * 0.3 + 1) * 16383));
+                vertices.putShort((short)(x * 65535 / (n - 1)));
+                vertices.putShort((short)(y * 65535 / (n - 1)));
+            }
+        }
+        mesh.vertices = vertices.array();
+        mesh.indices = new int[6 * (n - 1) * (n - 1)];
+        int i = 0;
+        for (int y = 0; y < n - 1; ++y) {
+            for (int x = 0; x < n - 1; ++x) {
+                int a = y * n + x;
+                int b = a + n;
+                mesh.indices[i++] = a;
+                mesh.indices[i++] = b;
+                mesh.indices[i++] = a + 1;
+                mesh.indices[i++] = a + 1;
+                mesh.indices[i++] = b;
+                mesh.indices[i++] = b + 1;
+            }
+        }
+        return mesh;
+    }
+
+    private static Mesh readMDG(File file) throws IOException {
+        ByteBuffer mdg = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (mdg.getInt(4) != ObjCompiler.MDG_FORMAT_VERSION)
+            throw new IOException(file + " is not a version 1 .mdg file");
+        Mesh mesh = new Mesh();
+        mesh.nVertices = mdg.getInt(12);
+        mesh.vertexSize = mdg.getInt(16);
+        mesh.componentSizes = QuantizedVertexFormat.componentSizes(mdg.getInt(8));
+        int ofsVertices = mdg.getInt(20);
+        int nIndices = mdg.getInt(24);
+        mesh.indexSize = mdg.getInt(28);
+        int ofsIndices = mdg.getInt(32);
+        mesh.vertices = Arrays.copyOfRange(mdg.array(), ofsVertices, ofsVertices + mesh.nVertices * mesh.vertexSize);
+        mesh.indices = new int[nIndices];
+        for (int i = 0; i < nIndices; ++i) {
+            mesh.indices[i] = mesh.indexSize == 2 ? mdg.getShort(ofsIndices + 2*i) & 0xFFFF : mdg.getInt(ofsIndices + 4*i);
+        }
+        return mesh;
+    }
+
+    private interface Run {
+        void run() throws IOException;
+    }
+
+    private static double bestMBps(long bytes, int iterations, Run run) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; ++i) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return bytes / 1e6 / (best / 1e9);
+    }
+
+    private static void run(String name, Mesh mesh) throws IOException {
+        // Enough iterations to warm up the JIT on small meshes too
+        int iterations = (int)Math.max(15, (256L << 20) / mesh.vertices.length);
+        int nIndices = mesh.indices.length;
+        long rawIndexBytes = (long)mesh.indexSize * nIndices;
+
+        int[] predictedFrom = new int[3 * mesh.nVertices];
+        byte[] indices = MeshCodec.encodeIndices(mesh.indices, nIndices, predictedFrom);
+        byte[] vertices = MeshCodec.encodeVertices(mesh.vertices, mesh.nVertices, mesh.componentSizes, predictedFrom);
+
+        byte[] decodedVertices = new byte[mesh.vertices.length];
+        int[] decodedIndices = new int[nIndices];
+        int[] decodedPredictedFrom = new int[3 * mesh.nVertices];
+        MeshCodec.decodeIndices(indices, 0, indices.length, decodedIndices, nIndices, decodedPredictedFrom);
+        MeshCodec.decodeVertices(vertices, 0, vertices.length, decodedVertices, mesh.nVertices, mesh.componentSizes,
+                                 decodedPredictedFrom);
+        if (!Arrays.equals(mesh.vertices, decodedVertices) || !Arrays.equals(mesh.indices, decodedIndices))
+            throw new IllegalStateException(name + ": MeshCodec round trip failed");
+
+        double encodeVertices = bestMBps(mesh.vertices.length, iterations,
+                () -> MeshCodec.encodeVertices(mesh.vertices, mesh.nVertices, mesh.componentSizes, predictedFrom));
+        double decodeVertices = bestMBps(mesh.vertices.length, iterations,
+                () -> MeshCodec.decodeVertices(vertices, 0, vertices.length, decodedVertices, mesh.nVertices,
+                                               mesh.componentSizes, decodedPredictedFrom));
+        double encodeIndices = bestMBps(rawIndexBytes, iterations,
+                () -> MeshCodec.encodeIndices(mesh.indices, nIndices, predictedFrom));
+        double decodeIndices = bestMBps(rawIndexBytes, iterations,
+                () -> MeshCodec.decodeIndices(indices, 0, indices.length, decodedIndices, nIndices,
+                                              decodedPredictedFrom));
+
+        System.out.printf("%s: %d vertices of %d bytes, %d %d-bit indices%n", name, mesh.nVertices, mesh.vertexSize,
+                          nIndices, 8 * mesh.indexSize);
+        System.out.printf("  vertices: %10d -> %10d bytes (%5.1f%%)   encode %8.1f MB/s   decode %8.1f MB/s%n",
+                          mesh.vertices.length, vertices.length, 100.0 * vertices.length / mesh.vertices.length,
+                          encodeVertices, decodeVertices);
+        System.out.printf("  indices:  %10d -> %10d bytes (%5.1f%%)   encode %8.1f MB/s   decode %8.1f MB/s%n",
+                          rawIndexBytes, indices.length, 100.0 * indices.length / rawIndexBytes,
+                          encodeIndices, decodeIndices);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            run("synthetic grid", syntheticGrid(1024));
+            return;
+        }
+        for (String arg : args) {
+            run(new File(arg).getName(), readMDG(new File(arg)));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Compares finding a permutation in a version 3 .shd file, by binary search of its sorted permutation
+ * table, against walking the chain of permutation headers in a version 1 file, using ShaderFile on
+ * synthetic files with every permutation of the given number of flags.
+ *
+ * Usage: ShaderLookupBenchmark [flags] [metallib KB] [lookups]
+ * The defaults are 10 flags (1024 permutations), 16 KB metallibs and 1M lookups.
+ */
+public final class ShaderLookupBenchmark {
+    private static byte[] metallib(int permutation, int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte)permutation);
+        return data;
+    }
+
+    /** Masks in descending popcount order, the order MetalShaderCompiler writes version 1 files in. */
+    private static long[] masks(int nFlags) {
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (int i = 0; i < 1 << nFlags; ++i) {
+            numbers.add(i);
+        }
+        Collections.sort(numbers, new MetalShaderCompiler.DescendingPopcountComparator());
+        long[] masks = new long[numbers.size()];
+        for (int i = 0; i < masks.length; ++i) {
+            masks[i] = numbers.get(i);
+        }
+        return masks;
+    }
+
+    private static void writeVersion1(File file, long[] masks, int size) throws IOException {
+        try (BinaryWriter writer = new BinaryWriter(file)) {
+            writer.write(new char[] {'R', 'D', 'H', 'S'});
+            writer.write32(MetalShaderCompiler.LEGACY_SHADER_FORMAT_VERSION);
+            writer.write(new char[] {'L', 'T', 'E', 'M' });
+            writer.write32(masks.length);
+            for (long mask : masks) {
+                byte[] data = metallib((int)mask, size);
+                long permuteHeaderPos = writer.getFilePointer();
+                writer.write64(mask);
+                writer.write32(data.length);
+                writer.write32(0);
+                long pos_ofsNextPermutation = writer.writeTemp32();
+                writer.write32(0);
+                writer.write(data);
+                writer.align(8);
+                writer.overwriteTemp32(pos_ofsNextPermutation, (int)(writer.getFilePointer() - permuteHeaderPos));
+            }
+            writer.commit();
+        }
+    }
+
+    private static void writeVersion3(File file, long[] masks, int size) throws IOException {
+        long[] sorted = masks.clone();
+        Arrays.sort(sorted);
+        try (BinaryWriter writer = new BinaryWriter(file)) {
+            writer.write(new char[] {'R', 'D', 'H', 'S'});
+            writer.write32(MetalShaderCompiler.SHADER_FORMAT_VERSION);
+            writer.write(new char[] {'L', 'T', 'E', 'M' });
+            writer.write32(sorted.length);
+            writer.write32(sorted.length);
+            long ofsPermutationsPos = writer.writeTemp32();
+            writer.align(8);
+            long permutationsPos = writer.getFilePointer();
+            writer.overwriteTemp32(ofsPermutationsPos, (int)permutationsPos);
+            for (long mask : sorted) {
+                writer.write64(mask);
+                writer.writeTemp32();
+                writer.writeTemp32();
+            }
+            for (int i = 0; i < sorted.length; ++i) {
+                byte[] data = metallib((int)sorted[i], size);
+                writer.align(8);
+                writer.overwriteTemp32(permutationsPos + 16*i + 8, (int)writer.getFilePointer());
+                writer.overwriteTemp32(permutationsPos + 16*i + 12, data.length);
+                writer.write(data);
+            }
+            writer.commit();
+        }
+    }
+
+    private static long lookUp(ShaderFile shader, long[] queries) {
+        long checksum = 0;
+        for (long mask : queries) {
+            ByteBuffer data = shader.find(mask);
+            checksum += data.get(0) + data.remaining();
+        }
+        return checksum;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int nFlags = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int size = (args.length > 1 ? Integer.parseInt(args[1]) : 16) << 10;
+        int nLookups = args.length > 2 ? Integer.parseInt(args[2]) : 1000000;
+
+        long[] masks = masks(nFlags);
+        File v1File = File.createTempFile("lookup-v1", ".shd");
+        File v3File = File.createTempFile("lookup-v3", ".shd");
+        try {
+            writeVersion1(v1File, masks, size);
+            writeVersion3(v3File, masks, size);
+            ShaderFile v1 = ShaderFile.open(v1File);
+            ShaderFile v3 = ShaderFile.open(v3File);
+
+            for (long mask : masks) {
+                ByteBuffer a = v1.find(mask);
+                ByteBuffer b = v3.find(mask);
+                if (a == null || !a.equals(b) || a.get(0) != (byte)mask)
+                    throw new IllegalStateException("Version 1 and 3 lookups disagree for mask " + mask);
+            }
+
+            Random random = new Random(1);
+            long[] queries = new long[nLookups];
+            for (int i = 0; i < nLookups; ++i) {
+                queries[i] = masks[random.nextInt(masks.length)];
+            }
+
+            System.out.printf("%d permutations, %d KB each%n", masks.length, size >> 10);
+            for (int impl = 0; impl < 2; ++impl) {
+                ShaderFile shader = impl == 0 ? v1 : v3;
+                long best = Long.MAX_VALUE;
+                long checksum = 0;
+                for (int i = 0; i < 5; ++i) {
+                    long start = System.nanoTime();
+                    checksum += lookUp(shader, queries);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                System.out.printf("%-20s %8.1f ms %8.1f ns/lookup (checksum %d)%n",
+                                  impl == 0 ? "version 1 (walk)" : "version 3 (search)",
+                                  best / 1e6, (double)best / nLookups, checksum);
+            }
+        } finally {
+            Files.deleteIfExists(v1File.toPath());
+            Files.deleteIfExists(v3File.toPath());
+        }
+    }
+}
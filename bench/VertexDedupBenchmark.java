@@ -0,0 +1,129 @@
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Compares VertexDedupTable against the HashMap-based IndexedPool&lt;Vertex&gt; it replaced, on the
+ * corner stream of a triangulated grid mesh.
+ *
+ * Usage: VertexDedupBenchmark [grid size] [iterations]
+ * The default 1300x1300 grid has 10.1M corners and 1.69M distinct vertices.
+ */
+public final class VertexDedupBenchmark {
+    /** The vertex key ObjCompiler used before VertexDedupTable. */
+    static class Vertex {
+        int idxPosition;
+        int idxNormal;
+        int idxTexCoord;
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Vertex)) return false;
+            Vertex v = (Vertex)other;
+            return idxPosition == v.idxPosition &&
+                   idxNormal == v.idxNormal &&
+                   idxTexCoord == v.idxTexCoord;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(idxPosition, idxNormal, idxTexCoord);
+        }
+    }
+
+    /**
+     * Builds the corner stream of a size x size grid as (position, normal, texcoord) triples. Adding
+     * texcoordOffset to every texcoord index pushes the indices beyond the packed-key range.
+     */
+    private static int[] gridCorners(int size, int texcoordOffset) {
+        int quads = (size - 1) * (size - 1);
+        int[] corners = new int[quads * 6 * 3];
+        int n = 0;
+        for (int y = 0; y < size - 1; ++y) {
+            for (int x = 0; x < size - 1; ++x) {
+                int a = y * size + x + 1;
+                int b = a + 1;
+                int c = a + size;
+                int d = c + 1;
+                for (int v : new int[] {a, c, b, b, c, d}) {
+                    corners[n++] = v;
+                    corners[n++] = v;
+                    corners[n++] = v + texcoordOffset;
+                }
+            }
+        }
+        return corners;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static int runIndexedPool(int[] corners, int[] indices) {
+        ObjCompiler.IndexedPool<Vertex> pool = new ObjCompiler.IndexedPool<Vertex>();
+        for (int i = 0; i < corners.length; i += 3) {
+            Vertex v = new Vertex();
+            v.idxPosition = corners[i];
+            v.idxNormal = corners[i + 1];
+            v.idxTexCoord = corners[i + 2];
+            indices[i / 3] = pool.indexFor(v);
+        }
+        // Writing the vertices needs them in index order
+        int checksum = 0;
+        for (Vertex v : pool.convertToList()) {
+            checksum = 31 * checksum + v.idxPosition;
+        }
+        return checksum;
+    }
+
+    private static int runDedupTable(int[] corners, int[] indices) {
+        VertexDedupTable table = new VertexDedupTable();
+        for (int i = 0; i < corners.length; i += 3) {
+            indices[i / 3] = table.indexFor(corners[i], corners[i + 1], corners[i + 2]);
+        }
+        int checksum = 0;
+        int[] vertices = table.getVertices().array();
+        for (int i = 0; i < 3 * table.size(); i += 3) {
+            checksum = 31 * checksum + vertices[i];
+        }
+        return checksum;
+    }
+
+    private static void run(String name, int[] corners, int iterations) {
+        int[] expected = new int[corners.length / 3];
+        int[] indices = new int[corners.length / 3];
+        int expectedChecksum = runIndexedPool(corners, expected);
+        if (runDedupTable(corners, indices) != expectedChecksum || !Arrays.equals(expected, indices)) {
+            throw new IllegalStateException("VertexDedupTable disagrees with IndexedPool");
+        }
+
+        for (int impl = 0; impl < 2; ++impl) {
+            long best = Long.MAX_VALUE;
+            long allocated = 0;
+            for (int i = 0; i < iterations; ++i) {
+                System.gc();
+                long startBytes = allocatedBytes();
+                long start = System.nanoTime();
+                if (impl == 0)
+                    runIndexedPool(corners, indices);
+                else
+                    runDedupTable(corners, indices);
+                best = Math.min(best, System.nanoTime() - start);
+                allocated = allocatedBytes() - startBytes;
+            }
+            System.out.printf("%-8s %-16s %8.1f ms %8.1f ns/corner %10.1f MB allocated%n",
+                              name, impl == 0 ? "IndexedPool" : "VertexDedupTable",
+                              best / 1e6, (double)best / indices.length, allocated / 1e6);
+        }
+    }
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1300;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        int[] corners = gridCorners(size, 0);
+        System.out.printf("%d corners, %d distinct vertices%n", corners.length / 3, size * size);
+        run("packed", corners, iterations);
+        run("wide", gridCorners(size, 1 << 21), iterations);
+    }
+}
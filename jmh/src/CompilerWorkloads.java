@@ -0,0 +1,134 @@
+import gfxdemo.jmh.Workload;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The compiler operations the JMH benchmarks in gfxdemo.jmh measure. They live here, in the unnamed
+ * package, because that is the only place that can use the compiler's classes (see Workload).
+ */
+public final class CompilerWorkloads {
+    private CompilerWorkloads() {}
+
+    /** Reads every token of an .obj file. */
+    public static Workload lexerTokens(File obj) {
+        return () -> {
+            long n = 0;
+            try (ObjCompiler.Lexer lexer = new ObjCompiler.Lexer(obj)) {
+                while (lexer.hasNext()) {
+                    lexer.skipToken();
+                    ++n;
+                }
+            }
+            return n;
+        };
+    }
+
+    /** Parses an .obj file of "v x y z" lines. */
+    public static Workload lexerFloats(File obj) {
+        return () -> {
+            long bits = 0;
+            try (ObjCompiler.Lexer lexer = new ObjCompiler.Lexer(obj)) {
+                while (lexer.hasNext()) {
+                    lexer.skipToken();
+                    bits += Float.floatToRawIntBits(lexer.nextFloat());
+                    bits += Float.floatToRawIntBits(lexer.nextFloat());
+                    bits += Float.floatToRawIntBits(lexer.nextFloat());
+                }
+            }
+            return bits;
+        };
+    }
+
+    /** Parses an .obj file of "f v/t/n v/t/n v/t/n" lines. */
+    public static Workload lexerInts(File obj) {
+        return () -> {
+            long sum = 0;
+            try (ObjCompiler.Lexer lexer = new ObjCompiler.Lexer(obj)) {
+                while (lexer.hasNext()) {
+                    lexer.skipToken();
+                    for (int j = 0; j < 3; ++j) {
+                        sum += lexer.nextInt();
+                        lexer.skipToken();
+                        sum += lexer.nextInt();
+                        lexer.skipToken();
+                        sum += lexer.nextInt();
+                    }
+                }
+            }
+            return sum;
+        };
+    }
+
+    /** Deduplicates (position, texcoord, normal) index triples with VertexDedupTable. */
+    public static Workload vertexDedupTable(int[] corners) {
+        int[] indices = new int[corners.length / 3];
+        return () -> {
+            VertexDedupTable table = new VertexDedupTable();
+            for (int i = 0; i < corners.length; i += 3) {
+                indices[i / 3] = table.indexFor(corners[i], corners[i + 1], corners[i + 2]);
+            }
+            return table.size();
+        };
+    }
+
+    /** Deduplicates strings with IndexedPool, as texture paths are. */
+    public static Workload indexedPool(String[] paths) {
+        return () -> {
+            ObjCompiler.IndexedPool<String> pool = new ObjCompiler.IndexedPool<String>();
+            long sum = 0;
+            for (String path : paths) {
+                sum += pool.indexFor(path);
+            }
+            return sum + pool.convertToList().size();
+        };
+    }
+
+    /**
+     * Writes count ints to file with BinaryWriter, in blocks, each with a temp header patched once the
+     * block is written, as files' offsets are.
+     */
+    public static Workload binaryWriter(File file, Integer count, Integer bufferLimit) {
+        final int block = 1024;
+        return () -> {
+            try (BinaryWriter writer = new BinaryWriter(file, false, bufferLimit)) {
+                for (int i = 0; i < count; i += block) {
+                    long header = writer.writeTemp32();
+                    for (int j = 1; j < block; ++j) {
+                        writer.write32(i + j);
+                    }
+                    writer.overwriteTemp32(header, (int)writer.getFilePointer());
+                }
+                long size = writer.getFilePointer();
+                writer.commit();
+                return size;
+            }
+        };
+    }
+
+    /** Compiles an .obj file to .mdl and .mdg files in outputDir, discarding what the compiler prints. */
+    public static Workload objCompiler(File obj, File outputDir) {
+        ObjCompiler compiler = new ObjCompiler();
+        List<File> outputFiles = Arrays.asList(new File(outputDir, "grid.mdl"), new File(outputDir, "grid.mdg"));
+        List<File> dependencies = new ArrayList<File>();
+        PrintStream discard = new PrintStream(new ByteArrayOutputStream() {
+            @Override
+            public void write(byte[] b, int off, int len) {}
+
+            @Override
+            public void write(int b) {}
+        });
+        return () -> {
+            dependencies.clear();
+            PrintStream out = System.out;
+            System.setOut(discard);
+            try {
+                if (!compiler.compile(obj, outputFiles, dependencies))
+                    throw new IllegalStateException("Failed to compile " + obj);
+            } finally {
+                System.setOut(out);
+            }
+            return outputFiles.get(1).length();
+        };
+    }
+}
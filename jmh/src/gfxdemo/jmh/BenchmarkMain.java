@@ -0,0 +1,48 @@
+package gfxdemo.jmh;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * The benchmarks jar's entry point: JMH's own, taking the same arguments, but with the GC profiler
+ * always on, so that every run reports allocation rates alongside times. Run org.openjdk.jmh.Main
+ * from the jar for a run without it.
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {}
+
+    private static boolean hasGCProfiler(Options options) {
+        for (ProfilerConfig profiler : options.getProfilers()) {
+            if (profiler.getKlass().equals("gc") || profiler.getKlass().equals(GCProfiler.class.getName()))
+                return true;
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine;
+        try {
+            commandLine = new CommandLineOptions(args);
+        } catch (CommandLineOptionException e) {
+            // Main prints the error and the usage
+            Main.main(args);
+            return;
+        }
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams() ||
+            commandLine.shouldListProfilers() || commandLine.shouldListResultFormats() ||
+            hasGCProfiler(commandLine)) {
+            Main.main(args);
+            return;
+        }
+
+        try {
+            new Runner(new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build()).run();
+        } catch (RunnerException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
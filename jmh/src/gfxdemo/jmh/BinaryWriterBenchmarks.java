@@ -0,0 +1,44 @@
+package gfxdemo.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * BinaryWriter writing a 16 MB file of ints, in memory (bufferLimit 0) and flushing every 1 MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryWriterBenchmarks {
+    private static final int INTS = 4 << 20;
+
+    @Param({"0", "1048576"})
+    public int bufferLimit;
+
+    private File dir;
+    private Workload write32;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Inputs.createTempDir();
+        write32 = Workload.create("binaryWriter", new File(dir, "writer.bin"), INTS, bufferLimit);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Inputs.deleteRecursively(dir);
+    }
+
+    /** Time per int written, including writing the file. */
+    @Benchmark
+    @OperationsPerInvocation(INTS)
+    public long write32() throws IOException {
+        return write32.run();
+    }
+}
@@ -0,0 +1,52 @@
+package gfxdemo.jmh;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Vertex deduplication with VertexDedupTable, on the corners of a 1024 x 1024 grid, and string
+ * deduplication with IndexedPool, on texture paths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DedupBenchmarks {
+    private static final int GRID_SIZE = 1024;
+    private static final int GRID_CORNERS = (GRID_SIZE - 1) * (GRID_SIZE - 1) * 6;
+    private static final int PATHS = 1 << 16;
+
+    private Workload vertexDedupTable;
+    private Workload indexedPool;
+
+    @Setup
+    public void setUp() {
+        vertexDedupTable = Workload.create("vertexDedupTable", (Object)Inputs.gridCorners(GRID_SIZE));
+
+        String[] paths = new String[PATHS];
+        Random random = new Random(1);
+        for (int i = 0; i < paths.length; ++i) {
+            paths[i] = "Textures/material" + random.nextInt(256) + "_diffuse.png";
+        }
+        indexedPool = Workload.create("indexedPool", (Object)paths);
+    }
+
+    /** Time per corner. */
+    @Benchmark
+    @OperationsPerInvocation(GRID_CORNERS)
+    public long vertexDedupTable() throws IOException {
+        return vertexDedupTable.run();
+    }
+
+    /** Time per lookup. */
+    @Benchmark
+    @OperationsPerInvocation(PATHS)
+    public long indexedPool() throws IOException {
+        return indexedPool.run();
+    }
+}
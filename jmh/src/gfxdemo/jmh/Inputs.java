@@ -0,0 +1,75 @@
+package gfxdemo.jmh;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Generated inputs for the benchmarks.
+ */
+final class Inputs {
+    private Inputs() {}
+
+    static File createTempDir() throws IOException {
+        return Files.createTempDirectory("compiler-jmh").toFile();
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes an .obj file of a size x size grid: positions, normals and texcoords per grid point and
+     * two triangles per cell, split between two materials.
+     */
+    static File writeGridObj(File file, int size) throws IOException {
+        try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            for (int y = 0; y < size; ++y) {
+                for (int x = 0; x < size; ++x) {
+                    float h = (float)(Math.sin(x * 0.05) * Math.cos(y * 0.05));
+                    out.write(String.format(Locale.ROOT, "v %.6f %.6f %.6f%n", x / (float)size, h, y / (float)size));
+                    out.write(String.format(Locale.ROOT, "vn %.6f %.6f %.6f%n", 0.0f, 1.0f, 0.0f));
+                    out.write(String.format(Locale.ROOT, "vt %.6f %.6f%n", x / (float)size, y / (float)size));
+                }
+            }
+            for (int y = 0; y < size - 1; ++y) {
+                if (y == 0 || y == size / 2)
+                    out.write("usemtl " + (y == 0 ? "ground" : "rock") + "\n");
+                for (int x = 0; x < size - 1; ++x) {
+                    int a = y * size + x + 1;
+                    int b = a + size;
+                    out.write(String.format("f %d/%d/%d %d/%d/%d %d/%d/%d%n", a, a, a, b, b, b, a + 1, a + 1, a + 1));
+                    out.write(String.format("f %d/%d/%d %d/%d/%d %d/%d/%d%n", a + 1, a + 1, a + 1, b, b, b, b + 1, b + 1, b + 1));
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Returns the corners of a size x size grid's triangles as (position, texcoord, normal) index
+     * triples, as the .obj parser sees them.
+     */
+    static int[] gridCorners(int size) {
+        int[] corners = new int[(size - 1) * (size - 1) * 6 * 3];
+        int n = 0;
+        for (int y = 0; y < size - 1; ++y) {
+            for (int x = 0; x < size - 1; ++x) {
+                int a = y * size + x + 1;
+                int b = a + size;
+                for (int v : new int[] {a, b, a + 1, a + 1, b, b + 1}) {
+                    corners[n++] = v;
+                    corners[n++] = v;
+                    corners[n++] = v;
+                }
+            }
+        }
+        return corners;
+    }
+}
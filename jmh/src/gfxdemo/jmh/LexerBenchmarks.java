@@ -0,0 +1,83 @@
+package gfxdemo.jmh;
+
+import java.io.*;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ObjCompiler.Lexer: tokenizing a grid .obj file, and parsing floats and face indices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmarks {
+    private static final int FLOAT_LINES = 1 << 20;
+    private static final int FACE_LINES = 1 << 19;
+
+    private File dir;
+    private Workload tokens;
+    private Workload floats;
+    private Workload ints;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Inputs.createTempDir();
+        tokens = Workload.create("lexerTokens", Inputs.writeGridObj(new File(dir, "grid.obj"), 512));
+
+        File floatsObj = new File(dir, "floats.obj");
+        Random random = new Random(1);
+        try (Writer out = new BufferedWriter(new FileWriter(floatsObj), 1 << 16)) {
+            for (int i = 0; i < FLOAT_LINES; ++i) {
+                out.write(String.format(Locale.ROOT, "v %.6f %.6f %.6f%n", random.nextFloat() * 100 - 50,
+                                        random.nextFloat(), -random.nextFloat() * 1000));
+            }
+        }
+        floats = Workload.create("lexerFloats", floatsObj);
+
+        File intsObj = new File(dir, "ints.obj");
+        try (Writer out = new BufferedWriter(new FileWriter(intsObj), 1 << 16)) {
+            for (int i = 0; i < FACE_LINES; ++i) {
+                out.write("f");
+                for (int j = 0; j < 3; ++j) {
+                    int v = random.nextInt(1 << 20) + 1;
+                    out.write(" " + v + "/" + v + "/" + v);
+                }
+                out.write("\n");
+            }
+        }
+        ints = Workload.create("lexerInts", intsObj);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Inputs.deleteRecursively(dir);
+    }
+
+    /** Time per file: every token of a 512 x 512 grid's .obj file. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long tokens() throws IOException {
+        return tokens.run();
+    }
+
+    /** Time per float parsed. */
+    @Benchmark
+    @OperationsPerInvocation(3 * FLOAT_LINES)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long floats() throws IOException {
+        return floats.run();
+    }
+
+    /** Time per face index parsed. */
+    @Benchmark
+    @OperationsPerInvocation(9 * FACE_LINES)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long ints() throws IOException {
+        return ints.run();
+    }
+}
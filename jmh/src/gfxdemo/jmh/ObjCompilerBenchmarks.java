@@ -0,0 +1,43 @@
+package gfxdemo.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ObjCompiler compiling a size x size grid .obj file to .mdl and .mdg files, parsing on the common
+ * fork-join pool. -prof gc counts allocation on every thread, so it includes the parse tasks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjCompilerBenchmarks {
+    @Param({"64", "256", "1024"})
+    public int size;
+
+    private File dir;
+    private Workload compile;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Inputs.createTempDir();
+        File obj = Inputs.writeGridObj(new File(dir, "grid.obj"), size);
+        compile = Workload.create("objCompiler", obj, dir);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Inputs.deleteRecursively(dir);
+    }
+
+    /** Time per compile of the whole file. */
+    @Benchmark
+    public long compile() throws IOException {
+        return compile.run();
+    }
+}
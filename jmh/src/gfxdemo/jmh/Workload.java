@@ -0,0 +1,35 @@
+package gfxdemo.jmh;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * One operation on the compiler, as a benchmark invokes it.
+ *
+ * JMH only accepts benchmark classes in a named package, and the compiler's classes are package-private
+ * classes in the unnamed package, which a named package can't refer to. So the operations are built by
+ * CompilerWorkloads, in the unnamed package, and benchmarks look them up by name once, in their setup,
+ * and then call them through this interface.
+ */
+public interface Workload {
+    /** Runs the operation once, returning a value that depends on its result. */
+    long run() throws IOException;
+
+    /**
+     * Returns the workload built by the CompilerWorkloads factory method with the given name.
+     */
+    static Workload create(String name, Object... args) {
+        try {
+            for (Method method : Class.forName("CompilerWorkloads").getMethods()) {
+                if (method.getName().equals(name) && method.getParameterCount() == args.length)
+                    return (Workload)method.invoke(null, args);
+            }
+            throw new IllegalArgumentException("No workload named " + name);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Failed to create workload " + name, e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to create workload " + name, e);
+        }
+    }
+}
@@ -1,6 +1,26 @@
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 public interface AssetCompiler {
-    boolean compile(File inputFile, List<File> outputFiles);
+    /**
+     * Compiles inputFile into outputFiles. Any other file the compiler reads (or looked for, if the
+     * file's existence changes the result) is added to dependencies.
+     */
+    boolean compile(File inputFile, List<File> outputFiles, List<File> dependencies);
+
+    /**
+     * Identifies the output formats this compiler produces. Changing it causes every asset built by
+     * the compiler to be considered out of date.
+     */
+    String getVersion();
+
+    /**
+     * Adds the paths of other assets that the given outputs of this compiler refer to, such as a
+     * model's textures, to references, by output file. Used to build the string table of an asset
+     * pack.
+     */
+    default void findReferences(List<File> outputFiles, Map<File, List<String>> references) throws IOException {
+    }
 }
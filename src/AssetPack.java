@@ -0,0 +1,217 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reads a pack file written by AssetPacker, memory-mapped, and finds an asset by its path the way the
+ * runtime does: by hashing the path and looking through one bucket of the table of contents. Assets
+ * stored uncompressed are returned in place; compressed ones are decompressed.
+ *
+ * Layout (little-endian, every table 8-byte aligned):
+ * <pre>
+ * 'PACK', version, ofsToc (64-bit), tocSize (64-bit), liveBytes (64-bit)
+ * each asset's data, 16-byte aligned
+ * at ofsToc: nEntries, nBuckets, nStrings, nRefs,
+ *            ofsBuckets, ofsEntries, ofsRefs, ofsStrings, ofsStringData, blockSize
+ *            (offsets relative to ofsToc; blockSize is the compression block size, 0 if uncompressed)
+ *   buckets: nBuckets + 1 entry indices; bucket b holds entries [buckets[b], buckets[b + 1])
+ *   entries: pathHash (64-bit), ofsData (64-bit), size (64-bit), storedSize (64-bit), mtime (64-bit),
+ *            crc32, path, firstRef, nRefs, encoding, padding
+ *   refs: string indices of the paths each asset refers to (such as a model's textures)
+ *   strings: ofsString (relative to ofsStringData), length
+ *   string data: UTF-8, each string NUL-terminated
+ * </pre>
+ * An entry is in bucket pathHash &amp; (nBuckets - 1), where pathHash is the 64-bit FNV-1a hash of its
+ * path's UTF-8 bytes and nBuckets is a power of two. Every path is stored once in the string table,
+ * however many assets refer to it. mtime is the modification time of the file the asset was packed
+ * from; the runtime ignores it, and AssetPacker uses it to tell which assets changed.
+ *
+ * An asset's encoding is ENCODING_NONE, with its storedSize bytes being the asset itself, or
+ * ENCODING_BLOCKS, with them being CompressedBlocks that decompress to size bytes. crc32 is always of
+ * the decompressed asset.
+ */
+final class AssetPack {
+    static final int PACK_FORMAT_VERSION = 2;
+
+    static final int ENCODING_NONE = 0;
+    static final int ENCODING_BLOCKS = 1;
+
+    static final int MAGIC = 'P' | 'A' << 8 | 'C' << 16 | 'K' << 24;
+    static final int HEADER_SIZE = 32;
+    static final int TOC_HEADER_SIZE = 40;
+    static final int ENTRY_SIZE = 64;
+    static final int DATA_ALIGNMENT = 16;
+
+    static final class Entry {
+        String path;
+        long ofsData;
+        long size;
+        long storedSize;
+        long lastModified;
+        int crc32;
+        int encoding;
+        List<String> refs = new ArrayList<String>();
+    }
+
+    private final ByteBuffer buffer;
+    private final long ofsToc;
+    private final long tocSize;
+    private final long liveBytes;
+    private final int nEntries;
+    private final int nBuckets;
+    private final int ofsBuckets;
+    private final int ofsEntries;
+    private final int ofsRefs;
+    private final int ofsStrings;
+    private final int ofsStringData;
+    private final int blockSize;
+
+    private AssetPack(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not an asset pack");
+        if (buffer.getInt(4) != PACK_FORMAT_VERSION)
+            throw new IOException("Unsupported asset pack version " + buffer.getInt(4));
+        ofsToc = buffer.getLong(8);
+        tocSize = buffer.getLong(16);
+        liveBytes = buffer.getLong(24);
+        if (ofsToc < HEADER_SIZE || tocSize < TOC_HEADER_SIZE || ofsToc + tocSize > buffer.limit())
+            throw new IOException("Truncated asset pack");
+        int toc = (int)ofsToc;
+        nEntries = buffer.getInt(toc);
+        nBuckets = buffer.getInt(toc + 4);
+        ofsBuckets = toc + buffer.getInt(toc + 16);
+        ofsEntries = toc + buffer.getInt(toc + 20);
+        ofsRefs = toc + buffer.getInt(toc + 24);
+        ofsStrings = toc + buffer.getInt(toc + 28);
+        ofsStringData = toc + buffer.getInt(toc + 32);
+        blockSize = buffer.getInt(toc + 36);
+        if (Integer.bitCount(nBuckets) != 1)
+            throw new IOException("Corrupt asset pack table of contents");
+    }
+
+    public static AssetPack open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new AssetPack(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    static long hash(byte[] path) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : path) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    public int getEntryCount() {
+        return nEntries;
+    }
+
+    long getTocOffset() {
+        return ofsToc;
+    }
+
+    long getTocSize() {
+        return tocSize;
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Returns the block size assets were compressed with, or 0 if the pack is uncompressed.
+     */
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns the data of the asset with the given path, or null if the pack has no such asset.
+     */
+    public ByteBuffer find(String path) throws IOException {
+        int entry = findEntry(path);
+        if (entry < 0)
+            return null;
+        long size = buffer.getLong(entry + 16);
+        ByteBuffer stored = slice(buffer.getLong(entry + 8), buffer.getLong(entry + 24));
+        switch (buffer.getInt(entry + 56)) {
+            case ENCODING_NONE:
+                return stored;
+            case ENCODING_BLOCKS:
+                return ByteBuffer.wrap(CompressedBlocks.decompress(stored, (int)size)).order(ByteOrder.LITTLE_ENDIAN);
+            default:
+                throw new IOException("Unknown asset encoding " + buffer.getInt(entry + 56));
+        }
+    }
+
+    private int findEntry(String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        long h = hash(bytes);
+        int bucket = (int)(h & (nBuckets - 1));
+        int end = buffer.getInt(ofsBuckets + 4*bucket + 4);
+        for (int i = buffer.getInt(ofsBuckets + 4*bucket); i < end; ++i) {
+            int entry = ofsEntries + ENTRY_SIZE*i;
+            if (buffer.getLong(entry) == h && stringEquals(buffer.getInt(entry + 44), bytes))
+                return entry;
+        }
+        return -1;
+    }
+
+    private boolean stringEquals(int index, byte[] bytes) {
+        int ofs = ofsStringData + buffer.getInt(ofsStrings + 8*index);
+        if (buffer.getInt(ofsStrings + 8*index + 4) != bytes.length)
+            return false;
+        for (int i = 0; i < bytes.length; ++i) {
+            if (buffer.get(ofs + i) != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    private String string(int index) {
+        byte[] bytes = new byte[buffer.getInt(ofsStrings + 8*index + 4)];
+        ByteBuffer data = buffer.duplicate();
+        data.position(ofsStringData + buffer.getInt(ofsStrings + 8*index));
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private ByteBuffer slice(long offset, long size) {
+        ByteBuffer data = buffer.duplicate();
+        data.position((int)offset);
+        data.limit((int)(offset + size));
+        return data.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns every entry in the table of contents, by path.
+     */
+    Map<String, Entry> entries() {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        for (int i = 0; i < nEntries; ++i) {
+            int ofs = ofsEntries + ENTRY_SIZE*i;
+            Entry entry = new Entry();
+            entry.ofsData = buffer.getLong(ofs + 8);
+            entry.size = buffer.getLong(ofs + 16);
+            entry.storedSize = buffer.getLong(ofs + 24);
+            entry.lastModified = buffer.getLong(ofs + 32);
+            entry.crc32 = buffer.getInt(ofs + 40);
+            entry.path = string(buffer.getInt(ofs + 44));
+            int firstRef = buffer.getInt(ofs + 48);
+            int nRefs = buffer.getInt(ofs + 52);
+            entry.encoding = buffer.getInt(ofs + 56);
+            for (int r = 0; r < nRefs; ++r) {
+                entry.refs.add(string(buffer.getInt(ofsRefs + 4*(firstRef + r))));
+            }
+            entries.put(entry.path, entry);
+        }
+        return entries;
+    }
+}
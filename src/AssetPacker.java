@@ -0,0 +1,378 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Collects the outputs of every build job into a single pack file (see AssetPack for the layout), so
+ * that the runtime can map one file instead of opening thousands of small ones.
+ *
+ * Packing is incremental. An asset whose file has the same size and modification time as when it was
+ * last packed is left where it is; the others are appended after the old data, followed by a new
+ * table of contents, and only then is the header rewritten to point at it. A process that has the old
+ * pack mapped keeps seeing the old assets, and a packer that dies part way leaves the old pack intact.
+ * Once more than half the file would be superseded data, the pack is rewritten from scratch into a
+ * temporary file that is renamed over the old one.
+ *
+ * With a compression block size, each asset is compressed in CompressedBlocks of that size, encoded
+ * in parallel, unless that doesn't make it smaller. Changing the block size repacks every asset.
+ */
+final class AssetPacker {
+    private static class Item {
+        String path;
+        File file;
+        long size;
+        long lastModified;
+        AssetPack.Entry old;
+        List<String> refs;
+
+        // Where the data is in the new pack, how it's stored, and its checksum
+        long ofsData;
+        long storedSize;
+        int encoding;
+        int crc32;
+    }
+
+    private final File packFile;
+    private final int blockSize;
+
+    /**
+     * @param blockSize the block size to compress assets in, or 0 to store them uncompressed
+     */
+    public AssetPacker(File packFile, int blockSize) {
+        this.packFile = packFile;
+        this.blockSize = blockSize;
+    }
+
+    public File getFile() {
+        return packFile;
+    }
+
+    /** Paths are stored with forward slashes, as the runtime asks for them. */
+    private static String packPath(String filename) {
+        return Paths.get(filename).normalize().toString().replace(File.separatorChar, '/');
+    }
+
+    private static long align(long n) {
+        return (n + AssetPack.DATA_ALIGNMENT - 1) & -AssetPack.DATA_ALIGNMENT;
+    }
+
+    /**
+     * Packs the outputs of the given jobs, which must all have compiled successfully. Returns false,
+     * having printed why, if the pack couldn't be written.
+     */
+    public boolean pack(List<DataCompiler.BuildJob> jobs) {
+        AssetPack oldPack = null;
+        Map<String, AssetPack.Entry> oldEntries = Collections.emptyMap();
+        if (packFile.isFile()) {
+            try {
+                oldPack = AssetPack.open(packFile);
+                if (oldPack.getBlockSize() == blockSize)
+                    oldEntries = oldPack.entries();
+            } catch (IOException e) {
+                System.out.printf("Warning: rewriting asset pack %s: %s%n", packFile, e.getMessage());
+                oldPack = null;
+            }
+        }
+
+        List<Item> items = new ArrayList<Item>();
+        int changed = 0;
+        try {
+            for (DataCompiler.BuildJob job : jobs) {
+                List<File> outputFiles = new ArrayList<File>();
+                List<Item> jobItems = new ArrayList<Item>();
+                boolean jobChanged = false;
+                for (String outputFilename : job.outputFilenames) {
+                    Item item = new Item();
+                    item.path = packPath(outputFilename);
+                    item.file = new File(outputFilename);
+                    if (!item.file.isFile())
+                        throw new FileNotFoundException(outputFilename);
+                    item.size = item.file.length();
+                    item.lastModified = item.file.lastModified();
+                    AssetPack.Entry old = oldEntries.get(item.path);
+                    if (old != null && old.size == item.size && old.lastModified == item.lastModified) {
+                        item.old = old;
+                        item.refs = old.refs;
+                    } else {
+                        jobChanged = true;
+                        ++changed;
+                    }
+                    outputFiles.add(item.file);
+                    jobItems.add(item);
+                }
+                if (jobChanged) {
+                    // References can depend on several of the job's outputs
+                    Map<File, List<String>> references = new HashMap<File, List<String>>();
+                    job.info.compiler.findReferences(outputFiles, references);
+                    for (Item item : jobItems) {
+                        List<String> refs = references.get(item.file);
+                        item.refs = refs != null ? refs : Collections.<String>emptyList();
+                    }
+                }
+                items.addAll(jobItems);
+            }
+        } catch (IOException e) {
+            System.out.printf("Failed to read asset for pack %s: %s%n", packFile, e.getMessage());
+            return false;
+        }
+        Collections.sort(items, (a, b) -> a.path.compareTo(b.path));
+
+        if (oldPack != null && changed == 0 && oldEntries.size() == items.size() &&
+                oldPack.getBlockSize() == blockSize) {
+            System.out.printf("Asset pack %s up to date%n", packFile);
+            return true;
+        }
+
+        long liveBytes = 0;
+        long changedBytes = 0;
+        for (Item item : items) {
+            // Changed assets are counted uncompressed, since they haven't been compressed yet
+            liveBytes += align(item.old != null ? item.old.storedSize : item.size);
+            if (item.old == null)
+                changedBytes += align(item.size);
+        }
+
+        try {
+            boolean rewrite = oldPack == null ||
+                    packFile.length() + changedBytes - liveBytes > liveBytes;
+            if (rewrite)
+                rewrite(items);
+            else
+                append(items);
+            System.out.printf("Packed %d assets into %s (%d updated%s, %.1f MB)%n", items.size(), packFile,
+                              changed, rewrite ? ", rewritten" : "", packFile.length() / 1e6);
+        } catch (IOException e) {
+            System.out.printf("Failed to write asset pack %s: %s%n", packFile, e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes every asset to a new pack in a temporary file, copying unchanged ones from the old pack,
+     * and renames it over the old pack.
+     */
+    private void rewrite(List<Item> items) throws IOException {
+        Path target = packFile.getAbsoluteFile().toPath();
+        // As in BinaryWriter, java.io.File gives the pack the usual permissions rather than owner-only ones
+        Path temp = File.createTempFile("." + target.getFileName() + ".", ".tmp", target.getParent().toFile()).toPath();
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 FileChannel old = packFile.isFile() ? FileChannel.open(target, StandardOpenOption.READ) : null) {
+                long pos = AssetPack.HEADER_SIZE;
+                for (Item item : items) {
+                    pos = align(pos);
+                    item.ofsData = pos;
+                    if (item.old != null) {
+                        reuse(item);
+                        copy(old, item.old.ofsData, item.storedSize, out, pos);
+                    } else {
+                        writeAsset(item, out, pos);
+                    }
+                    pos += item.storedSize;
+                }
+                finish(out, align(pos), items);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Appends the changed assets and a new table of contents to the existing pack.
+     */
+    private void append(List<Item> items) throws IOException {
+        try (FileChannel out = FileChannel.open(packFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long pos = out.size();
+            for (Item item : items) {
+                if (item.old != null) {
+                    reuse(item);
+                    item.ofsData = item.old.ofsData;
+                    continue;
+                }
+                pos = align(pos);
+                item.ofsData = pos;
+                writeAsset(item, out, pos);
+                pos += item.storedSize;
+            }
+            finish(out, align(pos), items);
+        }
+    }
+
+    private static void copy(FileChannel from, long position, long size, FileChannel to, long toPosition) throws IOException {
+        to.position(toPosition);
+        long done = 0;
+        while (done < size) {
+            long n = from.transferTo(position + done, size - done, to);
+            if (n <= 0)
+                throw new EOFException("Asset pack is shorter than its table of contents says");
+            done += n;
+        }
+    }
+
+    private static void reuse(Item item) {
+        item.storedSize = item.old.storedSize;
+        item.encoding = item.old.encoding;
+        item.crc32 = item.old.crc32;
+    }
+
+    private void writeAsset(Item item, FileChannel out, long pos) throws IOException {
+        byte[] data = Files.readAllBytes(item.file.toPath());
+        if (data.length != item.size)
+            throw new IOException(item.file + " changed while it was being packed");
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        item.crc32 = (int)crc.getValue();
+
+        item.encoding = AssetPack.ENCODING_NONE;
+        if (blockSize > 0) {
+            byte[] compressed = CompressedBlocks.compress(data, data.length, blockSize);
+            if (compressed.length < data.length) {
+                data = compressed;
+                item.encoding = AssetPack.ENCODING_BLOCKS;
+            }
+        }
+        item.storedSize = data.length;
+        writeFully(out, ByteBuffer.wrap(data), pos);
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer, long pos) throws IOException {
+        while (buffer.hasRemaining()) {
+            pos += out.write(buffer, pos);
+        }
+    }
+
+    /**
+     * Writes the table of contents at ofsToc, makes sure it and the data are on disk, and then points
+     * the header at it.
+     */
+    private void finish(FileChannel out, long ofsToc, List<Item> items) throws IOException {
+        long liveBytes = 0;
+        for (Item item : items) {
+            liveBytes += align(item.storedSize);
+        }
+        ByteBuffer toc = buildToc(items);
+        writeFully(out, toc, ofsToc);
+        out.force(false);
+
+        ByteBuffer header = ByteBuffer.allocate(AssetPack.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(AssetPack.MAGIC);
+        header.putInt(AssetPack.PACK_FORMAT_VERSION);
+        header.putLong(ofsToc);
+        header.putLong(toc.capacity());
+        header.putLong(liveBytes);
+        header.flip();
+        writeFully(out, header, 0);
+        out.force(false);
+    }
+
+    private static int align8(int n) {
+        return (n + 7) & ~7;
+    }
+
+    private ByteBuffer buildToc(List<Item> items) {
+        // Each distinct path, whether of an asset or referred to by one, is stored once
+        Map<String, Integer> stringIndices = new LinkedHashMap<String, Integer>();
+        List<byte[]> strings = new ArrayList<byte[]>();
+        int stringDataSize = 0;
+        int nRefs = 0;
+        for (Item item : items) {
+            for (String s : item.refs.isEmpty() ? Collections.singletonList(item.path) : concat(item.path, item.refs)) {
+                if (!stringIndices.containsKey(s)) {
+                    stringIndices.put(s, strings.size());
+                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    strings.add(bytes);
+                    stringDataSize += bytes.length + 1;
+                }
+            }
+            nRefs += item.refs.size();
+        }
+
+        int nBuckets = Integer.highestOneBit(Math.max(1, items.size()));
+        if (nBuckets < items.size())
+            nBuckets <<= 1;
+        final int bucketMask = nBuckets - 1;
+        final long[] hashes = new long[items.size()];
+        Integer[] order = new Integer[items.size()];
+        for (int i = 0; i < items.size(); ++i) {
+            hashes[i] = AssetPack.hash(items.get(i).path.getBytes(StandardCharsets.UTF_8));
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a] & bucketMask, hashes[b] & bucketMask));
+
+        int ofsBuckets = AssetPack.TOC_HEADER_SIZE;
+        int ofsEntries = align8(ofsBuckets + 4 * (nBuckets + 1));
+        int ofsRefs = ofsEntries + AssetPack.ENTRY_SIZE * items.size();
+        int ofsStrings = align8(ofsRefs + 4 * nRefs);
+        int ofsStringData = ofsStrings + 8 * strings.size();
+        int size = align8(ofsStringData + stringDataSize);
+
+        ByteBuffer toc = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        toc.putInt(items.size()); // nEntries
+        toc.putInt(nBuckets); // nBuckets
+        toc.putInt(strings.size()); // nStrings
+        toc.putInt(nRefs); // nRefs
+        toc.putInt(ofsBuckets);
+        toc.putInt(ofsEntries);
+        toc.putInt(ofsRefs);
+        toc.putInt(ofsStrings);
+        toc.putInt(ofsStringData);
+        toc.putInt(blockSize);
+
+        int entry = 0;
+        for (int b = 0; b <= nBuckets; ++b) {
+            while (entry < order.length && (hashes[order[entry]] & bucketMask) < b)
+                ++entry;
+            toc.putInt(ofsBuckets + 4*b, entry);
+        }
+
+        int ref = 0;
+        for (int i = 0; i < order.length; ++i) {
+            Item item = items.get(order[i]);
+            int pos = ofsEntries + AssetPack.ENTRY_SIZE*i;
+            toc.putLong(pos, hashes[order[i]]); // pathHash
+            toc.putLong(pos + 8, item.ofsData); // ofsData
+            toc.putLong(pos + 16, item.size); // size
+            toc.putLong(pos + 24, item.storedSize); // storedSize
+            toc.putLong(pos + 32, item.lastModified); // mtime
+            toc.putInt(pos + 40, item.crc32); // crc32
+            toc.putInt(pos + 44, stringIndices.get(item.path)); // path
+            toc.putInt(pos + 48, ref); // firstRef
+            toc.putInt(pos + 52, item.refs.size()); // nRefs
+            toc.putInt(pos + 56, item.encoding); // encoding
+            toc.putInt(pos + 60, 0); // padding
+            for (String s : item.refs) {
+                toc.putInt(ofsRefs + 4*ref++, stringIndices.get(s));
+            }
+        }
+
+        int ofsString = 0;
+        for (int i = 0; i < strings.size(); ++i) {
+            byte[] bytes = strings.get(i);
+            toc.putInt(ofsStrings + 8*i, ofsString); // ofsString
+            toc.putInt(ofsStrings + 8*i + 4, bytes.length); // length
+            toc.position(ofsStringData + ofsString);
+            toc.put(bytes);
+            ofsString += bytes.length + 1;
+        }
+        toc.clear();
+        return toc;
+    }
+
+    private static List<String> concat(String first, List<String> rest) {
+        List<String> list = new ArrayList<String>(rest.size() + 1);
+        list.add(first);
+        list.addAll(rest);
+        return list;
+    }
+}
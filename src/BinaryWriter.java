@@ -1,73 +1,249 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
 
+/**
+ * Builds a little-endian binary file in memory and writes it to disk in one go when committed. The
+ * file is written to a temporary file next to the destination and renamed over it, so a reader never
+ * sees a partially written file. Closing a writer that wasn't committed, as try-with-resources does
+ * when compiling fails, discards what was written and leaves the destination as it was.
+ *
+ * With a buffer limit, at most that many bytes are held in memory: the buffer is written out to the
+ * temporary file whenever it fills up, and overwriteTemp32 patches bytes that were already written
+ * out in place in the file. Without one, the buffer grows to hold the whole file, up to the largest
+ * buffer Java allows (just under 2 GB); larger files are written out in buffers of that size.
+ */
 public class BinaryWriter implements Closeable {
-    private RandomAccessFile m_file;
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
 
-    public BinaryWriter(File file) throws FileNotFoundException {
-        m_file = new RandomAccessFile(file, "rw");
+    private static final byte PAD_BYTE = (byte)0xAA;
+    private static final byte[] PADDING = new byte[256];
+    static {
+        Arrays.fill(PADDING, PAD_BYTE);
     }
 
+    private final File m_file;
+    private final boolean m_direct;
+    private final int m_bufferLimit;
+    private ByteBuffer m_buffer;
+    private Path m_temp;
+    private FileChannel m_channel;
+    private long m_flushedBytes;
+
+    public BinaryWriter(File file) {
+        this(file, false);
+    }
+
+    /**
+     * @param direct whether to build the file in a direct (off-heap) buffer rather than on the heap
+     */
+    public BinaryWriter(File file, boolean direct) {
+        this(file, direct, 0);
+    }
+
+    /**
+     * @param bufferLimit the most bytes to hold in memory before writing them out, or 0 to hold the
+     *     whole file in memory until it is closed
+     */
+    public BinaryWriter(File file, boolean direct, int bufferLimit) {
+        m_file = file;
+        m_direct = direct;
+        m_bufferLimit = bufferLimit;
+        m_buffer = allocate(bufferLimit > 0 ? Math.min(INITIAL_CAPACITY, bufferLimit) : INITIAL_CAPACITY);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer = m_direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void ensureRemaining(int n) throws IOException {
+        if (m_buffer.remaining() >= n)
+            return;
+        long maxCapacity = m_bufferLimit > 0 ? m_bufferLimit : MAX_CAPACITY;
+        if (m_buffer.position() + (long)n > maxCapacity) {
+            flush();
+            if (m_buffer.remaining() >= n)
+                return;
+        }
+        long required = (long)m_buffer.position() + n;
+        if (required > MAX_CAPACITY) {
+            throw new IOException("Write of " + n + " bytes to " + m_file + " is too large");
+        }
+        long capacity = Math.max(required, Math.min((long)m_buffer.capacity() * 2, maxCapacity));
+        ByteBuffer buffer = allocate((int)capacity);
+        m_buffer.flip();
+        buffer.put(m_buffer);
+        m_buffer = buffer;
+    }
+
+    /**
+     * Makes room for at least the given number of further bytes in one step, for callers that know
+     * roughly how large the file will be.
+     */
+    public void reserve(long bytes) throws IOException {
+        if (m_bufferLimit > 0)
+            bytes = Math.min(bytes, m_bufferLimit);
+        ensureRemaining((int)Math.min(bytes, MAX_CAPACITY - m_buffer.position()));
+    }
+
+    /**
+     * Writes out the buffered bytes to the temporary file, creating it if necessary.
+     */
+    private void flush() throws IOException {
+        if (m_channel == null) {
+            // java.io.File creates it with the usual permissions, where Files.createTempFile would make it
+            // readable only by its owner
+            File dir = m_file.getAbsoluteFile().getParentFile();
+            m_temp = File.createTempFile("." + m_file.getName() + ".", ".tmp", dir).toPath();
+            m_channel = FileChannel.open(m_temp, StandardOpenOption.WRITE);
+        }
+        m_buffer.flip();
+        m_flushedBytes += m_buffer.remaining();
+        while (m_buffer.hasRemaining()) {
+            m_channel.write(m_buffer);
+        }
+        m_buffer.clear();
+    }
+
+    /**
+     * Writes the file out and renames it over the destination. Call this once the whole file has
+     * been written; the writer can't be written to afterwards.
+     */
+    public void commit() throws IOException {
+        if (m_buffer == null)
+            throw new IOException("Output file " + m_file + " has already been committed or closed");
+        try {
+            flush();
+            m_buffer = null;
+            m_channel.close();
+            Path target = m_file.getAbsoluteFile().toPath();
+            try {
+                Files.move(m_temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(m_temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            m_temp = null;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Discards the file if it wasn't committed, deleting the temporary file; the destination is left
+     * as it was.
+     */
     @Override
     public void close() throws IOException {
-        m_file.close();
+        m_buffer = null;
+        try {
+            if (m_channel != null)
+                m_channel.close();
+        } finally {
+            m_channel = null;
+            if (m_temp != null) {
+                Path temp = m_temp;
+                m_temp = null;
+                Files.deleteIfExists(temp);
+            }
+        }
     }
 
     public long getFilePointer() throws IOException {
-        return m_file.getFilePointer();
+        return m_flushedBytes + m_buffer.position();
+    }
+
+    /**
+     * Removes the bytes written since pos, which must not have been written out yet, and returns
+     * them, so that a section can be written and then replaced by an encoded form of it.
+     */
+    public byte[] takeBytesSince(long pos) throws IOException {
+        if (pos < m_flushedBytes)
+            throw new IOException("Output file " + m_file + " has already been written out past " + pos);
+        int start = (int)(pos - m_flushedBytes);
+        byte[] bytes = new byte[m_buffer.position() - start];
+        ByteBuffer data = m_buffer.duplicate();
+        data.position(start);
+        data.get(bytes);
+        m_buffer.position(start);
+        return bytes;
     }
 
     public void write(char[] str) throws IOException {
-        m_file.write(new String(str).getBytes());
+        write(new String(str).getBytes());
     }
 
     public void write(byte[] data) throws IOException {
-        m_file.write(data);
+        write(data, 0, data.length);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException {
+        ensureRemaining(length);
+        m_buffer.put(data, offset, length);
     }
 
     public void write(byte b) throws IOException {
-        m_file.write(b);
+        ensureRemaining(1);
+        m_buffer.put(b);
+    }
+
+    public void write16(int n) throws IOException {
+        ensureRemaining(2);
+        m_buffer.putShort((short)n);
     }
 
     public void write32(int n) throws IOException {
-        m_file.write(n & 0xFF);
-        m_file.write((n >>> 8) & 0xFF);
-        m_file.write((n >>> 16) & 0xFF);
-        m_file.write((n >>> 24) & 0xFF);
+        ensureRemaining(4);
+        m_buffer.putInt(n);
     }
 
     public void write64(long n) throws IOException {
-        m_file.write((int)(n & 0xFF));
-        m_file.write((int)((n >>> 8) & 0xFF));
-        m_file.write((int)((n >>> 16) & 0xFF));
-        m_file.write((int)((n >>> 24) & 0xFF));
-        m_file.write((int)((n >>> 32) & 0xFF));
-        m_file.write((int)((n >>> 40) & 0xFF));
-        m_file.write((int)((n >>> 48) & 0xFF));
-        m_file.write((int)((n >>> 56) & 0xFF));
+        ensureRemaining(8);
+        m_buffer.putLong(n);
     }
 
     public void writeFloat(float f) throws IOException {
-        write32(Float.floatToRawIntBits(f));
+        ensureRemaining(4);
+        m_buffer.putFloat(f);
     }
 
     public long writeTemp32() throws IOException {
-        long pos = m_file.getFilePointer();
+        long pos = getFilePointer();
         write32(0xDEADDEAD);
         return pos;
     }
 
     public void overwriteTemp32(long pos, int n) throws IOException {
-        long currentPos = m_file.getFilePointer();
-        m_file.seek(pos);
-        write32(n);
-        m_file.seek(currentPos);
+        if (pos >= m_flushedBytes) {
+            m_buffer.putInt((int)(pos - m_flushedBytes), n);
+            return;
+        }
+        if (pos + 4 > m_flushedBytes) {
+            // Straddles what has been written out; write out the rest so it can be patched in one go
+            flush();
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.putInt(n);
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            m_channel.write(bytes, pos + bytes.position());
+        }
     }
 
     public void align(int alignment) throws IOException {
-        int mod = (int)(m_file.getFilePointer() % (long)alignment);
+        // Always writes at least one byte: a file pointer that is already aligned is padded by a
+        // whole alignment. Existing files have this layout, so keep it.
+        int mod = (int)(getFilePointer() % (long)alignment);
         int bytesToWrite = alignment - mod;
-        for (int i = 0; i < bytesToWrite; ++i) {
-            m_file.writeByte(0xAA);
+        ensureRemaining(bytesToWrite);
+        while (bytesToWrite > 0) {
+            int n = Math.min(bytesToWrite, PADDING.length);
+            m_buffer.put(PADDING, 0, n);
+            bytesToWrite -= n;
         }
     }
 }
@@ -0,0 +1,66 @@
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles a set of build jobs concurrently on a work-stealing pool.
+ */
+final class BuildScheduler {
+    private final int workerCount;
+
+    public BuildScheduler(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.workerCount = workerCount;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Runs every job and returns the number of jobs that failed.
+     */
+    public int run(List<DataCompiler.BuildJob> jobs) {
+        final AtomicInteger failures = new AtomicInteger();
+        if (workerCount == 1) {
+            for (DataCompiler.BuildJob job : jobs) {
+                if (!runJob(job))
+                    failures.incrementAndGet();
+            }
+            return failures.get();
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(workerCount);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            for (final DataCompiler.BuildJob job : jobs) {
+                tasks.add(pool.submit(() -> {
+                    if (!runJob(job))
+                        failures.incrementAndGet();
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return failures.get();
+    }
+
+    private static boolean runJob(DataCompiler.BuildJob job) {
+        ConsoleBuffer.begin();
+        try {
+            return job.compile();
+        } catch (RuntimeException e) {
+            System.out.printf("Error: exception while compiling %s: %s%n", job.inputFilename, e);
+            job.printFailureMessage();
+            return false;
+        } finally {
+            ConsoleBuffer.end();
+        }
+    }
+}
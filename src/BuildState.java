@@ -0,0 +1,319 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent record of what each manifest entry was last compiled from and to, used to skip entries
+ * that are still up to date.
+ *
+ * The state file is a line-based text file:
+ * <pre>
+ * datacompiler-state 1
+ * entry &lt;input filename&gt;
+ * version &lt;compiler version&gt;
+ * input &lt;size&gt; &lt;mtime&gt; &lt;sha-256&gt;
+ * depends &lt;size&gt; &lt;mtime&gt; &lt;sha-256&gt; &lt;dependency filename&gt;
+ * output &lt;size&gt; &lt;mtime&gt; &lt;sha-256&gt; &lt;output filename&gt;
+ * end
+ * </pre>
+ * Size and modification time are only used to avoid rehashing files that haven't been touched; a file
+ * whose timestamp changed but whose contents didn't is still considered up to date. A dependency that
+ * didn't exist when the asset was compiled is recorded with a size of -1, and one that changed while
+ * the asset was being compiled with a modification time of -1 and a hash of "dirty".
+ */
+final class BuildState {
+    private static final String HEADER = "datacompiler-state 1";
+
+    static class FileStamp {
+        public FileStamp(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        final long size;
+        final long lastModified;
+        final String hash;
+
+        boolean isMissing() {
+            return size < 0;
+        }
+    }
+
+    private static final FileStamp MISSING = new FileStamp(-1, 0, "-");
+    private static final String DIRTY_HASH = "dirty";
+
+    static class Entry {
+        String compilerVersion;
+        FileStamp input;
+        Map<String, FileStamp> dependencies = new LinkedHashMap<String, FileStamp>();
+        Map<String, FileStamp> outputs = new LinkedHashMap<String, FileStamp>();
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final DependencyGraph graph = new DependencyGraph();
+
+    // Stamps of source files, so that a file shared by many assets is only hashed once per build unless
+    // it changes. A stamp is only reused while the file's size and modification time are unchanged, so
+    // its hash is never older than its modification time.
+    private final Map<String, FileStamp> sourceStamps = new ConcurrentHashMap<String, FileStamp>();
+
+    public BuildState(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public DependencyGraph getDependencyGraph() {
+        return graph;
+    }
+
+    /**
+     * Forgets cached source file hashes. Must be called before each build.
+     */
+    public void beginBuild() {
+        sourceStamps.clear();
+    }
+
+    public static String hashFile(File f) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                digest.update(buf, 0, n);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            result[2*i] = digits[(bytes[i] >>> 4) & 0xF];
+            result[2*i + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(result);
+    }
+
+    public static FileStamp stamp(File f) throws IOException {
+        long size = f.length();
+        long lastModified = f.lastModified();
+        return new FileStamp(size, lastModified, hashFile(f));
+    }
+
+    /**
+     * Stamps a source file (an asset input or dependency), reusing its hash if it was already hashed
+     * during this build and hasn't changed since.
+     */
+    public FileStamp stampSource(String path) throws IOException {
+        File f = new File(path);
+        if (!f.exists())
+            return MISSING;
+        try {
+            return sourceStamps.compute(path, (p, cached) -> {
+                long size = f.length();
+                long lastModified = f.lastModified();
+                if (cached != null && cached.size == size && cached.lastModified == lastModified)
+                    return cached;
+                try {
+                    return new FileStamp(size, lastModified, hashFile(f));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Returns true if the file still matches the recorded stamp.
+     */
+    private boolean matches(String path, FileStamp recorded, boolean isSource) throws IOException {
+        File f = new File(path);
+        if (recorded.isMissing())
+            return !f.exists();
+        if (!f.isFile())
+            return false;
+        long size = f.length();
+        if (size != recorded.size)
+            return false;
+        if (f.lastModified() == recorded.lastModified)
+            return true;
+        String hash = isSource ? stampSource(path).hash : hashFile(f);
+        return hash.equals(recorded.hash);
+    }
+
+    public boolean isUpToDate(String inputFilename, String compilerVersion, List<String> outputFilenames) {
+        Entry entry = entries.get(inputFilename);
+        if (entry == null)
+            return false;
+        if (!entry.compilerVersion.equals(compilerVersion))
+            return false;
+        if (!entry.outputs.keySet().equals(new HashSet<String>(outputFilenames)))
+            return false;
+        try {
+            if (!matches(inputFilename, entry.input, true))
+                return false;
+            for (Map.Entry<String, FileStamp> dependency : entry.dependencies.entrySet()) {
+                if (!matches(dependency.getKey(), dependency.getValue(), true))
+                    return false;
+            }
+            for (Map.Entry<String, FileStamp> output : entry.outputs.entrySet()) {
+                if (!matches(output.getKey(), output.getValue(), false))
+                    return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stamps a dependency after a compile that started at startTime. One modified since then may have
+     * been read by the compiler before or after the change, so it is recorded as dirty, and the asset
+     * is compiled again by the next build.
+     */
+    private FileStamp stampDependency(String path, long startTime) throws IOException {
+        FileStamp stamp = stampSource(path);
+        if (stamp.isMissing() || stamp.lastModified < startTime)
+            return stamp;
+        return new FileStamp(stamp.size, -1, DIRTY_HASH);
+    }
+
+    /**
+     * Records a successful compile that started at startTime (in System.currentTimeMillis terms). The
+     * input stamp should be taken before the compiler ran, so that an edit made during the compile is
+     * picked up by the next build; dependencies, which are only known afterwards, are checked against
+     * startTime instead.
+     */
+    public void record(String inputFilename, FileStamp input, long startTime, String compilerVersion,
+                       List<String> dependencyFilenames, List<String> outputFilenames) throws IOException {
+        Entry entry = new Entry();
+        entry.compilerVersion = compilerVersion;
+        entry.input = input;
+        for (String dependencyFilename : dependencyFilenames) {
+            entry.dependencies.put(dependencyFilename, stampDependency(dependencyFilename, startTime));
+        }
+        for (String outputFilename : outputFilenames) {
+            entry.outputs.put(outputFilename, stamp(new File(outputFilename)));
+        }
+        entries.put(inputFilename, entry);
+        graph.setDependencies(inputFilename, entry.dependencies.keySet());
+    }
+
+    public void remove(String inputFilename) {
+        entries.remove(inputFilename);
+        graph.remove(inputFilename);
+    }
+
+    private static FileStamp parseStamp(String[] parts) {
+        return new FileStamp(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]);
+    }
+
+    /**
+     * Loads the state file. A missing file is treated as an empty state; a malformed one is discarded
+     * (everything will be rebuilt) and false is returned.
+     */
+    public boolean load() {
+        entries.clear();
+        graph.clear();
+        if (!file.exists())
+            return true;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine()))
+                throw new IOException("unrecognised header");
+            String line;
+            String inputFilename = null;
+            Entry entry = null;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("entry ")) {
+                    inputFilename = line.substring(6);
+                    entry = new Entry();
+                } else if (entry == null) {
+                    throw new IOException("expected entry");
+                } else if (line.startsWith("version ")) {
+                    entry.compilerVersion = line.substring(8);
+                } else if (line.startsWith("input ")) {
+                    entry.input = parseStamp(line.split(" ", 4));
+                } else if (line.startsWith("depends ")) {
+                    String[] parts = line.split(" ", 5);
+                    entry.dependencies.put(parts[4], parseStamp(parts));
+                } else if (line.startsWith("output ")) {
+                    String[] parts = line.split(" ", 5);
+                    entry.outputs.put(parts[4], parseStamp(parts));
+                } else if (line.equals("end")) {
+                    if (entry.compilerVersion == null || entry.input == null)
+                        throw new IOException("incomplete entry");
+                    entries.put(inputFilename, entry);
+                    graph.setDependencies(inputFilename, entry.dependencies.keySet());
+                    entry = null;
+                } else {
+                    throw new IOException("unrecognised line");
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.printf("Warning: ignoring invalid build state file %s%n", file);
+            entries.clear();
+            graph.clear();
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeStamp(PrintWriter writer, String type, FileStamp stamp) {
+        writer.printf("%s %d %d %s", type, stamp.size, stamp.lastModified, stamp.hash);
+    }
+
+    /**
+     * Writes the state file, replacing the previous one atomically.
+     */
+    public void save() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile("." + file.getName() + ".", ".tmp", parent);
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)))) {
+            writer.print(HEADER + "\n");
+            List<String> inputFilenames = new ArrayList<String>(entries.keySet());
+            Collections.sort(inputFilenames);
+            for (String inputFilename : inputFilenames) {
+                Entry entry = entries.get(inputFilename);
+                writer.print("entry " + inputFilename + "\n");
+                writer.print("version " + entry.compilerVersion + "\n");
+                writeStamp(writer, "input", entry.input);
+                writer.print("\n");
+                for (Map.Entry<String, FileStamp> dependency : entry.dependencies.entrySet()) {
+                    writeStamp(writer, "depends", dependency.getValue());
+                    writer.print(" " + dependency.getKey() + "\n");
+                }
+                for (Map.Entry<String, FileStamp> output : entry.outputs.entrySet()) {
+                    writeStamp(writer, "output", output.getValue());
+                    writer.print(" " + output.getKey() + "\n");
+                }
+                writer.print("end\n");
+            }
+            if (writer.checkError())
+                throw new IOException("failed to write " + tempFile);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        Files.move(tempFile.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
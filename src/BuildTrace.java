@@ -0,0 +1,192 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records what a build spends its time on: spans, which time a stage of the build (reading the
+ * manifest, parsing an .obj file, running metal) on the thread that ran it, and counters, which add
+ * up totals such as bytes read and written.
+ *
+ * Spans and counter updates are emitted as JFR events (see BuildTraceEvents) on JVMs that have Flight
+ * Recorder, so a recording started with -XX:StartFlightRecording includes them. With start(), they
+ * are also collected and written by finish() as a Chrome trace_event JSON file, which chrome://tracing
+ * and Perfetto show with a row per thread, so work on parallel workers and the critical path through
+ * it can be seen. Spans are meant for stages, not inner loops: when neither is enabled, begin returns
+ * a span that does nothing.
+ */
+final class BuildTrace {
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    private static final Span DISABLED = new Span(null, null);
+
+    /** Trace events collected for the Chrome trace file, or null if it isn't being written. */
+    private static volatile Queue<String> chromeEvents;
+    private static File chromeFile;
+    private static long startNanos;
+    private static final Map<Long, String> threadNames = new ConcurrentHashMap<Long, String>();
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+    private BuildTrace() {}
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * A stage of the build, timed from begin until it is closed.
+     */
+    static final class Span implements AutoCloseable {
+        private final String category;
+        private final String name;
+        private final long start;
+        private final Object jfrEvent;
+        private Map<String, Object> args;
+
+        private Span(String category, String name) {
+            this.category = category;
+            this.name = name;
+            this.start = System.nanoTime();
+            this.jfrEvent = name != null && JFR_AVAILABLE ? BuildTraceEvents.beginSpan() : null;
+        }
+
+        /**
+         * Adds an argument shown with the span, such as the number of vertices it produced.
+         */
+        public Span arg(String key, Object value) {
+            if (name == null)
+                return this;
+            if (args == null)
+                args = new LinkedHashMap<String, Object>();
+            args.put(key, value);
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (name == null)
+                return;
+            long end = System.nanoTime();
+            if (jfrEvent != null)
+                BuildTraceEvents.endSpan(jfrEvent, category, name, args == null ? "" : args.toString());
+            Queue<String> events = chromeEvents;
+            if (events != null) {
+                Thread thread = Thread.currentThread();
+                threadNames.putIfAbsent(thread.getId(), thread.getName());
+                StringBuilder event = new StringBuilder();
+                event.append("{\"ph\":\"X\",\"pid\":1,\"tid\":").append(thread.getId());
+                event.append(",\"ts\":").append(micros(start)).append(",\"dur\":").append(micros(end) - micros(start));
+                event.append(",\"cat\":").append(quote(category)).append(",\"name\":").append(quote(name));
+                if (args != null) {
+                    event.append(",\"args\":{");
+                    String separator = "";
+                    for (Map.Entry<String, Object> arg : args.entrySet()) {
+                        event.append(separator).append(quote(arg.getKey())).append(':');
+                        Object value = arg.getValue();
+                        boolean literal = value instanceof Number || value instanceof Boolean;
+                        event.append(literal ? value.toString() : quote(String.valueOf(value)));
+                        separator = ",";
+                    }
+                    event.append('}');
+                }
+                event.append('}');
+                events.add(event.toString());
+            }
+        }
+    }
+
+    /**
+     * Starts collecting spans and counters to write to a Chrome trace file when finish is called.
+     */
+    static synchronized void start(File file) {
+        chromeFile = file;
+        startNanos = System.nanoTime();
+        chromeEvents = new ConcurrentLinkedQueue<String>();
+    }
+
+    private static boolean isEnabled() {
+        return chromeEvents != null || (JFR_AVAILABLE && BuildTraceEvents.isEnabled());
+    }
+
+    /**
+     * Begins a span; close it (with try-with-resources) when the stage ends.
+     */
+    static Span begin(String category, String name) {
+        return isEnabled() ? new Span(category, name) : DISABLED;
+    }
+
+    /**
+     * Adds delta to a counter.
+     */
+    static void count(String counter, long delta) {
+        AtomicLong value = counters.get(counter);
+        if (value == null) {
+            counters.putIfAbsent(counter, new AtomicLong());
+            value = counters.get(counter);
+        }
+        long total = value.addAndGet(delta);
+        if (JFR_AVAILABLE)
+            BuildTraceEvents.counter(counter, delta, total);
+        Queue<String> events = chromeEvents;
+        if (events != null) {
+            events.add("{\"ph\":\"C\",\"pid\":1,\"ts\":" + micros(System.nanoTime()) + ",\"name\":" + quote(counter) +
+                       ",\"args\":{\"value\":" + total + "}}");
+        }
+    }
+
+    private static long micros(long nanos) {
+        return (nanos - startNanos) / 1000;
+    }
+
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int)c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Writes the Chrome trace file, if start was called, and stops collecting. Returns whether it
+     * was written.
+     */
+    static synchronized boolean finish() {
+        Queue<String> events = chromeEvents;
+        if (events == null)
+            return true;
+        chromeEvents = null;
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(chromeFile),
+                                                                    StandardCharsets.UTF_8))) {
+            out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+            String separator = "";
+            for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+                out.write(separator + "{\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey() +
+                          ",\"name\":\"thread_name\",\"args\":{\"name\":" + quote(thread.getValue()) + "}}");
+                separator = ",\n";
+            }
+            for (String event : events) {
+                out.write(separator);
+                out.write(event);
+                separator = ",\n";
+            }
+            out.write("\n]}\n");
+            return true;
+        } catch (IOException e) {
+            System.out.printf("Failed to write trace file %s%n", chromeFile);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR events that BuildTrace emits. Only BuildTrace uses this class, and only after checking that
+ * the JVM has Flight Recorder, so that nothing loads jdk.jfr on a JVM without it; its methods take
+ * and return events as Object for the same reason.
+ */
+final class BuildTraceEvents {
+    @Name("datacompiler.Span")
+    @Label("Build Span")
+    @Category("Data Compiler")
+    @Description("A stage of the build, on the thread that ran it")
+    static final class SpanEvent extends Event {
+        @Label("Category")
+        String category;
+
+        @Label("Name")
+        String name;
+
+        @Label("Arguments")
+        String args;
+    }
+
+    @Name("datacompiler.Counter")
+    @Label("Build Counter")
+    @Category("Data Compiler")
+    @Description("An addition to one of the build's totals")
+    static final class CounterEvent extends Event {
+        @Label("Counter")
+        String name;
+
+        @Label("Delta")
+        long delta;
+
+        @Label("Total")
+        long total;
+    }
+
+    private static final EventType SPAN_TYPE = EventType.getEventType(SpanEvent.class);
+
+    private BuildTraceEvents() {}
+
+    /**
+     * Returns whether a recording is recording spans.
+     */
+    static boolean isEnabled() {
+        return SPAN_TYPE.isEnabled();
+    }
+
+    static Object beginSpan() {
+        SpanEvent event = new SpanEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endSpan(Object span, String category, String name, String args) {
+        SpanEvent event = (SpanEvent)span;
+        event.end();
+        if (event.shouldCommit()) {
+            event.category = category;
+            event.name = name;
+            event.args = args;
+            event.commit();
+        }
+    }
+
+    static void counter(String name, long delta, long total) {
+        CounterEvent event = new CounterEvent();
+        if (event.isEnabled()) {
+            event.name = name;
+            event.delta = delta;
+            event.total = total;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits data into fixed-size blocks and compresses each one on its own with Lz4, so that blocks can
+ * be compressed and decompressed in parallel, and any block read without the others.
+ *
+ * Layout (little-endian):
+ * <pre>
+ * blockSize, nBlocks
+ * nBlocks + 1 offsets, relative to the start of the block data; block i is [ofs[i], ofs[i + 1])
+ * block data
+ * </pre>
+ * Every block decompresses to blockSize bytes except the last, which holds the rest. A block that
+ * doesn't get smaller is stored as is, which a reader can tell because its stored length equals its
+ * decompressed length.
+ */
+final class CompressedBlocks {
+    public static final int DEFAULT_BLOCK_SIZE = 64 << 10;
+
+    // Blocks per task; enough to make a task worth forking
+    private static final int BLOCKS_PER_TASK = 4;
+
+    private static final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return Lz4.newHashTable();
+        }
+    };
+
+    private CompressedBlocks() {}
+
+    private static int blockCount(int length, int blockSize) {
+        return (int)(((long)length + blockSize - 1) / blockSize);
+    }
+
+    private static int headerSize(int nBlocks) {
+        return 8 + 4 * (nBlocks + 1);
+    }
+
+    private interface BlockRange {
+        void run(int first, int last) throws IOException;
+    }
+
+    /**
+     * Runs body over ranges of blocks [first, last) covering all of them, in parallel if there is more
+     * than one.
+     */
+    private static void forEachRange(int nBlocks, BlockRange body) throws IOException {
+        List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (int first = 0; first < nBlocks; first += BLOCKS_PER_TASK) {
+            final int start = first;
+            final int end = Math.min(nBlocks, first + BLOCKS_PER_TASK);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    try {
+                        body.run(start, end);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        }
+        try {
+            if (tasks.size() == 1)
+                tasks.get(0).invoke();
+            else
+                ForkJoinTask.invokeAll(tasks);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Compresses data[0, length) in blocks of blockSize bytes.
+     */
+    public static byte[] compress(final byte[] data, final int length, final int blockSize) throws IOException {
+        final int nBlocks = blockCount(length, blockSize);
+        final byte[][] blocks = new byte[nBlocks][];
+        final int[] blockLengths = new int[nBlocks];
+        forEachRange(nBlocks, (first, last) -> {
+            byte[] scratch = new byte[Lz4.maxCompressedLength(blockSize)];
+            int[] table = hashTables.get();
+            for (int b = first; b < last; ++b) {
+                int start = b * blockSize;
+                int n = Math.min(blockSize, length - start);
+                int compressed = Lz4.compress(data, start, n, scratch, 0, table);
+                if (compressed < n) {
+                    blocks[b] = Arrays.copyOf(scratch, compressed);
+                    blockLengths[b] = compressed;
+                } else {
+                    blocks[b] = null;
+                    blockLengths[b] = n;
+                }
+            }
+        });
+
+        int headerSize = headerSize(nBlocks);
+        long total = headerSize;
+        for (int n : blockLengths) {
+            total += n;
+        }
+        if (total > Integer.MAX_VALUE)
+            throw new IOException("Data too large to compress");
+
+        byte[] out = new byte[(int)total];
+        ByteBuffer header = ByteBuffer.wrap(out, 0, headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(blockSize);
+        header.putInt(nBlocks);
+        int ofs = 0;
+        for (int b = 0; b < nBlocks; ++b) {
+            header.putInt(ofs);
+            if (blocks[b] != null)
+                System.arraycopy(blocks[b], 0, out, headerSize + ofs, blockLengths[b]);
+            else
+                System.arraycopy(data, b * blockSize, out, headerSize + ofs, blockLengths[b]);
+            ofs += blockLengths[b];
+        }
+        header.putInt(ofs);
+        return out;
+    }
+
+    /**
+     * Checks the header of blocks, which must decompress to length bytes, and returns its block size.
+     */
+    private static int checkHeader(ByteBuffer in, int length) throws IOException {
+        int blockSize = in.getInt(0);
+        int nBlocks = in.getInt(4);
+        if (blockSize <= 0 || nBlocks != blockCount(length, blockSize) || headerSize(nBlocks) > in.limit())
+            throw new IOException("Corrupt compressed data");
+        return blockSize;
+    }
+
+    /**
+     * Decompresses block b of in into out at outOff, using scratch (of at least blockSize bytes) for
+     * its compressed bytes.
+     */
+    private static void decompressBlock(ByteBuffer in, int blockSize, int length, int b, byte[] out, int outOff,
+                                        byte[] scratch) throws IOException {
+        int dataStart = headerSize(in.getInt(4));
+        int ofs = in.getInt(8 + 4*b);
+        int storedLength = in.getInt(12 + 4*b) - ofs;
+        int n = Math.min(blockSize, length - b * blockSize);
+        if (ofs < 0 || storedLength < 0 || storedLength > n || storedLength > in.limit() - dataStart - ofs)
+            throw new IOException("Corrupt compressed data");
+        ByteBuffer src = in.duplicate();
+        src.position(dataStart + ofs);
+        if (storedLength == n) {
+            src.get(out, outOff, n);
+        } else {
+            src.get(scratch, 0, storedLength);
+            Lz4.decompress(scratch, 0, storedLength, out, outOff, n);
+        }
+    }
+
+    /**
+     * Decompresses blocks (from its position to its limit), which must decompress to exactly length
+     * bytes.
+     */
+    public static byte[] decompress(ByteBuffer blocks, int length) throws IOException {
+        final ByteBuffer in = blocks.slice().order(ByteOrder.LITTLE_ENDIAN);
+        final byte[] out = new byte[length];
+        final int blockSize = checkHeader(in, length);
+
+        forEachRange(in.getInt(4), (first, last) -> {
+            byte[] scratch = new byte[blockSize];
+            for (int b = first; b < last; ++b) {
+                decompressBlock(in, blockSize, length, b, out, b * blockSize, scratch);
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Decompresses block b of blocks (from its position to its limit, decompressing to length bytes in
+     * all) without reading the others: blockSize bytes of the data from b * blockSize, or fewer for
+     * the last block.
+     */
+    public static byte[] decompressBlock(ByteBuffer blocks, int length, int b) throws IOException {
+        ByteBuffer in = blocks.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int blockSize = checkHeader(in, length);
+        if (b < 0 || b >= in.getInt(4))
+            throw new IndexOutOfBoundsException("Block " + b + " of " + in.getInt(4));
+        byte[] out = new byte[Math.min(blockSize, length - b * blockSize)];
+        decompressBlock(in, blockSize, length, b, out, 0, new byte[blockSize]);
+        return out;
+    }
+}
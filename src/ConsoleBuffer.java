@@ -0,0 +1,57 @@
+import java.io.*;
+
+/**
+ * Routes System.out through a per-thread buffer while an asset is being compiled, so that the
+ * output of assets compiled concurrently is printed as one contiguous block per asset.
+ */
+final class ConsoleBuffer {
+    private static final PrintStream stdout = System.out;
+    private static final ThreadLocal<ByteArrayOutputStream> buffer = new ThreadLocal<ByteArrayOutputStream>();
+
+    private static class RoutingStream extends OutputStream {
+        private OutputStream target() {
+            ByteArrayOutputStream b = buffer.get();
+            return b != null ? b : stdout;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+
+    private ConsoleBuffer() {}
+
+    public static void install() {
+        System.setOut(new PrintStream(new RoutingStream(), true));
+    }
+
+    public static void begin() {
+        buffer.set(new ByteArrayOutputStream());
+    }
+
+    public static void end() {
+        ByteArrayOutputStream b = buffer.get();
+        buffer.remove();
+        if (b == null)
+            return;
+        synchronized (stdout) {
+            try {
+                b.writeTo(stdout);
+            } catch (IOException e) {
+                // PrintStream doesn't throw
+            }
+            stdout.flush();
+        }
+    }
+}
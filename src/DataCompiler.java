@@ -2,6 +2,7 @@ import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.io.*;
+import java.nio.file.Paths;
 
 public final class DataCompiler {
     static class CompilerInfo {
@@ -14,6 +15,86 @@ public final class DataCompiler {
         List<String> outputFilePatterns;
     }
 
+    static class BuildJob {
+        public BuildJob(String inputFilename, CompilerInfo info, List<String> outputFilenames) {
+            this.inputFilename = inputFilename;
+            this.info = info;
+            this.outputFilenames = outputFilenames;
+        }
+
+        String inputFilename;
+        CompilerInfo info;
+        List<String> outputFilenames;
+        BuildState state;
+        boolean force;
+        boolean upToDate;
+
+        public boolean compile() {
+            try (BuildTrace.Span span = BuildTrace.begin("asset", inputFilename)) {
+                boolean ok = compileTraced();
+                span.arg("upToDate", upToDate).arg("ok", ok);
+                return ok;
+            }
+        }
+
+        private boolean compileTraced() {
+            String compilerVersion = info.compiler.getVersion();
+            BuildState.FileStamp inputStamp = null;
+            if (state != null) {
+                if (!force && state.isUpToDate(inputFilename, compilerVersion, outputFilenames)) {
+                    upToDate = true;
+                    return true;
+                }
+                state.remove(inputFilename);
+                try {
+                    inputStamp = state.stampSource(inputFilename);
+                } catch (IOException e) {
+                    // The compiler reports missing or unreadable inputs itself
+                }
+            }
+
+            List<File> outputFiles = new ArrayList<File>();
+            for (String outputFilename : outputFilenames) {
+                outputFiles.add(new File(outputFilename));
+            }
+
+            System.out.printf("Compiling %s...%n", inputFilename);
+            long startTime = System.currentTimeMillis();
+            List<File> dependencies = new ArrayList<File>();
+            if (!info.compiler.compile(new File(inputFilename), outputFiles, dependencies)) {
+                printFailureMessage();
+                return false;
+            }
+            BuildTrace.count("bytesRead", new File(inputFilename).length());
+            for (File outputFile : outputFiles) {
+                BuildTrace.count("bytesWritten", outputFile.length());
+            }
+
+            if (inputStamp != null && !inputStamp.isMissing()) {
+                Set<String> dependencyFilenames = new LinkedHashSet<String>();
+                for (File dependency : dependencies) {
+                    dependencyFilenames.add(dependency.toPath().normalize().toString());
+                }
+                try {
+                    state.record(inputFilename, inputStamp, startTime, compilerVersion,
+                                 new ArrayList<String>(dependencyFilenames), outputFilenames);
+                } catch (IOException e) {
+                    System.out.printf("Warning: failed to record build state for %s%n", inputFilename);
+                }
+            }
+            return true;
+        }
+
+        public void printFailureMessage() {
+            printCompileFailureMessage(inputFilename, outputFilenames);
+        }
+    }
+
+    private static final int EXIT_SUCCESS = 0;
+    private static final int EXIT_FAILURE = 1;
+
+    private static final String DEFAULT_STATE_FILENAME = ".datacompiler-state";
+
     private static void printCompileFailureMessage(String filename, List<String> outputFilenames) {
         System.out.printf("Failed to compile %s (", filename);
         if (outputFilenames.size() == 1) {
@@ -29,7 +110,7 @@ public final class DataCompiler {
         System.out.println(")");
     }
 
-    private static boolean compile(String filename, Map<Pattern, CompilerInfo> map) {
+    private static BuildJob createJob(String filename, Map<Pattern, CompilerInfo> map) {
         for (Pattern pattern : map.keySet()) {
             Matcher m = pattern.matcher(filename);
             if (!m.matches())
@@ -41,22 +122,60 @@ public final class DataCompiler {
                 continue;
             }
 
-            List<File> outputFiles = new ArrayList<File>();
             List<String> outputFilenames = new ArrayList<String>();
             for (String outputFilePattern : info.outputFilePatterns) {
-                String outputFilename = m.replaceFirst(outputFilePattern);
-                outputFiles.add(new File(outputFilename));
-                outputFilenames.add(outputFilename);
+                outputFilenames.add(m.replaceFirst(outputFilePattern));
             }
+            return new BuildJob(filename, info, outputFilenames);
+        }
+        System.out.printf("Warning: %s listed in manifest but no compiler found%n", filename);
+        return null;
+    }
 
-            System.out.printf("Compiling %s...%n", filename);
-            if (!info.compiler.compile(new File(filename), outputFiles)) {
-                printCompileFailureMessage(filename, outputFilenames);
-                return false;
+    private static boolean checkOutputConflicts(List<BuildJob> jobs) {
+        Map<String, BuildJob> writers = new HashMap<String, BuildJob>();
+        boolean ok = true;
+        for (BuildJob job : jobs) {
+            for (String outputFilename : job.outputFilenames) {
+                String key = new File(outputFilename).getAbsoluteFile().toPath().normalize().toString();
+                BuildJob other = writers.get(key);
+                if (other != null && other != job) {
+                    System.out.printf("Error: %s and %s both write output file %s%n",
+                                      other.inputFilename, job.inputFilename, outputFilename);
+                    ok = false;
+                } else {
+                    writers.put(key, job);
+                }
+            }
+        }
+        return ok;
+    }
+
+    private static boolean readManifest(String manifestFilename, Set<String> filenames) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(manifestFilename));
+        } catch (FileNotFoundException e) {
+            System.out.println("Failed to open manifest file " + manifestFilename);
+            return false;
+        }
+        try {
+            String filename;
+            while ((filename = reader.readLine()) != null) {
+                if (filename.trim().isEmpty())
+                    continue;
+                filenames.add(Paths.get(filename).normalize().toString());
+            }
+        } catch (IOException e) {
+            System.out.println("I/O error while processing manifest file " + manifestFilename);
+            return false;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing useful to do
             }
-            return true;
         }
-        System.out.printf("Warning: %s listed in manifest but no compiler found%n", filename);
         return true;
     }
 
@@ -75,29 +194,291 @@ public final class DataCompiler {
         map.put(Pattern.compile(inputPattern), compilerInfo);
     }
 
-    public static void main(String[] args) {
-        Map<Pattern, CompilerInfo> map = new HashMap<Pattern, CompilerInfo>();
-        addRule(map, "(.*)\\.obj", new ObjCompiler(), "Assets/$1.mdl", "Assets/$1.mdg");
-        addRule(map, "(.*)\\.metal", new MetalShaderCompiler(), "Assets/$1_MTL.shd");
+    private static String optionValue(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for option " + option);
+        }
+        return args[i];
+    }
 
-        for (String manifestFilename : args) {
-            BufferedReader reader = null;
+    private static long parseNumber(String value, String option, long min, long max) {
+        long n;
+        try {
+            n = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value " + value + " for option " + option);
+        }
+        if (n < min || n > max) {
+            throw new IllegalArgumentException("Invalid value " + value + " for option " + option);
+        }
+        return n;
+    }
+
+    private static float[] parseRatios(String value, String option) {
+        String[] parts = value.split(",");
+        float[] ratios = new float[parts.length];
+        for (int i = 0; i < parts.length; ++i) {
             try {
-                reader = new BufferedReader(new FileReader(manifestFilename));
-            } catch (FileNotFoundException e) {
-                System.out.println("Failed to open manifest file " + manifestFilename);
-                continue;
+                ratios[i] = Float.parseFloat(parts[i].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid value " + value + " for option " + option);
             }
-            try {
-                String filename;
-                while ((filename = reader.readLine()) != null) {
-                    if (filename.trim() == "")
-                        continue;
-                    compile(filename, map);
+            if (!(ratios[i] > 0.0f && ratios[i] < 1.0f)) {
+                throw new IllegalArgumentException("Invalid value " + value + " for option " + option);
+            }
+        }
+        return ratios;
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: DataCompiler [options] <manifest>...");
+        System.out.println("  -j, --jobs <n>          number of assets to compile concurrently (default: number of cores)");
+        System.out.println("  --force                 recompile every asset, even if it is up to date");
+        System.out.println("  --state <file>          build state file (default: " + DEFAULT_STATE_FILENAME + ")");
+        System.out.println("  --watch                 stay resident, recompiling assets as their inputs change and");
+        System.out.println("                          accepting build commands on standard input");
+        System.out.println("  --pack <file>           after a successful build, collect every output into one asset pack,");
+        System.out.println("                          updating it in place when only some assets changed");
+        System.out.println("  --compress-pack         compress assets in the pack in independent 64 KB LZ4 blocks");
+        System.out.println("  --pack-block-kb <n>     as --compress-pack, with n KB blocks");
+        System.out.println("  --parse-chunk-mb <n>    parse .obj files in parallel chunks of n MB (default: 16; 0 disables)");
+        System.out.println("  --optimize-meshes       reorder mesh triangles and vertices for the GPU vertex cache");
+        System.out.println("  --optimize-overdraw     as --optimize-meshes, and also reorder triangles to reduce overdraw");
+        System.out.println("  --legacy-mesh-format    write version 0 models (float vertices, 32-bit indices)");
+        System.out.println("  --quantize-positions    store mesh positions as 16-bit values within the bounding box");
+        System.out.println("  --encode-meshes         store mesh vertices and indices compactly encoded (version 3 .mdg)");
+        System.out.println("  --lods <r1,r2,...>      generate levels of detail with these fractions of the triangles,");
+        System.out.println("                          e.g. 0.5,0.25,0.125");
+        System.out.println("  --memory-budget-mb <n>  compile .obj files that would need more than n MB of heap out of core,");
+        System.out.println("                          with their data in temporary files (default: no limit)");
+        System.out.println("  --spill-dir <dir>       directory for out-of-core temporary files (default: system temp)");
+        System.out.println("  --tool-jobs <n>         number of external tools (such as metal) to run at once (default: number of cores)");
+        System.out.println("  --tool-timeout <s>      kill an external tool that runs for more than s seconds (default: no limit)");
+        System.out.println("  --tool-stats            print how many times each external tool ran and for how long");
+        System.out.println("  --trace <file>          write a Chrome trace (chrome://tracing, Perfetto) of the build's stages");
+        System.out.println("                          to file when the compiler exits; they are also JFR events");
+        System.out.println("  --shader-jobs <n>       number of shader permutations to compile concurrently (default: number of cores)");
+        System.out.println("  --metal-toolchain <dir> directory containing metal, metal-ar and metallib (default: Xcode's)");
+        System.out.println("  --metal-sysroot <dir>   SDK to compile shaders against (default: Xcode's macOS SDK)");
+        System.out.println("  --legacy-shader-format  write version 1 shaders (a metallib per permutation, none shared)");
+        System.out.println("  --shader-usage <file>   compile only the shader permutations listed in file, as recorded by");
+        System.out.println("                          the engine (default: compile every permutation)");
+        System.out.println("  --shader-cache <dir>    cache compiled shader permutations in dir (default: no cache)");
+        System.out.println("  --shader-cache-mb <n>   most MB to keep in the shader cache (default: 256)");
+    }
+
+    static int run(String[] args) {
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        boolean force = false;
+        boolean watch = false;
+        boolean toolStatistics = false;
+        int toolJobs = Runtime.getRuntime().availableProcessors();
+        long toolTimeout = 0;
+        String stateFilename = DEFAULT_STATE_FILENAME;
+        File packFile = null;
+        int packBlockSize = 0;
+        File traceFile = null;
+        List<String> manifestFilenames = new ArrayList<String>();
+        ObjCompiler.Options objOptions = new ObjCompiler.Options();
+        MetalShaderCompiler.Options shaderOptions = new MetalShaderCompiler.Options();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String arg = args[i];
+                if (arg.equals("--force")) {
+                    force = true;
+                } else if (arg.equals("--watch")) {
+                    watch = true;
+                } else if (arg.equals("--state")) {
+                    stateFilename = optionValue(args, ++i, arg);
+                } else if (arg.equals("-j") || arg.equals("--jobs")) {
+                    workerCount = (int)parseNumber(optionValue(args, ++i, arg), arg, 1, Integer.MAX_VALUE);
+                } else if (arg.startsWith("-j")) {
+                    workerCount = (int)parseNumber(arg.substring(2), "-j", 1, Integer.MAX_VALUE);
+                } else if (arg.equals("--pack")) {
+                    packFile = new File(optionValue(args, ++i, arg));
+                } else if (arg.equals("--compress-pack")) {
+                    packBlockSize = CompressedBlocks.DEFAULT_BLOCK_SIZE;
+                } else if (arg.equals("--pack-block-kb")) {
+                    packBlockSize = (int)parseNumber(optionValue(args, ++i, arg), arg, 1, 1 << 20) << 10;
+                } else if (arg.equals("--parse-chunk-mb")) {
+                    objOptions.parallelParseChunkSize = parseNumber(optionValue(args, ++i, arg), arg, 0, 1 << 20) << 20;
+                } else if (arg.equals("--optimize-meshes")) {
+                    objOptions.optimizeVertexCache = true;
+                } else if (arg.equals("--optimize-overdraw")) {
+                    objOptions.optimizeOverdraw = true;
+                } else if (arg.equals("--legacy-mesh-format")) {
+                    objOptions.legacyMeshFormat = true;
+                } else if (arg.equals("--quantize-positions")) {
+                    objOptions.quantizePositions = true;
+                } else if (arg.equals("--encode-meshes")) {
+                    objOptions.encodeMeshes = true;
+                } else if (arg.equals("--lods")) {
+                    objOptions.lodTargets = parseRatios(optionValue(args, ++i, arg), arg);
+                } else if (arg.equals("--memory-budget-mb")) {
+                    objOptions.memoryBudget = parseNumber(optionValue(args, ++i, arg), arg, 0, 1 << 30) << 20;
+                } else if (arg.equals("--spill-dir")) {
+                    objOptions.spillDirectory = new File(optionValue(args, ++i, arg));
+                } else if (arg.equals("--tool-jobs")) {
+                    toolJobs = (int)parseNumber(optionValue(args, ++i, arg), arg, 1, 1024);
+                } else if (arg.equals("--tool-timeout")) {
+                    toolTimeout = parseNumber(optionValue(args, ++i, arg), arg, 0, 1 << 20) * 1000;
+                } else if (arg.equals("--tool-stats")) {
+                    toolStatistics = true;
+                } else if (arg.equals("--trace")) {
+                    traceFile = new File(optionValue(args, ++i, arg));
+                } else if (arg.equals("--shader-jobs")) {
+                    shaderOptions.maxConcurrentPermutations = (int)parseNumber(optionValue(args, ++i, arg), arg, 1, 1024);
+                } else if (arg.equals("--metal-toolchain")) {
+                    shaderOptions.setToolchainDirectory(new File(optionValue(args, ++i, arg)));
+                } else if (arg.equals("--metal-sysroot")) {
+                    shaderOptions.sysroot = optionValue(args, ++i, arg);
+                } else if (arg.equals("--legacy-shader-format")) {
+                    shaderOptions.legacyShaderFormat = true;
+                } else if (arg.equals("--shader-usage")) {
+                    shaderOptions.usageFile = new File(optionValue(args, ++i, arg));
+                } else if (arg.equals("--shader-cache")) {
+                    shaderOptions.cacheDirectory = new File(optionValue(args, ++i, arg));
+                } else if (arg.equals("--shader-cache-mb")) {
+                    shaderOptions.cacheMaxBytes = parseNumber(optionValue(args, ++i, arg), arg, 0, 1 << 30) << 20;
+                } else if (arg.startsWith("-")) {
+                    throw new IllegalArgumentException("Unknown option " + arg);
+                } else {
+                    manifestFilenames.add(arg);
                 }
-            } catch (IOException e) {
-                System.out.println("I/O error while processing manifest file " + manifestFilename);
             }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsage();
+            return EXIT_FAILURE;
+        }
+
+        AssetPacker packer = packFile != null ? new AssetPacker(packFile, packBlockSize) : null;
+        ProcessRunner processRunner = new ProcessRunner(toolJobs, toolTimeout);
+        shaderOptions.processRunner = processRunner;
+
+        Map<Pattern, CompilerInfo> map = new HashMap<Pattern, CompilerInfo>();
+        addRule(map, "(.*)\\.obj", new ObjCompiler(objOptions), "Assets/$1.mdl", "Assets/$1.mdg");
+        addRule(map, "(.*)\\.metal", new MetalShaderCompiler(shaderOptions), "Assets/$1_MTL.shd");
+
+        if (traceFile != null) {
+            BuildTrace.start(traceFile);
+            // --watch runs until the compiler is interrupted, so write the trace on the way out too
+            Runtime.getRuntime().addShutdownHook(new Thread(BuildTrace::finish));
+        }
+        int exitCode = runBuild(manifestFilenames, map, stateFilename, workerCount, watch, force, packer, processRunner,
+                                toolStatistics);
+        if (!BuildTrace.finish())
+            exitCode = EXIT_FAILURE;
+        return exitCode;
+    }
+
+    private static int runBuild(List<String> manifestFilenames, Map<Pattern, CompilerInfo> map, String stateFilename,
+                                int workerCount, boolean watch, boolean force, AssetPacker packer,
+                                ProcessRunner processRunner, boolean toolStatistics) {
+        boolean ok = true;
+        Set<String> filenames = new LinkedHashSet<String>();
+        try (BuildTrace.Span span = BuildTrace.begin("build", "read manifest")) {
+            for (String manifestFilename : manifestFilenames) {
+                if (!readManifest(manifestFilename, filenames))
+                    ok = false;
+            }
+            span.arg("files", filenames.size());
+        }
+
+        List<BuildJob> jobs = new ArrayList<BuildJob>();
+        try (BuildTrace.Span span = BuildTrace.begin("build", "match rules")) {
+            for (String filename : filenames) {
+                BuildJob job = createJob(filename, map);
+                if (job != null)
+                    jobs.add(job);
+            }
+            span.arg("jobs", jobs.size());
+            if (!checkOutputConflicts(jobs))
+                return EXIT_FAILURE;
         }
+
+        BuildState state = new BuildState(new File(stateFilename));
+        try (BuildTrace.Span span = BuildTrace.begin("build", "load build state")) {
+            span.arg("loaded", state.load());
+        }
+        BuildScheduler scheduler = new BuildScheduler(workerCount);
+
+        if (watch) {
+            WatchDaemon daemon = new WatchDaemon(jobs, state, scheduler, packer);
+            return daemon.run(force) && ok ? EXIT_SUCCESS : EXIT_FAILURE;
+        }
+
+        BuildResult result = build(jobs, state, scheduler, force);
+        if (toolStatistics)
+            processRunner.printStatistics();
+        if (result.succeeded() && packer != null) {
+            try (BuildTrace.Span span = BuildTrace.begin("build", "pack")) {
+                if (!packer.pack(jobs))
+                    return EXIT_FAILURE;
+                span.arg("assets", jobs.size()).arg("bytes", packer.getFile().length());
+            }
+        }
+        return result.succeeded() && ok ? EXIT_SUCCESS : EXIT_FAILURE;
+    }
+
+    static class BuildResult {
+        int total;
+        int compiled;
+        int upToDate;
+        int failed;
+        boolean stateSaved;
+        long elapsedMillis;
+
+        boolean succeeded() {
+            return failed == 0 && stateSaved;
+        }
+    }
+
+    /**
+     * Compiles the given jobs, skipping those that are up to date unless force is set, and saves the
+     * build state afterwards.
+     */
+    static BuildResult build(List<BuildJob> jobs, BuildState state, BuildScheduler scheduler, boolean force) {
+        long startTime = System.nanoTime();
+        state.beginBuild();
+        for (BuildJob job : jobs) {
+            job.state = state;
+            job.force = force;
+            job.upToDate = false;
+        }
+
+        BuildResult result = new BuildResult();
+        result.total = jobs.size();
+        try (BuildTrace.Span span = BuildTrace.begin("build", "compile")) {
+            result.failed = scheduler.run(jobs);
+            span.arg("jobs", jobs.size()).arg("failed", result.failed);
+        }
+        for (BuildJob job : jobs) {
+            if (job.upToDate)
+                ++result.upToDate;
+        }
+        result.compiled = result.total - result.upToDate - result.failed;
+
+        if (result.upToDate != 0) {
+            System.out.printf("%d of %d assets up to date%n", result.upToDate, result.total);
+        }
+        if (result.failed != 0) {
+            System.out.printf("%d of %d assets failed to compile%n", result.failed, result.total);
+        }
+
+        try (BuildTrace.Span span = BuildTrace.begin("build", "save build state")) {
+            state.save();
+            result.stateSaved = true;
+            span.arg("bytes", state.getFile().length());
+        } catch (IOException e) {
+            System.out.println("Failed to write build state file " + state.getFile());
+        }
+        result.elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+        return result;
+    }
+
+    public static void main(String[] args) {
+        ConsoleBuffer.install();
+        System.exit(run(args));
     }
 }
@@ -0,0 +1,67 @@
+import java.util.*;
+
+/**
+ * Records which files each asset read while it was compiled, and the reverse mapping from a file to
+ * the assets that read it.
+ */
+final class DependencyGraph {
+    private final Map<String, Set<String>> dependencies = new HashMap<String, Set<String>>();
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+    public synchronized void setDependencies(String input, Collection<String> files) {
+        remove(input);
+        Set<String> set = new LinkedHashSet<String>(files);
+        dependencies.put(input, set);
+        for (String file : set) {
+            Set<String> inputs = dependents.get(file);
+            if (inputs == null) {
+                inputs = new TreeSet<String>();
+                dependents.put(file, inputs);
+            }
+            inputs.add(input);
+        }
+    }
+
+    public synchronized void remove(String input) {
+        Set<String> files = dependencies.remove(input);
+        if (files == null)
+            return;
+        for (String file : files) {
+            Set<String> inputs = dependents.get(file);
+            inputs.remove(input);
+            if (inputs.isEmpty())
+                dependents.remove(file);
+        }
+    }
+
+    public synchronized void clear() {
+        dependencies.clear();
+        dependents.clear();
+    }
+
+    public synchronized Set<String> getDependencies(String input) {
+        Set<String> files = dependencies.get(input);
+        return files == null ? Collections.<String>emptySet() : new LinkedHashSet<String>(files);
+    }
+
+    /**
+     * Returns the inputs that have to be recompiled when file changes: every asset that read it, plus
+     * the file itself if it is an input.
+     */
+    public synchronized Set<String> getAffectedInputs(String file) {
+        Set<String> result = new TreeSet<String>();
+        if (dependencies.containsKey(file))
+            result.add(file);
+        Set<String> inputs = dependents.get(file);
+        if (inputs != null)
+            result.addAll(inputs);
+        return result;
+    }
+
+    /**
+     * Returns every file read by any asset, excluding the assets' own input files.
+     */
+    public synchronized Set<String> getDependencyFiles() {
+        return new TreeSet<String>(dependents.keySet());
+    }
+}
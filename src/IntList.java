@@ -0,0 +1,108 @@
+import java.util.Arrays;
+
+/**
+ * Growable array of ints, used instead of a List of boxed values for indices.
+ */
+final class IntList {
+    private int[] data;
+    private int size;
+
+    public IntList() {
+        this(16);
+    }
+
+    public IntList(int capacity) {
+        data = new int[Math.max(capacity, 1)];
+    }
+
+    private void grow(int minCapacity) {
+        long capacity = Math.max((long)minCapacity, data.length + (data.length >> 1));
+        if (capacity > Integer.MAX_VALUE - 8) {
+            if (minCapacity > Integer.MAX_VALUE - 8)
+                throw new OutOfMemoryError("IntList too large");
+            capacity = Integer.MAX_VALUE - 8;
+        }
+        data = Arrays.copyOf(data, (int)capacity);
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > data.length)
+            grow(capacity);
+    }
+
+    public void add(int n) {
+        if (size == data.length)
+            grow(size + 1);
+        data[size++] = n;
+    }
+
+    public void add(int a, int b) {
+        if (size + 2 > data.length)
+            grow(size + 2);
+        data[size] = a;
+        data[size + 1] = b;
+        size += 2;
+    }
+
+    public void add(int a, int b, int c) {
+        if (size + 3 > data.length)
+            grow(size + 3);
+        data[size] = a;
+        data[size + 1] = b;
+        data[size + 2] = c;
+        size += 3;
+    }
+
+    public int get(int i) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        return data[i];
+    }
+
+    public void set(int i, int n) {
+        if (i >= size)
+            throw new IndexOutOfBoundsException();
+        data[i] = n;
+    }
+
+    public void addAll(IntList other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.data, 0, data, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Sets the size, growing the array if necessary. New elements are zero.
+     */
+    public void resize(int newSize) {
+        ensureCapacity(newSize);
+        if (newSize > size)
+            Arrays.fill(data, size, newSize, 0);
+        size = newSize;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the backing array. Only the first size() elements are valid, and the array is replaced
+     * when the list grows.
+     */
+    public int[] array() {
+        return data;
+    }
+
+    public void trimToSize() {
+        if (data.length != size)
+            data = Arrays.copyOf(data, Math.max(size, 1));
+    }
+}
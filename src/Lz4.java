@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compresses and decompresses data in the LZ4 block format: a sequence of (literals, match) pairs,
+ * each a token byte holding the literal length and the match length less four, then the literals,
+ * then a 16-bit little-endian match offset. A length of 15 in the token continues in following bytes,
+ * each adding up to 255. The last five bytes are always literals and the last match starts at least
+ * twelve bytes before the end, so the output can be read by any LZ4 decoder.
+ *
+ * The compressor finds matches with a single-entry hash table of 4-byte sequences, as LZ4's fast mode
+ * does, skipping ahead faster the longer it goes without finding one.
+ */
+final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+    private static final int SKIP_TRIGGER = 6;
+
+    private Lz4() {}
+
+    /**
+     * Returns the most bytes that compressing n bytes can produce.
+     */
+    public static int maxCompressedLength(int n) {
+        return n + n / 255 + 16;
+    }
+
+    /**
+     * A hash table for compress, which can be reused between calls on the same thread.
+     */
+    public static int[] newHashTable() {
+        return new int[1 << HASH_BITS];
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static int writeLength(byte[] dst, int op, int n) {
+        while (n >= 255) {
+            dst[op++] = (byte)255;
+            n -= 255;
+        }
+        dst[op++] = (byte)n;
+        return op;
+    }
+
+    private static int writeLiterals(byte[] dst, int op, byte[] src, int start, int n, int matchToken) {
+        dst[op++] = (byte)((Math.min(n, 15) << 4) | matchToken);
+        if (n >= 15)
+            op = writeLength(dst, op, n - 15);
+        System.arraycopy(src, start, dst, op, n);
+        return op + n;
+    }
+
+    /**
+     * Compresses src[srcOff, srcOff + srcLen) into dst at dstOff, which must have room for
+     * maxCompressedLength(srcLen) bytes, and returns the compressed length.
+     */
+    public static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] table) {
+        int end = srcOff + srcLen;
+        int matchFindLimit = end - MATCH_FIND_LIMIT;
+        int matchLimit = end - LAST_LITERALS;
+        int anchor = srcOff;
+        int op = dstOff;
+
+        if (srcLen > MATCH_FIND_LIMIT) {
+            Arrays.fill(table, -1);
+            int ip = srcOff;
+            int searches = 1 << SKIP_TRIGGER;
+            while (ip < matchFindLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += searches++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searches = 1 << SKIP_TRIGGER;
+
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    --ip;
+                    --ref;
+                }
+                int length = MIN_MATCH;
+                while (ip + length < matchLimit && src[ip + length] == src[ref + length])
+                    ++length;
+
+                int matchToken = Math.min(length - MIN_MATCH, 15);
+                op = writeLiterals(dst, op, src, anchor, ip - anchor, matchToken);
+                int offset = ip - ref;
+                dst[op++] = (byte)offset;
+                dst[op++] = (byte)(offset >>> 8);
+                if (matchToken == 15)
+                    op = writeLength(dst, op, length - MIN_MATCH - 15);
+
+                ip += length;
+                anchor = ip;
+                if (ip < matchFindLimit)
+                    table[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+
+        op = writeLiterals(dst, op, src, anchor, end - anchor, 0);
+        return op - dstOff;
+    }
+
+    /**
+     * Decompresses src[srcOff, srcOff + srcLen), which must decompress to exactly dstLen bytes, into
+     * dst at dstOff.
+     */
+    public static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws IOException {
+        int ip = srcOff;
+        int srcEnd = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (literals > srcEnd - ip || literals > dstEnd - op)
+                    throw new IOException("Corrupt compressed block");
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip == srcEnd)
+                    break;
+
+                int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int length = token & 15;
+                if (length == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        length += b;
+                    } while (b == 255);
+                }
+                length += MIN_MATCH;
+                if (offset == 0 || offset > op - dstOff || length > dstEnd - op)
+                    throw new IOException("Corrupt compressed block");
+
+                int from = op - offset;
+                if (offset >= length) {
+                    System.arraycopy(dst, from, dst, op, length);
+                    op += length;
+                } else {
+                    // Overlapping: the match repeats the last offset bytes
+                    for (int i = 0; i < length; ++i)
+                        dst[op++] = dst[from + i];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupt compressed block");
+        }
+        if (op != dstEnd)
+            throw new IOException("Corrupt compressed block");
+    }
+}
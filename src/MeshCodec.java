@@ -0,0 +1,585 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes the vertex and index sections of an .mdg file (MDLG version 3) much smaller than they are
+ * stored raw, in a form that decodes in one streaming pass each, indices first.
+ *
+ * Indices are coded a triangle at a time against a FIFO of the last 16 edges and one of the last 16
+ * vertices, as in the index codecs of mesh optimization libraries. Neighbouring triangles share an
+ * edge (in the opposite direction), so most triangles are one code byte: which recent edge they
+ * share, and where their third vertex comes from. That is the next vertex not seen yet, a recent
+ * vertex, or an explicit delta from the last explicit vertex:
+ * <pre>
+ * edge triangle:    eeeevvvv    e = edge (0 newest .. 14), v = third vertex:
+ *                               0 next, 1..14 recent vertex v - 1, 15 explicit (varint follows)
+ * other triangle:   11110000    followed by a varint per vertex: 0 next, 1..16 recent vertex,
+ *                               17 + explicit
+ * </pre>
+ * Explicit vertices are zigzag-coded deltas, as unsigned LEB128 varints. An edge triangle decodes
+ * starting with its shared edge, so the encoder may rotate triangles; winding and triangle order
+ * are kept, and encodeIndices rotates the caller's triangles to match what decodes.
+ *
+ * Vertices are coded a component at a time (a 16-bit value or a float, as
+ * QuantizedVertexFormat.componentSizes lists them), as the difference from a prediction made from
+ * earlier vertices. The usual prediction comes from the triangles: the third vertex c of an edge
+ * triangle (a, b, c) whose edge came from triangle (b, a, d) is predicted as a + b - d, the
+ * parallelogram rule, and the edges of other triangles are looked up in the FIFO the same way.
+ * Coding the indices records these predictions (predictedFrom), and vertices that have none are
+ * predicted from a vertex of their triangle or the previous vertex. Floats are predicted in single
+ * precision and differenced as order-preserving integers, counting the floats in between.
+ *
+ * The zigzag-coded differences are stored in blocks of 256 vertices, component by component: a byte
+ * choosing the prediction for the block (the triangles', or the previous vertex), with 0x80 set if
+ * every difference is zero and omitted, then groups of 16 differences, each a byte giving a width
+ * of up to 32 bits and 16 values of that many bits (2 * width bytes, little-endian). Most quantized
+ * components of a smooth mesh come out at a few bits per vertex.
+ */
+final class MeshCodec {
+    static final int VERTEX_BLOCK_SIZE = 256;
+
+    private static final int FIFO_SIZE = 16;
+    private static final int EDGE_CODES = 15;
+    private static final int VERTEX_CODES = 14;
+    private static final int NO_EDGE = 15;
+    private static final int EXPLICIT_VERTEX = 15;
+
+    private static final int GROUP_SIZE = 16;
+    private static final int PREDICT_CONNECTED = 0;
+    private static final int PREDICT_PREVIOUS = 1;
+    private static final int PREDICTORS = 2;
+    // Set in a predictor byte when the component's residuals in the block are all zero and omitted
+    private static final int ZERO_RESIDUALS = 0x80;
+
+    private MeshCodec() {}
+
+    /** A growable output byte stream. */
+    private static final class Output {
+        byte[] data;
+        int size;
+
+        Output(int capacity) {
+            data = new byte[Math.max(capacity, 16)];
+        }
+
+        void ensure(int n) {
+            if (size + n > data.length)
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+        }
+
+        void put(int b) {
+            ensure(1);
+            data[size++] = (byte)b;
+        }
+
+        void putVarint(int n) {
+            ensure(5);
+            while ((n & ~0x7F) != 0) {
+                data[size++] = (byte)((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            data[size++] = (byte)n;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /**
+     * The edge and vertex FIFOs and counters shared by the index encoder and decoder, and the vertex
+     * predictions they find.
+     */
+    private static final class IndexState {
+        final int[] edgeA = new int[FIFO_SIZE];
+        final int[] edgeB = new int[FIFO_SIZE];
+        // The third vertex of the triangle each edge came from
+        final int[] edgeOpposite = new int[FIFO_SIZE];
+        final int[] vertices = new int[FIFO_SIZE];
+        final int[] predictedFrom;
+        int edgeHead;
+        int vertexHead;
+        int next;
+        int last;
+
+        IndexState(int[] predictedFrom) {
+            Arrays.fill(edgeA, -1);
+            Arrays.fill(edgeB, -1);
+            Arrays.fill(edgeOpposite, -1);
+            Arrays.fill(vertices, -1);
+            this.predictedFrom = predictedFrom;
+            if (predictedFrom != null) {
+                for (int v = 0; v < predictedFrom.length / 3; ++v)
+                    predictedFrom[3 * v] = predictedFrom[3 * v + 1] = predictedFrom[3 * v + 2] = v - 1;
+            }
+        }
+
+        int edgeA(int k) {
+            return edgeA[(edgeHead - k) & (FIFO_SIZE - 1)];
+        }
+
+        int edgeB(int k) {
+            return edgeB[(edgeHead - k) & (FIFO_SIZE - 1)];
+        }
+
+        int edgeOpposite(int k) {
+            return edgeOpposite[(edgeHead - k) & (FIFO_SIZE - 1)];
+        }
+
+        int vertex(int k) {
+            return vertices[(vertexHead - k) & (FIFO_SIZE - 1)];
+        }
+
+        void pushEdge(int a, int b, int opposite) {
+            edgeHead = (edgeHead + 1) & (FIFO_SIZE - 1);
+            edgeA[edgeHead] = a;
+            edgeB[edgeHead] = b;
+            edgeOpposite[edgeHead] = opposite;
+        }
+
+        /**
+         * Records that vertex v is predicted as a + b - c, if those all come before it and it isn't
+         * already predicted across an edge.
+         */
+        boolean predict(int v, int a, int b, int c) {
+            if (predictedFrom == null || v >= predictedFrom.length / 3 || a >= v || b >= v || c >= v || a < 0 ||
+                b < 0 || c < 0 || predictedFrom[3 * v] != predictedFrom[3 * v + 1])
+                return false;
+            predictedFrom[3 * v] = a;
+            predictedFrom[3 * v + 1] = b;
+            predictedFrom[3 * v + 2] = c;
+            return true;
+        }
+
+        /**
+         * Records predictions for the vertices of a triangle with no edge in the FIFO: across a
+         * recent edge that one of its edges matches, or failing that, for vertices that had none,
+         * from a vertex of the triangle.
+         */
+        void predictTriangle(int x, int y, int z) {
+            if (predictedFrom == null)
+                return;
+            predictCorner(x, y, z);
+            predictCorner(y, z, x);
+            predictCorner(z, x, y);
+        }
+
+        private void predictCorner(int v, int a, int b) {
+            for (int k = 0; k < FIFO_SIZE; ++k) {
+                int ea = edgeA(k);
+                int eb = edgeB(k);
+                if ((ea == a && eb == b) || (ea == b && eb == a)) {
+                    if (predict(v, a, b, edgeOpposite(k)))
+                        return;
+                    break;
+                }
+            }
+            if (v >= 0 && v < predictedFrom.length / 3 && predictedFrom[3 * v] == v - 1 &&
+                predictedFrom[3 * v + 1] == v - 1 && predictedFrom[3 * v + 2] == v - 1) {
+                int known = a < v ? a : b;
+                predict(v, known, known, known);
+            }
+        }
+
+        void pushVertex(int v) {
+            vertexHead = (vertexHead + 1) & (FIFO_SIZE - 1);
+            vertices[vertexHead] = v;
+        }
+
+        int findVertex(int v, int limit) {
+            for (int k = 0; k < limit; ++k) {
+                if (vertices[(vertexHead - k) & (FIFO_SIZE - 1)] == v)
+                    return k;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Encodes a triangle list, rotating triangles in indices[0, count) to the order they decode in.
+     * predictedFrom, if not null, has three entries per vertex, which are set to the vertices (a, b,
+     * c) that encodeVertices predicts each vertex from, as a + b - c; -1 stands for zero.
+     */
+    public static byte[] encodeIndices(int[] indices, int count, int[] predictedFrom) {
+        if (count % 3 != 0)
+            throw new IllegalArgumentException("Index count is not a multiple of 3");
+        IndexState s = new IndexState(predictedFrom);
+        Output out = new Output(count / 2);
+        for (int i = 0; i < count; i += 3) {
+            int edge = -1;
+            int rotation = 0;
+            search:
+            for (int e = 0; e < EDGE_CODES; ++e) {
+                int ea = s.edgeA(e);
+                int eb = s.edgeB(e);
+                for (int r = 0; r < 3; ++r) {
+                    if (ea == indices[i + r] && eb == indices[i + (r == 2 ? 0 : r + 1)]) {
+                        edge = e;
+                        rotation = r;
+                        break search;
+                    }
+                }
+            }
+
+            if (edge >= 0) {
+                int a = indices[i + rotation];
+                int b = indices[i + (rotation + 1) % 3];
+                int c = indices[i + (rotation + 2) % 3];
+                indices[i] = a;
+                indices[i + 1] = b;
+                indices[i + 2] = c;
+                s.predict(c, a, b, s.edgeOpposite(edge));
+                if (c == s.next) {
+                    out.put(edge << 4);
+                    ++s.next;
+                    s.pushVertex(c);
+                } else {
+                    int k = s.findVertex(c, VERTEX_CODES);
+                    if (k >= 0) {
+                        out.put(edge << 4 | (k + 1));
+                    } else {
+                        out.put(edge << 4 | EXPLICIT_VERTEX);
+                        out.putVarint(zigzag(c - s.last));
+                        s.last = c;
+                        s.pushVertex(c);
+                    }
+                }
+                s.pushEdge(c, b, a);
+                s.pushEdge(a, c, b);
+            } else {
+                out.put(NO_EDGE << 4);
+                for (int j = i; j < i + 3; ++j) {
+                    int v = indices[j];
+                    int k;
+                    if (v == s.next) {
+                        out.putVarint(0);
+                        ++s.next;
+                        s.pushVertex(v);
+                    } else if ((k = s.findVertex(v, FIFO_SIZE)) >= 0) {
+                        out.putVarint(k + 1);
+                    } else {
+                        out.putVarint(FIFO_SIZE + 1 + zigzag(v - s.last));
+                        s.last = v;
+                        s.pushVertex(v);
+                    }
+                }
+                s.predictTriangle(indices[i], indices[i + 1], indices[i + 2]);
+                s.pushEdge(indices[i + 1], indices[i], indices[i + 2]);
+                s.pushEdge(indices[i + 2], indices[i + 1], indices[i]);
+                s.pushEdge(indices[i], indices[i + 2], indices[i + 1]);
+            }
+        }
+        return out.toArray();
+    }
+
+    /** Reads a varint from data at pos[0], advancing it. */
+    private static int readVarint(byte[] data, int[] pos, int end) throws IOException {
+        int p = pos[0];
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (p >= end)
+                throw new IOException("Corrupt encoded indices");
+            int b = data[p++];
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                pos[0] = p;
+                return result;
+            }
+        }
+        throw new IOException("Corrupt encoded indices");
+    }
+
+    /**
+     * Decodes count indices encoded by encodeIndices from data[offset, offset + length) into out.
+     * predictedFrom, if not null, is set as by encodeIndices, for decodeVertices.
+     */
+    public static void decodeIndices(byte[] data, int offset, int length, int[] out, int count, int[] predictedFrom)
+            throws IOException {
+        IndexState s = new IndexState(predictedFrom);
+        int end = offset + length;
+        int[] pos = {offset};
+        for (int i = 0; i < count; i += 3) {
+            if (pos[0] >= end)
+                throw new IOException("Corrupt encoded indices");
+            int code = data[pos[0]++] & 0xFF;
+            int edge = code >>> 4;
+            if (edge != NO_EDGE) {
+                int vertexCode = code & 15;
+                int a = s.edgeA(edge);
+                int b = s.edgeB(edge);
+                int c;
+                if (vertexCode == 0) {
+                    c = s.next++;
+                    s.pushVertex(c);
+                } else if (vertexCode == EXPLICIT_VERTEX) {
+                    c = s.last + unzigzag(readVarint(data, pos, end));
+                    s.last = c;
+                    s.pushVertex(c);
+                } else {
+                    c = s.vertex(vertexCode - 1);
+                }
+                s.predict(c, a, b, s.edgeOpposite(edge));
+                s.pushEdge(c, b, a);
+                s.pushEdge(a, c, b);
+                out[i] = a;
+                out[i + 1] = b;
+                out[i + 2] = c;
+            } else {
+                for (int j = i; j < i + 3; ++j) {
+                    int v = readVarint(data, pos, end);
+                    if (v == 0) {
+                        v = s.next++;
+                        s.pushVertex(v);
+                    } else if (v <= FIFO_SIZE) {
+                        v = s.vertex(v - 1);
+                    } else {
+                        v = s.last + unzigzag(v - FIFO_SIZE - 1);
+                        s.last = v;
+                        s.pushVertex(v);
+                    }
+                    out[j] = v;
+                }
+                s.predictTriangle(out[i], out[i + 1], out[i + 2]);
+                s.pushEdge(out[i + 1], out[i], out[i + 2]);
+                s.pushEdge(out[i + 2], out[i + 1], out[i]);
+                s.pushEdge(out[i], out[i + 2], out[i + 1]);
+            }
+            if (out[i] < 0 || out[i + 1] < 0 || out[i + 2] < 0)
+                throw new IOException("Corrupt encoded indices");
+        }
+    }
+
+    /** Returns the number of bits needed for the largest of values[start, start + GROUP_SIZE). */
+    private static int groupBits(int[] values, int start) {
+        int max = 0;
+        for (int i = start; i < start + GROUP_SIZE; ++i)
+            max |= values[i];
+        return 32 - Integer.numberOfLeadingZeros(max);
+    }
+
+    /**
+     * Returns the order-preserving integer for the float with the given bits, so that neighbouring
+     * floats map to neighbouring integers. It is its own inverse.
+     */
+    private static int ordered(int bits) {
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    /**
+     * Predicts a float as (a + b) - c in single precision, or as a where that isn't finite, returning
+     * the ordered integer of the prediction. a, b and c are the floats' bits.
+     */
+    private static int predictFloat(int a, int b, int c) {
+        float f = (Float.intBitsToFloat(a) + Float.intBitsToFloat(b)) - Float.intBitsToFloat(c);
+        return ordered(Float.isFinite(f) ? Float.floatToRawIntBits(f) : a);
+    }
+
+    /**
+     * Predicts a component of vertex v from its values for earlier vertices, given in values[1, v]
+     * for vertices 0 to v - 1 after a zero. 2-byte components are predicted as unsigned 16-bit
+     * values, and 4-byte components as the ordered integers of floats.
+     */
+    private static int predict(int predictor, int v, int[] values, int[] predictedFrom, int size) {
+        if (predictor == PREDICT_PREVIOUS)
+            return size == 2 ? values[v] : ordered(values[v]);
+        int a = values[predictedFrom[3 * v] + 1];
+        int b = values[predictedFrom[3 * v + 1] + 1];
+        int c = values[predictedFrom[3 * v + 2] + 1];
+        return size == 2 ? a + b - c : predictFloat(a, b, c);
+    }
+
+    /**
+     * Returns the zigzag-coded differences of a component of vertices [first, first + n) from what
+     * predictor predicts, in residuals[0, n).
+     */
+    private static void residuals(int[] values, int first, int n, int predictor, int[] predictedFrom, int size,
+                                  int[] residuals) {
+        for (int i = 0; i < n; ++i) {
+            int v = values[first + i + 1];
+            int prediction = predict(predictor, first + i, values, predictedFrom, size);
+            residuals[i] = size == 2 ? zigzag((short)(v - prediction)) & 0xFFFF : zigzag(ordered(v) - prediction);
+        }
+        Arrays.fill(residuals, n, VERTEX_BLOCK_SIZE, 0);
+    }
+
+    /** Returns the number of bytes residuals[0, n) take, packed a group at a time. */
+    private static int packedSize(int[] residuals, int n) {
+        int size = 0;
+        for (int g = 0; g < n; g += GROUP_SIZE)
+            size += 1 + 2 * groupBits(residuals, g);
+        return size;
+    }
+
+    /** Writes residuals[0, n) a group at a time: a byte giving the width, then 16 values of it. */
+    private static void pack(int[] residuals, int n, Output out) {
+        out.ensure((n + GROUP_SIZE - 1) / GROUP_SIZE * (1 + 2 * 32));
+        byte[] data = out.data;
+        int pos = out.size;
+        for (int g = 0; g < n; g += GROUP_SIZE) {
+            int bits = groupBits(residuals, g);
+            data[pos++] = (byte)bits;
+            long acc = 0;
+            int accBits = 0;
+            for (int i = g; i < g + GROUP_SIZE; ++i) {
+                acc |= (residuals[i] & 0xFFFFFFFFL) << accBits;
+                accBits += bits;
+                while (accBits >= 16) {
+                    data[pos++] = (byte)acc;
+                    data[pos++] = (byte)(acc >>> 8);
+                    acc >>>= 16;
+                    accBits -= 16;
+                }
+            }
+        }
+        out.size = pos;
+    }
+
+    /**
+     * Reads a group of 16 values of bits > 0 bits from data at pos into residuals[start, start + 16),
+     * returning the position after it. The group is 2 * bits bytes, so reading 16 bits at a time
+     * stays inside it.
+     */
+    private static int unpack(byte[] data, int pos, int bits, int[] residuals, int start) {
+        long mask = (1L << bits) - 1;
+        long acc = 0;
+        int accBits = 0;
+        for (int i = start; i < start + GROUP_SIZE; ++i) {
+            while (accBits < bits) {
+                acc |= (long)((data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8) << accBits;
+                pos += 2;
+                accBits += 16;
+            }
+            residuals[i] = (int)(acc & mask);
+            acc >>>= bits;
+            accBits -= bits;
+        }
+        return pos;
+    }
+
+    /**
+     * Encodes count vertices from data, each made of components of the given sizes (2-byte integers
+     * or 4-byte floats, little-endian) in order, predicting them from the vertices encodeIndices
+     * gives in predictedFrom.
+     */
+    public static byte[] encodeVertices(byte[] data, int count, int[] componentSizes, int[] predictedFrom) {
+        int vertexSize = 0;
+        for (int size : componentSizes) {
+            if (size != 2 && size != 4)
+                throw new IllegalArgumentException("Vertex components must be 2 or 4 bytes");
+            vertexSize += size;
+        }
+        int[][] values = new int[componentSizes.length][count + 1];
+        for (int c = 0, offset = 0; c < componentSizes.length; offset += componentSizes[c++]) {
+            for (int v = 0, pos = offset; v < count; ++v, pos += vertexSize) {
+                int value = (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8;
+                if (componentSizes[c] == 4)
+                    value |= (data[pos + 2] & 0xFF) << 16 | data[pos + 3] << 24;
+                values[c][v + 1] = value;
+            }
+        }
+        int[] residuals = new int[VERTEX_BLOCK_SIZE];
+        Output out = new Output(count * vertexSize / 4);
+        for (int first = 0; first < count; first += VERTEX_BLOCK_SIZE) {
+            int n = Math.min(VERTEX_BLOCK_SIZE, count - first);
+            for (int c = 0; c < componentSizes.length; ++c) {
+                int best = 0;
+                int bestSize = Integer.MAX_VALUE;
+                for (int predictor = 0; predictor < PREDICTORS; ++predictor) {
+                    residuals(values[c], first, n, predictor, predictedFrom, componentSizes[c], residuals);
+                    int packedSize = packedSize(residuals, n);
+                    if (packedSize < bestSize) {
+                        best = predictor;
+                        bestSize = packedSize;
+                    }
+                }
+                if (bestSize == (n + GROUP_SIZE - 1) / GROUP_SIZE) {
+                    out.put(best | ZERO_RESIDUALS);
+                } else {
+                    residuals(values[c], first, n, best, predictedFrom, componentSizes[c], residuals);
+                    out.put(best);
+                    pack(residuals, n, out);
+                }
+            }
+        }
+        return out.toArray();
+    }
+
+    /**
+     * Decodes count vertices, made of components of the given sizes, encoded by encodeVertices from
+     * data[offset, offset + length) into out, with predictedFrom as decodeIndices sets it.
+     */
+    public static void decodeVertices(byte[] data, int offset, int length, byte[] out, int count,
+                                      int[] componentSizes, int[] predictedFrom) throws IOException {
+        int components = componentSizes.length;
+        // The components of vertex v are at values[(v + 1) * components], after a vertex of zeros
+        int[] values = new int[(count + 1) * components];
+        int[] residuals = new int[components * VERTEX_BLOCK_SIZE];
+        int[] predictors = new int[components];
+        int pos = offset;
+        int end = offset + length;
+        int o = 0;
+        for (int first = 0; first < count; first += VERTEX_BLOCK_SIZE) {
+            int n = Math.min(VERTEX_BLOCK_SIZE, count - first);
+            for (int c = 0; c < components; ++c) {
+                if (pos >= end)
+                    throw new IOException("Corrupt encoded vertices");
+                int predictor = data[pos++] & 0xFF;
+                predictors[c] = predictor & ~ZERO_RESIDUALS;
+                if (predictors[c] >= PREDICTORS)
+                    throw new IOException("Corrupt encoded vertices");
+                int start = c * VERTEX_BLOCK_SIZE;
+                if ((predictor & ZERO_RESIDUALS) != 0) {
+                    Arrays.fill(residuals, start, start + n, 0);
+                    continue;
+                }
+                for (int g = 0; g < n; g += GROUP_SIZE) {
+                    int bits;
+                    if (pos >= end || (bits = data[pos++]) < 0 || bits > 32 || pos + 2 * bits > end)
+                        throw new IOException("Corrupt encoded vertices");
+                    if (bits == 0)
+                        Arrays.fill(residuals, start + g, start + g + GROUP_SIZE, 0);
+                    else
+                        pos = unpack(data, pos, bits, residuals, start + g);
+                }
+            }
+
+            // A vertex at a time, so the output is written in order
+            for (int v = first; v < first + n; ++v) {
+                int a = (predictedFrom[3 * v] + 1) * components;
+                int b = (predictedFrom[3 * v + 1] + 1) * components;
+                int c = (predictedFrom[3 * v + 2] + 1) * components;
+                int previous = v * components;
+                int r = v - first;
+                for (int k = 0; k < components; ++k, r += VERTEX_BLOCK_SIZE) {
+                    int d = residuals[r];
+                    d = (d >>> 1) ^ -(d & 1);
+                    int value;
+                    if (componentSizes[k] == 2) {
+                        value = (d + (predictors[k] == PREDICT_CONNECTED
+                                      ? values[a + k] + values[b + k] - values[c + k]
+                                      : values[previous + k])) & 0xFFFF;
+                        out[o++] = (byte)value;
+                        out[o++] = (byte)(value >>> 8);
+                    } else {
+                        value = ordered(d + (predictors[k] == PREDICT_CONNECTED
+                                             ? predictFloat(values[a + k], values[b + k], values[c + k])
+                                             : ordered(values[previous + k])));
+                        out[o++] = (byte)value;
+                        out[o++] = (byte)(value >>> 8);
+                        out[o++] = (byte)(value >>> 16);
+                        out[o++] = (byte)(value >>> 24);
+                    }
+                    values[previous + components + k] = value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,392 @@
+import java.util.*;
+
+/**
+ * Reorders a mesh for rendering: triangles for post-transform vertex cache hits (Forsyth's linear-speed
+ * algorithm) and optionally to reduce overdraw, and vertices into the order in which the index buffer
+ * first uses them.
+ *
+ * Triangles are only reordered within an index range, so submeshes keep their extents; vertices are
+ * shared by all submeshes and are remapped for the whole index buffer at once.
+ */
+final class MeshOptimizer {
+    // FIFO cache size used to report ACMR/ATVR, typical of desktop GPUs
+    static final int STATS_CACHE_SIZE = 16;
+
+    // Tuning values from Forsyth's "Linear-Speed Vertex Cache Optimisation"
+    private static final int CACHE_SIZE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRI_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+
+    private final int vertexCount;
+    private final int[] localIds;
+    private final int[] cacheTimestamps;
+    private int timestamp;
+
+    /**
+     * @param vertexCount the number of vertices the index buffers refer to
+     */
+    public MeshOptimizer(int vertexCount) {
+        this.vertexCount = vertexCount;
+        localIds = new int[vertexCount];
+        Arrays.fill(localIds, -1);
+        cacheTimestamps = new int[vertexCount];
+    }
+
+    static class CacheStats {
+        long misses;
+        long triangles;
+        long vertices;
+
+        /** Average cache misses per triangle: 0.5 is ideal for a regular grid, 3 is the worst case. */
+        double acmr() {
+            return triangles == 0 ? 0 : (double)misses / triangles;
+        }
+
+        /** Average transforms per vertex: 1 is ideal. */
+        double atvr() {
+            return vertices == 0 ? 0 : (double)misses / vertices;
+        }
+    }
+
+    /**
+     * Simulates a FIFO post-transform cache over one draw call's indices and adds the result to stats.
+     * The cache starts empty, as it would for a separate draw call.
+     */
+    public void analyzeVertexCache(int[] indices, int start, int count, int cacheSize, CacheStats stats) {
+        // A vertex is in the cache if fewer than cacheSize misses happened since it was last loaded;
+        // starting the clock past every previous timestamp flushes the cache.
+        timestamp += cacheSize + 1;
+        int uniqueVertices = 0;
+        int firstTimestamp = timestamp;
+        for (int i = start; i < start + count; ++i) {
+            int v = indices[i];
+            int t = cacheTimestamps[v];
+            if (timestamp - t > cacheSize) {
+                if (t < firstTimestamp)
+                    ++uniqueVertices;
+                cacheTimestamps[v] = timestamp++;
+                ++stats.misses;
+            }
+        }
+        stats.triangles += count / 3;
+        stats.vertices += uniqueVertices;
+    }
+
+    private static float vertexScore(int cachePosition, int activeTriangles) {
+        if (activeTriangles == 0)
+            return -1.0f;
+        float score = 0.0f;
+        if (cachePosition >= 0) {
+            if (cachePosition < 3) {
+                // The last triangle's vertices get a fixed score, so that the next triangle doesn't
+                // just reuse the most recent edge every time
+                score = LAST_TRI_SCORE;
+            } else {
+                float scaler = 1.0f / (CACHE_SIZE - 3);
+                score = (float)Math.pow(1.0f - (cachePosition - 3) * scaler, CACHE_DECAY_POWER);
+            }
+        }
+        // Boost vertices with few remaining triangles, so that lone triangles get cleared up early
+        score += VALENCE_BOOST_SCALE * (float)Math.pow(activeTriangles, -VALENCE_BOOST_POWER);
+        return score;
+    }
+
+    /**
+     * Reorders the triangles in indices[start, start + count) for vertex cache locality.
+     */
+    public void optimizeVertexCache(int[] indices, int start, int count) {
+        int triangleCount = count / 3;
+        if (triangleCount < 2)
+            return;
+
+        // Number the range's vertices locally so that the work arrays are sized by the range
+        int[] local = new int[count];
+        int localCount = 0;
+        for (int i = 0; i < count; ++i) {
+            int v = indices[start + i];
+            if (localIds[v] < 0)
+                localIds[v] = localCount++;
+            local[i] = localIds[v];
+        }
+        for (int i = 0; i < count; ++i) {
+            localIds[indices[start + i]] = -1;
+        }
+
+        // Triangles using each vertex; the first activeCount[v] entries are the ones not yet emitted
+        int[] activeCount = new int[localCount];
+        for (int i = 0; i < count; ++i) {
+            ++activeCount[local[i]];
+        }
+        int[] firstTriangle = new int[localCount + 1];
+        for (int v = 0; v < localCount; ++v) {
+            firstTriangle[v + 1] = firstTriangle[v] + activeCount[v];
+        }
+        int[] triangles = new int[count];
+        int[] fill = new int[localCount];
+        for (int i = 0; i < count; ++i) {
+            int v = local[i];
+            triangles[firstTriangle[v] + fill[v]++] = i / 3;
+        }
+
+        int[] cachePosition = new int[localCount];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScores = new float[localCount];
+        for (int v = 0; v < localCount; ++v) {
+            vertexScores[v] = vertexScore(-1, activeCount[v]);
+        }
+        float[] triangleScores = new float[triangleCount];
+        boolean[] emitted = new boolean[triangleCount];
+        int bestTriangle = 0;
+        for (int t = 0; t < triangleCount; ++t) {
+            triangleScores[t] = vertexScores[local[3*t]] + vertexScores[local[3*t + 1]] + vertexScores[local[3*t + 2]];
+            if (triangleScores[t] > triangleScores[bestTriangle])
+                bestTriangle = t;
+        }
+
+        int[] cache = new int[CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int[] newCache = new int[CACHE_SIZE + 3];
+        int[] output = new int[count];
+        int nextUnemitted = 0;
+
+        for (int out = 0; out < triangleCount; ++out) {
+            if (bestTriangle < 0) {
+                // Nothing in the cache has triangles left; continue from the next unemitted triangle
+                while (emitted[nextUnemitted])
+                    ++nextUnemitted;
+                bestTriangle = nextUnemitted;
+            }
+            int t = bestTriangle;
+            emitted[t] = true;
+            for (int k = 0; k < 3; ++k) {
+                output[3*out + k] = indices[start + 3*t + k];
+            }
+
+            // Remove the triangle from its vertices' active lists
+            for (int k = 0; k < 3; ++k) {
+                int v = local[3*t + k];
+                int first = firstTriangle[v];
+                int last = first + activeCount[v] - 1;
+                for (int j = first; j <= last; ++j) {
+                    if (triangles[j] == t) {
+                        triangles[j] = triangles[last];
+                        triangles[last] = t;
+                        break;
+                    }
+                }
+                --activeCount[v];
+            }
+
+            // Move the triangle's vertices to the front of the LRU cache
+            int newCount = 0;
+            for (int k = 0; k < 3; ++k) {
+                int v = local[3*t + k];
+                boolean duplicate = false;
+                for (int j = 0; j < newCount; ++j) {
+                    duplicate |= newCache[j] == v;
+                }
+                if (!duplicate)
+                    newCache[newCount++] = v;
+            }
+            for (int j = 0; j < cacheCount; ++j) {
+                int v = cache[j];
+                if (v != local[3*t] && v != local[3*t + 1] && v != local[3*t + 2])
+                    newCache[newCount++] = v;
+            }
+            int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheCount = newCount;
+
+            for (int j = 0; j < cacheCount; ++j) {
+                int v = cache[j];
+                cachePosition[v] = j < CACHE_SIZE ? j : -1;
+                vertexScores[v] = vertexScore(cachePosition[v], activeCount[v]);
+            }
+
+            // Rescore the triangles of every vertex in the cache and pick the best one
+            bestTriangle = -1;
+            float bestScore = -1.0f;
+            for (int j = 0; j < cacheCount; ++j) {
+                int v = cache[j];
+                for (int a = firstTriangle[v]; a < firstTriangle[v] + activeCount[v]; ++a) {
+                    int u = triangles[a];
+                    float score = vertexScores[local[3*u]] + vertexScores[local[3*u + 1]] + vertexScores[local[3*u + 2]];
+                    triangleScores[u] = score;
+                    if (score > bestScore) {
+                        bestScore = score;
+                        bestTriangle = u;
+                    }
+                }
+            }
+            if (cacheCount > CACHE_SIZE)
+                cacheCount = CACHE_SIZE;
+        }
+
+        System.arraycopy(output, 0, indices, start, count);
+    }
+
+    /**
+     * Reorders clusters of triangles in indices[start, start + count) so that triangles facing away
+     * from the mesh's centre are drawn first, which tends to let the depth test reject hidden
+     * triangles. The range should already be optimized for the vertex cache: clusters are split only
+     * where the cache would have been mostly refilled anyway, and where splitting keeps the cluster's
+     * ACMR within threshold times the original.
+     *
+     * @param positions xyz position of each vertex
+     */
+    public void optimizeOverdraw(int[] indices, int start, int count, float[] positions, float threshold) {
+        int triangleCount = count / 3;
+        if (triangleCount < 2)
+            return;
+
+        // Hard boundaries: triangles where all three vertices missed the cache
+        List<Integer> clusterStarts = new ArrayList<Integer>();
+        timestamp += STATS_CACHE_SIZE + 1;
+        for (int t = 0; t < triangleCount; ++t) {
+            int misses = 0;
+            for (int k = 0; k < 3; ++k) {
+                int v = indices[start + 3*t + k];
+                if (timestamp - cacheTimestamps[v] > STATS_CACHE_SIZE) {
+                    cacheTimestamps[v] = timestamp++;
+                    ++misses;
+                }
+            }
+            if (t == 0 || misses == 3)
+                clusterStarts.add(t);
+        }
+        clusterStarts.add(triangleCount);
+
+        // Soft boundaries: split a cluster wherever the part so far is about as cache efficient as
+        // the whole cluster
+        List<Integer> boundaries = new ArrayList<Integer>();
+        for (int c = 0; c + 1 < clusterStarts.size(); ++c) {
+            int first = clusterStarts.get(c);
+            int end = clusterStarts.get(c + 1);
+            CacheStats whole = new CacheStats();
+            analyzeVertexCache(indices, start + 3*first, 3*(end - first), STATS_CACHE_SIZE, whole);
+            double limit = whole.acmr() * threshold;
+
+            boundaries.add(first);
+            timestamp += STATS_CACHE_SIZE + 1;
+            int segmentStart = first;
+            long misses = 0;
+            for (int t = first; t < end; ++t) {
+                for (int k = 0; k < 3; ++k) {
+                    int v = indices[start + 3*t + k];
+                    if (timestamp - cacheTimestamps[v] > STATS_CACHE_SIZE) {
+                        cacheTimestamps[v] = timestamp++;
+                        ++misses;
+                    }
+                }
+                int segmentTriangles = t + 1 - segmentStart;
+                if (t + 1 < end && segmentTriangles >= 2 && (double)misses / segmentTriangles <= limit) {
+                    boundaries.add(t + 1);
+                    segmentStart = t + 1;
+                    misses = 0;
+                    timestamp += STATS_CACHE_SIZE + 1;
+                }
+            }
+        }
+        boundaries.add(triangleCount);
+        int clusterCount = boundaries.size() - 1;
+        if (clusterCount < 2)
+            return;
+
+        // Area-weighted centroid and normal of each cluster, and of the whole range
+        double[] centroids = new double[3 * clusterCount];
+        double[] normals = new double[3 * clusterCount];
+        double[] meshCentroid = new double[3];
+        double meshArea = 0;
+        for (int c = 0; c < clusterCount; ++c) {
+            double area = 0;
+            for (int t = boundaries.get(c); t < boundaries.get(c + 1); ++t) {
+                int a = 3 * indices[start + 3*t];
+                int b = 3 * indices[start + 3*t + 1];
+                int d = 3 * indices[start + 3*t + 2];
+                double e1x = positions[b] - positions[a], e1y = positions[b + 1] - positions[a + 1], e1z = positions[b + 2] - positions[a + 2];
+                double e2x = positions[d] - positions[a], e2y = positions[d + 1] - positions[a + 1], e2z = positions[d + 2] - positions[a + 2];
+                double nx = e1y * e2z - e1z * e2y;
+                double ny = e1z * e2x - e1x * e2z;
+                double nz = e1x * e2y - e1y * e2x;
+                double triangleArea = Math.sqrt(nx * nx + ny * ny + nz * nz);
+                for (int k = 0; k < 3; ++k) {
+                    centroids[3*c + k] += triangleArea * (positions[a + k] + positions[b + k] + positions[d + k]) / 3;
+                }
+                normals[3*c] += nx;
+                normals[3*c + 1] += ny;
+                normals[3*c + 2] += nz;
+                area += triangleArea;
+            }
+            for (int k = 0; k < 3; ++k) {
+                meshCentroid[k] += centroids[3*c + k];
+                if (area > 0)
+                    centroids[3*c + k] /= area;
+            }
+            meshArea += area;
+        }
+        if (meshArea > 0) {
+            for (int k = 0; k < 3; ++k) {
+                meshCentroid[k] /= meshArea;
+            }
+        }
+
+        final double[] sortKeys = new double[clusterCount];
+        Integer[] order = new Integer[clusterCount];
+        for (int c = 0; c < clusterCount; ++c) {
+            double length = Math.sqrt(normals[3*c] * normals[3*c] + normals[3*c + 1] * normals[3*c + 1] +
+                                      normals[3*c + 2] * normals[3*c + 2]);
+            double key = 0;
+            if (length > 0) {
+                for (int k = 0; k < 3; ++k) {
+                    key += (centroids[3*c + k] - meshCentroid[k]) * normals[3*c + k] / length;
+                }
+            }
+            sortKeys[c] = key;
+            order[c] = c;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(sortKeys[b], sortKeys[a]));
+
+        int[] output = new int[count];
+        int pos = 0;
+        for (int c : order) {
+            int from = 3 * boundaries.get(c);
+            int length = 3 * boundaries.get(c + 1) - from;
+            System.arraycopy(indices, start + from, output, pos, length);
+            pos += length;
+        }
+        System.arraycopy(output, 0, indices, start, count);
+    }
+
+    /**
+     * Renumbers vertices in the order the index buffer first uses them, so that vertex fetches walk
+     * the vertex buffer mostly sequentially. Each vertex is stride consecutive ints of vertices; both
+     * lists are updated in place. Returns the new number of each old vertex.
+     */
+    public int[] optimizeVertexFetch(IntList indices, IntList vertices, int stride) {
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int next = 0;
+        int[] index = indices.array();
+        for (int i = 0; i < indices.size(); ++i) {
+            int v = index[i];
+            if (remap[v] < 0)
+                remap[v] = next++;
+            index[i] = remap[v];
+        }
+        // Vertices no index refers to go last, in their original order
+        for (int v = 0; v < vertexCount; ++v) {
+            if (remap[v] < 0)
+                remap[v] = next++;
+        }
+
+        int[] old = Arrays.copyOf(vertices.array(), vertexCount * stride);
+        int[] data = vertices.array();
+        for (int v = 0; v < vertexCount; ++v) {
+            System.arraycopy(old, v * stride, data, remap[v] * stride, stride);
+        }
+        return remap;
+    }
+}
@@ -0,0 +1,430 @@
+import java.util.*;
+
+/**
+ * Generates lower-detail versions of a submesh's index buffer by quadric-error edge collapse
+ * (Garland and Heckbert), for a chain of triangle count targets.
+ *
+ * Collapses only move a vertex onto one of its neighbours, so every level of detail can share the
+ * original vertex buffer. Vertices that the caller locks never move; the compiler locks vertices on
+ * UV and normal seams (positions used by more than one vertex) and on boundaries between submeshes,
+ * so that neither opens a crack. Vertices on an open border only move along the border.
+ */
+final class MeshSimplifier {
+    // Weight of the planes that keep open borders in place, relative to the triangles' planes
+    private static final double BORDER_WEIGHT = 10.0;
+
+    // Collapses that turn a triangle's normal by more than about 75 degrees are rejected
+    private static final double FLIP_THRESHOLD = 0.25;
+
+    private static final int QUADRIC_SIZE = 11;
+
+    private final float[] positions;
+    private final int[] positionIds;
+    private final boolean[] locked;
+
+    /**
+     * @param positions xyz position of each vertex
+     * @param positionIds the position index of each vertex; vertices that share one are connected
+     *     even if their other attributes differ
+     * @param locked vertices that must not move
+     */
+    public MeshSimplifier(float[] positions, int[] positionIds, boolean[] locked) {
+        this.positions = positions;
+        this.positionIds = positionIds;
+        this.locked = locked;
+    }
+
+    static class Result {
+        // Index buffer of each level of detail
+        int[][] indices;
+        // Error of each level of detail, as an approximate distance in model units
+        float[] errors;
+    }
+
+    // State of one simplification: vertices numbered locally, and the current triangles
+    private static class Work {
+        int[] globalIds;
+        double[] x, y, z;
+        double[] quadrics;
+        boolean[] locked;
+        int[] triangles;
+        int triangleCount;
+        double maxError;
+        // Set once a pass finds nothing to collapse; later passes wouldn't either
+        boolean stalled;
+    }
+
+    /**
+     * Simplifies the triangles in indices[start, start + count) down to each of the target ratios of
+     * the original triangle count in turn; each level starts from the one before. A level may have
+     * more triangles than its target if no further collapse is possible.
+     */
+    public Result simplify(int[] indices, int start, int count, float[] targetRatios) {
+        Work work = new Work();
+        int[] sorted = Arrays.copyOfRange(indices, start, start + count);
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                sorted[n++] = sorted[i];
+        }
+        work.globalIds = Arrays.copyOf(sorted, n);
+        work.triangles = new int[count];
+        for (int i = 0; i < count; ++i) {
+            work.triangles[i] = Arrays.binarySearch(work.globalIds, indices[start + i]);
+        }
+        work.triangleCount = count / 3;
+        work.x = new double[n];
+        work.y = new double[n];
+        work.z = new double[n];
+        work.locked = new boolean[n];
+        for (int v = 0; v < n; ++v) {
+            int g = work.globalIds[v];
+            work.x[v] = positions[3*g];
+            work.y[v] = positions[3*g + 1];
+            work.z[v] = positions[3*g + 2];
+            work.locked[v] = locked[g];
+        }
+        computeQuadrics(work);
+
+        Result result = new Result();
+        result.indices = new int[targetRatios.length][];
+        result.errors = new float[targetRatios.length];
+        int originalTriangles = count / 3;
+        for (int level = 0; level < targetRatios.length; ++level) {
+            int target = (int)(originalTriangles * (double)targetRatios[level]);
+            while (work.triangleCount > target && !work.stalled) {
+                work.stalled = !collapsePass(work, target);
+            }
+            int[] levelIndices = new int[3 * work.triangleCount];
+            for (int i = 0; i < levelIndices.length; ++i) {
+                levelIndices[i] = work.globalIds[work.triangles[i]];
+            }
+            result.indices[level] = levelIndices;
+            result.errors[level] = (float)Math.sqrt(work.maxError);
+        }
+        return result;
+    }
+
+    private static void addPlane(double[] q, int v, double a, double b, double c, double d, double w) {
+        int o = QUADRIC_SIZE * v;
+        q[o] += w * a * a;
+        q[o + 1] += w * a * b;
+        q[o + 2] += w * a * c;
+        q[o + 3] += w * a * d;
+        q[o + 4] += w * b * b;
+        q[o + 5] += w * b * c;
+        q[o + 6] += w * b * d;
+        q[o + 7] += w * c * c;
+        q[o + 8] += w * c * d;
+        q[o + 9] += w * d * d;
+        q[o + 10] += w;
+    }
+
+    /**
+     * Squared distance from the planes of vertices a and b to vertex b's position, averaged by the
+     * planes' weights.
+     */
+    private static double collapseError(Work work, int a, int b) {
+        double[] q = work.quadrics;
+        int o = QUADRIC_SIZE * a;
+        int p = QUADRIC_SIZE * b;
+        double x = work.x[b], y = work.y[b], z = work.z[b];
+        double e = (q[o] + q[p]) * x * x + 2 * (q[o + 1] + q[p + 1]) * x * y + 2 * (q[o + 2] + q[p + 2]) * x * z +
+                   2 * (q[o + 3] + q[p + 3]) * x + (q[o + 4] + q[p + 4]) * y * y + 2 * (q[o + 5] + q[p + 5]) * y * z +
+                   2 * (q[o + 6] + q[p + 6]) * y + (q[o + 7] + q[p + 7]) * z * z + 2 * (q[o + 8] + q[p + 8]) * z +
+                   (q[o + 9] + q[p + 9]);
+        double weight = q[o + 10] + q[p + 10];
+        return weight > 0 ? Math.max(e, 0) / weight : 0;
+    }
+
+    private void computeQuadrics(Work work) {
+        work.quadrics = new double[QUADRIC_SIZE * work.globalIds.length];
+        int[] t = work.triangles;
+        for (int i = 0; i < 3 * work.triangleCount; i += 3) {
+            double[] normal = new double[3];
+            double area = normal(work, t[i], t[i + 1], t[i + 2], normal) / 2;
+            if (area == 0)
+                continue;
+            double nx = normal[0] / (2 * area), ny = normal[1] / (2 * area), nz = normal[2] / (2 * area);
+            double d = -(nx * work.x[t[i]] + ny * work.y[t[i]] + nz * work.z[t[i]]);
+            for (int k = 0; k < 3; ++k) {
+                addPlane(work.quadrics, t[i + k], nx, ny, nz, d, area);
+            }
+        }
+
+        // Planes through each open border edge, perpendicular to its triangle, keep borders in place
+        EdgeCounts edgeKeys = positionEdges(work);
+        for (int i = 0; i < 3 * work.triangleCount; i += 3) {
+            double[] normal = new double[3];
+            double length = normal(work, t[i], t[i + 1], t[i + 2], normal);
+            if (length == 0)
+                continue;
+            for (int k = 0; k < 3; ++k) {
+                int a = t[i + k];
+                int b = t[i + (k + 1) % 3];
+                if (edgeCount(work, edgeKeys, a, b) != 1)
+                    continue;
+                double ex = work.x[b] - work.x[a], ey = work.y[b] - work.y[a], ez = work.z[b] - work.z[a];
+                double px = ey * normal[2] - ez * normal[1];
+                double py = ez * normal[0] - ex * normal[2];
+                double pz = ex * normal[1] - ey * normal[0];
+                double pl = Math.sqrt(px * px + py * py + pz * pz);
+                if (pl == 0)
+                    continue;
+                px /= pl;
+                py /= pl;
+                pz /= pl;
+                double d = -(px * work.x[a] + py * work.y[a] + pz * work.z[a]);
+                double w = BORDER_WEIGHT * (ex * ex + ey * ey + ez * ez);
+                addPlane(work.quadrics, a, px, py, pz, d, w);
+                addPlane(work.quadrics, b, px, py, pz, d, w);
+            }
+        }
+    }
+
+    /**
+     * Stores the (unnormalized) normal of triangle abc in out and returns its length, which is
+     * twice the triangle's area.
+     */
+    private static double normal(Work work, int a, int b, int c, double[] out) {
+        double e1x = work.x[b] - work.x[a], e1y = work.y[b] - work.y[a], e1z = work.z[b] - work.z[a];
+        double e2x = work.x[c] - work.x[a], e2y = work.y[c] - work.y[a], e2z = work.z[c] - work.z[a];
+        out[0] = e1y * e2z - e1z * e2y;
+        out[1] = e1z * e2x - e1x * e2z;
+        out[2] = e1x * e2y - e1y * e2x;
+        return Math.sqrt(out[0] * out[0] + out[1] * out[1] + out[2] * out[2]);
+    }
+
+    private long edgeKey(int a, int b) {
+        long pa = positionIds[a];
+        long pb = positionIds[b];
+        return pa < pb ? (pa << 32) | pb : (pb << 32) | pa;
+    }
+
+    // The number of triangles sharing each edge, keyed by position so that the two sides of an
+    // attribute seam count as one edge. An open-addressing table; position ids are never negative,
+    // so -1 marks an empty slot.
+    private static class EdgeCounts {
+        long[] keys;
+        int[] counts;
+        int mask;
+
+        EdgeCounts(int expectedEdges) {
+            int capacity = Integer.highestOneBit(Math.max(2 * expectedEdges, 16) - 1) << 1;
+            keys = new long[capacity];
+            Arrays.fill(keys, -1L);
+            counts = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+
+        private int slot(long key) {
+            int slot = (int)mix(key) & mask;
+            while (keys[slot] != key && keys[slot] != -1L)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        void add(long key) {
+            int slot = slot(key);
+            keys[slot] = key;
+            ++counts[slot];
+        }
+
+        int get(long key) {
+            return counts[slot(key)];
+        }
+    }
+
+    private EdgeCounts positionEdges(Work work) {
+        EdgeCounts edges = new EdgeCounts(3 * work.triangleCount);
+        int[] t = work.triangles;
+        for (int i = 0; i < 3 * work.triangleCount; i += 3) {
+            for (int k = 0; k < 3; ++k) {
+                edges.add(edgeKey(work.globalIds[t[i + k]], work.globalIds[t[i + (k + 1) % 3]]));
+            }
+        }
+        return edges;
+    }
+
+    private int edgeCount(Work work, EdgeCounts edges, int a, int b) {
+        return edges.get(edgeKey(work.globalIds[a], work.globalIds[b]));
+    }
+
+    private static boolean hasEdge(int[] t, int[] adjacency, int[] adjacencyStart, int[] remap, int a, int b) {
+        for (int j = adjacencyStart[a]; j < adjacencyStart[a + 1]; ++j) {
+            int tri = 3 * adjacency[j];
+            if (remap[t[tri]] == b || remap[t[tri + 1]] == b || remap[t[tri + 2]] == b)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Performs a batch of the cheapest collapses that don't interfere with each other, stopping once
+     * enough triangles have been removed to reach the target. Returns false if nothing could be
+     * collapsed.
+     */
+    private boolean collapsePass(Work work, int target) {
+        int n = work.globalIds.length;
+        int[] t = work.triangles;
+        int indexCount = 3 * work.triangleCount;
+
+        // Triangles around each vertex
+        int[] adjacencyStart = new int[n + 1];
+        for (int i = 0; i < indexCount; ++i) {
+            ++adjacencyStart[t[i] + 1];
+        }
+        for (int v = 0; v < n; ++v) {
+            adjacencyStart[v + 1] += adjacencyStart[v];
+        }
+        int[] adjacency = new int[indexCount];
+        int[] fill = Arrays.copyOf(adjacencyStart, n);
+        for (int i = 0; i < indexCount; ++i) {
+            adjacency[fill[t[i]]++] = i / 3;
+        }
+
+        // A vertex is on a boundary if any of its edges isn't shared by exactly two triangles; it
+        // may then only move along an open border edge
+        EdgeCounts positionEdgeKeys = positionEdges(work);
+        boolean[] boundary = new boolean[n];
+        for (int i = 0; i < indexCount; i += 3) {
+            for (int k = 0; k < 3; ++k) {
+                int a = t[i + k];
+                int b = t[i + (k + 1) % 3];
+                if (work.locked[a] && work.locked[b])
+                    continue;
+                if (edgeCount(work, positionEdgeKeys, a, b) != 2) {
+                    boundary[a] = true;
+                    boundary[b] = true;
+                }
+            }
+        }
+
+        // Each edge once, collapsing in its cheaper allowed direction
+        long[] edges = new long[indexCount];
+        for (int i = 0; i < indexCount; i += 3) {
+            for (int k = 0; k < 3; ++k) {
+                long a = t[i + k];
+                long b = t[i + (k + 1) % 3];
+                edges[i + k] = a < b ? (a << 32) | b : (b << 32) | a;
+            }
+        }
+        Arrays.sort(edges);
+        int[] from = new int[indexCount];
+        int[] to = new int[indexCount];
+        double[] errors = new double[indexCount];
+        long[] order = new long[indexCount];
+        int candidates = 0;
+        for (int i = 0; i < indexCount; ++i) {
+            if (i > 0 && edges[i] == edges[i - 1])
+                continue;
+            int a = (int)(edges[i] >>> 32);
+            int b = (int)edges[i];
+            if (a == b || (work.locked[a] && work.locked[b]))
+                continue;
+            boolean borderEdge = edgeCount(work, positionEdgeKeys, a, b) == 1;
+            boolean aToB = !work.locked[a] && (!boundary[a] || borderEdge);
+            boolean bToA = !work.locked[b] && (!boundary[b] || borderEdge);
+            double errorAToB = aToB ? collapseError(work, a, b) : Double.MAX_VALUE;
+            double errorBToA = bToA ? collapseError(work, b, a) : Double.MAX_VALUE;
+            if (!aToB && !bToA)
+                continue;
+            if (errorAToB <= errorBToA) {
+                from[candidates] = a;
+                to[candidates] = b;
+                errors[candidates] = errorAToB;
+            } else {
+                from[candidates] = b;
+                to[candidates] = a;
+                errors[candidates] = errorBToA;
+            }
+            // Non-negative floats order the same as their bit patterns
+            order[candidates] = ((long)Float.floatToIntBits((float)errors[candidates]) << 32) | candidates;
+            ++candidates;
+        }
+        Arrays.sort(order, 0, candidates);
+
+        int[] remap = new int[n];
+        for (int v = 0; v < n; ++v) {
+            remap[v] = v;
+        }
+        boolean[] touched = new boolean[n];
+        int needed = work.triangleCount - target;
+        int removed = 0;
+        int collapses = 0;
+        double[] before = new double[3];
+        double[] after = new double[3];
+        for (int c = 0; c < candidates && removed < needed; ++c) {
+            int i = (int)order[c];
+            int a = from[i];
+            int b = to[i];
+            if (touched[a] || touched[b])
+                continue;
+
+            int shared = 0;
+            boolean rejected = false;
+            for (int j = adjacencyStart[a]; j < adjacencyStart[a + 1] && !rejected; ++j) {
+                int tri = 3 * adjacency[j];
+                int v0 = remap[t[tri]], v1 = remap[t[tri + 1]], v2 = remap[t[tri + 2]];
+                if (v0 == b || v1 == b || v2 == b) {
+                    ++shared;
+                    continue;
+                }
+                if (v0 == v1 || v1 == v2 || v0 == v2)
+                    continue;
+                double lengthBefore = normal(work, v0, v1, v2, before);
+                double lengthAfter = normal(work, v0 == a ? b : v0, v1 == a ? b : v1, v2 == a ? b : v2, after);
+                double dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+                if (lengthBefore > 0 && dot <= FLIP_THRESHOLD * lengthBefore * lengthAfter)
+                    rejected = true;
+
+                // Joining two locked vertices with a new edge would leave a T-junction against
+                // whatever is on the other side of them
+                if (work.locked[b]) {
+                    for (int v : new int[] {v0, v1, v2}) {
+                        if (v != a && work.locked[v] && !hasEdge(t, adjacency, adjacencyStart, remap, b, v))
+                            rejected = true;
+                    }
+                }
+            }
+            if (rejected)
+                continue;
+
+            remap[a] = b;
+            int o = QUADRIC_SIZE * a;
+            int p = QUADRIC_SIZE * b;
+            for (int k = 0; k < QUADRIC_SIZE; ++k) {
+                work.quadrics[p + k] += work.quadrics[o + k];
+            }
+            touched[a] = true;
+            touched[b] = true;
+            removed += shared;
+            ++collapses;
+            work.maxError = Math.max(work.maxError, errors[i]);
+        }
+        if (collapses == 0)
+            return false;
+
+        int kept = 0;
+        for (int i = 0; i < indexCount; i += 3) {
+            int v0 = remap[t[i]], v1 = remap[t[i + 1]], v2 = remap[t[i + 2]];
+            if (v0 == v1 || v1 == v2 || v0 == v2)
+                continue;
+            t[kept++] = v0;
+            t[kept++] = v1;
+            t[kept++] = v2;
+        }
+        work.triangleCount = kept / 3;
+        return true;
+    }
+}
@@ -2,8 +2,31 @@ import java.io.*;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.nio.file.Files;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
 
+/**
+ * Compiles a .metal file into a .shd file holding a metallib for every combination of the option
+ * flags (#ifdef F_nnName) it uses. Permutations are compiled concurrently, each in its own scratch
+ * directory, on a pool shared by every shader being compiled, so that at most a fixed number of
+ * toolchain runs are in progress at once.
+ *
+ * Compiled permutations are kept in a ShaderCache, keyed by a hash of the source and its includes,
+ * the permutation's macros, the compiler flags and the toolchain, so a permutation is only compiled
+ * again when something that affects it changes.
+ *
+ * Many flags only affect some code paths, so many permutations compile exactly the same code.
+ * ShaderPreprocessor finds these, each distinct one is compiled once, and .shd files store it once,
+ * with every permutation that uses it referring to it. The permutations are listed in a table sorted
+ * by mask, so the runtime (and ShaderFile) can find one by binary search.
+ *
+ * Given a ShaderUsage file recording the permutations the engine actually requests, only those (and
+ * the required ones) are compiled and written; the rest are pruned.
+ */
 public class MetalShaderCompiler implements AssetCompiler {
     private static final String TOOL_METAL =
             "/Applications/Xcode.app/Contents/Developer/Platforms/MacOSX.platform/usr/bin/metal";
@@ -17,60 +40,200 @@ public class MetalShaderCompiler implements AssetCompiler {
     private static final String SYSROOT =
             "/Applications/Xcode.app/Contents/Developer/Platforms/MacOSX.platform/Developer/SDKs/MacOSX10.11.sdk";
 
+    static class Options {
+        // Paths of the Metal tools and SDK
+        public String metalTool = TOOL_METAL;
+        public String metalArTool = TOOL_METAL_AR;
+        public String metallibTool = TOOL_METALLIB;
+        public String sysroot = SYSROOT;
+
+        // Most permutations to compile at once, across every shader being compiled
+        public int maxConcurrentPermutations = Runtime.getRuntime().availableProcessors();
+
+        // Runs the Metal tools; null for one of the compiler's own, with no timeout
+        public ProcessRunner processRunner = null;
+
+        // Write version 1 .shd files, which store a copy of the metallib for every permutation
+        public boolean legacyShaderFormat = false;
+
+        // The ShaderUsage file listing the permutations to compile, or null to compile all of them
+        public File usageFile = null;
+
+        // Where to cache compiled permutations, or null not to; and the most bytes to keep there
+        public File cacheDirectory = null;
+        public long cacheMaxBytes = 256L << 20;
+
+        /**
+         * Uses the metal, metal-ar and metallib executables in the given directory.
+         */
+        public void setToolchainDirectory(File directory) {
+            metalTool = new File(directory, "metal").getPath();
+            metalArTool = new File(directory, "metal-ar").getPath();
+            metallibTool = new File(directory, "metallib").getPath();
+        }
+    };
+
     private static final String AIR_FILE = "out.air";
     private static final String DIAG_FILE = "diag.dia";
     private static final String METAL_AR_FILE = "out.metal-ar";
     private static final String METAL_LIBRARY_FILE = "library.metallib";
 
-    private static final int SHADER_FORMAT_VERSION = 1;
+    // Flags passed to metal for every permutation, other than file paths and the SDK
+    private static final List<String> METAL_FLAGS = Collections.unmodifiableList(Arrays.asList(
+        "-emit-llvm", "-c", "-ffast-math", "-mmacosx-version-min=10.9", "-std=osx-metal1.1"
+    ));
+
+    static final int SHADER_FORMAT_VERSION = 3;
+    static final int LEGACY_SHADER_FORMAT_VERSION = 1;
+
+    private final Options options;
+    private final ProcessRunner processRunner;
+    private final ShaderCache cache;
+    private ExecutorService permutationPool;
+    private String toolchainVersion;
+
+    public MetalShaderCompiler() {
+        this(new Options());
+    }
+
+    public MetalShaderCompiler(Options options) {
+        this.options = options;
+        processRunner = options.processRunner != null ? options.processRunner
+                                                       : new ProcessRunner(options.maxConcurrentPermutations, 0);
+        cache = options.cacheDirectory != null ? new ShaderCache(options.cacheDirectory, options.cacheMaxBytes) : null;
+    }
+
+    private synchronized ExecutorService permutationPool() {
+        if (permutationPool == null) {
+            permutationPool = Executors.newFixedThreadPool(options.maxConcurrentPermutations, r -> {
+                Thread thread = new Thread(r, "shader-permutation");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return permutationPool;
+    }
+
+    /**
+     * Runs a tool, returning whether it succeeded. Why it failed, if it did, is in the log.
+     */
+    private boolean run(List<String> command, StringBuilder log) {
+        try {
+            return processRunner.run(command, log).succeeded();
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-    private boolean runMetal(File inputFile, File outputFile, File diagFile, List<String> macros) throws IOException {
-        List<String> args = new ArrayList<String>(Arrays.asList(
-            TOOL_METAL, "-emit-llvm", "-c", "-isysroot", SYSROOT, "-ffast-math",
-            "-serialize-diagnostics", diagFile.getAbsolutePath(), "-o", outputFile.getAbsolutePath(),
-            "-mmacosx-version-min=10.9", "-std=osx-metal1.1"
+    private boolean runMetal(File inputFile, File outputFile, File diagFile, List<String> macros,
+                             StringBuilder log) {
+        List<String> args = new ArrayList<String>();
+        args.add(options.metalTool);
+        args.addAll(METAL_FLAGS);
+        args.addAll(Arrays.asList(
+            "-isysroot", options.sysroot,
+            "-serialize-diagnostics", diagFile.getAbsolutePath(), "-o", outputFile.getAbsolutePath()
         ));
         for (String macro : macros) {
             args.add("-D");
             args.add(macro);
         }
         args.add(inputFile.getAbsolutePath());
-        Process p = new ProcessBuilder(args).start();
+        return run(args, log);
+    }
+
+    private boolean runMetalAr(File inputFile, File outputFile, StringBuilder log) {
+        return run(Arrays.asList(
+                options.metalArTool, "r", outputFile.getAbsolutePath(), inputFile.getAbsolutePath()
+                ), log);
+    }
+
+    private boolean runMetalLib(File inputFile, File outputFile, StringBuilder log) {
+        return run(Arrays.asList(
+                options.metallibTool, "-o", outputFile.getAbsolutePath(), inputFile.getAbsolutePath()
+                ), log);
+    }
+
+    /**
+     * Identifies the toolchain for cache keys: what metal --version prints, and the size and
+     * modification time of each tool, so that updating Xcode invalidates the cache.
+     */
+    private synchronized String toolchainVersion() {
+        if (toolchainVersion != null)
+            return toolchainVersion;
+        StringBuilder version = new StringBuilder();
         try {
-            p.waitFor();
+            ProcessRunner.Result result = processRunner.run(Arrays.asList(options.metalTool, "--version"), version);
+            version.append("exit ").append(result.exitCode).append('\n');
+        } catch (IOException e) {
+            version.append("unavailable\n");
         } catch (InterruptedException e) {
-            return false;
+            // Not remembered, so that the next permutation asks again
+            Thread.currentThread().interrupt();
+            return version.append("interrupted\n").toString();
         }
-        BufferedReader reader = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            System.out.println(line);
+        for (String tool : Arrays.asList(options.metalTool, options.metalArTool, options.metallibTool)) {
+            File file = new File(tool);
+            version.append(tool).append(' ').append(file.length()).append(' ').append(file.lastModified()).append('\n');
         }
-        return true;
+        toolchainVersion = version.toString();
+        return toolchainVersion;
     }
 
-    private boolean runMetalAr(File inputFile, File outputFile) throws IOException {
-        Process p = new ProcessBuilder(
-                TOOL_METAL_AR, "r", outputFile.getAbsolutePath(), inputFile.getAbsolutePath()
-                ).start();
+    private static MessageDigest sha256() throws IOException {
         try {
-            p.waitFor();
-        } catch (InterruptedException e) {
-            return false;
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
         }
-        return true;
     }
 
-    private boolean runMetalLib(File inputFile, File outputFile) throws IOException {
-        Process p = new ProcessBuilder(
-                TOOL_METALLIB, "-o", outputFile.getAbsolutePath(), inputFile.getAbsolutePath()
-                ).start();
-        try {
-            p.waitFor();
-        } catch (InterruptedException e) {
-            return false;
+    private static void addString(MessageDigest digest, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        // Length-prefixed so that different lists of strings can't hash the same
+        digest.update(new byte[] {(byte)(bytes.length >>> 24), (byte)(bytes.length >>> 16),
+                                  (byte)(bytes.length >>> 8), (byte)bytes.length});
+        digest.update(bytes);
+    }
+
+    /**
+     * Adds what every permutation of every shader is compiled with to a hash: the toolchain, the SDK
+     * and the compiler flags.
+     */
+    private void addToolchain(MessageDigest digest) {
+        addString(digest, toolchainVersion());
+        addString(digest, options.sysroot);
+        for (String flag : METAL_FLAGS) {
+            addString(digest, flag);
         }
-        return true;
+    }
+
+    /**
+     * Hashes everything that the permutations of a shader have in common: its source and includes,
+     * the compiler flags and the toolchain.
+     */
+    private String sourceKey(File inputFile, Set<File> includes) throws IOException {
+        MessageDigest digest = sha256();
+        addString(digest, "metallib");
+        addToolchain(digest);
+        addString(digest, BuildState.hashFile(inputFile));
+        for (File include : includes) {
+            addString(digest, include.getPath());
+            addString(digest, include.isFile() ? BuildState.hashFile(include) : "missing");
+        }
+        return BuildState.toHex(digest.digest());
+    }
+
+    private static String permutationKey(String sourceKey, List<String> macros) throws IOException {
+        MessageDigest digest = sha256();
+        addString(digest, sourceKey);
+        for (String macro : macros) {
+            addString(digest, macro);
+        }
+        return BuildState.toHex(digest.digest());
     }
 
     private Map<Integer, String> findOptionIfdefs(File file) throws IOException {
@@ -95,19 +258,51 @@ public class MetalShaderCompiler implements AssetCompiler {
         return map;
     }
 
-    private byte[] internalCompileShader(File inputFile, String tempDir, List<String> macros) throws IOException {
+    private static final Pattern INCLUDE_PATTERN = Pattern.compile("\\s*#\\s*include\\s*\"([^\"]+)\".*");
+
+    /**
+     * Adds every file reachable through quoted #include directives to includes. Angle-bracket includes
+     * refer to the SDK and are not tracked.
+     */
+    private void findIncludes(File file, Set<File> includes) throws IOException {
+        if (!file.isFile())
+            return;
+        List<File> found = new ArrayList<File>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher m = INCLUDE_PATTERN.matcher(line);
+                if (!m.matches())
+                    continue;
+                File include = new File(m.group(1));
+                if (!include.isAbsolute())
+                    include = new File(file.getParentFile(), m.group(1));
+                found.add(include);
+            }
+        }
+        for (File include : found) {
+            if (includes.add(include))
+                findIncludes(include, includes);
+        }
+    }
+
+    /**
+     * Compiles one permutation in the given scratch directory, which must not be shared with any
+     * other permutation.
+     */
+    private byte[] internalCompileShader(File inputFile, File tempDir, List<String> macros, StringBuilder log) throws IOException {
         File airFile = new File(tempDir, AIR_FILE);
         File diagFile = new File(tempDir, DIAG_FILE);
         File metalArFile = new File(tempDir, METAL_AR_FILE);
         File metalLibFile = new File(tempDir, METAL_LIBRARY_FILE);
 
-        if (!runMetal(inputFile, airFile, diagFile, macros)) return null;
-        if (!diagFile.delete()) return null;
+        if (!runMetal(inputFile, airFile, diagFile, macros, log)) return null;
+        if (diagFile.exists() && !diagFile.delete()) return null;
 
-        if (!runMetalAr(airFile, metalArFile)) return null;
+        if (!runMetalAr(airFile, metalArFile, log)) return null;
         if (!airFile.delete()) return null;
 
-        if (!runMetalLib(metalArFile, metalLibFile)) return null;
+        if (!runMetalLib(metalArFile, metalLibFile, log)) return null;
         if (!metalArFile.delete()) return null;
 
         byte[] contents = Files.readAllBytes(metalLibFile.toPath());
@@ -117,8 +312,8 @@ public class MetalShaderCompiler implements AssetCompiler {
         return contents;
     }
 
-    private void logPermutationCompile(List<String> macros) {
-        System.out.print("\tCompiling permutation with options: {");
+    private void logPermutationCompile(List<String> macros, boolean cached) {
+        System.out.print(cached ? "\tUsing cached permutation with options: {" : "\tCompiling permutation with options: {");
         if (macros.size() != 0)
             System.out.print(macros.get(0));
         for (int i = 1; i < macros.size(); ++i) {
@@ -128,6 +323,108 @@ public class MetalShaderCompiler implements AssetCompiler {
         System.out.println("}");
     }
 
+    /**
+     * A permutation to compile: its flags, the metallib it uses, its cache key, and once compiled,
+     * whatever the tools printed.
+     */
+    private static class Permutation {
+        long mask;
+        List<String> macros = new ArrayList<String>();
+        int blob;
+        String cacheKey;
+        boolean cached;
+        StringBuilder log = new StringBuilder();
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null)
+                    throw e;
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Returns the permutation's metallib from the cache, or compiles it in the given scratch
+     * directory and caches it. Returns null if it fails to compile.
+     */
+    private byte[] compilePermutation(File inputFile, File scratchDir, Permutation permutation) throws IOException {
+        try (BuildTrace.Span span = BuildTrace.begin("shader", "permutation " + inputFile.getName())) {
+            span.arg("mask", Long.toHexString(permutation.mask)).arg("macros", String.join(" ", permutation.macros));
+            byte[] data = compilePermutationTraced(inputFile, scratchDir, permutation);
+            span.arg("cached", permutation.cached);
+            BuildTrace.count(permutation.cached ? "permutationsCached" : "permutationsCompiled", 1);
+            return data;
+        }
+    }
+
+    private byte[] compilePermutationTraced(File inputFile, File scratchDir, Permutation permutation) throws IOException {
+        if (permutation.cacheKey != null) {
+            byte[] data = cache.get(permutation.cacheKey);
+            if (data != null) {
+                permutation.cached = true;
+                return data;
+            }
+        }
+
+        Files.createDirectory(scratchDir.toPath());
+        byte[] data = internalCompileShader(inputFile, scratchDir, permutation.macros, permutation.log);
+        if (data != null && permutation.cacheKey != null) {
+            try {
+                cache.put(permutation.cacheKey, data);
+            } catch (IOException e) {
+                permutation.log.append(String.format("Warning: failed to write shader cache entry: %s%n", e));
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Groups permutations that compile the same code, as far as ShaderPreprocessor can tell: the same
+     * lines, and the same flags defined among those used in them. Sets each permutation's blob, and
+     * returns the first permutation of each group, the one that is compiled.
+     */
+    private List<Permutation> groupPermutations(File inputFile, Collection<String> flagNames,
+                                                List<Permutation> permutations) {
+        ShaderPreprocessor preprocessor = new ShaderPreprocessor(flagNames);
+        Map<String, Integer> blobsBySource = new HashMap<String, Integer>();
+        List<Permutation> blobs = new ArrayList<Permutation>();
+        for (Permutation permutation : permutations) {
+            String key = null;
+            try {
+                String source = preprocessor.preprocess(inputFile, permutation.macros);
+                StringBuilder builder = new StringBuilder(source);
+                for (String macro : permutation.macros) {
+                    if (Pattern.compile("\\b" + Pattern.quote(macro) + "\\b").matcher(source).find())
+                        builder.append('\0').append(macro);
+                }
+                key = builder.toString();
+            } catch (IOException e) {
+                // Compiled on its own; the compiler reports whatever is wrong with the source
+            }
+
+            Integer blob = key != null ? blobsBySource.get(key) : null;
+            if (blob == null) {
+                blob = blobs.size();
+                blobs.add(permutation);
+                if (key != null)
+                    blobsBySource.put(key, blob);
+            }
+            permutation.blob = blob;
+        }
+        return blobs;
+    }
+
     static class DescendingPopcountComparator implements Comparator<Integer> {
 
         @Override
@@ -137,13 +434,143 @@ public class MetalShaderCompiler implements AssetCompiler {
 
     }
 
+    /**
+     * Waits for a metallib to be compiled and prints its log. Returns null if it failed.
+     */
+    private byte[] collectBlob(Permutation permutation, Future<byte[]> result) throws ExecutionException, InterruptedException {
+        byte[] data = result.get();
+        logPermutationCompile(permutation.macros, permutation.cached);
+        System.out.print(permutation.log);
+        return data;
+    }
+
+    /**
+     * Writes a version 3 .shd file:
+     *
+     * 'RDHS', version, 'LTEM', nPermutations, nBlobs, ofsPermutations
+     * at ofsPermutations, per permutation in ascending (unsigned) mask order: mask (64-bit), ofsData,
+     *     dataLength
+     * each blob's metallib, 8-byte aligned, shared by every permutation that uses it
+     */
+    private boolean writeShaderFile(BinaryWriter writer, List<Permutation> permutations, List<Permutation> blobs,
+                                    List<Future<byte[]>> results) throws IOException, ExecutionException, InterruptedException {
+        List<Permutation> sorted = new ArrayList<Permutation>(permutations);
+        Collections.sort(sorted, (a, b) -> Long.compareUnsigned(a.mask, b.mask));
+
+        writer.write(new char[] {'R', 'D', 'H', 'S'});
+        writer.write32(SHADER_FORMAT_VERSION); // version
+        writer.write(new char[] {'L', 'T', 'E', 'M' });
+        writer.write32(sorted.size()); // nPermutations
+        writer.write32(blobs.size()); // nBlobs
+        long ofsPermutationsPos = writer.writeTemp32(); // ofsPermutations
+
+        writer.align(8);
+        long permutationsPos = writer.getFilePointer();
+        writer.overwriteTemp32(ofsPermutationsPos, (int)permutationsPos);
+        for (Permutation permutation : sorted) {
+            writer.write64(permutation.mask);
+            writer.writeTemp32(); // ofsData
+            writer.writeTemp32(); // dataLength
+        }
+
+        int[] blobOffsets = new int[blobs.size()];
+        int[] blobLengths = new int[blobs.size()];
+        for (int b = 0; b < blobs.size(); ++b) {
+            byte[] data = collectBlob(blobs.get(b), results.get(b));
+            if (data == null)
+                return false;
+            writer.align(8);
+            blobOffsets[b] = (int)writer.getFilePointer();
+            blobLengths[b] = data.length;
+            writer.write(data);
+        }
+
+        for (int i = 0; i < sorted.size(); ++i) {
+            int b = sorted.get(i).blob;
+            writer.overwriteTemp32(permutationsPos + 16*i + 8, blobOffsets[b]);
+            writer.overwriteTemp32(permutationsPos + 16*i + 12, blobLengths[b]);
+        }
+        return true;
+    }
+
+    /**
+     * Writes a version 1 .shd file, in which each permutation has its own copy of its metallib.
+     */
+    private boolean writeLegacyShaderFile(BinaryWriter writer, List<Permutation> permutations, List<Permutation> blobs,
+                                          List<Future<byte[]>> results) throws IOException, ExecutionException, InterruptedException {
+        writer.write(new char[] {'R', 'D', 'H', 'S'});
+        writer.write32(LEGACY_SHADER_FORMAT_VERSION); // version
+        writer.write(new char[] {'L', 'T', 'E', 'M' });
+        writer.write32(permutations.size());
+
+        byte[][] data = new byte[blobs.size()][];
+        for (Permutation permutation : permutations) {
+            int b = permutation.blob;
+            if (data[b] == null) {
+                data[b] = collectBlob(blobs.get(b), results.get(b));
+                if (data[b] == null)
+                    return false;
+            }
+
+            long permuteHeaderPos = writer.getFilePointer();
+            writer.write64(permutation.mask);
+            writer.write32(data[b].length); // vs data length
+            writer.write32(0); // ps data length
+            long pos_ofsNextPermutation = writer.writeTemp32();
+            writer.write32(0); // padding (for alignment purposes)
+            writer.write(data[b]);
+            writer.align(8); // 8 byte alignment - necessary because the permutation mask is 64-bit
+            writer.overwriteTemp32(pos_ofsNextPermutation, (int)(writer.getFilePointer() - permuteHeaderPos));
+        }
+        return true;
+    }
+
+    /**
+     * The .shd format version, and a hash of the toolchain, SDK and compiler flags, so that changing
+     * any of them rebuilds every shader.
+     */
+    @Override
+    public String getVersion() {
+        String version = "SHD" + (options.legacyShaderFormat ? LEGACY_SHADER_FORMAT_VERSION : SHADER_FORMAT_VERSION);
+        try {
+            MessageDigest digest = sha256();
+            addToolchain(digest);
+            return version + " " + BuildState.toHex(digest.digest());
+        } catch (IOException e) {
+            return version;
+        }
+    }
+
     @Override
-    public boolean compile(File inputFile, List<File> outputFiles) {
+    public boolean compile(File inputFile, List<File> outputFiles, List<File> dependencies) {
         File outputFile = outputFiles.get(0);
 
-        String tempDir = null;
+        Set<File> includes = new LinkedHashSet<File>();
+        String sourceKey = null;
+        try {
+            findIncludes(inputFile, includes);
+            dependencies.addAll(includes);
+            if (cache != null)
+                sourceKey = sourceKey(inputFile, includes);
+        } catch (IOException e) {
+            return false;
+        }
+
+        Set<Long> usedMasks = null;
+        if (options.usageFile != null) {
+            dependencies.add(options.usageFile);
+            try {
+                usedMasks = ShaderUsage.read(options.usageFile).usedMasks(inputFile, outputFile);
+            } catch (IOException e) {
+                System.out.printf("Error: failed to read shader usage file %s: %s%n", options.usageFile, e.getMessage());
+                return false;
+            }
+        }
+
+        Path tempDir = null;
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
         try (BinaryWriter writer = new BinaryWriter(outputFile)) {
-            tempDir = Files.createTempDirectory(null).toString();
+            tempDir = Files.createTempDirectory(null);
 
             Map<Integer, String> ifdefs = findOptionIfdefs(inputFile);
             if (ifdefs == null) {
@@ -154,50 +581,95 @@ public class MetalShaderCompiler implements AssetCompiler {
             int nPermutations = 1 << sortedOptionIndices.size();
             int nOptions = sortedOptionIndices.size();
 
-            writer.write(new char[] {'R', 'D', 'H', 'S'});
-            writer.write32(SHADER_FORMAT_VERSION); // version
-            writer.write(new char[] {'L', 'T', 'E', 'M' });
-            writer.write32(nPermutations);
-
             List<Integer> numbers = new ArrayList<Integer>();
             for (int i = 0; i < nPermutations; ++i) {
                 numbers.add(i);
             }
             Collections.sort(numbers, new DescendingPopcountComparator());
 
+            long optionMask = 0;
+            for (int bitIndex : sortedOptionIndices) {
+                optionMask |= 1L << bitIndex;
+            }
+            Set<Long> keptMasks = null;
+            if (usedMasks != null) {
+                // The engine may request flags that this shader doesn't have, which it ignores
+                keptMasks = new HashSet<Long>();
+                for (long mask : usedMasks) {
+                    keptMasks.add(mask & optionMask);
+                }
+            }
+
+            List<Permutation> permutations = new ArrayList<Permutation>();
             for (int k = 0; k < nPermutations; ++k) {
                 int i = numbers.get(k);
-                List<String> macros = new ArrayList<String>();
-                long permuteMask = 0;
+                Permutation permutation = new Permutation();
                 for (int j = 0; j < nOptions; ++j) {
                     if ((i & (1 << j)) != 0) {
                         int bitIndex = sortedOptionIndices.get(j);
-                        macros.add(String.format("F_%02d%s", bitIndex, ifdefs.get(bitIndex)));
-                        permuteMask |= 1 << bitIndex;
+                        permutation.macros.add(String.format("F_%02d%s", bitIndex, ifdefs.get(bitIndex)));
+                        permutation.mask |= 1L << bitIndex;
                     }
                 }
-                logPermutationCompile(macros);
-                byte[] data = internalCompileShader(inputFile, tempDir, macros);
-                if (data == null) {
-                    return false;
-                }
+                if (keptMasks == null || keptMasks.contains(permutation.mask))
+                    permutations.add(permutation);
+            }
 
-                long permuteHeaderPos = writer.getFilePointer();
-                writer.write64(permuteMask);
-                writer.write32(data.length); // vs data length
-                writer.write32(0); // ps data length
-                long pos_ofsNextPermutation = writer.writeTemp32();
-                writer.write32(0); // padding (for alignment purposes)
-                writer.write(data);
-                writer.align(8); // 8 byte alignment - necessary because the permutation mask is 64-bit
-                writer.overwriteTemp32(pos_ofsNextPermutation, (int)(writer.getFilePointer() - permuteHeaderPos));
+            List<String> flagNames = new ArrayList<String>();
+            for (Map.Entry<Integer, String> ifdef : ifdefs.entrySet()) {
+                flagNames.add(String.format("F_%02d%s", ifdef.getKey(), ifdef.getValue()));
+            }
+            List<Permutation> blobs;
+            try (BuildTrace.Span span = BuildTrace.begin("shader", "group permutations")) {
+                blobs = groupPermutations(inputFile, flagNames, permutations);
+                span.arg("permutations", permutations.size()).arg("blobs", blobs.size());
+            }
+            BuildTrace.count("permutations", permutations.size());
+            System.out.printf("\t%d permutations, %d pruned, %d compiled%n",
+                              nPermutations, nPermutations - permutations.size(), blobs.size());
+
+            for (int b = 0; b < blobs.size(); ++b) {
+                final Permutation permutation = blobs.get(b);
+                if (sourceKey != null)
+                    permutation.cacheKey = permutationKey(sourceKey, permutation.macros);
+                final File scratchDir = new File(tempDir.toFile(), "permutation" + b);
+                results.add(permutationPool().submit(() -> compilePermutation(inputFile, scratchDir, permutation)));
             }
 
+            // Permutations finish in any order, but are written in the order they were submitted
+            boolean ok = options.legacyShaderFormat ? writeLegacyShaderFile(writer, permutations, blobs, results)
+                                                    : writeShaderFile(writer, permutations, blobs, results);
+            if (!ok)
+                return false;
+            writer.commit();
         } catch (IOException e) {
             return false;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException)e.getCause();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         } finally {
-           if (tempDir != null && !new File(tempDir).delete())
-                return false;
+            // Let permutations that are still running finish before removing their directories
+            for (Future<byte[]> result : results) {
+                if (!result.cancel(false)) {
+                    try {
+                        result.get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        // Already failed
+                    }
+                }
+            }
+            try {
+                if (tempDir != null)
+                    deleteRecursively(tempDir);
+            } catch (IOException e) {
+                System.out.printf("Warning: failed to delete temporary directory %s%n", tempDir);
+            }
+            if (cache != null)
+                cache.trim();
         }
         return true;
     }
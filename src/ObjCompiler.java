@@ -1,39 +1,34 @@
 import java.util.*;
 import java.util.Map.Entry;
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class ObjCompiler implements AssetCompiler {
-    static class Vector2 {
-        float x;
-        float y;
-    }
-
-    static class Vector3 {
-        float x;
-        float y;
-        float z;
-    }
-
-    static class Vertex {
-        int idxPosition;
-        int idxNormal;
-        int idxTexCoord;
-
-        @Override
-        public boolean equals(Object other) {
-            if (!(other instanceof Vertex)) return false;
-            Vertex v = (Vertex)other;
-            return idxPosition == v.idxPosition &&
-                   idxNormal == v.idxNormal &&
-                   idxTexCoord == v.idxTexCoord;
-        }
-
-        @Override
-        public int hashCode() {
-            return Objects.hash(idxPosition, idxNormal, idxTexCoord);
-        }
-    }
+    // The .mdl version also tells the reader which .mdg layout to expect: version 0 models have a
+    // version 0 .mdg (float vertices and 32-bit indices), version 1 and later models a version 1
+    // .mdg (quantized vertices, see QuantizedVertexFormat). Version 2 models add levels of detail.
+    // A version 3 .mdg has the version 1 header, with the vertex and index sections encoded by
+    // MeshCodec: the vertices run from ofsVertices to ofsIndices and the indices to the end of the
+    // file, and decode to nVertices vertices of vertexSize bytes and nIndices indices of indexSize.
+    // The indices decode first, as the vertices are predicted from the triangles. (Version 2 coded
+    // vertices in 16-bit lanes without knowing the triangles; it is no longer written.)
+    static final int MDL_FORMAT_VERSION = 2;
+    static final int MDG_FORMAT_VERSION = 1;
+    static final int ENCODED_MDG_FORMAT_VERSION = 3;
+    static final int LEGACY_MDL_FORMAT_VERSION = 0;
+    static final int LEGACY_MDG_FORMAT_VERSION = 0;
 
+    /**
+     * Tokenizes an .obj or .mtl file directly from its bytes. Tokens are kept in a reusable byte array;
+     * keywords are matched and numbers parsed without creating any objects.
+     */
     static class Lexer implements Closeable {
         static enum TokenType {
             STRING,
@@ -42,34 +37,137 @@ public class ObjCompiler implements AssetCompiler {
             SYMBOL,
         };
 
-        private BufferedReader reader;
-        private StringBuilder stringBuilder;
+        static enum Keyword {
+            V("v"),
+            VN("vn"),
+            VT("vt"),
+            F("f"),
+            USEMTL("usemtl"),
+            MTLLIB("mtllib"),
+            NEWMTL("newmtl"),
+            MAP_KD("map_Kd"),
+            OTHER(null);
+
+            final byte[] bytes;
+
+            Keyword(String s) {
+                bytes = s == null ? null : s.getBytes(StandardCharsets.US_ASCII);
+            }
+        };
+
+        private static final Keyword[] KEYWORDS = {
+            Keyword.V, Keyword.VN, Keyword.VT, Keyword.F,
+            Keyword.USEMTL, Keyword.MTLLIB, Keyword.NEWMTL, Keyword.MAP_KD
+        };
+
+        private static final int BUFFER_SIZE = 1 << 20;
+
+        // Powers of ten that are exactly representable as doubles
+        private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+        };
+
+        private FileChannel channel;
+        private boolean ownsChannel;
+        private long filePos;
+        private long fileEnd;
+        private ByteBuffer byteBuffer;
+        private byte[] buffer;
+        private int bufferPos;
+        private int bufferLimit;
+
         private TokenType tokenType;
-        private String currentToken;
+        private byte[] token = new byte[64];
+        private int tokenLength;
+        private byte[] line = new byte[256];
         private int c;
 
+        public Lexer(File file) throws IOException {
+            this(FileChannel.open(file.toPath(), StandardOpenOption.READ), 0, -1);
+            ownsChannel = true;
+        }
+
+        /**
+         * Tokenizes the bytes [start, end) of a file, treating end as the end of the file. The channel
+         * is only read with positional reads, so several lexers can share it. An end of -1 means the
+         * end of the file.
+         */
+        public Lexer(FileChannel channel, long start, long end) throws IOException {
+            this.channel = channel;
+            filePos = start;
+            fileEnd = end < 0 ? channel.size() : end;
+            buffer = new byte[(int)Math.max(1, Math.min(BUFFER_SIZE, fileEnd - start))];
+            byteBuffer = ByteBuffer.wrap(buffer);
+            c = read();
+            fetchNextToken();
+        }
+
+        private int refill() throws IOException {
+            bufferPos = bufferLimit = 0;
+            long remaining = fileEnd - filePos;
+            if (remaining <= 0)
+                return -1;
+            byteBuffer.clear();
+            byteBuffer.limit((int)Math.min(buffer.length, remaining));
+            int n;
+            do {
+                n = channel.read(byteBuffer, filePos);
+            } while (n == 0);
+            if (n < 0)
+                return -1;
+            filePos += n;
+            bufferLimit = n;
+            return buffer[bufferPos++] & 0xFF;
+        }
+
+        private int read() throws IOException {
+            if (bufferPos < bufferLimit)
+                return buffer[bufferPos++] & 0xFF;
+            return refill();
+        }
+
+        private void appendToken(int b) {
+            if (tokenLength == token.length)
+                token = Arrays.copyOf(token, token.length * 2);
+            token[tokenLength++] = (byte)b;
+        }
+
+        private static boolean isLetter(int c) {
+            return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z');
+        }
+
+        private static boolean isDigit(int c) {
+            return '0' <= c && c <= '9';
+        }
+
+        // Same set as Character.isWhitespace for ASCII characters
+        private static boolean isWhitespace(int c) {
+            return c == ' ' || (0x09 <= c && c <= 0x0D) || (0x1C <= c && c <= 0x1F);
+        }
+
         private void parseString() throws IOException {
             tokenType = TokenType.STRING;
             do {
-                stringBuilder.append((char)c);
-                c = reader.read();
-            } while (('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') || c == '_');
+                appendToken(c);
+                c = read();
+            } while (isLetter(c) || c == '_');
         }
 
         private void parseNumber(boolean isNegative) throws IOException {
             if (isNegative) {
-                stringBuilder.append('-');
+                appendToken('-');
             }
             do {
-                stringBuilder.append((char)c);
-                c = reader.read();
-            } while ('0' <= c && c <= '9');
+                appendToken(c);
+                c = read();
+            } while (isDigit(c));
             if (c == '.') {
                 tokenType = TokenType.FLOAT;
                 do {
-                    stringBuilder.append((char)c);
-                    c = reader.read();
-                } while ('0' <= c && c <= '9');
+                    appendToken(c);
+                    c = read();
+                } while (isDigit(c));
             } else {
                 tokenType = TokenType.INTEGER;
             }
@@ -77,13 +175,13 @@ public class ObjCompiler implements AssetCompiler {
 
         private void parseSymbol() throws IOException {
             tokenType = TokenType.SYMBOL;
-            stringBuilder.append((char)c);
-            c = reader.read();
+            appendToken(c);
+            c = read();
         }
 
         private void skipWhitespace() throws IOException {
-            while (c != -1 && Character.isWhitespace(c)) {
-                c = reader.read();
+            while (isWhitespace(c)) {
+                c = read();
             }
         }
 
@@ -91,64 +189,141 @@ public class ObjCompiler implements AssetCompiler {
             skipWhitespace();
             while (c == '#') {
                 while (c != -1 && c != '\n') {
-                    c = reader.read();
+                    c = read();
                 }
                 skipWhitespace();
             }
         }
 
         private void fetchNextToken() throws IOException {
+            tokenLength = 0;
             skipCommentsAndWhitespace();
             if (c == -1) { // end of file
-                currentToken = null;
                 tokenType = null;
                 return;
             }
-            if (('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z')) {
+            if (isLetter(c)) {
                 parseString();
             }
-            else if ('0' <= c && c <= '9') {
+            else if (isDigit(c)) {
                 parseNumber(false);
             }
             else if (c == '-') {
-                c = reader.read();
-                if ('0' <= c && c <= '9') {
+                c = read();
+                if (isDigit(c)) {
                     parseNumber(true);
                 } else {
                     // Don't want to use parseSymbol() here as we've already read the next character.
                     tokenType = TokenType.SYMBOL;
-                    stringBuilder.append('-');
+                    appendToken('-');
                 }
             }
             else {
                 parseSymbol();
             }
-            currentToken = stringBuilder.toString();
-            stringBuilder.setLength(0);
         }
 
-        public Lexer(File file) throws IOException {
-            reader = new BufferedReader(new FileReader(file));
-            stringBuilder = new StringBuilder();
-            c = reader.read();
-            fetchNextToken();
+        public boolean hasNext() {
+            return tokenType != null;
         }
 
-        public boolean hasNext() {
-            return currentToken != null;
+        private String tokenString() {
+            return new String(token, 0, tokenLength, StandardCharsets.ISO_8859_1);
         }
 
         public String nextToken() throws IOException {
-            String s = currentToken;
+            String s = tokenString();
             fetchNextToken();
             return s;
         }
 
+        public void skipToken() throws IOException {
+            fetchNextToken();
+        }
+
+        private Keyword keyword() {
+            if (tokenType != TokenType.STRING)
+                return Keyword.OTHER;
+            for (Keyword keyword : KEYWORDS) {
+                byte[] bytes = keyword.bytes;
+                if (bytes.length != tokenLength)
+                    continue;
+                int i = 0;
+                while (i < tokenLength && token[i] == bytes[i])
+                    ++i;
+                if (i == tokenLength)
+                    return keyword;
+            }
+            return Keyword.OTHER;
+        }
+
+        /**
+         * Consumes the current token, returning which keyword it is (OTHER if it isn't one).
+         */
+        public Keyword nextKeyword() throws IOException {
+            Keyword keyword = keyword();
+            fetchNextToken();
+            return keyword;
+        }
+
+        private int parseInt() {
+            int i = 0;
+            boolean isNegative = token[0] == '-';
+            if (isNegative)
+                ++i;
+            // Up to 9 digits can't overflow; leave longer numbers to Integer.parseInt
+            if (tokenLength - i > 9)
+                return Integer.parseInt(tokenString());
+            int n = 0;
+            for (; i < tokenLength; ++i) {
+                n = n * 10 + (token[i] - '0');
+            }
+            return isNegative ? -n : n;
+        }
+
+        private float parseFloat() {
+            int i = 0;
+            boolean isNegative = token[0] == '-';
+            if (isNegative)
+                ++i;
+            long mantissa = 0;
+            int nDigits = 0;
+            int nFractionDigits = 0;
+            boolean inFraction = false;
+            for (; i < tokenLength; ++i) {
+                int d = token[i];
+                if (d == '.') {
+                    inFraction = true;
+                    continue;
+                }
+                if (inFraction)
+                    ++nFractionDigits;
+                if (mantissa != 0 || d != '0')
+                    ++nDigits;
+                mantissa = mantissa * 10 + (d - '0');
+                if (nDigits > 16)
+                    return Float.parseFloat(tokenString());
+            }
+            if (mantissa == 0)
+                return isNegative ? -0.0f : 0.0f;
+            if (mantissa > (1L << 53) || nFractionDigits >= POWERS_OF_TEN.length)
+                return Float.parseFloat(tokenString());
+
+            // Both operands are exact, so the quotient is the correctly rounded double. Rounding that
+            // to float gives the correctly rounded float unless the double landed exactly halfway
+            // between two floats, in which case the exact value may lie on either side.
+            double d = (double)mantissa / POWERS_OF_TEN[nFractionDigits];
+            if ((Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) == 0x10000000L)
+                return Float.parseFloat(tokenString());
+            float f = (float)d;
+            return isNegative ? -f : f;
+        }
+
         public int nextInt() throws IOException {
             if (tokenType != TokenType.INTEGER) {
                 throw new InputMismatchException();
             }
-            int i = Integer.parseInt(currentToken);
+            int i = parseInt();
             fetchNextToken();
             return i;
         }
@@ -157,39 +332,48 @@ public class ObjCompiler implements AssetCompiler {
             if (tokenType != TokenType.FLOAT) {
                 throw new InputMismatchException();
             }
-            float f = Float.parseFloat(currentToken);
+            float f = parseFloat();
             fetchNextToken();
             return f;
         }
 
-        public String nextSymbol() throws IOException {
-            if (tokenType != TokenType.SYMBOL) {
-                throw new InputMismatchException();
+        public boolean hasNextSymbol(char symbol) {
+            return tokenType == TokenType.SYMBOL && tokenLength == 1 && token[0] == symbol;
+        }
+
+        /**
+         * Returns the current token and the rest of its line (excluding the line terminator).
+         */
+        public String readToNextLine() throws IOException {
+            int length = tokenLength;
+            if (line.length < length)
+                line = new byte[Math.max(length, line.length * 2)];
+            System.arraycopy(token, 0, line, 0, length);
+            while (c != '\n' && c != '\r' && c != -1) {
+                if (length == line.length)
+                    line = Arrays.copyOf(line, line.length * 2);
+                line[length++] = (byte)c;
+                c = read();
             }
-            String s = currentToken;
+            String s = new String(line, 0, length, StandardCharsets.UTF_8);
             fetchNextToken();
             return s;
         }
 
-        public boolean hasNext(String s) {
-            return currentToken.equals(s);
-        }
-
-        public String readToNextLine() throws IOException {
-            stringBuilder.append(currentToken);
-            while (c != '\n' && c != '\r') {
-                stringBuilder.append((char)c);
-                c = reader.read();
+        /**
+         * Discards the current token and the rest of its line.
+         */
+        public void skipToNextLine() throws IOException {
+            while (c != '\n' && c != '\r' && c != -1) {
+                c = read();
             }
-            String s = stringBuilder.toString();
-            stringBuilder.setLength(0);
             fetchNextToken();
-            return s;
         }
 
         @Override
         public void close() throws IOException {
-            reader.close();
+            if (ownsChannel)
+                channel.close();
         }
     };
 
@@ -237,31 +421,37 @@ public class ObjCompiler implements AssetCompiler {
         Material currentMaterial = null;
         try (Lexer lexer = new Lexer(materialFile)) {
             while (lexer.hasNext()) {
-                String token = lexer.nextToken();
-                if (token.equals("newmtl")) {
+                Lexer.Keyword keyword = lexer.nextKeyword();
+                if (keyword == Lexer.Keyword.NEWMTL) {
                     String name = lexer.readToNextLine();
                     currentMaterial = new Material();
                     map.put(name, currentMaterial);
                 }
-                else if (token.equals("map_Kd")) {
+                else if (keyword == Lexer.Keyword.MAP_KD) {
                     if (currentMaterial == null) {
                         System.out.println("Material (.mtl) file invalid: material name not specified");
                         return null;
                     }
                     currentMaterial.diffuseTexture = lexer.readToNextLine();
                 } else {
-                    lexer.readToNextLine();
+                    lexer.skipToNextLine();
                 }
             }
         }
         return map;
     }
 
-    private void writeMDLFile(BinaryWriter writer, List<Submesh> submeshes) throws IOException {
+    private void writeMDLFile(BinaryWriter writer, Mesh mesh, int version) throws IOException {
+        List<Submesh> submeshes = mesh.submeshes;
         writer.write(new char[] {'M', 'O', 'D', 'L'});
-        writer.write32(0); // version
+        writer.write32(version); // version
         writer.write32(submeshes.size()); // nSubmeshes
         long ofsSubmeshesPos = writer.writeTemp32();
+        long ofsLodsPos = 0;
+        if (version >= 2) {
+            writer.write32(mesh.lods.size()); // nLods
+            ofsLodsPos = writer.writeTemp32(); // ofsLods
+        }
 
         writer.overwriteTemp32(ofsSubmeshesPos, (int)writer.getFilePointer());
         for (Submesh s : submeshes) {
@@ -269,187 +459,1016 @@ public class ObjCompiler implements AssetCompiler {
             writer.write32(s.indexCount); // indexCount
             writer.write64(s.diffuseTextureIndex);
         }
+
+        if (version >= 2) {
+            // Each level of detail has an error and an index range for every submesh
+            writer.overwriteTemp32(ofsLodsPos, (int)writer.getFilePointer());
+            for (Lod lod : mesh.lods) {
+                writer.writeFloat(lod.error); // error
+                for (Submesh s : lod.submeshes) {
+                    writer.write32(s.indexStart); // indexStart
+                    writer.write32(s.indexCount); // indexCount
+                }
+            }
+        }
     }
 
-    private void writeMDGFile(BinaryWriter writer,
-                              List<Vector3> positions,
-                              List<Vector3> normals,
-                              List<Vector2> texcoords,
-                              List<Vertex> vertices,
-                              List<Integer> indices,
-                              List<String> textures) throws IOException {
-        writer.write(new char[] {'M', 'D', 'L', 'G'});
-        writer.write32(vertices.size()); // nVertices
-        long ofsVerticesPos = writer.writeTemp32(); // ofsVertices
-        writer.write32(indices.size()); // nIndices
-        long ofsIndicesPos = writer.writeTemp32(); // ofsIndices
-        writer.write32(textures.size()); // nTextures
-        long ofsTexturesPos = writer.writeTemp32(); // ofsTextures
+    private static final int VERTEX_SIZE = 32;
+
+    /**
+     * Checks that every attribute index referenced by a vertex exists. Vertices are stored as
+     * (position, normal, texcoord) triples of 1-based indices.
+     */
+    private boolean validateVertices(IntList vertices, int nPositions, int nNormals, int nTexCoords) {
+        int[] v = vertices.array();
+        for (int i = 0; i < vertices.size(); i += 3) {
+            if (v[i] < 1 || v[i] > nPositions ||
+                v[i + 1] < 1 || v[i + 1] > nNormals ||
+                v[i + 2] < 1 || v[i + 2] > nTexCoords) {
+                System.out.printf("Error: face refers to vertex %d/%d/%d, which doesn't exist%n",
+                                  v[i], v[i + 2], v[i + 1]);
+                return false;
+            }
+        }
+        return true;
+    }
 
+    private static final int MDG_HEADER_SIZE = 28;
+    private static final int COMPACT_MDG_HEADER_SIZE = 84;
+
+    private static long texturesSize(List<String> textures) {
+        long textureBytes = 0;
+        for (String s : textures) {
+            textureBytes += 8 + s.getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        return textureBytes;
+    }
+
+    /**
+     * Writes the texture table: a (lenFilename, ofsFilename) pair per texture, then the filenames,
+     * each in UTF-8 and null-terminated, the encoding findReferences reads them in.
+     */
+    private static void writeTextures(BinaryWriter writer, List<String> textures, long ofsTexturesPos) throws IOException {
         long texturesPos = writer.getFilePointer();
         writer.overwriteTemp32(ofsTexturesPos, (int)texturesPos);
+        List<byte[]> filenames = new ArrayList<byte[]>();
         for (String s : textures) {
-            writer.write32(s.length()); // lenFilename
+            byte[] filename = s.getBytes(StandardCharsets.UTF_8);
+            filenames.add(filename);
+            writer.write32(filename.length); // lenFilename
             writer.writeTemp32(); // ofsFilename
         }
-        for (int i = 0; i < textures.size(); ++i) {
+        for (int i = 0; i < filenames.size(); ++i) {
             writer.overwriteTemp32(texturesPos + 8*i + 4, (int)writer.getFilePointer());
-            writer.write(textures.get(i).getBytes());
+            writer.write(filenames.get(i));
             writer.write((byte)0);
         }
         writer.align(4);
+    }
+
+    private static int indexSize(int nVertices, QuantizedVertexFormat format) {
+        return format != null && nVertices <= 0x10000 ? 2 : 4;
+    }
+
+    private static long mdgFileSize(int nVertices, int nIndices, List<String> textures, QuantizedVertexFormat format) {
+        int headerSize = format == null ? MDG_HEADER_SIZE : COMPACT_MDG_HEADER_SIZE;
+        int vertexSize = format == null ? VERTEX_SIZE : format.vertexSize;
+        return headerSize + texturesSize(textures) + 4 + (long)vertexSize * nVertices +
+               (long)indexSize(nVertices, format) * nIndices;
+    }
 
-        writer.overwriteTemp32(ofsVerticesPos, (int)writer.getFilePointer());
-        for (Vertex v : vertices) {
-            Vector3 pos = positions.get(v.idxPosition - 1);
-            Vector3 normal = normals.get(v.idxNormal - 1);
-            Vector2 texcoord = texcoords.get(v.idxTexCoord - 1);
-            writer.writeFloat(pos.x);
-            writer.writeFloat(pos.y);
-            writer.writeFloat(pos.z);
-            writer.writeFloat(normal.x);
-            writer.writeFloat(normal.y);
-            writer.writeFloat(normal.z);
-            writer.writeFloat(texcoord.x);
-            writer.writeFloat(texcoord.y);
-        }
-
-        writer.overwriteTemp32(ofsIndicesPos, (int)writer.getFilePointer());
-        for (int index : indices) {
-            writer.write32(index);
+    /**
+     * Writes the header and texture table of an .mdg file: version 1, with vertices in the given
+     * quantized format and 16-bit indices if every vertex can be addressed with them, or the legacy
+     * layout if format is null. Version 3 instead if encoded. Returns the positions of ofsVertices and
+     * ofsIndices, which are filled in as the vertices and indices are written.
+     */
+    private static long[] writeMDGHeader(BinaryWriter writer, int nVertices, int nIndices, List<String> textures,
+                                         QuantizedVertexFormat format, boolean encoded) throws IOException {
+        long ofsVerticesPos, ofsIndicesPos, ofsTexturesPos;
+        writer.write(new char[] {'M', 'D', 'L', 'G'});
+        if (format == null) {
+            writer.write32(nVertices); // nVertices
+            ofsVerticesPos = writer.writeTemp32(); // ofsVertices
+            writer.write32(nIndices); // nIndices
+            ofsIndicesPos = writer.writeTemp32(); // ofsIndices
+            writer.write32(textures.size()); // nTextures
+            ofsTexturesPos = writer.writeTemp32(); // ofsTextures
+        } else {
+            writer.write32(encoded ? ENCODED_MDG_FORMAT_VERSION : MDG_FORMAT_VERSION); // version
+            writer.write32(format.flags); // flags
+            writer.write32(nVertices); // nVertices
+            writer.write32(format.vertexSize); // vertexSize
+            ofsVerticesPos = writer.writeTemp32(); // ofsVertices
+            writer.write32(nIndices); // nIndices
+            writer.write32(indexSize(nVertices, format)); // indexSize
+            ofsIndicesPos = writer.writeTemp32(); // ofsIndices
+            writer.write32(textures.size()); // nTextures
+            ofsTexturesPos = writer.writeTemp32(); // ofsTextures
+            format.writeDecodeParameters(writer);
         }
+
+        writeTextures(writer, textures, ofsTexturesPos);
+        return new long[] {ofsVerticesPos, ofsIndicesPos};
     }
 
-    @Override
-    public boolean compile(File inputFile, List<File> outputFiles) {
-        List<Vector3> positions = new ArrayList<Vector3>();
-        List<Vector3> normals = new ArrayList<Vector3>();
-        List<Vector2> texcoords = new ArrayList<Vector2>();
-        IndexedPool<Vertex> vertices = new IndexedPool<Vertex>();
-        List<Integer> indices = new ArrayList<Integer>();
+    /**
+     * Writes vertices, given as attribute index triples, in the quantized format or the legacy
+     * layout if format is null.
+     */
+    private static void writeVertices(BinaryWriter writer, FloatList positions, FloatList normals, FloatList texcoords,
+                                      IntList vertices, QuantizedVertexFormat format) throws IOException {
+        float[] pos = positions.array();
+        float[] normal = normals.array();
+        float[] texcoord = texcoords.array();
+        int[] v = vertices.array();
+        short[] scratch = new short[2];
+        for (int i = 0; i < vertices.size(); i += 3) {
+            int p = 3 * (v[i] - 1);
+            int n = 3 * (v[i + 1] - 1);
+            int t = 2 * (v[i + 2] - 1);
+            if (format != null) {
+                format.writeVertex(writer, pos, p, normal, n, texcoord, t, scratch);
+                continue;
+            }
+            writer.writeFloat(pos[p]);
+            writer.writeFloat(pos[p + 1]);
+            writer.writeFloat(pos[p + 2]);
+            writer.writeFloat(normal[n]);
+            writer.writeFloat(normal[n + 1]);
+            writer.writeFloat(normal[n + 2]);
+            writer.writeFloat(texcoord[t]);
+            writer.writeFloat(texcoord[t + 1]);
+        }
+    }
+
+    private static void writeIndices(BinaryWriter writer, int[] indices, int count, int indexSize) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            if (indexSize == 2)
+                writer.write16(indices[i]);
+            else
+                writer.write32(indices[i]);
+        }
+    }
+
+    private void writeMDGFile(BinaryWriter writer, Mesh mesh, QuantizedVertexFormat format, boolean encoded)
+            throws IOException {
+        int nVertices = mesh.vertices.size() / 3;
+        int nIndices = mesh.indices.size();
+        writer.reserve(mdgFileSize(nVertices, nIndices, mesh.textures, format));
 
-        Map<String, Material> materials = null;
+        long[] offsets = writeMDGHeader(writer, nVertices, nIndices, mesh.textures, format, encoded);
+        long verticesPos = writer.getFilePointer();
+        writer.overwriteTemp32(offsets[0], (int)verticesPos);
+        writeVertices(writer, mesh.positions, mesh.normals, mesh.texcoords, mesh.vertices, format);
+        if (encoded) {
+            byte[] vertices = writer.takeBytesSince(verticesPos);
+            // Indices first: the vertex encoding depends on the triangles as encodeIndices rotates them
+            int[] predictedFrom = new int[3 * nVertices];
+            byte[] encodedIndices = MeshCodec.encodeIndices(mesh.indices.array(), nIndices, predictedFrom);
+            byte[] encodedVertices = MeshCodec.encodeVertices(vertices, nVertices,
+                                                              QuantizedVertexFormat.componentSizes(format.flags),
+                                                              predictedFrom);
+            verifyEncoding(vertices, encodedVertices, mesh.indices.array(), encodedIndices, nVertices, nIndices,
+                           format.flags);
+            int indexSize = indexSize(nVertices, format);
+            System.out.printf("	Encoded vertices %d -> %d bytes, indices %d -> %d bytes%n", vertices.length,
+                              encodedVertices.length, (long)indexSize * nIndices, encodedIndices.length);
+            writer.write(encodedVertices);
+            writer.overwriteTemp32(offsets[1], (int)writer.getFilePointer());
+            writer.write(encodedIndices);
+            return;
+        }
+        writer.overwriteTemp32(offsets[1], (int)writer.getFilePointer());
+        writeIndices(writer, mesh.indices.array(), nIndices, indexSize(nVertices, format));
+    }
+
+    /**
+     * Decodes the encoded vertices and indices and checks that they come back exactly as they were.
+     */
+    private static void verifyEncoding(byte[] vertices, byte[] encodedVertices, int[] indices, byte[] encodedIndices,
+                                       int nVertices, int nIndices, int flags) throws IOException {
+        byte[] decodedVertices = new byte[vertices.length];
+        int[] decodedIndices = new int[nIndices];
+        int[] predictedFrom = new int[3 * nVertices];
+        MeshCodec.decodeIndices(encodedIndices, 0, encodedIndices.length, decodedIndices, nIndices, predictedFrom);
+        MeshCodec.decodeVertices(encodedVertices, 0, encodedVertices.length, decodedVertices, nVertices,
+                                 QuantizedVertexFormat.componentSizes(flags), predictedFrom);
+        if (!Arrays.equals(vertices, decodedVertices) ||
+            !Arrays.equals(Arrays.copyOf(indices, nIndices), decodedIndices)) {
+            System.out.println("Error: encoded mesh doesn't decode to the original");
+            throw new IOException("Mesh encoding failed to round-trip");
+        }
+    }
 
+    /**
+     * The parsed and deduplicated contents of an .obj file, ready to be written out.
+     */
+    static class Mesh {
+        // Attributes are stored flattened (3 floats per position and normal, 2 per texcoord) and
+        // vertices as (position, normal, texcoord) triples of 1-based attribute indices, in order of
+        // first use.
+        FloatList positions;
+        FloatList normals;
+        FloatList texcoords;
+        IntList vertices;
+        IntList indices;
         List<Submesh> submeshes = new ArrayList<Submesh>();
-        Submesh currentSubmesh = null;
-        IndexedPool<String> texturePaths = new IndexedPool<String>();
+        List<Lod> lods = new ArrayList<Lod>();
+        List<String> textures;
+    };
 
-        try (Lexer lexer = new Lexer(inputFile)) {
-            while (lexer.hasNext()) {
-                String token = lexer.nextToken();
-                if (token.equals("mtllib")) {
-                    String filename = lexer.readToNextLine();
-                    File f = new File(inputFile.getParentFile(), filename);
-                    if (f.exists())
-                        materials = parseMaterialFile(f);
-                }
-                else if (token.equals("usemtl") && materials != null) {
-                    String materialName = lexer.readToNextLine();
-                    Material material = materials.get(materialName);
-                    if (material == null) {
-                        System.out.printf("Material '%s' does not exist in .mtl file%n", materialName);
-                        return false;
-                    }
+    /**
+     * A simplified version of a mesh: an index range for each submesh, in the same index buffer and
+     * over the same vertices as the full mesh.
+     */
+    static class Lod {
+        // Approximate distance by which the surface has moved, in model units
+        float error;
+        List<Submesh> submeshes = new ArrayList<Submesh>();
+    };
 
-                    if (currentSubmesh != null) {
-                        currentSubmesh.indexCount = indices.size() - currentSubmesh.indexStart;
-                    }
+    static class Options {
+        // Files larger than this are split into chunks of about this size at line boundaries and the
+        // chunks parsed in parallel. Zero or less disables parallel parsing.
+        public long parallelParseChunkSize = 16L << 20;
 
-                    currentSubmesh = new Submesh();
-                    currentSubmesh.indexStart = indices.size();
-                    if (material.diffuseTexture != null) {
-                        currentSubmesh.diffuseTextureIndex = texturePaths.indexFor(material.diffuseTexture);
-                    }
-                    submeshes.add(currentSubmesh);
+        // Reorder each submesh's triangles for the post-transform vertex cache, and vertices into
+        // order of first use
+        public boolean optimizeVertexCache = false;
+
+        // Also reorder clusters of triangles to reduce overdraw, allowing each cluster's ACMR to
+        // grow by up to overdrawThreshold times
+        public boolean optimizeOverdraw = false;
+        public float overdrawThreshold = 1.05f;
+
+        // Write version 0 models, with float vertices and 32-bit indices
+        public boolean legacyMeshFormat = false;
+
+        // Quantize positions to 16 bits per component within the mesh's bounding box
+        public boolean quantizePositions = false;
+
+        // Largest error allowed when storing texture coordinates in 16 bits; above it they are
+        // stored as floats
+        public float texcoordTolerance = 1.0f / 8192;
+
+        // Triangle count of each level of detail to generate, relative to the full mesh, e.g.
+        // {0.5f, 0.25f, 0.125f}. Not supported by the legacy format.
+        public float[] lodTargets = new float[0];
+
+        // Heap, in bytes, that compiling a single .obj file may use; larger files are compiled out of
+        // core, with their data in memory-mapped spill files. Zero means no limit.
+        public long memoryBudget = 0;
+
+        // Where to create spill files; null for the default temporary directory
+        public File spillDirectory = null;
+
+        // Write version 3 .mdg files, with vertices and indices encoded by MeshCodec. Not supported by
+        // the legacy format or when compiling out of core.
+        public boolean encodeMeshes = false;
+    };
+
+    private final Options options;
+
+    public ObjCompiler() {
+        this(new Options());
+    }
+
+    public ObjCompiler(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * The result of parsing one chunk of an .obj file. Faces are deduplicated against the vertices
+     * of the same chunk only; mtllib and usemtl statements are recorded along with the number of
+     * indices that preceded them, and are interpreted when the chunks are merged.
+     */
+    static class ParsedChunk {
+        ParsedChunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        final long start;
+        final long end;
+
+        FloatList positions = new FloatList();
+        FloatList normals = new FloatList();
+        FloatList texcoords = new FloatList();
+        IntList vertices;
+        IntList indices = new IntList();
+
+        List<Lexer.Keyword> statements = new ArrayList<Lexer.Keyword>();
+        List<String> statementArguments = new ArrayList<String>();
+        IntList statementIndexCounts = new IntList();
+
+        // Set if parsing stopped early
+        String error;
+        RuntimeException exception;
+    };
+
+    private void parseChunk(Lexer lexer, ParsedChunk chunk) throws IOException {
+        // Vertices are deduplicated as faces are parsed, so the span covers lexing, parsing and
+        // the chunk's deduplication
+        BuildTrace.Span span = BuildTrace.begin("obj", "parse chunk");
+        VertexDedupTable vertexTable = new VertexDedupTable();
+        IntList indices = chunk.indices;
+        try {
+            while (lexer.hasNext()) {
+                Lexer.Keyword keyword = lexer.nextKeyword();
+                if (keyword == Lexer.Keyword.MTLLIB || keyword == Lexer.Keyword.USEMTL) {
+                    chunk.statements.add(keyword);
+                    chunk.statementArguments.add(lexer.readToNextLine());
+                    chunk.statementIndexCounts.add(indices.size());
                 }
-                else if (token.equals("v")) {
-                    Vector3 v = new Vector3();
-                    v.x = lexer.nextFloat();
-                    v.y = lexer.nextFloat();
-                    v.z = lexer.nextFloat();
-                    positions.add(v);
+                else if (keyword == Lexer.Keyword.V) {
+                    float x = lexer.nextFloat();
+                    float y = lexer.nextFloat();
+                    float z = lexer.nextFloat();
+                    chunk.positions.add(x, y, z);
                 }
-                else if (token.equals("vn")) {
-                    Vector3 v = new Vector3();
-                    v.x = lexer.nextFloat();
-                    v.y = lexer.nextFloat();
-                    v.z = lexer.nextFloat();
-                    normals.add(v);
+                else if (keyword == Lexer.Keyword.VN) {
+                    float x = lexer.nextFloat();
+                    float y = lexer.nextFloat();
+                    float z = lexer.nextFloat();
+                    chunk.normals.add(x, y, z);
                 }
-                else if (token.equals("vt")) {
-                    Vector2 uv = new Vector2();
-                    uv.x = lexer.nextFloat();
-                    uv.y = lexer.nextFloat();
-                    texcoords.add(uv);
+                else if (keyword == Lexer.Keyword.VT) {
+                    float u = lexer.nextFloat();
+                    float v = lexer.nextFloat();
+                    chunk.texcoords.add(u, v);
                 }
-                else if (token.equals("f")) {
-                    if (currentSubmesh == null) {
-                        currentSubmesh = new Submesh();
-                        currentSubmesh.indexStart = indices.size();
-                        submeshes.add(currentSubmesh);
-                    }
+                else if (keyword == Lexer.Keyword.F) {
                     for (int i = 0; i < 3; ++i) {
                         int posIdx = lexer.nextInt();
                         int normalIdx = Integer.MAX_VALUE;
                         int texCoordIdx = Integer.MAX_VALUE;
-                        if (lexer.hasNext("/")) {
-                            lexer.nextToken();
-                            if (lexer.hasNext("/")) {
-                                lexer.nextToken();
+                        if (lexer.hasNextSymbol('/')) {
+                            lexer.skipToken();
+                            if (lexer.hasNextSymbol('/')) {
+                                lexer.skipToken();
                                 normalIdx = lexer.nextInt();
                             } else {
                                 texCoordIdx = lexer.nextInt();
-                                if (lexer.hasNext("/")) {
-                                    lexer.nextToken();
+                                if (lexer.hasNextSymbol('/')) {
+                                    lexer.skipToken();
                                     normalIdx = lexer.nextInt();
                                 }
                             }
                         }
                         if (normalIdx == Integer.MAX_VALUE) {
-                            System.out.println("Error: obj file doesn't have normals");
-                            return false;
+                            chunk.error = "Error: obj file doesn't have normals";
+                            return;
                         }
                         if (texCoordIdx == Integer.MAX_VALUE) {
                             texCoordIdx = 1; // use first texcoord
                         }
-                        Vertex v = new Vertex();
-                        v.idxPosition = posIdx;
-                        v.idxNormal = normalIdx;
-                        v.idxTexCoord = texCoordIdx;
-                        int index = vertices.indexFor(v);
-                        indices.add(index);
+                        indices.add(vertexTable.indexFor(posIdx, normalIdx, texCoordIdx));
                     }
                 } else {
-                    lexer.readToNextLine();
+                    lexer.skipToNextLine();
                 }
             }
+        } catch (RuntimeException e) {
+            chunk.exception = e;
+        } finally {
+            chunk.vertices = vertexTable.getVertices();
+            span.arg("vertices", indices.size()).arg("uniqueVertices", vertexTable.size()).close();
+        }
+    }
+
+    /**
+     * Splits the file into chunks of roughly the given size, each ending just after a newline.
+     */
+    private static List<ParsedChunk> splitIntoChunks(FileChannel channel, long chunkSize) throws IOException {
+        long size = channel.size();
+        List<ParsedChunk> chunks = new ArrayList<ParsedChunk>();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (chunkSize > 0 && size - start > chunkSize) {
+            long end = -1;
+            long pos = start + chunkSize;
+            while (end < 0 && pos < size) {
+                buffer.clear();
+                int n = channel.read(buffer, pos);
+                if (n <= 0)
+                    break;
+                for (int i = 0; i < n; ++i) {
+                    if (buffer.get(i) == '\n') {
+                        end = pos + i + 1;
+                        break;
+                    }
+                }
+                pos += n;
+            }
+            if (end < 0 || end >= size)
+                break;
+            chunks.add(new ParsedChunk(start, end));
+            start = end;
+        }
+        chunks.add(new ParsedChunk(start, size));
+        return chunks;
+    }
+
+    private static final long MIN_PARSE_CHUNK_SIZE = 64 * 1024;
+
+    private List<ParsedChunk> parse(File inputFile) throws IOException {
+        try (final FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            long chunkSize = options.parallelParseChunkSize;
+            if (chunkSize > 0)
+                chunkSize = Math.max(chunkSize, MIN_PARSE_CHUNK_SIZE);
+            List<ParsedChunk> chunks = splitIntoChunks(channel, chunkSize);
+            if (chunks.size() == 1) {
+                ParsedChunk chunk = chunks.get(0);
+                try (Lexer lexer = new Lexer(channel, chunk.start, chunk.end)) {
+                    parseChunk(lexer, chunk);
+                }
+                return chunks;
+            }
+
+            // When called from a build worker the chunks are forked onto the build's own pool, where
+            // idle workers can steal them.
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            for (final ParsedChunk chunk : chunks) {
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        try (Lexer lexer = new Lexer(channel, chunk.start, chunk.end)) {
+                            parseChunk(lexer, chunk);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            }
+            try {
+                ForkJoinTask.invokeAll(tasks);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return chunks;
+        }
+    }
+
+    private static FloatList concatenate(List<FloatList> lists) {
+        if (lists.size() == 1)
+            return lists.get(0);
+        int size = 0;
+        for (FloatList list : lists) {
+            size += list.size();
+        }
+        FloatList result = new FloatList(size);
+        for (FloatList list : lists) {
+            result.addAll(list);
+        }
+        return result;
+    }
+
+    /**
+     * Interprets the mtllib and usemtl statements of parsed chunks, passed in file order, into the
+     * mesh's submeshes and texture list.
+     */
+    private class SubmeshBuilder {
+        private final File inputFile;
+        private final List<File> dependencies;
+        private final Mesh mesh;
+        private Map<String, Material> materials = null;
+        private Submesh currentSubmesh = null;
+        private IndexedPool<String> texturePaths = new IndexedPool<String>();
+        private int indexBase = 0;
+
+        SubmeshBuilder(File inputFile, List<File> dependencies, Mesh mesh) {
+            this.inputFile = inputFile;
+            this.dependencies = dependencies;
+            this.mesh = mesh;
+        }
+
+        /**
+         * Returns false, having printed the error, if the chunk has an error.
+         */
+        boolean addChunk(ParsedChunk chunk) throws IOException {
+            int previousIndexCount = 0;
+            for (int i = 0; i <= chunk.statements.size(); ++i) {
+                int indexCount = i < chunk.statements.size() ? chunk.statementIndexCounts.get(i)
+                                                             : chunk.indices.size();
+                if (indexCount > previousIndexCount && currentSubmesh == null) {
+                    currentSubmesh = new Submesh();
+                    currentSubmesh.indexStart = indexBase + previousIndexCount;
+                    mesh.submeshes.add(currentSubmesh);
+                }
+                previousIndexCount = indexCount;
+                if (i == chunk.statements.size())
+                    break;
+
+                Lexer.Keyword statement = chunk.statements.get(i);
+                if (statement == Lexer.Keyword.MTLLIB) {
+                    String filename = chunk.statementArguments.get(i);
+                    File f = new File(inputFile.getParentFile(), filename);
+                    dependencies.add(f);
+                    if (f.exists())
+                        materials = parseMaterialFile(f);
+                }
+                else if (statement == Lexer.Keyword.USEMTL && materials != null) {
+                    String materialName = chunk.statementArguments.get(i);
+                    Material material = materials.get(materialName);
+                    if (material == null) {
+                        System.out.printf("Material '%s' does not exist in .mtl file%n", materialName);
+                        return false;
+                    }
+
+                    if (currentSubmesh != null) {
+                        currentSubmesh.indexCount = indexBase + indexCount - currentSubmesh.indexStart;
+                    }
+
+                    currentSubmesh = new Submesh();
+                    currentSubmesh.indexStart = indexBase + indexCount;
+                    if (material.diffuseTexture != null) {
+                        currentSubmesh.diffuseTextureIndex = texturePaths.indexFor(material.diffuseTexture);
+                    }
+                    mesh.submeshes.add(currentSubmesh);
+                }
+            }
+
+            if (chunk.error != null) {
+                System.out.println(chunk.error);
+                return false;
+            }
+            if (chunk.exception != null) {
+                throw chunk.exception;
+            }
+            indexBase += chunk.indices.size();
+            return true;
+        }
+
+        void finish() {
+            if (currentSubmesh != null) {
+                currentSubmesh.indexCount = indexBase - currentSubmesh.indexStart;
+            }
+            mesh.textures = texturePaths.convertToList();
+        }
+    }
+
+    /**
+     * Combines parsed chunks, in file order, into a single mesh: interprets the mtllib and usemtl
+     * statements, and renumbers each chunk's vertices so that the result is exactly what parsing the
+     * whole file in one go would have produced.
+     */
+    private Mesh merge(File inputFile, List<ParsedChunk> chunks, List<File> dependencies) throws IOException {
+        Mesh mesh = new Mesh();
+        SubmeshBuilder submeshes = new SubmeshBuilder(inputFile, dependencies, mesh);
+        for (ParsedChunk chunk : chunks) {
+            if (!submeshes.addChunk(chunk))
+                return null;
+        }
+        submeshes.finish();
+        int indexBase = submeshes.indexBase;
+
+        List<FloatList> positions = new ArrayList<FloatList>();
+        List<FloatList> normals = new ArrayList<FloatList>();
+        List<FloatList> texcoords = new ArrayList<FloatList>();
+        for (ParsedChunk chunk : chunks) {
+            positions.add(chunk.positions);
+            normals.add(chunk.normals);
+            texcoords.add(chunk.texcoords);
+        }
+        mesh.positions = concatenate(positions);
+        mesh.normals = concatenate(normals);
+        mesh.texcoords = concatenate(texcoords);
+
+        if (chunks.size() == 1) {
+            mesh.vertices = chunks.get(0).vertices;
+            mesh.indices = chunks.get(0).indices;
+            return mesh;
+        }
+
+        // Adding each chunk's vertices to the global table in chunk order, and in first-use order
+        // within the chunk, numbers them in order of first use in the whole file.
+        VertexDedupTable vertexTable = new VertexDedupTable();
+        final List<int[]> remaps = new ArrayList<int[]>();
+        try (BuildTrace.Span span = BuildTrace.begin("obj", "deduplicate vertices")) {
+            for (ParsedChunk chunk : chunks) {
+                int[] v = chunk.vertices.array();
+                int[] remap = new int[chunk.vertices.size() / 3];
+                for (int i = 0; i < remap.length; ++i) {
+                    remap[i] = vertexTable.indexFor(v[3*i], v[3*i + 1], v[3*i + 2]);
+                }
+                remaps.add(remap);
+                chunk.vertices = null;
+            }
+            span.arg("uniqueVertices", vertexTable.size());
+        }
+        mesh.vertices = vertexTable.getVertices();
+
+        mesh.indices = new IntList(indexBase);
+        mesh.indices.resize(indexBase);
+        final int[] indices = mesh.indices.array();
+        List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        int chunkIndexBase = 0;
+        for (int c = 0; c < chunks.size(); ++c) {
+            final int[] chunkIndices = chunks.get(c).indices.array();
+            final int count = chunks.get(c).indices.size();
+            final int[] remap = remaps.get(c);
+            final int base = chunkIndexBase;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    for (int i = 0; i < count; ++i) {
+                        indices[base + i] = remap[chunkIndices[i]];
+                    }
+                }
+            });
+            chunkIndexBase += count;
+        }
+        ForkJoinTask.invokeAll(tasks);
+        return mesh;
+    }
+
+    /**
+     * Adds the texture paths in a compiled .mdg file to references. The .mdl's version says which
+     * .mdg layout to expect.
+     */
+    @Override
+    public void findReferences(List<File> outputFiles, Map<File, List<String>> references) throws IOException {
+        int mdlVersion;
+        try (FileChannel channel = FileChannel.open(outputFiles.get(0).toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            mdlVersion = header.getInt(4);
+        }
+
+        File mdgFile = outputFiles.get(1);
+        try (FileChannel channel = FileChannel.open(mdgFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer mdg = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            int nTexturesPos = mdlVersion == LEGACY_MDL_FORMAT_VERSION ? 20 : 36;
+            int nTextures = mdg.getInt(nTexturesPos);
+            int ofsTextures = mdg.getInt(nTexturesPos + 4);
+            List<String> textures = new ArrayList<String>();
+            for (int i = 0; i < nTextures; ++i) {
+                byte[] filename = new byte[mdg.getInt(ofsTextures + 8*i)];
+                mdg.position(mdg.getInt(ofsTextures + 8*i + 4));
+                mdg.get(filename);
+                textures.add(new String(filename, StandardCharsets.UTF_8));
+            }
+            references.put(mdgFile, textures);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("Corrupt model file " + mdgFile);
+        }
+    }
+
+    @Override
+    public String getVersion() {
+        String version;
+        if (options.legacyMeshFormat) {
+            version = "MODL" + LEGACY_MDL_FORMAT_VERSION + "-MDLG" + LEGACY_MDG_FORMAT_VERSION;
+        } else {
+            version = "MODL" + MDL_FORMAT_VERSION + "-MDLG" + MDG_FORMAT_VERSION + "-uv" + options.texcoordTolerance;
+            if (options.quantizePositions)
+                version += "-qpos";
+            if (options.lodTargets.length != 0)
+                version += "-lod" + Arrays.toString(options.lodTargets).replace(" ", "");
+            if (options.encodeMeshes)
+                version += "-encoded" + ENCODED_MDG_FORMAT_VERSION;
+        }
+        if (options.optimizeVertexCache || options.optimizeOverdraw)
+            version += "-vcache";
+        if (options.optimizeOverdraw)
+            version += "-overdraw" + options.overdrawThreshold;
+        return version;
+    }
+
+    /**
+     * The position of each vertex, as xyz triples.
+     */
+    private static float[] vertexPositions(Mesh mesh) {
+        int nVertices = mesh.vertices.size() / 3;
+        float[] vertexPositions = new float[3 * nVertices];
+        float[] pos = mesh.positions.array();
+        int[] v = mesh.vertices.array();
+        for (int i = 0; i < nVertices; ++i) {
+            System.arraycopy(pos, 3 * (v[3*i] - 1), vertexPositions, 3*i, 3);
+        }
+        return vertexPositions;
+    }
+
+    /**
+     * Simplifies each submesh to the configured triangle targets, in parallel, and appends the
+     * results to the index buffer as levels of detail.
+     */
+    private void generateLods(Mesh mesh) {
+        int nVertices = mesh.vertices.size() / 3;
+        int[] v = mesh.vertices.array();
+        int[] positionIds = new int[nVertices];
+        for (int i = 0; i < nVertices; ++i) {
+            positionIds[i] = v[3*i] - 1;
+        }
+
+        // Lock vertices whose position is shared with another vertex (a UV or normal seam) or used
+        // by more than one submesh, so that simplification can't open cracks there
+        int nPositions = mesh.positions.size() / 3;
+        int[] positionOwner = new int[nPositions];
+        Arrays.fill(positionOwner, -1);
+        boolean[] sharedPosition = new boolean[nPositions];
+        for (int i = 0; i < nVertices; ++i) {
+            if (positionOwner[positionIds[i]] >= 0)
+                sharedPosition[positionIds[i]] = true;
+            positionOwner[positionIds[i]] = i;
+        }
+        int[] positionSubmesh = new int[nPositions];
+        Arrays.fill(positionSubmesh, -1);
+        int[] index = mesh.indices.array();
+        for (int s = 0; s < mesh.submeshes.size(); ++s) {
+            Submesh submesh = mesh.submeshes.get(s);
+            for (int i = submesh.indexStart; i < submesh.indexStart + submesh.indexCount; ++i) {
+                int p = positionIds[index[i]];
+                if (positionSubmesh[p] >= 0 && positionSubmesh[p] != s)
+                    sharedPosition[p] = true;
+                positionSubmesh[p] = s;
+            }
+        }
+        boolean[] locked = new boolean[nVertices];
+        for (int i = 0; i < nVertices; ++i) {
+            locked[i] = sharedPosition[positionIds[i]];
+        }
+
+        final MeshSimplifier simplifier = new MeshSimplifier(vertexPositions(mesh), positionIds, locked);
+        final float[] targets = options.lodTargets;
+        final int[] indices = index;
+        final List<MeshSimplifier.Result> results = new ArrayList<MeshSimplifier.Result>();
+        List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (int s = 0; s < mesh.submeshes.size(); ++s) {
+            final Submesh submesh = mesh.submeshes.get(s);
+            final int slot = s;
+            results.add(null);
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    MeshSimplifier.Result result = simplifier.simplify(indices, submesh.indexStart, submesh.indexCount, targets);
+                    synchronized (results) {
+                        results.set(slot, result);
+                    }
+                }
+            });
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        float[] min = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+        float[] max = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        float[] pos = mesh.positions.array();
+        for (int i = 0; i < mesh.positions.size(); ++i) {
+            min[i % 3] = Math.min(min[i % 3], pos[i]);
+            max[i % 3] = Math.max(max[i % 3], pos[i]);
+        }
+        double extent = 0;
+        for (int k = 0; k < 3; ++k) {
+            extent += (double)(max[k] - min[k]) * (max[k] - min[k]);
+        }
+        extent = Math.sqrt(extent);
+
+        int baseTriangles = mesh.indices.size() / 3;
+        for (int level = 0; level < targets.length; ++level) {
+            Lod lod = new Lod();
+            int triangles = 0;
+            for (MeshSimplifier.Result result : results) {
+                int[] lodIndices = result.indices[level];
+                Submesh range = new Submesh();
+                range.indexStart = mesh.indices.size();
+                range.indexCount = lodIndices.length;
+                for (int i : lodIndices) {
+                    mesh.indices.add(i);
+                }
+                lod.submeshes.add(range);
+                lod.error = Math.max(lod.error, result.errors[level]);
+                triangles += lodIndices.length / 3;
+            }
+            mesh.lods.add(lod);
+            System.out.printf("\tLOD %d: %d triangles (%.1f%% of %d, target %.1f%%), error %.3g (%.3f%% of extent)%n",
+                              level + 1, triangles, baseTriangles == 0 ? 0.0 : 100.0 * triangles / baseTriangles,
+                              baseTriangles, 100.0 * targets[level], lod.error,
+                              extent == 0 ? 0.0 : 100.0 * lod.error / extent);
+        }
+    }
+
+    /**
+     * Reorders the mesh's triangles and vertices as configured in the options, and reports the
+     * vertex cache efficiency of the full mesh before and after.
+     */
+    private void optimizeMesh(Mesh mesh) {
+        int nVertices = mesh.vertices.size() / 3;
+        int[] index = mesh.indices.array();
+        MeshOptimizer optimizer = new MeshOptimizer(nVertices);
+        List<Submesh> ranges = new ArrayList<Submesh>(mesh.submeshes);
+        for (Lod lod : mesh.lods) {
+            ranges.addAll(lod.submeshes);
+        }
+
+        MeshOptimizer.CacheStats before = new MeshOptimizer.CacheStats();
+        for (Submesh s : mesh.submeshes) {
+            optimizer.analyzeVertexCache(index, s.indexStart, s.indexCount, MeshOptimizer.STATS_CACHE_SIZE, before);
+        }
+
+        float[] vertexPositions = options.optimizeOverdraw ? vertexPositions(mesh) : null;
+        for (Submesh s : ranges) {
+            optimizer.optimizeVertexCache(index, s.indexStart, s.indexCount);
+            if (options.optimizeOverdraw)
+                optimizer.optimizeOverdraw(index, s.indexStart, s.indexCount, vertexPositions, options.overdrawThreshold);
+        }
+        optimizer.optimizeVertexFetch(mesh.indices, mesh.vertices, 3);
+
+        MeshOptimizer.CacheStats after = new MeshOptimizer.CacheStats();
+        for (Submesh s : mesh.submeshes) {
+            optimizer.analyzeVertexCache(index, s.indexStart, s.indexCount, MeshOptimizer.STATS_CACHE_SIZE, after);
+        }
+        System.out.printf("\tVertex cache (FIFO %d): ACMR %.3f -> %.3f, ATVR %.3f -> %.3f%n",
+                          MeshOptimizer.STATS_CACHE_SIZE, before.acmr(), after.acmr(), before.atvr(), after.atvr());
+    }
+
+    // Rough heap needed to compile a file in memory, per byte of .obj text
+    private static final long IN_CORE_BYTES_PER_INPUT_BYTE = 4;
+
+    // Heap used per vertex by a batch of vertices read back from the spill files
+    private static final long BATCH_BYTES_PER_VERTEX = 44;
+
+    /**
+     * Compiles a file that is too large to compile in memory within the memory budget. The parsed
+     * data is kept in spill files, vertices are deduplicated in partitions, and the .mdg is written
+     * out in batches as it is built; the output is the same as compiling in memory. Levels of detail
+     * and mesh optimization need the whole mesh in memory, so they are skipped.
+     */
+    private boolean compileOutOfCore(File inputFile, List<File> outputFiles, List<File> dependencies) throws IOException {
+        long budget = options.memoryBudget;
+        if (options.lodTargets.length != 0 || options.optimizeVertexCache || options.optimizeOverdraw) {
+            System.out.println("Warning: levels of detail and mesh optimization need the whole mesh in memory; not applying them");
+        }
+        if (options.encodeMeshes && !options.legacyMeshFormat) {
+            System.out.println("Warning: mesh encoding needs the whole mesh in memory; writing it unencoded");
+        }
+
+        Mesh mesh = new Mesh();
+        try (OutOfCoreMesh spilled = new OutOfCoreMesh(options.spillDirectory)) {
+            SubmeshBuilder submeshes = new SubmeshBuilder(inputFile, dependencies, mesh);
+            try (FileChannel channel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+                // Parsed one at a time, and dropped once spilled
+                List<ParsedChunk> chunks = splitIntoChunks(channel, Math.max(budget / 8, MIN_PARSE_CHUNK_SIZE));
+                for (int i = 0; i < chunks.size(); ++i) {
+                    ParsedChunk chunk = chunks.set(i, null);
+                    try (Lexer lexer = new Lexer(channel, chunk.start, chunk.end)) {
+                        parseChunk(lexer, chunk);
+                    }
+                    if (!submeshes.addChunk(chunk) || !spilled.addChunk(chunk))
+                        return false;
+                }
+            }
+            submeshes.finish();
+            spilled.addDefaultTexcoord();
+            try (BuildTrace.Span span = BuildTrace.begin("obj", "deduplicate vertices")) {
+                if (!spilled.deduplicate(budget))
+                    return false;
+                span.arg("partitions", spilled.getPartitionCount());
+            }
+
+            int nVertices = spilled.getVertexCount();
+            int nIndices = spilled.getIndexCount();
+            System.out.printf("\tCompiled out of core: %d vertices, %d indices, deduplicated in %d partitions%n",
+                              nVertices, nIndices, spilled.getPartitionCount());
+            BuildTrace.count("vertices", nIndices);
+            BuildTrace.count("uniqueVertices", nVertices);
+
+            int batchSize = (int)Math.min(Math.max(budget / 8 / BATCH_BYTES_PER_VERTEX, 1024), 1 << 24);
+            FloatList positions = new FloatList(3 * batchSize);
+            FloatList normals = new FloatList(3 * batchSize);
+            FloatList texcoords = new FloatList(2 * batchSize);
+            IntList vertices = new IntList(3 * batchSize);
+
+            QuantizedVertexFormat format = null;
+            if (!options.legacyMeshFormat) {
+                format = new QuantizedVertexFormat(options.quantizePositions, options.texcoordTolerance);
+                for (int first = 0; first < nVertices; first += batchSize) {
+                    spilled.readVertices(first, Math.min(batchSize, nVertices - first), positions, normals, texcoords, vertices);
+                    format.addBounds(positions, texcoords, vertices);
+                }
+                for (int first = 0; first < nVertices; first += batchSize) {
+                    spilled.readVertices(first, Math.min(batchSize, nVertices - first), positions, normals, texcoords, vertices);
+                    format.measure(positions, normals, texcoords, vertices);
+                }
+                format.finish();
+                System.out.printf("\t%d bytes per vertex (legacy: %d), %d-bit indices; %s%n", format.vertexSize, VERTEX_SIZE,
+                                  nVertices <= 0x10000 ? 16 : 32, format.describe());
+            }
+
+            int bufferLimit = (int)Math.min(Math.max(budget / 8, MIN_PARSE_CHUNK_SIZE), 1 << 30);
+            try (BinaryWriter mdlFileWriter = new BinaryWriter(outputFiles.get(0));
+                 BinaryWriter mdgFileWriter = new BinaryWriter(outputFiles.get(1), false, bufferLimit)) {
+                try (BuildTrace.Span span = BuildTrace.begin("obj", "write mdl")) {
+                    writeMDLFile(mdlFileWriter, mesh, format == null ? LEGACY_MDL_FORMAT_VERSION : MDL_FORMAT_VERSION);
+                    span.arg("bytes", mdlFileWriter.getFilePointer());
+                }
+
+                try (BuildTrace.Span span = BuildTrace.begin("obj", "write mdg")) {
+                    long[] offsets = writeMDGHeader(mdgFileWriter, nVertices, nIndices, mesh.textures, format, false);
+                    mdgFileWriter.overwriteTemp32(offsets[0], (int)mdgFileWriter.getFilePointer());
+                    for (int first = 0; first < nVertices; first += batchSize) {
+                        spilled.readVertices(first, Math.min(batchSize, nVertices - first), positions, normals, texcoords, vertices);
+                        writeVertices(mdgFileWriter, positions, normals, texcoords, vertices, format);
+                    }
+
+                    mdgFileWriter.overwriteTemp32(offsets[1], (int)mdgFileWriter.getFilePointer());
+                    int indexSize = indexSize(nVertices, format);
+                    int[] indices = new int[batchSize];
+                    for (int first = 0; first < nIndices; first += indices.length) {
+                        int count = Math.min(indices.length, nIndices - first);
+                        spilled.readIndices(first, count, indices);
+                        writeIndices(mdgFileWriter, indices, count, indexSize);
+                    }
+                    span.arg("bytes", mdgFileWriter.getFilePointer());
+                }
+                mdgFileWriter.commit();
+                mdlFileWriter.commit();
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public boolean compile(File inputFile, List<File> outputFiles, List<File> dependencies) {
+        if (options.memoryBudget > 0 && inputFile.length() * IN_CORE_BYTES_PER_INPUT_BYTE > options.memoryBudget) {
+            try {
+                return compileOutOfCore(inputFile, outputFiles, dependencies);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        Mesh mesh;
+        try {
+            List<ParsedChunk> chunks;
+            try (BuildTrace.Span span = BuildTrace.begin("obj", "parse")) {
+                chunks = parse(inputFile);
+                span.arg("chunks", chunks.size());
+            }
+            try (BuildTrace.Span span = BuildTrace.begin("obj", "merge")) {
+                mesh = merge(inputFile, chunks, dependencies);
+                span.arg("vertices", mesh == null ? 0 : mesh.vertices.size() / 3);
+            }
         } catch (IOException e) {
             return false;
         }
+        if (mesh == null) {
+            return false;
+        }
+        BuildTrace.count("vertices", mesh.indices.size());
+        BuildTrace.count("uniqueVertices", mesh.vertices.size() / 3);
+
+        if (mesh.texcoords.isEmpty()) {
+            mesh.texcoords.add(0.0f, 0.0f);
+        }
 
-        if (currentSubmesh != null) {
-            currentSubmesh.indexCount = indices.size() - currentSubmesh.indexStart;
+        if (!validateVertices(mesh.vertices, mesh.positions.size() / 3, mesh.normals.size() / 3,
+                              mesh.texcoords.size() / 2)) {
+            return false;
         }
 
-        if (texcoords.isEmpty()) {
-            Vector2 uv = new Vector2();
-            uv.x = 0.0f;
-            uv.y = 0.0f;
-            texcoords.add(uv);
+        if (options.lodTargets.length != 0) {
+            if (options.legacyMeshFormat) {
+                System.out.println("Warning: the legacy mesh format can't store levels of detail; not generating them");
+            } else {
+                try (BuildTrace.Span span = BuildTrace.begin("obj", "generate levels of detail")) {
+                    generateLods(mesh);
+                    span.arg("levels", options.lodTargets.length);
+                }
+            }
+        }
+
+        if (options.optimizeVertexCache || options.optimizeOverdraw) {
+            try (BuildTrace.Span span = BuildTrace.begin("obj", "optimize")) {
+                optimizeMesh(mesh);
+                span.arg("triangles", mesh.indices.size() / 3);
+            }
+        }
+
+        if (options.encodeMeshes && options.legacyMeshFormat) {
+            System.out.println("Warning: the legacy mesh format can't store encoded meshes; writing it unencoded");
+        }
+
+        QuantizedVertexFormat format = null;
+        if (!options.legacyMeshFormat) {
+            format = QuantizedVertexFormat.choose(mesh.positions, mesh.normals, mesh.texcoords, mesh.vertices,
+                                                  options.quantizePositions, options.texcoordTolerance);
+            System.out.printf("\t%d bytes per vertex (legacy: %d), %d-bit indices; %s%n", format.vertexSize, VERTEX_SIZE,
+                              mesh.vertices.size() / 3 <= 0x10000 ? 16 : 32, format.describe());
         }
 
         try (BinaryWriter mdlFileWriter = new BinaryWriter(outputFiles.get(0));
              BinaryWriter mdgFileWriter = new BinaryWriter(outputFiles.get(1))) {
-            writeMDLFile(mdlFileWriter, submeshes);
-            writeMDGFile(
-                mdgFileWriter,
-                positions,
-                normals,
-                texcoords,
-                vertices.convertToList(),
-                indices,
-                texturePaths.convertToList()
-            );
+            try (BuildTrace.Span span = BuildTrace.begin("obj", "write mdl")) {
+                writeMDLFile(mdlFileWriter, mesh, format == null ? LEGACY_MDL_FORMAT_VERSION : MDL_FORMAT_VERSION);
+                span.arg("bytes", mdlFileWriter.getFilePointer());
+            }
+            try (BuildTrace.Span span = BuildTrace.begin("obj", "write mdg")) {
+                writeMDGFile(mdgFileWriter, mesh, format, format != null && options.encodeMeshes);
+                span.arg("bytes", mdgFileWriter.getFilePointer());
+            }
+            mdgFileWriter.commit();
+            mdlFileWriter.commit();
             return true;
         } catch (IOException e) {
             return false;
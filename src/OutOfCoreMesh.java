@@ -0,0 +1,304 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The contents of an .obj file too large to compile in memory, built up chunk by chunk in spill
+ * files: the attributes, each chunk's distinct vertices in order of first use within the chunk, and
+ * each face corner's chunk vertex. Once every chunk has been added, deduplicate numbers the file's
+ * distinct vertices in order of first use, exactly as parsing the whole file in memory does. It works
+ * through the chunk vertices in hash partitions whose dedup tables fit in the memory budget, so only
+ * one partition's distinct vertices are on the heap at a time.
+ *
+ * Chunk vertices are numbered in sequence across chunks. A vertex's first use in the file is at its
+ * lowest sequence number, so the deduplicated numbering is a vertex's rank among these first
+ * appearances. The first pass over the partitions marks them in a bitmap, and the second assigns
+ * each vertex its rank.
+ */
+final class OutOfCoreMesh implements Closeable {
+    // Rough heap cost of a distinct vertex in a partition: its dedup table slots at the table's
+    // lowest load factor, its triple, and its new number
+    private static final int DEDUP_BYTES_PER_VERTEX = 64;
+    private static final int MAX_PARTITIONS = 1 << 16;
+
+    // Bitmap words per entry of the rank table, which holds the number of first appearances before
+    // each block of words
+    private static final int RANK_BLOCK_WORDS = 8;
+
+    private final File spillDirectory;
+    private SpillFile positions;
+    private SpillFile normals;
+    private SpillFile texcoords;
+    private SpillFile chunkVertices; // (position, normal, texcoord) triple per chunk vertex
+    private SpillFile corners; // chunk vertex sequence number per face corner
+    private SpillFile vertices; // (position, normal, texcoord) triple per deduplicated vertex
+    private SpillFile sequenceToVertex;
+
+    private long positionCount;
+    private long normalCount;
+    private long texcoordCount;
+    private long sequenceCount;
+    private long cornerCount;
+    private int vertexCount;
+    private int partitionCount;
+
+    /**
+     * @param spillDirectory where to create the spill files, or null for the default temporary
+     *     directory
+     */
+    OutOfCoreMesh(File spillDirectory) throws IOException {
+        this.spillDirectory = spillDirectory;
+        try {
+            positions = new SpillFile(spillDirectory, "positions");
+            normals = new SpillFile(spillDirectory, "normals");
+            texcoords = new SpillFile(spillDirectory, "texcoords");
+            chunkVertices = new SpillFile(spillDirectory, "chunkvertices");
+            corners = new SpillFile(spillDirectory, "corners");
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private static void append(SpillFile file, FloatList values) throws IOException {
+        float[] data = values.array();
+        for (int i = 0; i < values.size(); ++i) {
+            file.appendFloat(data[i]);
+        }
+    }
+
+    /**
+     * Adds a parsed chunk; chunks must be added in file order. Returns false, having printed the
+     * error, if the file has too many face corners to index.
+     */
+    boolean addChunk(ObjCompiler.ParsedChunk chunk) throws IOException {
+        if (cornerCount + chunk.indices.size() > Integer.MAX_VALUE) {
+            System.out.println("Error: obj file has too many faces");
+            return false;
+        }
+
+        append(positions, chunk.positions);
+        append(normals, chunk.normals);
+        append(texcoords, chunk.texcoords);
+        positionCount += chunk.positions.size() / 3;
+        normalCount += chunk.normals.size() / 3;
+        texcoordCount += chunk.texcoords.size() / 2;
+
+        int[] v = chunk.vertices.array();
+        for (int i = 0; i < chunk.vertices.size(); ++i) {
+            chunkVertices.appendInt(v[i]);
+        }
+        int[] index = chunk.indices.array();
+        for (int i = 0; i < chunk.indices.size(); ++i) {
+            corners.appendInt((int)(sequenceCount + index[i]));
+        }
+        sequenceCount += chunk.vertices.size() / 3;
+        cornerCount += chunk.indices.size();
+        return true;
+    }
+
+    /**
+     * Adds a (0, 0) texture coordinate if the file has none, for faces that don't specify one.
+     */
+    void addDefaultTexcoord() throws IOException {
+        if (texcoordCount == 0) {
+            texcoords.appendFloat(0.0f);
+            texcoords.appendFloat(0.0f);
+            texcoordCount = 1;
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private int partition(int position, int normal, int texcoord) {
+        long h = mix(((long)position << 32 | (normal & 0xFFFFFFFFL)) ^ mix(texcoord));
+        return (int)((h >>> 1) % partitionCount);
+    }
+
+    private static boolean isFirstUse(SpillFile firstUse, long sequence) {
+        return (firstUse.getLong(sequence >>> 6) & (1L << sequence)) != 0;
+    }
+
+    private static int rank(SpillFile firstUse, SpillFile ranks, long sequence) {
+        long word = sequence >>> 6;
+        long block = word / RANK_BLOCK_WORDS;
+        int rank = ranks.getInt(block);
+        for (long w = block * RANK_BLOCK_WORDS; w < word; ++w) {
+            rank += Long.bitCount(firstUse.getLong(w));
+        }
+        return rank + Long.bitCount(firstUse.getLong(word) & ((1L << sequence) - 1));
+    }
+
+    /**
+     * Numbers the distinct vertices in order of first use, keeping the dedup tables within about
+     * half the memory budget. Returns false, having printed the error, if a face refers to an
+     * attribute that doesn't exist.
+     */
+    boolean deduplicate(long memoryBudget) throws IOException {
+        long partitionVertices = Math.max(1024, memoryBudget / 2 / DEDUP_BYTES_PER_VERTEX);
+        partitionCount = (int)Math.max(1, Math.min(MAX_PARTITIONS, (sequenceCount + partitionVertices - 1) / partitionVertices));
+
+        // Counting sort of the chunk vertices by partition, keeping them in sequence order within
+        // each partition. Entries are (position, normal, texcoord, sequence number).
+        long[] partitionStart = new long[partitionCount + 1];
+        for (long u = 0; u < sequenceCount; ++u) {
+            int p = partition(chunkVertices.getInt(3 * u), chunkVertices.getInt(3 * u + 1), chunkVertices.getInt(3 * u + 2));
+            ++partitionStart[p + 1];
+        }
+        for (int p = 0; p < partitionCount; ++p) {
+            partitionStart[p + 1] += partitionStart[p];
+        }
+
+        try (SpillFile partitioned = new SpillFile(spillDirectory, "partitions");
+             SpillFile firstUse = new SpillFile(spillDirectory, "firstuse");
+             SpillFile ranks = new SpillFile(spillDirectory, "ranks")) {
+            partitioned.ensureSize(16 * sequenceCount);
+            long[] next = Arrays.copyOf(partitionStart, partitionCount);
+            for (long u = 0; u < sequenceCount; ++u) {
+                int position = chunkVertices.getInt(3 * u);
+                int normal = chunkVertices.getInt(3 * u + 1);
+                int texcoord = chunkVertices.getInt(3 * u + 2);
+                long e = 4 * next[partition(position, normal, texcoord)]++;
+                partitioned.putInt(e, position);
+                partitioned.putInt(e + 1, normal);
+                partitioned.putInt(e + 2, texcoord);
+                partitioned.putInt(e + 3, (int)u);
+            }
+            chunkVertices.close();
+            chunkVertices = null;
+
+            long words = (sequenceCount + 63) >>> 6;
+            firstUse.ensureSize(8 * words);
+            for (int p = 0; p < partitionCount; ++p) {
+                long start = partitionStart[p];
+                long end = partitionStart[p + 1];
+                VertexDedupTable table = new VertexDedupTable((int)Math.min(end - start, partitionVertices));
+                for (long e = 4 * start; e < 4 * end; e += 4) {
+                    int before = table.size();
+                    table.indexFor(partitioned.getInt(e), partitioned.getInt(e + 1), partitioned.getInt(e + 2));
+                    if (table.size() != before) {
+                        long u = partitioned.getInt(e + 3);
+                        firstUse.putLong(u >>> 6, firstUse.getLong(u >>> 6) | (1L << u));
+                    }
+                }
+            }
+
+            long blocks = (words + RANK_BLOCK_WORDS - 1) / RANK_BLOCK_WORDS;
+            ranks.ensureSize(4 * blocks);
+            int total = 0;
+            for (long w = 0; w < words; ++w) {
+                if (w % RANK_BLOCK_WORDS == 0)
+                    ranks.putInt(w / RANK_BLOCK_WORDS, total);
+                total += Long.bitCount(firstUse.getLong(w));
+            }
+            vertexCount = total;
+
+            vertices = new SpillFile(spillDirectory, "vertices");
+            vertices.ensureSize(12L * vertexCount);
+            sequenceToVertex = new SpillFile(spillDirectory, "remap");
+            sequenceToVertex.ensureSize(4 * sequenceCount);
+            for (int p = 0; p < partitionCount; ++p) {
+                long start = partitionStart[p];
+                long end = partitionStart[p + 1];
+                VertexDedupTable table = new VertexDedupTable((int)Math.min(end - start, partitionVertices));
+                IntList numbers = new IntList();
+                for (long e = 4 * start; e < 4 * end; e += 4) {
+                    int position = partitioned.getInt(e);
+                    int normal = partitioned.getInt(e + 1);
+                    int texcoord = partitioned.getInt(e + 2);
+                    long u = partitioned.getInt(e + 3);
+                    int local = table.indexFor(position, normal, texcoord);
+                    if (local == numbers.size()) {
+                        int vertex = rank(firstUse, ranks, u);
+                        vertices.putInt(3L * vertex, position);
+                        vertices.putInt(3L * vertex + 1, normal);
+                        vertices.putInt(3L * vertex + 2, texcoord);
+                        numbers.add(vertex);
+                    }
+                    sequenceToVertex.putInt(u, numbers.get(local));
+                }
+            }
+        }
+
+        // Checked in vertex order, so that the same error is reported as when compiling in memory
+        for (long i = 0; i < 3L * vertexCount; i += 3) {
+            int position = vertices.getInt(i);
+            int normal = vertices.getInt(i + 1);
+            int texcoord = vertices.getInt(i + 2);
+            if (position < 1 || position > positionCount ||
+                normal < 1 || normal > normalCount ||
+                texcoord < 1 || texcoord > texcoordCount) {
+                System.out.printf("Error: face refers to vertex %d/%d/%d, which doesn't exist%n",
+                                  position, texcoord, normal);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int getPartitionCount() {
+        return partitionCount;
+    }
+
+    int getVertexCount() {
+        return vertexCount;
+    }
+
+    int getIndexCount() {
+        return (int)cornerCount;
+    }
+
+    /**
+     * Reads count deduplicated vertices starting at first into a batch of attributes, one of each per
+     * vertex, with the vertex triples numbering them in order.
+     */
+    void readVertices(int first, int count, FloatList batchPositions, FloatList batchNormals, FloatList batchTexcoords,
+                      IntList batchVertices) {
+        batchPositions.clear();
+        batchNormals.clear();
+        batchTexcoords.clear();
+        batchVertices.clear();
+        for (int i = 0; i < count; ++i) {
+            long v = 3L * (first + i);
+            long p = 3L * (vertices.getInt(v) - 1);
+            long n = 3L * (vertices.getInt(v + 1) - 1);
+            long t = 2L * (vertices.getInt(v + 2) - 1);
+            batchPositions.add(positions.getFloat(p), positions.getFloat(p + 1), positions.getFloat(p + 2));
+            batchNormals.add(normals.getFloat(n), normals.getFloat(n + 1), normals.getFloat(n + 2));
+            batchTexcoords.add(texcoords.getFloat(t), texcoords.getFloat(t + 1));
+            batchVertices.add(i + 1, i + 1, i + 1);
+        }
+    }
+
+    /**
+     * Reads count indices, in the deduplicated numbering, starting at the given face corner.
+     */
+    void readIndices(int first, int count, int[] out) {
+        for (int i = 0; i < count; ++i) {
+            out[i] = sequenceToVertex.getInt(corners.getInt((long)first + i));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (SpillFile file : new SpillFile[] {positions, normals, texcoords, chunkVertices, corners, vertices, sequenceToVertex}) {
+            if (file == null)
+                continue;
+            try {
+                file.close();
+            } catch (IOException e) {
+                if (error == null)
+                    error = e;
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+}
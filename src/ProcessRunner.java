@@ -0,0 +1,166 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the external tools that compilers wrap. Each process's standard output and error are read on
+ * their own threads while it runs, line by line into the caller's log, so a tool that prints a lot
+ * can't fill a pipe and block. A process that runs past the timeout is killed. At most a fixed number
+ * of processes run at once, however many compilers are using the runner, and the number and duration
+ * of the runs of each tool are recorded.
+ */
+final class ProcessRunner {
+    public static final class Result {
+        public final int exitCode;
+        public final boolean timedOut;
+        public final long elapsedNanos;
+
+        Result(int exitCode, boolean timedOut, long elapsedNanos) {
+            this.exitCode = exitCode;
+            this.timedOut = timedOut;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public boolean succeeded() {
+            return !timedOut && exitCode == 0;
+        }
+    }
+
+    private static final class ToolStatistics {
+        int runs;
+        int failures;
+        long totalNanos;
+        long maxNanos;
+    }
+
+    private static final ExecutorService streamReaders = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "process-output");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final long KILLED_OUTPUT_WAIT_MILLIS = 1000;
+
+    private final Semaphore slots;
+    private final long timeoutMillis;
+    private final Map<String, ToolStatistics> statistics = new TreeMap<String, ToolStatistics>();
+
+    /**
+     * @param maxConcurrentProcesses most processes to run at once
+     * @param timeoutMillis how long a process may run before it is killed, or 0 for no limit
+     */
+    public ProcessRunner(int maxConcurrentProcesses, long timeoutMillis) {
+        if (maxConcurrentProcesses < 1 || timeoutMillis < 0) {
+            throw new IllegalArgumentException();
+        }
+        slots = new Semaphore(maxConcurrentProcesses, true);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Runs a command, appending everything it prints to log, and waits for it to finish. A command
+     * that fails to start, exits with a non-zero code or times out is described in the log too.
+     */
+    public Result run(List<String> command, StringBuilder log) throws IOException, InterruptedException {
+        slots.acquire();
+        try (BuildTrace.Span span = BuildTrace.begin("tool", new File(command.get(0)).getName())) {
+            Result result = runAcquired(command, log);
+            span.arg("exitCode", result.exitCode);
+            return result;
+        } finally {
+            slots.release();
+        }
+    }
+
+    private Result runAcquired(List<String> command, StringBuilder log) throws IOException, InterruptedException {
+        String tool = new File(command.get(0)).getName();
+        long startTime = System.nanoTime();
+        Process p;
+        try {
+            p = new ProcessBuilder(command).start();
+        } catch (IOException e) {
+            appendLine(log, String.format("Error: failed to run %s: %s", command.get(0), e.getMessage()));
+            throw e;
+        }
+
+        p.getOutputStream().close();
+        Future<?> stdout = streamReaders.submit(() -> drain(p.getInputStream(), log));
+        Future<?> stderr = streamReaders.submit(() -> drain(p.getErrorStream(), log));
+
+        boolean timedOut = false;
+        try {
+            if (timeoutMillis == 0) {
+                p.waitFor();
+            } else if (!p.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timedOut = true;
+                p.destroyForcibly();
+                p.waitFor();
+            }
+            // The streams reach end of file once the process has exited and closed them, unless a
+            // killed process left children holding them open, which aren't waited for
+            stdout.get(timedOut ? KILLED_OUTPUT_WAIT_MILLIS : Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            stderr.get(timedOut ? KILLED_OUTPUT_WAIT_MILLIS : Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            p.destroyForcibly();
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            // Output from the children is lost
+        }
+
+        Result result = new Result(p.exitValue(), timedOut, System.nanoTime() - startTime);
+        if (timedOut) {
+            appendLine(log, String.format("Error: %s timed out after %d ms", tool, timeoutMillis));
+        } else if (result.exitCode != 0) {
+            appendLine(log, String.format("Error: %s exited with code %d", tool, result.exitCode));
+        }
+        record(tool, result);
+        return result;
+    }
+
+    private static void drain(InputStream stream, StringBuilder log) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                appendLine(log, line);
+            }
+        } catch (IOException e) {
+            // The process was killed; whatever it printed before that has been kept
+        }
+    }
+
+    private static void appendLine(StringBuilder log, String line) {
+        synchronized (log) {
+            log.append(line).append(System.lineSeparator());
+        }
+    }
+
+    private synchronized void record(String tool, Result result) {
+        ToolStatistics s = statistics.get(tool);
+        if (s == null) {
+            s = new ToolStatistics();
+            statistics.put(tool, s);
+        }
+        ++s.runs;
+        if (!result.succeeded())
+            ++s.failures;
+        s.totalNanos += result.elapsedNanos;
+        s.maxNanos = Math.max(s.maxNanos, result.elapsedNanos);
+    }
+
+    /**
+     * Prints how many times each tool was run and how long the runs took, then starts counting
+     * again. Prints nothing if no tool was run.
+     */
+    public synchronized void printStatistics() {
+        for (Map.Entry<String, ToolStatistics> entry : statistics.entrySet()) {
+            ToolStatistics s = entry.getValue();
+            System.out.printf("%s: %d runs (%d failed), %.1f s total, %.1f ms average, %.1f ms longest%n",
+                              entry.getKey(), s.runs, s.failures, s.totalNanos / 1e9,
+                              s.totalNanos / 1e6 / s.runs, s.maxNanos / 1e6);
+        }
+        statistics.clear();
+    }
+}
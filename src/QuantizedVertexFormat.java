@@ -0,0 +1,358 @@
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Chooses and writes the compact vertex encoding of MDLG version 1, and measures how much precision
+ * it loses. Normals are always stored octahedral-encoded as two snorm16 values. Texture coordinates
+ * are stored as half floats or as unorm16 relative to their bounding box, whichever is more precise,
+ * as long as that is within the tolerance; otherwise as floats. Positions are stored as floats, or
+ * optionally as unorm16 relative to the mesh's bounding box.
+ *
+ * Quantized values decode as offset + q * scale, per component, with the offsets and scales stored
+ * in the MDLG header.
+ */
+final class QuantizedVertexFormat {
+    static final int FLAG_POSITION_UNORM16 = 1;
+    static final int FLAG_TEXCOORD_HALF = 2;
+    static final int FLAG_TEXCOORD_UNORM16 = 4;
+
+    private static final float UNORM16_MAX = 65535.0f;
+    private static final float SNORM16_MAX = 32767.0f;
+
+    int flags;
+    int vertexSize;
+    final float[] positionOffset = new float[3];
+    final float[] positionScale = {1.0f, 1.0f, 1.0f};
+    final float[] texcoordOffset = new float[2];
+    final float[] texcoordScale = {1.0f, 1.0f};
+
+    // Largest errors introduced by the encoding
+    double maxPositionError;
+    double positionExtent;
+    double maxNormalErrorDegrees;
+    double maxTexcoordError;
+
+    private final float texcoordTolerance;
+    private final float[] positionMin = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+    private final float[] positionMax = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+    private final float[] texcoordMin = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+    private final float[] texcoordMax = {Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+    private final float[] unormOffset = new float[2];
+    private final float[] unormScale = new float[2];
+    private double halfError;
+    private double unormError;
+    private boolean measuring;
+
+    /**
+     * Chooses the encoding for the given vertices, which are (position, normal, texcoord) triples of
+     * 1-based attribute indices.
+     */
+    static QuantizedVertexFormat choose(FloatList positions, FloatList normals, FloatList texcoords, IntList vertices,
+                                        boolean quantizePositions, float texcoordTolerance) {
+        QuantizedVertexFormat format = new QuantizedVertexFormat(quantizePositions, texcoordTolerance);
+        format.addBounds(positions, texcoords, vertices);
+        format.measure(positions, normals, texcoords, vertices);
+        format.finish();
+        return format;
+    }
+
+    /**
+     * Starts choosing an encoding for vertices that are passed in batches: first every batch to
+     * addBounds, then every batch to measure, then finish.
+     */
+    QuantizedVertexFormat(boolean quantizePositions, float texcoordTolerance) {
+        this.texcoordTolerance = texcoordTolerance;
+        if (quantizePositions)
+            flags |= FLAG_POSITION_UNORM16;
+    }
+
+    void addBounds(FloatList positions, FloatList texcoords, IntList vertices) {
+        bounds(positions.array(), vertices.array(), 0, 3, vertices.size(), positionMin, positionMax);
+        bounds(texcoords.array(), vertices.array(), 2, 2, vertices.size(), texcoordMin, texcoordMax);
+    }
+
+    private void beginMeasuring() {
+        measuring = true;
+        // Without any vertices the ranges are empty; use zero
+        for (int k = 0; k < 3; ++k) {
+            if (positionMin[k] > positionMax[k]) {
+                positionMin[k] = 0.0f;
+                positionMax[k] = 0.0f;
+            }
+        }
+        for (int k = 0; k < 2; ++k) {
+            if (texcoordMin[k] > texcoordMax[k]) {
+                texcoordMin[k] = 0.0f;
+                texcoordMax[k] = 0.0f;
+            }
+        }
+        double extent = 0;
+        for (int k = 0; k < 3; ++k) {
+            extent += (double)(positionMax[k] - positionMin[k]) * (positionMax[k] - positionMin[k]);
+        }
+        positionExtent = Math.sqrt(extent);
+        if ((flags & FLAG_POSITION_UNORM16) != 0)
+            setUnormRange(positionMin, positionMax, positionOffset, positionScale);
+        setUnormRange(texcoordMin, texcoordMax, unormOffset, unormScale);
+    }
+
+    void measure(FloatList positions, FloatList normals, FloatList texcoords, IntList vertices) {
+        if (!measuring)
+            beginMeasuring();
+        float[] pos = positions.array();
+        float[] texcoord = texcoords.array();
+        float[] normal = normals.array();
+        int[] v = vertices.array();
+
+        if ((flags & FLAG_POSITION_UNORM16) != 0) {
+            for (int i = 0; i < vertices.size(); i += 3) {
+                int p = 3 * (v[i] - 1);
+                for (int k = 0; k < 3; ++k) {
+                    float decoded = positionOffset[k] + unorm16(pos[p + k], k, positionOffset, positionScale) * positionScale[k];
+                    maxPositionError = Math.max(maxPositionError, Math.abs(decoded - pos[p + k]));
+                }
+            }
+        }
+
+        for (int i = 0; i < vertices.size(); i += 3) {
+            int t = 2 * (v[i + 2] - 1);
+            for (int k = 0; k < 2; ++k) {
+                float value = texcoord[t + k];
+                halfError = Math.max(halfError, Math.abs(halfToFloat(floatToHalf(value)) - (double)value));
+                float decoded = unormOffset[k] + unorm16(value, k, unormOffset, unormScale) * unormScale[k];
+                unormError = Math.max(unormError, Math.abs(decoded - (double)value));
+            }
+        }
+
+        short[] encoded = new short[2];
+        float[] decoded = new float[3];
+        for (int i = 0; i < vertices.size(); i += 3) {
+            int n = 3 * (v[i + 1] - 1);
+            double length = Math.sqrt(normal[n] * normal[n] + normal[n + 1] * normal[n + 1] + normal[n + 2] * normal[n + 2]);
+            if (length == 0)
+                continue;
+            encodeOctahedral(normal, n, encoded);
+            decodeOctahedral(encoded[0], encoded[1], decoded);
+            double dot = (normal[n] * decoded[0] + normal[n + 1] * decoded[1] + normal[n + 2] * decoded[2]) / length;
+            double error = Math.toDegrees(Math.acos(Math.min(1.0, dot)));
+            maxNormalErrorDegrees = Math.max(maxNormalErrorDegrees, error);
+        }
+    }
+
+    /**
+     * Picks the texture coordinate encoding from the measured errors.
+     */
+    void finish() {
+        if (!measuring)
+            beginMeasuring();
+        if (halfError <= unormError && halfError <= texcoordTolerance) {
+            flags |= FLAG_TEXCOORD_HALF;
+            maxTexcoordError = halfError;
+        } else if (unormError <= texcoordTolerance) {
+            flags |= FLAG_TEXCOORD_UNORM16;
+            System.arraycopy(unormOffset, 0, texcoordOffset, 0, 2);
+            System.arraycopy(unormScale, 0, texcoordScale, 0, 2);
+            maxTexcoordError = unormError;
+        }
+        vertexSize = ((flags & FLAG_POSITION_UNORM16) != 0 ? 8 : 12) + 4 +
+                     ((flags & (FLAG_TEXCOORD_HALF | FLAG_TEXCOORD_UNORM16)) != 0 ? 4 : 8);
+    }
+
+    /**
+     * Returns the sizes in bytes of the components of a vertex with the given flags, in order,
+     * counting the padding after 16-bit positions as a component.
+     */
+    static int[] componentSizes(int flags) {
+        int[] position = (flags & FLAG_POSITION_UNORM16) != 0 ? new int[] {2, 2, 2, 2} : new int[] {4, 4, 4};
+        int texcoord = (flags & (FLAG_TEXCOORD_HALF | FLAG_TEXCOORD_UNORM16)) != 0 ? 2 : 4;
+        int[] sizes = Arrays.copyOf(position, position.length + 4);
+        sizes[position.length] = 2;
+        sizes[position.length + 1] = 2;
+        sizes[position.length + 2] = texcoord;
+        sizes[position.length + 3] = texcoord;
+        return sizes;
+    }
+
+    private static void bounds(float[] data, int[] vertices, int attribute, int components, int count,
+                               float[] min, float[] max) {
+        for (int i = 0; i < count; i += 3) {
+            int a = components * (vertices[i + attribute] - 1);
+            for (int k = 0; k < components; ++k) {
+                min[k] = Math.min(min[k], data[a + k]);
+                max[k] = Math.max(max[k], data[a + k]);
+            }
+        }
+    }
+
+    private static void setUnormRange(float[] min, float[] max, float[] offset, float[] scale) {
+        for (int k = 0; k < min.length; ++k) {
+            offset[k] = min[k];
+            scale[k] = (max[k] - min[k]) / UNORM16_MAX;
+        }
+    }
+
+    private static int unorm16(float value, int component, float[] offset, float[] scale) {
+        if (scale[component] == 0.0f)
+            return 0;
+        int q = Math.round((value - offset[component]) / scale[component]);
+        return Math.max(0, Math.min(q, (int)UNORM16_MAX));
+    }
+
+    private static short snorm16(float value) {
+        return (short)Math.round(Math.max(-1.0f, Math.min(value, 1.0f)) * SNORM16_MAX);
+    }
+
+    /**
+     * Projects the normal at normal[offset] onto the octahedron and unfolds it into the unit square.
+     * A zero normal encodes as (0, 0), which decodes as +Z.
+     */
+    static void encodeOctahedral(float[] normal, int offset, short[] out) {
+        float x = normal[offset];
+        float y = normal[offset + 1];
+        float z = normal[offset + 2];
+        float l1 = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (l1 == 0.0f) {
+            out[0] = 0;
+            out[1] = 0;
+            return;
+        }
+        x /= l1;
+        y /= l1;
+        if (z < 0.0f) {
+            float foldedX = (1.0f - Math.abs(y)) * (x >= 0.0f ? 1.0f : -1.0f);
+            float foldedY = (1.0f - Math.abs(x)) * (y >= 0.0f ? 1.0f : -1.0f);
+            x = foldedX;
+            y = foldedY;
+        }
+        out[0] = snorm16(x);
+        out[1] = snorm16(y);
+    }
+
+    static void decodeOctahedral(short encodedX, short encodedY, float[] out) {
+        float x = encodedX / SNORM16_MAX;
+        float y = encodedY / SNORM16_MAX;
+        float z = 1.0f - Math.abs(x) - Math.abs(y);
+        if (z < 0.0f) {
+            float unfoldedX = (1.0f - Math.abs(y)) * (x >= 0.0f ? 1.0f : -1.0f);
+            float unfoldedY = (1.0f - Math.abs(x)) * (y >= 0.0f ? 1.0f : -1.0f);
+            x = unfoldedX;
+            y = unfoldedY;
+        }
+        float length = (float)Math.sqrt(x * x + y * y + z * z);
+        out[0] = x / length;
+        out[1] = y / length;
+        out[2] = z / length;
+    }
+
+    /**
+     * Converts to IEEE 754 binary16, rounding to nearest even. Values too large become infinity.
+     */
+    static short floatToHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent == 0xFF) {
+            // Infinity, or NaN with a mantissa bit kept set
+            return (short)(sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F) {
+            return (short)(sign | 0x7C00);
+        }
+        int shift;
+        if (halfExponent <= 0) {
+            // Subnormal half (or zero): shift in the implicit leading bit
+            if (halfExponent < -10)
+                return (short)sign;
+            mantissa |= 0x800000;
+            shift = 14 - halfExponent;
+            halfExponent = 0;
+        } else {
+            shift = 13;
+        }
+        int half = (halfExponent << 10) | (mantissa >>> shift);
+        int remainder = mantissa & ((1 << shift) - 1);
+        int halfway = 1 << (shift - 1);
+        if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+            // May carry into the exponent, which is the correct result, up to and including infinity
+            ++half;
+        }
+        return (short)(sign | half);
+    }
+
+    static float halfToFloat(short half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+        if (exponent == 0x1F) {
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            float magnitude = mantissa * 0x1p-24f;
+            return sign != 0 ? -magnitude : magnitude;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    /**
+     * Writes the decode parameters: position offset and scale, then texture coordinate offset and
+     * scale.
+     */
+    void writeDecodeParameters(BinaryWriter writer) throws IOException {
+        for (float f : positionOffset)
+            writer.writeFloat(f);
+        for (float f : positionScale)
+            writer.writeFloat(f);
+        for (float f : texcoordOffset)
+            writer.writeFloat(f);
+        for (float f : texcoordScale)
+            writer.writeFloat(f);
+    }
+
+    void writeVertex(BinaryWriter writer, float[] pos, int p, float[] normal, int n, float[] texcoord, int t,
+                     short[] scratch) throws IOException {
+        if ((flags & FLAG_POSITION_UNORM16) != 0) {
+            for (int k = 0; k < 3; ++k) {
+                writer.write16(unorm16(pos[p + k], k, positionOffset, positionScale));
+            }
+            writer.write16(0);
+        } else {
+            writer.writeFloat(pos[p]);
+            writer.writeFloat(pos[p + 1]);
+            writer.writeFloat(pos[p + 2]);
+        }
+
+        encodeOctahedral(normal, n, scratch);
+        writer.write16(scratch[0]);
+        writer.write16(scratch[1]);
+
+        if ((flags & FLAG_TEXCOORD_HALF) != 0) {
+            writer.write16(floatToHalf(texcoord[t]));
+            writer.write16(floatToHalf(texcoord[t + 1]));
+        } else if ((flags & FLAG_TEXCOORD_UNORM16) != 0) {
+            writer.write16(unorm16(texcoord[t], 0, texcoordOffset, texcoordScale));
+            writer.write16(unorm16(texcoord[t + 1], 1, texcoordOffset, texcoordScale));
+        } else {
+            writer.writeFloat(texcoord[t]);
+            writer.writeFloat(texcoord[t + 1]);
+        }
+    }
+
+    /**
+     * A one-line summary of the encoding and its precision loss.
+     */
+    String describe() {
+        String positionFormat = (flags & FLAG_POSITION_UNORM16) != 0 ? "unorm16" : "float";
+        String texcoordFormat = (flags & FLAG_TEXCOORD_HALF) != 0 ? "half" :
+                                (flags & FLAG_TEXCOORD_UNORM16) != 0 ? "unorm16" : "float";
+        String positionError = "";
+        if ((flags & FLAG_POSITION_UNORM16) != 0) {
+            positionError = String.format(" (max error %.3g, %.4f%% of extent)", maxPositionError,
+                                          positionExtent == 0 ? 0.0 : 100.0 * maxPositionError / positionExtent);
+        }
+        return String.format("positions %s%s, normals oct16 (max error %.4f deg), texcoords %s (max error %.3g)",
+                             positionFormat, positionError, maxNormalErrorDegrees, texcoordFormat, maxTexcoordError);
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A directory of compiled shader blobs, keyed by a hash of everything that went into compiling them,
+ * that can be shared between builds and between compiler processes running at the same time.
+ *
+ * An entry is never modified once written: it is written to a temporary file and renamed into place,
+ * so readers only ever see complete entries, and two processes storing the same key store the same
+ * bytes. Reading an entry updates its modification time, and trim deletes the entries least recently
+ * used by any process until the cache is within its size limit. An entry deleted while another
+ * process is looking it up is simply a miss.
+ */
+final class ShaderCache {
+    private static final String ENTRY_SUFFIX = ".metallib";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Temporary files older than this were left behind by a process that died while writing them
+    private static final long STALE_TEMP_FILE_AGE = 60 * 60 * 1000;
+
+    private final File directory;
+    private final long maxBytes;
+
+    public ShaderCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    private File entryFile(String key) {
+        return new File(new File(directory, key.substring(0, 2)), key + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Returns the blob stored under the key, or null if there isn't one.
+     */
+    public byte[] get(String key) {
+        File file = entryFile(key);
+        try {
+            byte[] data = Files.readAllBytes(file.toPath());
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void put(String key, byte[] data) throws IOException {
+        File file = entryFile(key);
+        Path parent = file.getParentFile().toPath();
+        Files.createDirectories(parent);
+        Path temp = Files.createTempFile(parent, "." + key, TEMP_SUFFIX);
+        try {
+            Files.write(temp, data);
+            try {
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is no larger than its size limit.
+     */
+    public synchronized void trim() {
+        File[] subdirectories = directory.listFiles(File::isDirectory);
+        if (subdirectories == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        List<File> entries = new ArrayList<File>();
+        final Map<File, Long> lastUsed = new HashMap<File, Long>();
+        long totalBytes = 0;
+        for (File subdirectory : subdirectories) {
+            File[] files = subdirectory.listFiles();
+            if (files == null)
+                continue;
+            for (File file : files) {
+                long lastModified = file.lastModified();
+                if (file.getName().endsWith(TEMP_SUFFIX)) {
+                    if (lastModified != 0 && now - lastModified > STALE_TEMP_FILE_AGE)
+                        file.delete();
+                } else if (file.getName().endsWith(ENTRY_SUFFIX)) {
+                    entries.add(file);
+                    lastUsed.put(file, lastModified);
+                    totalBytes += file.length();
+                }
+            }
+        }
+        if (totalBytes <= maxBytes)
+            return;
+
+        Collections.sort(entries, (a, b) -> Long.compare(lastUsed.get(a), lastUsed.get(b)));
+        for (File entry : entries) {
+            if (totalBytes <= maxBytes)
+                break;
+            long size = entry.length();
+            // Another process may have deleted it already
+            if (entry.delete() || !entry.exists())
+                totalBytes -= size;
+        }
+    }
+}
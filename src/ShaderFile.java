@@ -0,0 +1,97 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a .shd file written by MetalShaderCompiler, memory-mapped, and finds the metallib of a
+ * permutation by its mask the way the runtime does: by binary search of the permutation table in
+ * version 3 files, and by walking the chain of permutation headers in version 1 files.
+ */
+final class ShaderFile {
+    private static final int MAGIC = 'R' | 'D' << 8 | 'H' << 16 | 'S' << 24;
+    private static final int METAL = 'L' | 'T' << 8 | 'E' << 16 | 'M' << 24;
+
+    private static final int V1_HEADER_SIZE = 16;
+    private static final int V1_PERMUTATION_HEADER_SIZE = 24;
+    private static final int V3_ENTRY_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final int version;
+    private final int nPermutations;
+    private final int ofsPermutations;
+
+    private ShaderFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < V1_HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(8) != METAL)
+            throw new IOException("Not a Metal .shd file");
+        version = buffer.getInt(4);
+        nPermutations = buffer.getInt(12);
+        if (version == MetalShaderCompiler.LEGACY_SHADER_FORMAT_VERSION) {
+            ofsPermutations = V1_HEADER_SIZE;
+        } else if (version == MetalShaderCompiler.SHADER_FORMAT_VERSION) {
+            ofsPermutations = buffer.getInt(20);
+            if (ofsPermutations < 0 || (long)ofsPermutations + (long)nPermutations * V3_ENTRY_SIZE > buffer.limit())
+                throw new IOException("Truncated .shd file");
+        } else {
+            throw new IOException("Unsupported .shd version " + version);
+        }
+    }
+
+    public static ShaderFile open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new ShaderFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getPermutationCount() {
+        return nPermutations;
+    }
+
+    /**
+     * Returns the metallib of the permutation with the given mask, or null if the file has no such
+     * permutation.
+     */
+    public ByteBuffer find(long mask) {
+        return version == MetalShaderCompiler.LEGACY_SHADER_FORMAT_VERSION ? walk(mask) : search(mask);
+    }
+
+    private ByteBuffer search(long mask) {
+        int lo = 0;
+        int hi = nPermutations - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int entry = ofsPermutations + mid * V3_ENTRY_SIZE;
+            int cmp = Long.compareUnsigned(buffer.getLong(entry), mask);
+            if (cmp < 0)
+                lo = mid + 1;
+            else if (cmp > 0)
+                hi = mid - 1;
+            else
+                return slice(buffer.getInt(entry + 8), buffer.getInt(entry + 12));
+        }
+        return null;
+    }
+
+    private ByteBuffer walk(long mask) {
+        int pos = ofsPermutations;
+        for (int i = 0; i < nPermutations; ++i) {
+            if (buffer.getLong(pos) == mask)
+                return slice(pos + V1_PERMUTATION_HEADER_SIZE, buffer.getInt(pos + 8));
+            pos += buffer.getInt(pos + 16); // ofsNextPermutation
+        }
+        return null;
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer data = buffer.duplicate();
+        data.position(offset);
+        data.limit(offset + length);
+        return data.slice();
+    }
+}
@@ -0,0 +1,516 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A small C preprocessor, just enough to tell which permutations of a shader compile the same code.
+ * It follows #include "...", #define and #undef, and #if, #ifdef, #ifndef, #elif, #else and #endif,
+ * and returns the lines that would be compiled with a given set of option flags defined.
+ *
+ * Conditions are evaluated with three values: true, false and unknown. An identifier is only known
+ * if it is one of the shader's flags or was #defined or #undefined earlier; anything else may be
+ * predefined by the compiler or its headers, so it is unknown, as are function-like macros and
+ * anything this doesn't parse. Every branch of a conditional that might be taken is kept, along with
+ * the directives themselves. The result can therefore keep more than the real preprocessor would,
+ * which only means that some identical permutations aren't found, never that different ones are
+ * taken to be the same.
+ */
+final class ShaderPreprocessor {
+    private static final Pattern DIRECTIVE_PATTERN = Pattern.compile("#\\s*(\\w*)\\s*(.*)");
+    private static final Pattern INCLUDE_PATTERN = Pattern.compile("\"([^\"]+)\".*");
+    private static final Pattern DEFINE_PATTERN = Pattern.compile("(\\w+)(\\()?\\s*(.*)");
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_]\\w*");
+
+    private static final Pattern TOKEN_PATTERN =
+            Pattern.compile("\\s*(0[xX][0-9a-fA-F]+[uUlL]*|\\d+[uUlL]*|[A-Za-z_]\\w*|&&|\\|\\||==|!=|<=|>=|<<|>>|\\S)");
+
+    // Binary operators in #if expressions, from lowest to highest precedence
+    private static final String[][] LEVELS = {
+        {"|"}, {"^"}, {"&"}, {"==", "!="}, {"<", ">", "<=", ">="}, {"<<", ">>"}, {"+", "-"}, {"*", "/", "%"}
+    };
+
+    private static final int MAX_INCLUDE_DEPTH = 64;
+    private static final int MAX_EXPANSION_DEPTH = 32;
+
+    // Value of a function-like macro, which conditions don't expand, and of a macro that is defined
+    // but whose value isn't known
+    private static final String FUNCTION_LIKE = "\0function";
+    private static final String UNKNOWN_VALUE = "\0unknown";
+
+    private enum State { TRUE, FALSE, UNKNOWN }
+
+    /** A logical line: comments removed and continuations joined. */
+    private static class Line {
+        final int number;
+        final String text;
+
+        Line(int number, String text) {
+            this.number = number;
+            this.text = text;
+        }
+    }
+
+    private static class Conditional {
+        final State parent;
+        State branch;
+        boolean anyTrue;
+        boolean anyUnknown;
+        boolean seenElse;
+
+        // For an #ifndef of an unknown macro in known code, such as an include guard: the macro,
+        // while in its first branch. Defining it there means it is defined afterwards either way.
+        String guard;
+
+        Conditional(State parent) {
+            this.parent = parent;
+        }
+
+        State effective() {
+            if (parent == State.FALSE || branch == State.FALSE)
+                return State.FALSE;
+            if (parent == State.UNKNOWN || branch == State.UNKNOWN)
+                return State.UNKNOWN;
+            return State.TRUE;
+        }
+
+        void enterBranch(State condition) {
+            if (anyTrue || condition == State.FALSE)
+                branch = State.FALSE;
+            else if (condition == State.TRUE && !anyUnknown)
+                branch = State.TRUE;
+            else
+                branch = State.UNKNOWN;
+            anyTrue |= branch == State.TRUE;
+            anyUnknown |= branch == State.UNKNOWN;
+        }
+    }
+
+    private final Set<String> flags;
+    private final Map<File, List<Line>> files = new HashMap<File, List<Line>>();
+
+    // Per run
+    private Map<String, String> defines;
+    private Set<String> undefined;
+    private Set<File> onceFiles;
+    private StringBuilder output;
+    private File lastEmittedFile;
+
+    /**
+     * @param flags every option flag of the shader; those not passed to preprocess are undefined
+     */
+    public ShaderPreprocessor(Collection<String> flags) {
+        this.flags = new HashSet<String>(flags);
+    }
+
+    /**
+     * Returns the lines of the file that are compiled with the given flags defined, with their line
+     * numbers and the files they come from.
+     */
+    public String preprocess(File file, Collection<String> enabledFlags) throws IOException {
+        defines = new HashMap<String, String>();
+        undefined = new HashSet<String>(flags);
+        onceFiles = new HashSet<File>();
+        output = new StringBuilder();
+        lastEmittedFile = null;
+        for (String flag : enabledFlags) {
+            defines.put(flag, "1");
+            undefined.remove(flag);
+        }
+        processFile(file, State.TRUE, 0);
+        return output.toString();
+    }
+
+    private List<Line> lines(File file) throws IOException {
+        List<Line> lines = files.get(file);
+        if (lines == null) {
+            lines = split(new String(Files.readAllBytes(file.toPath()), "UTF-8"));
+            files.put(file, lines);
+        }
+        return lines;
+    }
+
+    /**
+     * Splits source into logical lines: backslash-newlines are joined, comments replaced by a space
+     * (so a block comment spanning lines continues the line it starts on), and blank lines dropped.
+     */
+    private static List<Line> split(String source) {
+        List<Line> lines = new ArrayList<Line>();
+        StringBuilder current = new StringBuilder();
+        int lineNumber = 1;
+        int startLine = 1;
+        char quote = 0;
+        boolean inBlockComment = false;
+        int n = source.length();
+        for (int i = 0; i < n; ++i) {
+            char c = source.charAt(i);
+            char next = i + 1 < n ? source.charAt(i + 1) : 0;
+            if (c == '\\' && (next == '\n' || (next == '\r' && i + 2 < n && source.charAt(i + 2) == '\n'))) {
+                i += next == '\r' ? 2 : 1;
+                ++lineNumber;
+                continue;
+            }
+            if (inBlockComment) {
+                if (c == '*' && next == '/') {
+                    inBlockComment = false;
+                    current.append(' ');
+                    ++i;
+                } else if (c == '\n') {
+                    ++lineNumber;
+                }
+                continue;
+            }
+            if (c == '\n') {
+                String text = current.toString().trim();
+                if (!text.isEmpty())
+                    lines.add(new Line(startLine, text));
+                current.setLength(0);
+                quote = 0;
+                startLine = ++lineNumber;
+                continue;
+            }
+            if (quote != 0) {
+                current.append(c);
+                if (c == '\\' && next != 0 && next != '\n') {
+                    current.append(next);
+                    ++i;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (c == '/' && next == '/') {
+                while (i + 1 < n && source.charAt(i + 1) != '\n')
+                    ++i;
+                continue;
+            }
+            if (c == '/' && next == '*') {
+                inBlockComment = true;
+                ++i;
+                continue;
+            }
+            if (c == '"' || c == '\'')
+                quote = c;
+            current.append(c == '\t' || c == '\r' ? ' ' : c);
+        }
+        String text = current.toString().trim();
+        if (!text.isEmpty())
+            lines.add(new Line(startLine, text));
+        return lines;
+    }
+
+    private void emit(File file, int lineNumber, String text) {
+        if (file != lastEmittedFile) {
+            output.append("#file ").append(file.getPath()).append('\n');
+            lastEmittedFile = file;
+        }
+        output.append(lineNumber).append(' ').append(text).append('\n');
+    }
+
+    private void processFile(File file, State state, int depth) throws IOException {
+        file = file.getCanonicalFile();
+        if (onceFiles.contains(file))
+            return;
+
+        Deque<Conditional> conditionals = new ArrayDeque<Conditional>();
+        for (Line line : lines(file)) {
+            State current = conditionals.isEmpty() ? state : conditionals.peek().effective();
+            Matcher m = DIRECTIVE_PATTERN.matcher(line.text);
+            if (!m.matches()) {
+                if (current != State.FALSE)
+                    emit(file, line.number, line.text);
+                continue;
+            }
+
+            String directive = m.group(1);
+            String argument = m.group(2).trim();
+            if (directive.equals("if") || directive.equals("ifdef") || directive.equals("ifndef")) {
+                Conditional conditional = new Conditional(current);
+                State condition;
+                if (directive.equals("if"))
+                    condition = evaluate(argument);
+                else if (directive.equals("ifdef"))
+                    condition = isDefined(firstIdentifier(argument));
+                else
+                    condition = not(isDefined(firstIdentifier(argument)));
+                conditional.enterBranch(current == State.FALSE ? State.FALSE : condition);
+                if (directive.equals("ifndef") && current == State.TRUE && condition == State.UNKNOWN)
+                    conditional.guard = firstIdentifier(argument);
+                conditionals.push(conditional);
+                if (current == State.UNKNOWN || conditional.branch == State.UNKNOWN)
+                    emit(file, line.number, line.text);
+            } else if (directive.equals("elif") || directive.equals("else")) {
+                Conditional conditional = conditionals.peek();
+                if (conditional == null || conditional.seenElse) {
+                    // Malformed; the compiler will report it
+                    if (current != State.FALSE)
+                        emit(file, line.number, line.text);
+                    continue;
+                }
+                conditional.seenElse = directive.equals("else");
+                conditional.guard = null;
+                boolean unknownBefore = conditional.anyUnknown;
+                State condition = State.TRUE;
+                if (directive.equals("elif") && !conditional.anyTrue && conditional.parent != State.FALSE)
+                    condition = evaluate(argument);
+                conditional.enterBranch(condition);
+                if (conditional.parent == State.UNKNOWN || unknownBefore || conditional.branch == State.UNKNOWN)
+                    emit(file, line.number, line.text);
+            } else if (directive.equals("endif")) {
+                Conditional conditional = conditionals.poll();
+                if (conditional == null || conditional.parent == State.UNKNOWN || conditional.anyUnknown)
+                    emit(file, line.number, line.text);
+            } else if (current == State.FALSE) {
+                continue;
+            } else if (directive.equals("define") || directive.equals("undef")) {
+                emit(file, line.number, line.text);
+                define(directive.equals("define"), argument, current, conditionals.peek());
+            } else if (directive.equals("include") && INCLUDE_PATTERN.matcher(argument).matches()) {
+                Matcher include = INCLUDE_PATTERN.matcher(argument);
+                include.matches();
+                File includeFile = new File(include.group(1));
+                if (!includeFile.isAbsolute())
+                    includeFile = new File(file.getParentFile(), include.group(1));
+                if (includeFile.isFile() && depth < MAX_INCLUDE_DEPTH)
+                    processFile(includeFile, current, depth + 1);
+                else
+                    emit(file, line.number, line.text);
+            } else {
+                if (directive.equals("pragma") && argument.equals("once") && current == State.TRUE)
+                    onceFiles.add(file);
+                emit(file, line.number, line.text);
+            }
+        }
+    }
+
+    private void define(boolean define, String argument, State current, Conditional conditional) {
+        Matcher m = DEFINE_PATTERN.matcher(argument);
+        if (!m.matches())
+            return;
+        String name = m.group(1);
+        if (current == State.UNKNOWN && define && conditional != null && name.equals(conditional.guard)) {
+            defines.put(name, UNKNOWN_VALUE);
+            undefined.remove(name);
+        } else if (current == State.UNKNOWN) {
+            // May or may not have happened
+            defines.remove(name);
+            undefined.remove(name);
+        } else if (define) {
+            defines.put(name, m.group(2) != null ? FUNCTION_LIKE : m.group(3).trim());
+            undefined.remove(name);
+        } else {
+            defines.remove(name);
+            undefined.add(name);
+        }
+    }
+
+    private static String firstIdentifier(String s) {
+        Matcher m = IDENTIFIER_PATTERN.matcher(s);
+        return m.lookingAt() ? m.group() : "";
+    }
+
+    private State isDefined(String name) {
+        if (defines.containsKey(name))
+            return State.TRUE;
+        if (undefined.contains(name))
+            return State.FALSE;
+        return State.UNKNOWN;
+    }
+
+    private static State not(State s) {
+        return s == State.TRUE ? State.FALSE : s == State.FALSE ? State.TRUE : State.UNKNOWN;
+    }
+
+    private State evaluate(String expression) {
+        Long value = new Evaluator(expression, 0).evaluate();
+        if (value == null)
+            return State.UNKNOWN;
+        return value != 0 ? State.TRUE : State.FALSE;
+    }
+
+    /**
+     * Evaluates an #if expression by recursive descent, with null standing for an unknown value.
+     * Anything it fails to parse is unknown.
+     */
+    private class Evaluator {
+        private final List<String> tokens = new ArrayList<String>();
+        private final int depth;
+        private int pos;
+        private boolean failed;
+
+        Evaluator(String expression, int depth) {
+            this.depth = depth;
+            Matcher m = TOKEN_PATTERN.matcher(expression);
+            int end = 0;
+            while (m.lookingAt()) {
+                tokens.add(m.group(1));
+                end = m.end();
+                m.region(end, expression.length());
+            }
+            if (!expression.substring(end).trim().isEmpty())
+                failed = true;
+        }
+
+        Long evaluate() {
+            if (failed || tokens.isEmpty())
+                return null;
+            Long value = conditional();
+            return failed || pos != tokens.size() ? null : value;
+        }
+
+        private String peek() {
+            return pos < tokens.size() ? tokens.get(pos) : "";
+        }
+
+        private boolean accept(String token) {
+            if (!peek().equals(token))
+                return false;
+            ++pos;
+            return true;
+        }
+
+        private Long conditional() {
+            Long condition = logicalOr();
+            if (!accept("?"))
+                return condition;
+            Long a = conditional();
+            if (!accept(":")) {
+                failed = true;
+                return null;
+            }
+            Long b = conditional();
+            if (condition == null)
+                return a != null && a.equals(b) ? a : null;
+            return condition != 0 ? a : b;
+        }
+
+        private Long logicalOr() {
+            Long value = logicalAnd();
+            while (accept("||")) {
+                Long rhs = logicalAnd();
+                if ((value != null && value != 0) || (rhs != null && rhs != 0))
+                    value = 1L;
+                else
+                    value = value == null || rhs == null ? null : 0L;
+            }
+            return value;
+        }
+
+        private Long logicalAnd() {
+            Long value = binary(0);
+            while (accept("&&")) {
+                Long rhs = binary(0);
+                if ((value != null && value == 0) || (rhs != null && rhs == 0))
+                    value = 0L;
+                else
+                    value = value == null || rhs == null ? null : 1L;
+            }
+            return value;
+        }
+
+        private Long binary(int level) {
+            if (level == LEVELS.length)
+                return unary();
+            Long value = binary(level + 1);
+            while (true) {
+                String op = null;
+                for (String candidate : LEVELS[level]) {
+                    if (peek().equals(candidate))
+                        op = candidate;
+                }
+                if (op == null)
+                    return value;
+                ++pos;
+                Long rhs = binary(level + 1);
+                value = value == null || rhs == null ? null : apply(op, value, rhs);
+            }
+        }
+
+        private Long apply(String op, long a, long b) {
+            switch (op) {
+                case "|": return a | b;
+                case "^": return a ^ b;
+                case "&": return a & b;
+                case "==": return a == b ? 1L : 0L;
+                case "!=": return a != b ? 1L : 0L;
+                case "<": return a < b ? 1L : 0L;
+                case ">": return a > b ? 1L : 0L;
+                case "<=": return a <= b ? 1L : 0L;
+                case ">=": return a >= b ? 1L : 0L;
+                case "<<": return a << b;
+                case ">>": return a >> b;
+                case "+": return a + b;
+                case "-": return a - b;
+                case "*": return a * b;
+                case "/": return b == 0 ? null : a / b;
+                default: return b == 0 ? null : a % b;
+            }
+        }
+
+        private Long unary() {
+            if (accept("!")) {
+                Long value = unary();
+                return value == null ? null : value == 0 ? 1L : 0L;
+            }
+            if (accept("~")) {
+                Long value = unary();
+                return value == null ? null : ~value;
+            }
+            if (accept("-")) {
+                Long value = unary();
+                return value == null ? null : -value;
+            }
+            if (accept("+"))
+                return unary();
+            return primary();
+        }
+
+        private Long primary() {
+            String token = peek();
+            ++pos;
+            if (token.equals("(")) {
+                Long value = conditional();
+                if (!accept(")"))
+                    failed = true;
+                return value;
+            }
+            if (token.equals("defined")) {
+                boolean parenthesized = accept("(");
+                String name = peek();
+                ++pos;
+                if (parenthesized && !accept(")"))
+                    failed = true;
+                State state = isDefined(name);
+                return state == State.UNKNOWN ? null : state == State.TRUE ? 1L : 0L;
+            }
+            if (!token.isEmpty() && Character.isDigit(token.charAt(0))) {
+                token = token.replaceAll("[uUlL]+$", "");
+                try {
+                    if (token.startsWith("0x") || token.startsWith("0X"))
+                        return Long.parseLong(token.substring(2), 16);
+                    if (token.length() > 1 && token.startsWith("0"))
+                        return Long.parseLong(token.substring(1), 8);
+                    return Long.parseLong(token);
+                } catch (NumberFormatException e) {
+                    failed = true;
+                    return null;
+                }
+            }
+            if (!token.isEmpty() && IDENTIFIER_PATTERN.matcher(token).matches()) {
+                if (token.equals("true"))
+                    return 1L;
+                if (token.equals("false"))
+                    return 0L;
+                String value = defines.get(token);
+                if (value == null)
+                    return undefined.contains(token) ? 0L : null;
+                if (value == FUNCTION_LIKE || value == UNKNOWN_VALUE || depth >= MAX_EXPANSION_DEPTH)
+                    return null;
+                return new Evaluator(value, depth + 1).evaluate();
+            }
+            failed = true;
+            return null;
+        }
+    }
+}
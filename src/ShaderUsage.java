@@ -0,0 +1,90 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * The shader permutations a game actually uses, as recorded by the engine, so that only those need
+ * to be compiled. The file has a line per shader, naming it (by its .metal source or its .shd output)
+ * followed by the masks of the permutations it uses:
+ *
+ *     # comment
+ *     Shaders/Basic.metal 0x0 0x5 0x7
+ *     Assets/Shaders/Lit_MTL.shd 3
+ *     * 0x1
+ *
+ * Masks are decimal or 0x-prefixed hexadecimal. The masks on a line naming * are required by every
+ * shader, as is the permutation with no flags set, which the engine falls back to. A shader that
+ * isn't listed is assumed to use every permutation.
+ */
+final class ShaderUsage {
+    private static final String EVERY_SHADER = "*";
+
+    private final Map<String, Set<Long>> masks = new HashMap<String, Set<Long>>();
+    private final Set<Long> required = new HashSet<Long>();
+
+    private ShaderUsage() {
+        required.add(0L);
+    }
+
+    public static ShaderUsage read(File file) throws IOException {
+        ShaderUsage usage = new ShaderUsage();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                ++lineNumber;
+                int comment = line.indexOf('#');
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty())
+                    continue;
+
+                Set<Long> set = usage.required;
+                if (!fields[0].equals(EVERY_SHADER)) {
+                    String key = key(new File(fields[0]));
+                    set = usage.masks.get(key);
+                    if (set == null) {
+                        set = new HashSet<Long>();
+                        usage.masks.put(key, set);
+                    }
+                }
+                for (int i = 1; i < fields.length; ++i) {
+                    set.add(parseMask(fields[i], file, lineNumber));
+                }
+            }
+        }
+        return usage;
+    }
+
+    private static long parseMask(String s, File file, int lineNumber) throws IOException {
+        try {
+            if (s.startsWith("0x") || s.startsWith("0X"))
+                return Long.parseUnsignedLong(s.substring(2), 16);
+            return Long.parseUnsignedLong(s);
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("%s:%d: invalid permutation mask %s", file, lineNumber, s));
+        }
+    }
+
+    private static String key(File file) {
+        return file.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    /**
+     * Returns the masks of the permutations of a shader that are used, including the required ones,
+     * or null if the shader isn't listed and so may use any of them.
+     */
+    public Set<Long> usedMasks(File inputFile, File outputFile) {
+        Set<Long> used = masks.get(key(inputFile));
+        Set<Long> usedByOutput = masks.get(key(outputFile));
+        if (used == null && usedByOutput == null)
+            return null;
+
+        Set<Long> result = new HashSet<Long>(required);
+        if (used != null)
+            result.addAll(used);
+        if (usedByOutput != null)
+            result.addAll(usedByOutput);
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A temporary file used as a large array of ints, floats or longs, for data that doesn't fit in the
+ * heap. The file is memory-mapped in fixed-size segments as it grows, so it may exceed 2 GB and its
+ * contents live in the page cache rather than the heap. Values are appended in order or read and
+ * written at any index up to the current size; indices count values of the type being accessed.
+ */
+final class SpillFile implements Closeable {
+    private static final int SEGMENT_SHIFT = 26;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = (int)(SEGMENT_SIZE - 1);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    private long size;
+
+    /**
+     * Creates an empty spill file in the given directory, or the default temporary directory if it is
+     * null. The file is deleted when closed.
+     */
+    public SpillFile(File directory, String prefix) throws IOException {
+        path = directory == null ? Files.createTempFile(prefix, ".spill")
+                                 : Files.createTempFile(directory.toPath(), prefix, ".spill");
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /** Size in bytes. */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Makes the file at least the given number of bytes long; new bytes are zero.
+     */
+    public void ensureSize(long bytes) throws IOException {
+        while ((long)segments.size() * SEGMENT_SIZE < bytes) {
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                                                   segments.size() * SEGMENT_SIZE, SEGMENT_SIZE);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments.add(segment);
+        }
+        size = Math.max(size, bytes);
+    }
+
+    private MappedByteBuffer segment(long offset) {
+        return segments.get((int)(offset >>> SEGMENT_SHIFT));
+    }
+
+    public void appendInt(int value) throws IOException {
+        long offset = size;
+        ensureSize(offset + 4);
+        segment(offset).putInt((int)offset & SEGMENT_MASK, value);
+    }
+
+    public void appendFloat(float value) throws IOException {
+        long offset = size;
+        ensureSize(offset + 4);
+        segment(offset).putFloat((int)offset & SEGMENT_MASK, value);
+    }
+
+    public int getInt(long index) {
+        long offset = 4 * index;
+        return segment(offset).getInt((int)offset & SEGMENT_MASK);
+    }
+
+    public void putInt(long index, int value) {
+        long offset = 4 * index;
+        segment(offset).putInt((int)offset & SEGMENT_MASK, value);
+    }
+
+    public float getFloat(long index) {
+        long offset = 4 * index;
+        return segment(offset).getFloat((int)offset & SEGMENT_MASK);
+    }
+
+    public long getLong(long index) {
+        long offset = 8 * index;
+        return segment(offset).getLong((int)offset & SEGMENT_MASK);
+    }
+
+    public void putLong(long index, long value) {
+        long offset = 8 * index;
+        segment(offset).putLong((int)offset & SEGMENT_MASK, value);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Mapped segments can't be unmapped explicitly; they go away once they are garbage collected.
+        segments.clear();
+        channel.close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // Still mapped on platforms that don't allow deleting mapped files
+            path.toFile().deleteOnExit();
+        }
+    }
+}
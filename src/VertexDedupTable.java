@@ -0,0 +1,122 @@
+/**
+ * Assigns consecutive numbers to distinct (position, normal, texcoord) index triples in order of
+ * first use, and keeps the triples themselves in that order.
+ *
+ * This is an open-addressing hash table with linear probing. While every index fits in 21 bits the
+ * triple is packed into a single long key, so a lookup touches only the slot arrays. Larger indices
+ * switch the table to storing a hash fingerprint per slot and comparing against the stored triple on
+ * a fingerprint match. Each slot's key and vertex number are stored next to each other, so that a
+ * probe costs a single cache miss.
+ */
+final class VertexDedupTable {
+    private static final int PACKED_BITS = 21;
+    private static final int PACKED_LIMIT = 1 << PACKED_BITS;
+
+    // Slot i holds its key at 2i and the vertex number + 1 at 2i+1; 0 marks an empty slot
+    private long[] slots;
+    private int mask;
+    private boolean wide;
+    private final IntList vertices;
+
+    public VertexDedupTable() {
+        this(1024);
+    }
+
+    public VertexDedupTable(int expectedVertices) {
+        int capacity = Integer.highestOneBit(Math.max(expectedVertices, 8) * 2 - 1) << 1;
+        slots = new long[2 * capacity];
+        mask = capacity - 1;
+        vertices = new IntList(Math.max(expectedVertices, 1) * 3);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static boolean fitsPacked(int position, int normal, int texcoord) {
+        return (position | normal | texcoord) >= 0 &&
+               position < PACKED_LIMIT && normal < PACKED_LIMIT && texcoord < PACKED_LIMIT;
+    }
+
+    private static long pack(int position, int normal, int texcoord) {
+        return (long)position | ((long)normal << PACKED_BITS) | ((long)texcoord << (2 * PACKED_BITS));
+    }
+
+    private static long wideHash(int position, int normal, int texcoord) {
+        return mix(((long)position << 32 | (normal & 0xFFFFFFFFL)) ^ mix(texcoord));
+    }
+
+    private long keyFor(int position, int normal, int texcoord) {
+        return wide ? wideHash(position, normal, texcoord) : pack(position, normal, texcoord);
+    }
+
+    /**
+     * Returns the number of the vertex with the given attribute indices, adding it if it hasn't been
+     * seen before.
+     */
+    public int indexFor(int position, int normal, int texcoord) {
+        if (!wide && !fitsPacked(position, normal, texcoord))
+            convertToWide();
+
+        long key = keyFor(position, normal, texcoord);
+        int slot = (int)(wide ? key : mix(key)) & mask;
+        int[] v = vertices.array();
+        while (true) {
+            int id = (int)slots[2*slot + 1];
+            if (id == 0)
+                break;
+            if (slots[2*slot] == key) {
+                if (!wide)
+                    return id - 1;
+                int i = 3 * (id - 1);
+                if (v[i] == position && v[i + 1] == normal && v[i + 2] == texcoord)
+                    return id - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int index = size();
+        vertices.add(position, normal, texcoord);
+        slots[2*slot] = key;
+        slots[2*slot + 1] = index + 1;
+        if (2 * size() > mask + 1)
+            rehash(2 * (mask + 1));
+        return index;
+    }
+
+    public int size() {
+        return vertices.size() / 3;
+    }
+
+    /**
+     * Returns the distinct triples in order of first use: vertex i is (get(3i), get(3i+1), get(3i+2)).
+     */
+    public IntList getVertices() {
+        return vertices;
+    }
+
+    private void rehash(int capacity) {
+        slots = new long[2 * capacity];
+        mask = capacity - 1;
+        int[] v = vertices.array();
+        for (int id = 0; id < size(); ++id) {
+            long key = keyFor(v[3*id], v[3*id + 1], v[3*id + 2]);
+            int slot = (int)(wide ? key : mix(key)) & mask;
+            while (slots[2*slot + 1] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[2*slot] = key;
+            slots[2*slot + 1] = id + 1;
+        }
+    }
+
+    private void convertToWide() {
+        wide = true;
+        rehash(mask + 1);
+    }
+}
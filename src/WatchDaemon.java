@@ -0,0 +1,236 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the compiler resident: watches the inputs and dependencies of every job and recompiles the
+ * affected assets when they change, and accepts build requests on standard input.
+ *
+ * Commands (one per line):
+ * <pre>
+ * build [file...]     compile out-of-date assets (all, or those affected by the given files)
+ * rebuild [file...]   as build, but recompile even if up to date
+ * quit                exit
+ * </pre>
+ * Every build, whether requested or triggered by a file change, is answered with a line of the form
+ * <pre>
+ * @done status=ok|failed trigger=command|watch compiled=N upToDate=N failed=N ms=N
+ * </pre>
+ */
+final class WatchDaemon {
+    private static final long DEBOUNCE_MILLIS = 200;
+
+    private static class Request {
+        Request(String trigger, Set<String> files, boolean force, boolean quit) {
+            this.trigger = trigger;
+            this.files = files;
+            this.force = force;
+            this.quit = quit;
+        }
+
+        final String trigger;
+        final Set<String> files; // null means every job
+        final boolean force;
+        final boolean quit;
+    }
+
+    private final List<DataCompiler.BuildJob> jobs;
+    private final Map<String, DataCompiler.BuildJob> jobsByInput = new HashMap<String, DataCompiler.BuildJob>();
+    private final BuildState state;
+    private final BuildScheduler scheduler;
+    private final AssetPacker packer;
+    private final BlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+
+    private WatchService watcher;
+    private final Map<WatchKey, Path> watchedDirs = new HashMap<WatchKey, Path>();
+    private final Set<Path> watchedPaths = new HashSet<Path>();
+
+    /**
+     * @param packer packs every job's outputs after each successful build, or null not to
+     */
+    public WatchDaemon(List<DataCompiler.BuildJob> jobs, BuildState state, BuildScheduler scheduler,
+                       AssetPacker packer) {
+        this.jobs = jobs;
+        this.state = state;
+        this.scheduler = scheduler;
+        this.packer = packer;
+        for (DataCompiler.BuildJob job : jobs) {
+            jobsByInput.put(job.inputFilename, job);
+        }
+    }
+
+    /**
+     * Runs until a quit command is received. Returns false if the daemon couldn't be started or the
+     * last build failed.
+     */
+    public boolean run(boolean force) {
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            System.out.println("Failed to create file system watcher");
+            return false;
+        }
+
+        Thread watchThread = new Thread(this::watchLoop, "DataCompiler-watch");
+        watchThread.setDaemon(true);
+        Thread commandThread = new Thread(this::commandLoop, "DataCompiler-commands");
+        commandThread.setDaemon(true);
+
+        boolean lastBuildSucceeded = build(new Request("command", null, force, false));
+        watchThread.start();
+        commandThread.start();
+        System.out.println("Watching for changes");
+
+        try {
+            while (true) {
+                Request request = requests.take();
+                if (request.quit)
+                    break;
+                lastBuildSucceeded = build(request);
+            }
+        } catch (InterruptedException e) {
+            // Treat as quit
+        }
+
+        try {
+            watcher.close();
+        } catch (IOException e) {
+            // Shutting down anyway
+        }
+        return lastBuildSucceeded;
+    }
+
+    private List<DataCompiler.BuildJob> findAffectedJobs(Set<String> files) {
+        if (files == null)
+            return jobs;
+        Set<String> inputs = new HashSet<String>();
+        DependencyGraph graph = state.getDependencyGraph();
+        for (String file : files) {
+            if (jobsByInput.containsKey(file))
+                inputs.add(file);
+            inputs.addAll(graph.getAffectedInputs(file));
+        }
+        List<DataCompiler.BuildJob> result = new ArrayList<DataCompiler.BuildJob>();
+        for (DataCompiler.BuildJob job : jobs) {
+            if (inputs.contains(job.inputFilename))
+                result.add(job);
+        }
+        return result;
+    }
+
+    private boolean build(Request request) {
+        List<DataCompiler.BuildJob> affected = findAffectedJobs(request.files);
+        DataCompiler.BuildResult result = DataCompiler.build(affected, state, scheduler, request.force);
+        updateWatches();
+        boolean succeeded = result.succeeded() && (packer == null || packer.pack(jobs));
+        System.out.printf("@done status=%s trigger=%s compiled=%d upToDate=%d failed=%d ms=%d%n",
+                          succeeded ? "ok" : "failed", request.trigger, result.compiled,
+                          result.upToDate, result.failed, result.elapsedMillis);
+        return succeeded;
+    }
+
+    private void watchDirectory(Path dir) {
+        if (!watchedPaths.add(dir))
+            return;
+        Path registered = dir.toString().isEmpty() ? Paths.get(".") : dir;
+        try {
+            WatchKey key = registered.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                               StandardWatchEventKinds.ENTRY_MODIFY,
+                                               StandardWatchEventKinds.ENTRY_DELETE);
+            synchronized (watchedDirs) {
+                watchedDirs.put(key, dir);
+            }
+        } catch (IOException e) {
+            System.out.printf("Warning: can't watch directory %s%n", registered);
+        }
+    }
+
+    /**
+     * Starts watching the directories of any inputs or dependencies that aren't being watched yet.
+     * Called after every build, since a build can discover new dependencies.
+     */
+    private void updateWatches() {
+        Set<String> files = new HashSet<String>(jobsByInput.keySet());
+        files.addAll(state.getDependencyGraph().getDependencyFiles());
+        for (String file : files) {
+            Path parent = Paths.get(file).normalize().getParent();
+            watchDirectory(parent == null ? Paths.get("") : parent);
+        }
+    }
+
+    private Path takeChanges(WatchKey key, Set<String> changed) {
+        Path dir;
+        synchronized (watchedDirs) {
+            dir = watchedDirs.get(key);
+        }
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                dir = null;
+                continue;
+            }
+            if (dir != null)
+                changed.add(dir.resolve((Path)event.context()).normalize().toString());
+        }
+        key.reset();
+        return dir;
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                Set<String> changed = new TreeSet<String>();
+                boolean overflow = takeChanges(watcher.take(), changed) == null;
+
+                // Wait for the burst of changes (e.g. an editor's save) to settle before building
+                WatchKey key;
+                while ((key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    if (takeChanges(key, changed) == null)
+                        overflow = true;
+                }
+
+                if (overflow) {
+                    requests.put(new Request("watch", null, false, false));
+                } else if (!findAffectedJobs(changed).isEmpty()) {
+                    requests.put(new Request("watch", changed, false, false));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Daemon is shutting down
+        }
+    }
+
+    private void commandLoop() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] words = line.trim().split("\\s+");
+                if (words[0].isEmpty())
+                    continue;
+                String command = words[0];
+                Set<String> files = null;
+                if (words.length > 1) {
+                    files = new TreeSet<String>();
+                    for (int i = 1; i < words.length; ++i) {
+                        files.add(Paths.get(words[i]).normalize().toString());
+                    }
+                }
+                if (command.equals("build")) {
+                    requests.put(new Request("command", files, false, false));
+                } else if (command.equals("rebuild")) {
+                    requests.put(new Request("command", files, true, false));
+                } else if (command.equals("quit")) {
+                    requests.put(new Request("command", null, false, true));
+                    return;
+                } else {
+                    System.out.printf("@error unknown command %s%n", command);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Stop accepting commands; file watching carries on
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BinaryWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void writeInts(BinaryWriter writer, int count) throws IOException {
+        long header = writer.writeTemp32();
+        for (int i = 1; i < count; ++i) {
+            writer.write32(i);
+        }
+        writer.overwriteTemp32(header, count);
+    }
+
+    private static void checkInts(File file, int count) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(4L * count, data.remaining());
+        assertEquals(count, data.getInt());
+        for (int i = 1; i < count; ++i) {
+            assertEquals(i, data.getInt());
+        }
+    }
+
+    @Test
+    public void commitWritesFile() throws IOException {
+        File file = new File(folder.getRoot(), "out.bin");
+        try (BinaryWriter writer = new BinaryWriter(file)) {
+            writeInts(writer, 1000);
+            writer.commit();
+        }
+        checkInts(file, 1000);
+        assertArrayEquals(new String[] {"out.bin"}, folder.getRoot().list());
+    }
+
+    @Test
+    public void commitWithBufferLimitPatchesWrittenOutBytes() throws IOException {
+        File file = new File(folder.getRoot(), "out.bin");
+        try (BinaryWriter writer = new BinaryWriter(file, false, 1024)) {
+            writeInts(writer, 100000);
+            writer.commit();
+        }
+        checkInts(file, 100000);
+    }
+
+    @Test
+    public void commitReplacesExistingFile() throws IOException {
+        File file = folder.newFile("out.bin");
+        Files.write(file.toPath(), new byte[1 << 20]);
+        try (BinaryWriter writer = new BinaryWriter(file)) {
+            writeInts(writer, 10);
+            writer.commit();
+        }
+        checkInts(file, 10);
+    }
+
+    @Test
+    public void closeWithoutCommitLeavesExistingFile() throws IOException {
+        File file = folder.newFile("out.bin");
+        byte[] previous = "previous output".getBytes("US-ASCII");
+        Files.write(file.toPath(), previous);
+        for (int bufferLimit : new int[] {0, 1024}) {
+            try (BinaryWriter writer = new BinaryWriter(file, false, bufferLimit)) {
+                writeInts(writer, 100000);
+            }
+            assertArrayEquals(previous, Files.readAllBytes(file.toPath()));
+            assertArrayEquals(new String[] {"out.bin"}, folder.getRoot().list());
+        }
+    }
+
+    @Test
+    public void closeWithoutCommitDoesNotCreateFile() throws IOException {
+        File file = new File(folder.getRoot(), "out.bin");
+        try (BinaryWriter writer = new BinaryWriter(file, false, 1024)) {
+            writeInts(writer, 100000);
+        }
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void exceptionBeforeCommitLeavesExistingFile() throws IOException {
+        File file = folder.newFile("out.bin");
+        byte[] previous = "previous output".getBytes("US-ASCII");
+        Files.write(file.toPath(), previous);
+        try (BinaryWriter writer = new BinaryWriter(file)) {
+            writeInts(writer, 10);
+            throw new IOException("compile failed");
+        } catch (IOException e) {
+            assertEquals("compile failed", e.getMessage());
+        }
+        assertArrayEquals(previous, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test(expected = IOException.class)
+    public void commitTwiceFails() throws IOException {
+        try (BinaryWriter writer = new BinaryWriter(new File(folder.getRoot(), "out.bin"))) {
+            writer.commit();
+            writer.commit();
+        }
+    }
+}
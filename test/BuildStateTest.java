@@ -0,0 +1,101 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Records compiles in a BuildState and checks what it then considers up to date, with files whose
+ * modification times are set explicitly rather than waiting for the clock.
+ */
+public class BuildStateTest {
+    private static final String VERSION = "1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BuildState state;
+    private File input;
+    private File include;
+    private File output;
+
+    private static void write(File file, String contents, long lastModified) throws IOException {
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.US_ASCII));
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    @Before
+    public void createFiles() throws IOException {
+        state = new BuildState(new File(folder.getRoot(), "state"));
+        input = new File(folder.getRoot(), "shader.metal");
+        include = new File(folder.getRoot(), "common.h");
+        output = new File(folder.getRoot(), "shader.shd");
+        write(input, "#include \"common.h\"\n", 1000000);
+        write(include, "float4 color;\n", 1000000);
+        write(output, "compiled", 3000000);
+        state.beginBuild();
+    }
+
+    private void record(long startTime) throws IOException {
+        state.record(input.getPath(), state.stampSource(input.getPath()), startTime, VERSION,
+                     Collections.singletonList(include.getPath()), Collections.singletonList(output.getPath()));
+    }
+
+    private boolean isUpToDate() {
+        state.beginBuild();
+        return state.isUpToDate(input.getPath(), VERSION, Collections.singletonList(output.getPath()));
+    }
+
+    @Test
+    public void upToDateUntilDependencyChanges() throws IOException {
+        state.stampSource(include.getPath());
+        record(2000000);
+        assertTrue(isUpToDate());
+
+        // Touched, but the same contents
+        assertTrue(include.setLastModified(4000000));
+        assertTrue(isUpToDate());
+
+        write(include, "float4 other;\n", 5000000);
+        assertFalse(isUpToDate());
+    }
+
+    @Test
+    public void dependencyEditedDuringCompileIsDirty() throws IOException {
+        // Hashed before the compile, then edited while it ran
+        state.stampSource(include.getPath());
+        write(include, "float4 other;\n", 2500000);
+        record(2000000);
+        assertFalse(isUpToDate());
+    }
+
+    @Test
+    public void stampIsRehashedAfterEdit() throws IOException {
+        BuildState.FileStamp before = state.stampSource(include.getPath());
+        write(include, "float4 other;\n", 2500000);
+        BuildState.FileStamp after = state.stampSource(include.getPath());
+        assertEquals(2500000, after.lastModified);
+        assertNotEquals(before.hash, after.hash);
+        assertEquals(BuildState.hashFile(include), after.hash);
+    }
+
+    @Test
+    public void dirtyStampSurvivesSaveAndLoad() throws IOException {
+        write(include, "float4 other;\n", 2500000);
+        record(2000000);
+        state.save();
+
+        BuildState loaded = new BuildState(state.getFile());
+        assertTrue(loaded.load());
+        loaded.beginBuild();
+        assertFalse(loaded.isUpToDate(input.getPath(), VERSION, Arrays.asList(output.getPath())));
+    }
+}
@@ -0,0 +1,205 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Round-trips Lz4 blocks and CompressedBlocks containers over data that compresses well, data that
+ * doesn't, and edge cases of both formats, and checks that corrupt input is rejected.
+ */
+public class CompressedBlocksTest {
+    private static final int BLOCK_SIZE = 4096;
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /** Text-like data, with short and long repeats at varying distances. */
+    private static byte[] compressible(int length) {
+        String[] words = {"vertex ", "index ", "shader ", "texture ", "permutation ", "mesh\n"};
+        Random random = new Random(1);
+        StringBuilder s = new StringBuilder();
+        while (s.length() < length) {
+            s.append(words[random.nextInt(words.length)]);
+        }
+        return Arrays.copyOf(s.toString().getBytes(StandardCharsets.US_ASCII), length);
+    }
+
+    private static byte[] lz4RoundTrip(byte[] data) throws IOException {
+        byte[] compressed = new byte[Lz4.maxCompressedLength(data.length)];
+        int n = Lz4.compress(data, 0, data.length, compressed, 0, Lz4.newHashTable());
+        assertTrue(n <= compressed.length);
+        byte[] decompressed = new byte[data.length];
+        Lz4.decompress(compressed, 0, n, decompressed, 0, data.length);
+        assertArrayEquals(data, decompressed);
+        return Arrays.copyOf(compressed, n);
+    }
+
+    @Test
+    public void lz4RoundTrips() throws IOException {
+        byte[] empty = lz4RoundTrip(new byte[0]);
+        assertEquals(1, empty.length);
+        lz4RoundTrip("tiny".getBytes(StandardCharsets.US_ASCII));
+        lz4RoundTrip(random(100000, 2));
+        assertTrue(lz4RoundTrip(compressible(100000)).length < 100000 / 2);
+        // A run of one byte is a match overlapping itself, and longer than 15 + 255
+        byte[] run = new byte[70000];
+        Arrays.fill(run, 5, run.length, (byte)7);
+        assertTrue(lz4RoundTrip(run).length < 1000);
+        // Literal runs longer than 15 + 255 between matches
+        byte[] mixed = random(60000, 3);
+        System.arraycopy(mixed, 0, mixed, 30000, 1000);
+        lz4RoundTrip(mixed);
+    }
+
+    @Test
+    public void lz4CompressesAtAnOffset() throws IOException {
+        byte[] data = compressible(10000);
+        byte[] src = new byte[data.length + 20];
+        System.arraycopy(data, 0, src, 7, data.length);
+        byte[] dst = new byte[Lz4.maxCompressedLength(data.length) + 11];
+        int n = Lz4.compress(src, 7, data.length, dst, 11, Lz4.newHashTable());
+        byte[] out = new byte[data.length + 3];
+        Lz4.decompress(dst, 11, n, out, 3, data.length);
+        assertArrayEquals(data, Arrays.copyOfRange(out, 3, out.length));
+    }
+
+    @Test
+    public void lz4RejectsCorruptBlocks() {
+        byte[][] corrupt = {
+            {},
+            // Literals past the end of the input
+            {(byte)0x50, 1, 2},
+            // A match with offset 0
+            {(byte)0x10, 1, 0, 0, 0x00},
+            // A match reaching back before the start of the output
+            {(byte)0x10, 1, 5, 0, 0x00},
+        };
+        for (byte[] block : corrupt) {
+            try {
+                Lz4.decompress(block, 0, block.length, new byte[16], 0, 16);
+                fail(Arrays.toString(block));
+            } catch (IOException e) {
+                assertEquals("Corrupt compressed block", e.getMessage());
+            }
+        }
+        // Decompresses to fewer bytes than expected
+        byte[] block = {(byte)0x30, 1, 2, 3};
+        try {
+            Lz4.decompress(block, 0, block.length, new byte[16], 0, 16);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Corrupt compressed block", e.getMessage());
+        }
+    }
+
+    private static byte[] roundTrip(byte[] data) throws IOException {
+        byte[] blocks = CompressedBlocks.compress(data, data.length, BLOCK_SIZE);
+        assertArrayEquals(data, CompressedBlocks.decompress(ByteBuffer.wrap(blocks), data.length));
+        return blocks;
+    }
+
+    @Test
+    public void emptyInput() throws IOException {
+        byte[] blocks = roundTrip(new byte[0]);
+        // blockSize, nBlocks and the one end offset
+        assertEquals(12, blocks.length);
+    }
+
+    @Test
+    public void incompressibleBlocksAreStoredRaw() throws IOException {
+        byte[] data = random(3 * BLOCK_SIZE, 4);
+        byte[] blocks = roundTrip(data);
+        assertEquals(8 + 4 * 4 + data.length, blocks.length);
+        assertArrayEquals(data, Arrays.copyOfRange(blocks, blocks.length - data.length, blocks.length));
+    }
+
+    @Test
+    public void partialFinalBlock() throws IOException {
+        byte[] data = compressible(5 * BLOCK_SIZE + 123);
+        byte[] blocks = roundTrip(data);
+        ByteBuffer header = ByteBuffer.wrap(blocks).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(BLOCK_SIZE, header.getInt(0));
+        assertEquals(6, header.getInt(4));
+        assertTrue(blocks.length < data.length / 2);
+        // Smaller than a block, and the last block raw
+        roundTrip(compressible(100));
+        byte[] mixed = compressible(2 * BLOCK_SIZE + 10);
+        System.arraycopy(random(10, 5), 0, mixed, 2 * BLOCK_SIZE, 10);
+        roundTrip(mixed);
+    }
+
+    @Test
+    public void decompressesOneBlockAlone() throws IOException {
+        byte[] data = compressible(7 * BLOCK_SIZE + 1000);
+        // A raw block among compressed ones
+        System.arraycopy(random(BLOCK_SIZE, 6), 0, data, 2 * BLOCK_SIZE, BLOCK_SIZE);
+        byte[] blocks = CompressedBlocks.compress(data, data.length, BLOCK_SIZE);
+        // Blocks that follow other data, as they do in an asset pack
+        ByteBuffer buffer = ByteBuffer.allocate(blocks.length + 9);
+        buffer.position(9);
+        buffer.put(blocks);
+        buffer.position(9);
+
+        for (int b : new int[] {3, 0, 2, 7}) {
+            int start = b * BLOCK_SIZE;
+            assertArrayEquals(Arrays.copyOfRange(data, start, Math.min(data.length, start + BLOCK_SIZE)),
+                              CompressedBlocks.decompressBlock(buffer, data.length, b));
+        }
+        assertEquals(9, buffer.position());
+        try {
+            CompressedBlocks.decompressBlock(buffer, data.length, 8);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    private static void checkCorrupt(byte[] blocks, int length) {
+        try {
+            CompressedBlocks.decompress(ByteBuffer.wrap(blocks), length);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt compressed"));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptContainers() throws IOException {
+        byte[] data = compressible(4 * BLOCK_SIZE);
+        byte[] blocks = CompressedBlocks.compress(data, data.length, BLOCK_SIZE);
+
+        // Wrong length for the block count, and truncated
+        checkCorrupt(blocks, data.length + BLOCK_SIZE);
+        checkCorrupt(Arrays.copyOf(blocks, blocks.length - 10), data.length);
+        checkCorrupt(Arrays.copyOf(blocks, 16), data.length);
+
+        // A zero block size
+        byte[] zeroBlockSize = blocks.clone();
+        ByteBuffer.wrap(zeroBlockSize).order(ByteOrder.LITTLE_ENDIAN).putInt(0, 0);
+        checkCorrupt(zeroBlockSize, data.length);
+
+        // Offsets out of order
+        byte[] swapped = blocks.clone();
+        ByteBuffer header = ByteBuffer.wrap(swapped).order(ByteOrder.LITTLE_ENDIAN);
+        int ofs1 = header.getInt(12);
+        header.putInt(12, header.getInt(16));
+        header.putInt(16, ofs1);
+        checkCorrupt(swapped, data.length);
+
+        // Damaged compressed bytes
+        byte[] damaged = blocks.clone();
+        int dataStart = 8 + 4 * 5;
+        for (int i = dataStart; i < dataStart + 64; ++i) {
+            damaged[i] = (byte)0xFF;
+        }
+        checkCorrupt(damaged, data.length);
+    }
+}
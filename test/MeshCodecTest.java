@@ -0,0 +1,157 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compiles the sample meshes in test/meshes with and without encodeMeshes and checks that the
+ * encoded .mdg files decode to the same vertices and triangles as the plain ones.
+ */
+public class MeshCodecTest {
+    private static final File MESHES = new File("test/meshes");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** The vertices and indices of an .mdg file, decoded if it is version 3. */
+    private static class Geometry {
+        int flags;
+        byte[] vertices;
+        int[] indices;
+    }
+
+    private File compile(File obj, ObjCompiler.Options options) throws IOException {
+        File dir = folder.newFolder();
+        String name = obj.getName().replace(".obj", "");
+        List<File> outputs = Arrays.asList(new File(dir, name + ".mdl"), new File(dir, name + ".mdg"));
+        assertTrue(obj.getName(), new ObjCompiler(options).compile(obj, outputs, new ArrayList<File>()));
+        return outputs.get(1);
+    }
+
+    private static Geometry read(File mdg) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(mdg.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        int version = file.getInt(4);
+        int nVertices = file.getInt(12);
+        int vertexSize = file.getInt(16);
+        int ofsVertices = file.getInt(20);
+        int nIndices = file.getInt(24);
+        int indexSize = file.getInt(28);
+        int ofsIndices = file.getInt(32);
+
+        Geometry geometry = new Geometry();
+        geometry.flags = file.getInt(8);
+        geometry.vertices = new byte[nVertices * vertexSize];
+        geometry.indices = new int[nIndices];
+        if (version == 3) {
+            int[] predictedFrom = new int[3 * nVertices];
+            MeshCodec.decodeIndices(file.array(), ofsIndices, file.capacity() - ofsIndices, geometry.indices,
+                                    nIndices, predictedFrom);
+            MeshCodec.decodeVertices(file.array(), ofsVertices, ofsIndices - ofsVertices, geometry.vertices,
+                                     nVertices, QuantizedVertexFormat.componentSizes(geometry.flags), predictedFrom);
+            return geometry;
+        }
+        assertEquals(1, version);
+        System.arraycopy(file.array(), ofsVertices, geometry.vertices, 0, geometry.vertices.length);
+        for (int i = 0; i < nIndices; ++i) {
+            int pos = ofsIndices + i * indexSize;
+            geometry.indices[i] = indexSize == 2 ? file.getShort(pos) & 0xFFFF : file.getInt(pos);
+        }
+        return geometry;
+    }
+
+    /**
+     * Rotates each triangle to start at its smallest index, as encodeIndices may rotate triangles
+     * but keeps their winding and order.
+     */
+    private static int[] canonicalTriangles(int[] indices) {
+        int[] triangles = indices.clone();
+        for (int i = 0; i + 2 < triangles.length; i += 3) {
+            while (triangles[i] > triangles[i + 1] || triangles[i] > triangles[i + 2]) {
+                int a = triangles[i];
+                triangles[i] = triangles[i + 1];
+                triangles[i + 1] = triangles[i + 2];
+                triangles[i + 2] = a;
+            }
+        }
+        return triangles;
+    }
+
+    private void checkRoundTrip(ObjCompiler.Options options) throws IOException {
+        File[] meshes = MESHES.listFiles((dir, name) -> name.endsWith(".obj"));
+        assertTrue(meshes.length > 0);
+        for (File obj : meshes) {
+            options.encodeMeshes = false;
+            Geometry expected = read(compile(obj, options));
+            options.encodeMeshes = true;
+            File encoded = compile(obj, options);
+            Geometry actual = read(encoded);
+            assertEquals(obj.getName(), expected.flags, actual.flags);
+            assertArrayEquals(obj.getName(), expected.vertices, actual.vertices);
+            assertArrayEquals(obj.getName(), canonicalTriangles(expected.indices), canonicalTriangles(actual.indices));
+        }
+    }
+
+    @Test
+    public void floatPositions() throws IOException {
+        checkRoundTrip(new ObjCompiler.Options());
+    }
+
+    @Test
+    public void quantizedPositions() throws IOException {
+        ObjCompiler.Options options = new ObjCompiler.Options();
+        options.quantizePositions = true;
+        checkRoundTrip(options);
+    }
+
+    @Test
+    public void optimizedMeshes() throws IOException {
+        ObjCompiler.Options options = new ObjCompiler.Options();
+        options.optimizeVertexCache = true;
+        options.optimizeOverdraw = true;
+        checkRoundTrip(options);
+        options.quantizePositions = true;
+        checkRoundTrip(options);
+    }
+
+    @Test
+    public void encodedMeshesAreSmaller() throws IOException {
+        ObjCompiler.Options options = new ObjCompiler.Options();
+        options.quantizePositions = true;
+        File obj = new File(MESHES, "sphere.obj");
+        long plain = compile(obj, options).length();
+        options.encodeMeshes = true;
+        long encoded = compile(obj, options).length();
+        assertTrue(plain + " -> " + encoded, encoded * 2 < plain);
+    }
+
+    @Test
+    public void rejectsTruncatedVertices() throws IOException {
+        ObjCompiler.Options options = new ObjCompiler.Options();
+        options.encodeMeshes = true;
+        byte[] file = Files.readAllBytes(compile(new File(MESHES, "terrain.obj"), options).toPath());
+        ByteBuffer header = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        int flags = header.getInt(8);
+        int nVertices = header.getInt(12);
+        int ofsVertices = header.getInt(20);
+        int nIndices = header.getInt(24);
+        int ofsIndices = header.getInt(32);
+        int[] predictedFrom = new int[3 * nVertices];
+        MeshCodec.decodeIndices(file, ofsIndices, file.length - ofsIndices, new int[nIndices], nIndices, predictedFrom);
+        try {
+            MeshCodec.decodeVertices(file, ofsVertices, (ofsIndices - ofsVertices) / 2,
+                                     new byte[nVertices * header.getInt(16)], nVertices,
+                                     QuantizedVertexFormat.componentSizes(flags), predictedFrom);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Corrupt encoded vertices", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,214 @@
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.Test;
+
+/**
+ * Simplifies flat grids with locked vertices and open borders and a closed sphere, and checks what
+ * each level of detail keeps.
+ */
+public class MeshSimplifierTest {
+    private static final int N = 16;
+    private static final int SEAM = N / 2;
+
+    // A grid of N x N quads on the unit square, optionally with a UV seam down column SEAM: the quads
+    // to its right then use a second copy of each seam vertex, at the same position
+    private final List<Float> gridPositions = new ArrayList<Float>();
+    private final List<Integer> gridPositionIds = new ArrayList<Integer>();
+    private final int[][] gridVertex = new int[N + 1][N + 1];
+    private final int[] seamCopy = new int[N + 1];
+    private int[] gridIndices;
+
+    private int addVertex(int i, int j) {
+        gridPositions.add((float)i / N);
+        gridPositions.add((float)j / N);
+        gridPositions.add(0.0f);
+        gridPositionIds.add(i * (N + 1) + j);
+        return gridPositionIds.size() - 1;
+    }
+
+    private void buildGrid(boolean seam) {
+        for (int i = 0; i <= N; ++i) {
+            for (int j = 0; j <= N; ++j) {
+                gridVertex[i][j] = addVertex(i, j);
+            }
+        }
+        for (int j = 0; j <= N; ++j) {
+            seamCopy[j] = seam ? addVertex(SEAM, j) : gridVertex[SEAM][j];
+        }
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int i = 0; i < N; ++i) {
+            for (int j = 0; j < N; ++j) {
+                int a = i == SEAM ? seamCopy[j] : gridVertex[i][j];
+                int b = gridVertex[i + 1][j];
+                int c = gridVertex[i + 1][j + 1];
+                int d = i == SEAM ? seamCopy[j + 1] : gridVertex[i][j + 1];
+                indices.addAll(Arrays.asList(a, b, c, a, c, d));
+            }
+        }
+        gridIndices = toArray(indices);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; ++i) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static float[] toFloatArray(List<Float> list) {
+        float[] array = new float[list.size()];
+        for (int i = 0; i < array.length; ++i) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    private static Set<Integer> vertices(int[] indices) {
+        Set<Integer> set = new HashSet<Integer>();
+        for (int index : indices) {
+            set.add(index);
+        }
+        return set;
+    }
+
+    private static long edgeKey(int a, int b) {
+        return a < b ? ((long)a << 32) | b : ((long)b << 32) | a;
+    }
+
+    /** The number of triangles sharing each edge, by position id. */
+    private static Map<Long, Integer> edgeCounts(int[] indices, int[] positionIds) {
+        Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        for (int i = 0; i < indices.length; i += 3) {
+            for (int k = 0; k < 3; ++k) {
+                long key = edgeKey(positionIds[indices[i + k]], positionIds[indices[i + (k + 1) % 3]]);
+                Integer count = counts.get(key);
+                counts.put(key, count == null ? 1 : count + 1);
+            }
+        }
+        return counts;
+    }
+
+    @Test
+    public void lockedVerticesNeverMove() {
+        buildGrid(true);
+        boolean[] locked = new boolean[gridPositionIds.size()];
+        // Both sides of the seam, as the compiler locks positions used by more than one vertex
+        for (int j = 0; j <= N; ++j) {
+            locked[gridVertex[SEAM][j]] = true;
+            locked[seamCopy[j]] = true;
+        }
+        // A row bordering another submesh
+        for (int i = 0; i <= N; ++i) {
+            locked[gridVertex[i][N / 4]] = true;
+        }
+        MeshSimplifier simplifier = new MeshSimplifier(toFloatArray(gridPositions), toArray(gridPositionIds), locked);
+        MeshSimplifier.Result result = simplifier.simplify(gridIndices, 0, gridIndices.length, new float[] {0.5f, 0.2f});
+
+        for (int[] level : result.indices) {
+            assertTrue(level.length < gridIndices.length);
+            // A vertex that moves is collapsed onto a neighbour and no longer used
+            Set<Integer> used = vertices(level);
+            for (int v = 0; v < locked.length; ++v) {
+                if (locked[v])
+                    assertTrue("vertex " + v, used.contains(v));
+            }
+        }
+        // Most of the grid is still free to simplify
+        assertTrue(result.indices[1].length < gridIndices.length / 2);
+    }
+
+    @Test
+    public void openGridKeepsItsBorder() {
+        buildGrid(false);
+        int[] positionIds = toArray(gridPositionIds);
+        float[] positions = toFloatArray(gridPositions);
+        MeshSimplifier simplifier = new MeshSimplifier(positions, positionIds, new boolean[positionIds.length]);
+        MeshSimplifier.Result result = simplifier.simplify(gridIndices, 0, gridIndices.length,
+                                                           new float[] {0.5f, 0.25f, 0.1f});
+
+        for (int level = 0; level < result.indices.length; ++level) {
+            int[] indices = result.indices[level];
+            assertTrue(indices.length < gridIndices.length);
+            // Every open edge runs along one side of the square, and together they cover all four
+            Map<Long, Integer> edgeCounts = edgeCounts(indices, positionIds);
+            double borderLength = 0;
+            for (int i = 0; i < indices.length; i += 3) {
+                for (int k = 0; k < 3; ++k) {
+                    int a = indices[i + k];
+                    int b = indices[i + (k + 1) % 3];
+                    if (edgeCounts.get(edgeKey(positionIds[a], positionIds[b])) != 1)
+                        continue;
+                    float ax = positions[3*a], ay = positions[3*a + 1];
+                    float bx = positions[3*b], by = positions[3*b + 1];
+                    boolean onSide = (ax == bx && (ax == 0 || ax == 1)) || (ay == by && (ay == 0 || ay == 1));
+                    assertTrue("level " + level + " edge " + a + "-" + b, onSide);
+                    borderLength += Math.hypot(bx - ax, by - ay);
+                }
+            }
+            assertEquals(4.0, borderLength, 1e-5);
+            // The grid is flat, so staying in its plane costs nothing
+            assertEquals(0.0f, result.errors[level], 1e-5f);
+        }
+    }
+
+    @Test
+    public void closedSphereReachesTarget() {
+        // Rings of latitude between two poles
+        int rings = 24;
+        int segments = 32;
+        List<Float> positions = new ArrayList<Float>();
+        for (int r = 1; r < rings; ++r) {
+            double theta = Math.PI * r / rings;
+            for (int s = 0; s < segments; ++s) {
+                double phi = 2 * Math.PI * s / segments;
+                positions.add((float)(Math.sin(theta) * Math.cos(phi)));
+                positions.add((float)(Math.sin(theta) * Math.sin(phi)));
+                positions.add((float)Math.cos(theta));
+            }
+        }
+        int top = positions.size() / 3;
+        positions.addAll(Arrays.asList(0.0f, 0.0f, 1.0f));
+        int bottom = top + 1;
+        positions.addAll(Arrays.asList(0.0f, 0.0f, -1.0f));
+
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int s = 0; s < segments; ++s) {
+            int next = (s + 1) % segments;
+            indices.addAll(Arrays.asList(top, s, next));
+            int last = (rings - 2) * segments;
+            indices.addAll(Arrays.asList(bottom, last + next, last + s));
+            for (int r = 0; r < rings - 2; ++r) {
+                int a = r * segments + s, b = r * segments + next;
+                int c = a + segments, d = b + segments;
+                indices.addAll(Arrays.asList(a, c, d, a, d, b));
+            }
+        }
+        int[] original = toArray(indices);
+        int[] positionIds = new int[top + 2];
+        for (int v = 0; v < positionIds.length; ++v) {
+            positionIds[v] = v;
+        }
+        float[] targets = {0.5f, 0.25f, 0.1f};
+        MeshSimplifier simplifier = new MeshSimplifier(toFloatArray(positions), positionIds,
+                                                       new boolean[positionIds.length]);
+        MeshSimplifier.Result result = simplifier.simplify(original, 0, original.length, targets);
+
+        int triangles = original.length / 3;
+        float previousError = 0;
+        for (int level = 0; level < targets.length; ++level) {
+            int[] levelIndices = result.indices[level];
+            assertTrue("level " + level, levelIndices.length / 3 <= (int)(triangles * (double)targets[level]));
+            assertTrue("level " + level, result.errors[level] >= previousError);
+            previousError = result.errors[level];
+            // Still closed: every edge is shared by exactly two triangles
+            for (int count : edgeCounts(levelIndices, positionIds).values()) {
+                assertEquals(2, count);
+            }
+        }
+        assertTrue(result.errors[0] > 0);
+        assertTrue(result.errors[targets.length - 1] < 0.5f);
+    }
+}
@@ -0,0 +1,297 @@
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compiles shaders with the stand-in metal, metal-ar and metallib in test/tools, which turn each
+ * permutation into a "metallib" listing the macros it was compiled with.
+ */
+public class MetalShaderCompilerTest {
+    private static final File TOOLS = new File("test/tools");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String contents) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    /** Options that use the stand-in tools, with a scratch directory as the SDK. */
+    private MetalShaderCompiler.Options standInOptions() throws IOException {
+        assumeTrue(new File("/bin/sh").canExecute());
+        MetalShaderCompiler.Options options = new MetalShaderCompiler.Options();
+        options.setToolchainDirectory(TOOLS.getAbsoluteFile());
+        options.sysroot = folder.newFolder().getPath();
+        return options;
+    }
+
+    /** The mask of the F_nn macros a stand-in metallib was compiled with. */
+    private static long macroMask(byte[] metallib) {
+        long mask = 0;
+        for (String line : new String(metallib, StandardCharsets.US_ASCII).split("\n")) {
+            if (line.startsWith("F_"))
+                mask |= 1L << Integer.parseInt(line.substring(2, 4));
+        }
+        return mask;
+    }
+
+    @Test(timeout = 60000)
+    public void legacyFormatIsInDescendingPopcountOrder() throws IOException {
+        File shader = write("Shaders/lit.metal",
+                            "#ifdef F_00Skinned\nskin();\n#endif\n" +
+                            "#ifdef F_01Normals\nnormals();\n#endif\n" +
+                            "#ifdef F_05Shadows\nshadows();\n#endif\n");
+        File output = new File(folder.getRoot(), "lit_MTL.shd");
+        MetalShaderCompiler.Options options = standInOptions();
+        options.legacyShaderFormat = true;
+        options.maxConcurrentPermutations = 3;
+        MetalShaderCompiler compiler = new MetalShaderCompiler(options);
+        assertTrue(compiler.compile(shader, Collections.singletonList(output), new ArrayList<File>()));
+        // Permutations finish in a different order each time, but are written in the same one
+        File again = new File(folder.getRoot(), "again_MTL.shd");
+        assertTrue(compiler.compile(shader, Collections.singletonList(again), new ArrayList<File>()));
+        assertArrayEquals(Files.readAllBytes(output.toPath()), Files.readAllBytes(again.toPath()));
+
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(output.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(MetalShaderCompiler.LEGACY_SHADER_FORMAT_VERSION, file.getInt(4));
+        assertEquals(8, file.getInt(12));
+        Set<Long> masks = new HashSet<Long>();
+        int pos = 16;
+        int previousPopcount = Integer.MAX_VALUE;
+        for (int i = 0; i < 8; ++i) {
+            long mask = file.getLong(pos);
+            byte[] metallib = Arrays.copyOfRange(file.array(), pos + 24, pos + 24 + file.getInt(pos + 8));
+            assertEquals(mask, macroMask(metallib));
+            assertTrue(Long.bitCount(mask) <= previousPopcount);
+            previousPopcount = Long.bitCount(mask);
+            masks.add(mask);
+            pos += file.getInt(pos + 16);
+        }
+        assertEquals(file.capacity(), pos);
+        assertEquals(8, masks.size());
+        for (long mask : masks) {
+            assertEquals(0, mask & ~0x23L);
+        }
+    }
+
+    @Test
+    public void failedCompileLeavesPreviousOutput() throws IOException {
+        // Flag indices above 63 are rejected before any tool runs
+        File shader = folder.newFile("bad.metal");
+        Files.write(shader.toPath(), "#ifdef F_64TooMany\n#endif\n".getBytes(StandardCharsets.US_ASCII));
+        File output = folder.newFile("bad_MTL.shd");
+        byte[] previous = "previous output".getBytes(StandardCharsets.US_ASCII);
+        Files.write(output.toPath(), previous);
+
+        MetalShaderCompiler compiler = new MetalShaderCompiler();
+        assertFalse(compiler.compile(shader, Collections.singletonList(output), new ArrayList<File>()));
+
+        assertArrayEquals(previous, Files.readAllBytes(output.toPath()));
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    @Test(timeout = 30000)
+    public void versionDependsOnToolchainAndSysroot() throws IOException {
+        MetalShaderCompiler.Options options = standInOptions();
+        String version = new MetalShaderCompiler(options).getVersion();
+        assertTrue(version, version.startsWith("SHD3 "));
+        assertEquals(version, new MetalShaderCompiler(options).getVersion());
+
+        options.sysroot = folder.newFolder().getPath();
+        String otherSysroot = new MetalShaderCompiler(options).getVersion();
+        assertNotEquals(version, otherSysroot);
+
+        File toolchain = folder.newFolder();
+        for (String tool : new String[] {"metal", "metal-ar", "metallib"}) {
+            Files.copy(new File(TOOLS, tool).toPath(), new File(toolchain, tool).toPath());
+        }
+        options.setToolchainDirectory(toolchain);
+        assertNotEquals(otherSysroot, new MetalShaderCompiler(options).getVersion());
+    }
+
+    /**
+     * Compiles the shader and lists its permutations' masks grouped by the blob they share in the
+     * .shd file, e.g. "[0, 2] [1, 3]".
+     */
+    private String blobGroups(File shader) throws IOException {
+        File output = new File(folder.getRoot(), shader.getName().replace(".metal", "_MTL.shd"));
+        assertTrue(new MetalShaderCompiler(standInOptions()).compile(shader, Collections.singletonList(output),
+                                                                     new ArrayList<File>()));
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(output.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(MetalShaderCompiler.SHADER_FORMAT_VERSION, file.getInt(4));
+        Map<Integer, List<Long>> groups = new TreeMap<Integer, List<Long>>();
+        Map<Integer, Integer> lengths = new HashMap<Integer, Integer>();
+        for (int i = 0; i < file.getInt(12); ++i) {
+            int entry = file.getInt(20) + 16 * i;
+            groups.computeIfAbsent(file.getInt(entry + 8), k -> new ArrayList<Long>()).add(file.getLong(entry));
+            lengths.put(file.getInt(entry + 8), file.getInt(entry + 12));
+        }
+        assertEquals(file.getInt(16), groups.size());
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<Integer, List<Long>> group : groups.entrySet()) {
+            // Each blob was compiled for one of the permutations that share it
+            int ofsData = group.getKey();
+            long compiledMask = macroMask(Arrays.copyOfRange(file.array(), ofsData, ofsData + lengths.get(ofsData)));
+            assertTrue(group.getValue().contains(compiledMask));
+            Collections.sort(group.getValue());
+            result.add(group.getValue().toString());
+        }
+        Collections.sort(result);
+        return String.join(" ", result);
+    }
+
+    @Test(timeout = 60000)
+    public void groupsIfElifWithDefined() throws IOException {
+        File shader = write("Shaders/elif.metal",
+                            "#ifdef F_00Fog\n#endif\n#ifdef F_01Tint\n#endif\n" +
+                            "#if defined(F_00Fog) && defined(F_01Tint)\nboth();\n" +
+                            "#elif defined F_00Fog || defined(F_01Tint)\none();\n" +
+                            "#else\nneither();\n#endif\n");
+        assertEquals("[0] [1, 2] [3]", blobGroups(shader));
+    }
+
+    @Test(timeout = 60000)
+    public void groupsNestedIfdefs() throws IOException {
+        File shader = write("Shaders/nested.metal",
+                            "#ifdef F_00Fog\n#ifdef F_01Tint\nfoggyTint();\n#endif\n#endif\n" +
+                            "#ifdef F_02Unused\n#endif\n");
+        assertEquals("[0, 1, 2, 4, 5, 6] [3, 7]", blobGroups(shader));
+    }
+
+    @Test(timeout = 60000)
+    public void groupsByDefinesInConditionals() throws IOException {
+        File shader = write("Shaders/define.metal",
+                            "#ifdef F_00High\n#define QUALITY 2\n#else\n#define QUALITY 1\n#endif\n" +
+                            "#ifdef F_01Unused\n#endif\n" +
+                            "#if QUALITY > 1\nhigh();\n#else\nlow();\n#endif\n");
+        assertEquals("[0, 2] [1, 3]", blobGroups(shader));
+    }
+
+    @Test(timeout = 60000)
+    public void includeGuardSkipsSecondInclusion() throws IOException {
+        write("Shaders/guarded.h", "#ifndef GUARDED_H\n#define GUARDED_H\nfloat4 tint;\n#endif\n");
+        // Including the header again only under a flag compiles the same code as not including it
+        File shader = write("Shaders/guard.metal",
+                            "#include \"guarded.h\"\n" +
+                            "#ifdef F_00Fog\n#include \"guarded.h\"\n#endif\n" +
+                            "#ifdef F_01Unused\n#endif\n");
+        assertEquals("[0, 1, 2, 3]", blobGroups(shader));
+    }
+
+    /** The masks in a version 3 .shd file's permutation table, in order. */
+    private static List<Long> masks(File shd) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(shd.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        List<Long> masks = new ArrayList<Long>();
+        for (int i = 0; i < file.getInt(12); ++i) {
+            masks.add(file.getLong(file.getInt(20) + 16 * i));
+        }
+        return masks;
+    }
+
+    @Test(timeout = 60000)
+    public void compilesOnlyUsedPermutations() throws IOException {
+        File lit = write("Shaders/lit.metal",
+                         "#ifdef F_00Fog\nfog();\n#endif\n#ifdef F_01Tint\ntint();\n#endif\n" +
+                         "#ifdef F_03Shadows\nshadows();\n#endif\n");
+        File basic = write("Shaders/basic.metal", "#ifdef F_00Fog\nfog();\n#endif\n");
+        File litOutput = new File(folder.getRoot(), "lit_MTL.shd");
+        File basicOutput = new File(folder.getRoot(), "basic_MTL.shd");
+        MetalShaderCompiler.Options options = standInOptions();
+        // 0x13 has an engine flag lit doesn't use; 0x0 is always required
+        options.usageFile = write("usage.txt", "# Recorded by the engine\n" +
+                                               lit.getPath() + " 0x13 9\n" +
+                                               "* 2\n");
+        MetalShaderCompiler compiler = new MetalShaderCompiler(options);
+
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        List<File> dependencies = new ArrayList<File>();
+        try {
+            System.setOut(new PrintStream(log, true, "UTF-8"));
+            assertTrue(compiler.compile(lit, Collections.singletonList(litOutput), dependencies));
+        } finally {
+            System.setOut(stdout);
+        }
+        assertEquals(Arrays.asList(0L, 2L, 3L, 9L), masks(litOutput));
+        assertTrue(log.toString("UTF-8"), log.toString("UTF-8").contains("8 permutations, 4 pruned, 4 compiled"));
+        assertTrue(dependencies.contains(options.usageFile));
+
+        // Not listed, so every permutation is compiled
+        assertTrue(compiler.compile(basic, Collections.singletonList(basicOutput), new ArrayList<File>()));
+        assertEquals(Arrays.asList(0L, 1L), masks(basicOutput));
+    }
+
+    @Test(timeout = 30000)
+    public void invalidUsageFileFailsCompile() throws IOException {
+        File shader = write("Shaders/lit.metal", "#ifdef F_00Fog\nfog();\n#endif\n");
+        MetalShaderCompiler.Options options = standInOptions();
+        options.usageFile = write("usage.txt", shader.getPath() + " fog\n");
+        File output = new File(folder.getRoot(), "lit_MTL.shd");
+        assertFalse(new MetalShaderCompiler(options).compile(shader, Collections.singletonList(output),
+                                                             new ArrayList<File>()));
+        assertFalse(output.exists());
+    }
+
+    private File compileWithCache(File shader, MetalShaderCompiler.Options options, String outputName)
+            throws IOException {
+        File output = new File(folder.getRoot(), outputName);
+        assertTrue(new MetalShaderCompiler(options).compile(shader, Collections.singletonList(output),
+                                                            new ArrayList<File>()));
+        return output;
+    }
+
+    /** How many times the stand-in metal has compiled a permutation against the options' sysroot. */
+    private static int metalRuns(MetalShaderCompiler.Options options) throws IOException {
+        File runs = new File(options.sysroot, "metal.runs");
+        return runs.exists() ? Files.readAllLines(runs.toPath()).size() : 0;
+    }
+
+    @Test(timeout = 60000)
+    public void cachedPermutationsSkipTheToolchain() throws IOException {
+        write("Shaders/common.h", "float4 tint;\n");
+        File shader = write("Shaders/basic.metal",
+                            "#include \"common.h\"\n" +
+                            "#ifdef F_00Fog\nfog();\n#endif\n" +
+                            "#ifdef F_02Tint\ntint();\n#endif\n");
+        MetalShaderCompiler.Options options = standInOptions();
+        options.cacheDirectory = folder.newFolder("cache");
+
+        File first = compileWithCache(shader, options, "first_MTL.shd");
+        assertEquals(4, metalRuns(options));
+
+        File second = compileWithCache(shader, options, "second_MTL.shd");
+        assertEquals(4, metalRuns(options));
+        assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+
+        // Every permutation includes the header, so editing it misses for all of them
+        write("Shaders/common.h", "float4 tint = 1;\n");
+        compileWithCache(shader, options, "third_MTL.shd");
+        assertEquals(8, metalRuns(options));
+    }
+
+    @Test(timeout = 60000)
+    public void withoutCacheDirectoryEveryCompileRunsTheToolchain() throws IOException {
+        File shader = write("Shaders/basic.metal", "#ifdef F_00Fog\nfog();\n#endif\n");
+        MetalShaderCompiler.Options options = standInOptions();
+        assertNull(options.cacheDirectory);
+        compileWithCache(shader, options, "first_MTL.shd");
+        compileWithCache(shader, options, "second_MTL.shd");
+        assertEquals(4, metalRuns(options));
+    }
+}
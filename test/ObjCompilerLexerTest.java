@@ -0,0 +1,205 @@
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks ObjCompiler.Lexer's float parsing, which has a fast path of its own, against Float.parseFloat,
+ * which the lexer used for every float before, so that meshes compile to the same bytes.
+ */
+public class ObjCompilerLexerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String contents) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    /**
+     * Parses each decimal as the coordinates of "v" lines and checks that the lexer gives the same
+     * float as Float.parseFloat.
+     */
+    private void checkFloats(List<String> decimals) throws IOException {
+        File file = folder.newFile();
+        try (Writer out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            for (String decimal : decimals) {
+                out.write("v ");
+                out.write(decimal);
+                out.write('\n');
+            }
+        }
+        try (ObjCompiler.Lexer lexer = new ObjCompiler.Lexer(file)) {
+            for (String decimal : decimals) {
+                assertEquals(ObjCompiler.Lexer.Keyword.V, lexer.nextKeyword());
+                float expected = Float.parseFloat(decimal);
+                float actual = lexer.nextFloat();
+                if (Float.floatToRawIntBits(expected) != Float.floatToRawIntBits(actual))
+                    fail(decimal + ": expected " + expected + " but was " + actual);
+            }
+            assertFalse(lexer.hasNext());
+        }
+    }
+
+    /** The exact decimal value of a double, without an exponent, as the lexer reads numbers. */
+    private static String plain(BigDecimal value) {
+        String s = value.toPlainString();
+        return s.indexOf('.') < 0 ? s + ".0" : s;
+    }
+
+    @Test
+    public void randomDecimals() throws IOException {
+        Random random = new Random(1);
+        List<String> decimals = new ArrayList<String>();
+        for (int i = 0; i < 1000000; ++i) {
+            int digits = 1 + random.nextInt(17);
+            StringBuilder s = new StringBuilder();
+            if (random.nextBoolean())
+                s.append('-');
+            for (int d = 0; d < digits; ++d) {
+                s.append((char)('0' + random.nextInt(10)));
+            }
+            int point = 1 + random.nextInt(digits);
+            s.insert(s.length() - digits + point, '.');
+            if (point == digits)
+                s.append('0');
+            decimals.add(s.toString());
+        }
+        checkFloats(decimals);
+    }
+
+    @Test
+    public void nearHalfwayBetweenFloats() throws IOException {
+        Random random = new Random(2);
+        List<String> decimals = new ArrayList<String>();
+        MathContext[] precisions = new MathContext[10];
+        for (int i = 0; i < 10; ++i) {
+            precisions[i] = new MathContext(8 + i, RoundingMode.HALF_EVEN);
+        }
+        for (int i = 0; i < 20000; ++i) {
+            // Between 1e-6 and 1e6, where typical coordinates are
+            float f = (float)Math.pow(10, random.nextDouble() * 12 - 6);
+            BigDecimal midpoint = new BigDecimal(((double)f + Math.nextUp(f)) / 2);
+            decimals.add(plain(midpoint));
+            BigDecimal step = BigDecimal.ONE.movePointLeft(midpoint.scale());
+            decimals.add(plain(midpoint.add(step)));
+            decimals.add(plain(midpoint.subtract(step)));
+            for (MathContext precision : precisions) {
+                decimals.add(plain(midpoint.round(precision)));
+            }
+        }
+        // Midpoints with short decimals, where the fast path's double is exactly halfway
+        for (long n = (1 << 24) + 1; n < (1 << 24) + 64; n += 2) {
+            decimals.add(n + ".0");
+            decimals.add(n + ".00");
+            decimals.add((n * 2) + ".0");
+        }
+        decimals.add("0.5000000298023223876953125");
+        decimals.add("0.50000002980232238769531249");
+        decimals.add("0.50000002980232238769531251");
+        checkFloats(decimals);
+    }
+
+    @Test
+    public void subnormals() throws IOException {
+        List<String> decimals = new ArrayList<String>();
+        Random random = new Random(3);
+        for (int i = 0; i < 2000; ++i) {
+            float f = Float.intBitsToFloat(1 + random.nextInt(0x7FFFFF));
+            BigDecimal exact = new BigDecimal(f);
+            decimals.add(plain(exact));
+            decimals.add(plain(exact.round(new MathContext(1 + random.nextInt(12)))));
+        }
+        decimals.add(plain(new BigDecimal(Float.MIN_VALUE)));
+        decimals.add(plain(new BigDecimal(Float.MIN_VALUE).divide(BigDecimal.valueOf(2))));
+        decimals.add(plain(new BigDecimal(Float.MIN_NORMAL)));
+        decimals.add("0.0000000000000000000000000000000000000000000007");
+        checkFloats(decimals);
+    }
+
+    @Test
+    public void moreThanNineteenSignificantDigits() throws IOException {
+        checkFloats(Arrays.asList(
+            "3.14159265358979323846264338327950288",
+            "12345678901234567890.5",
+            "-98765432109876543210987654321.0",
+            "0.00000000000000000000000123456789012345678901234567",
+            "1.0000000000000000000000000000001",
+            "0.99999999999999999999999999999999",
+            "18446744073709551615.0",
+            "18446744073709551616.0",
+            "9223372036854775807.0",
+            "9223372036854775808.9",
+            "00000000000000000000000000001.5"));
+    }
+
+    @Test
+    public void fastPathBounds() throws IOException {
+        List<String> decimals = new ArrayList<String>();
+        // Mantissas around 2^53, the largest the fast path takes
+        for (long m = (1L << 53) - 4; m <= (1L << 53) + 4; ++m) {
+            String digits = Long.toString(m);
+            decimals.add(digits + ".0");
+            for (int point = 1; point < digits.length(); ++point) {
+                decimals.add(digits.substring(0, point) + "." + digits.substring(point));
+            }
+        }
+        // 20 to 24 fraction digits, around 10^22, the largest exact power of ten
+        Random random = new Random(4);
+        for (int fractionDigits = 20; fractionDigits <= 24; ++fractionDigits) {
+            for (int significant = 1; significant <= 17; ++significant) {
+                for (int i = 0; i < 50; ++i) {
+                    StringBuilder s = new StringBuilder("0.");
+                    int zeros = Math.max(0, fractionDigits - significant);
+                    for (int z = 0; z < zeros; ++z) {
+                        s.append('0');
+                    }
+                    s.append((char)('1' + random.nextInt(9)));
+                    while (s.length() - 2 < fractionDigits) {
+                        s.append((char)('0' + random.nextInt(10)));
+                    }
+                    decimals.add(s.toString());
+                }
+            }
+        }
+        decimals.add("0.0");
+        decimals.add("-0.0");
+        decimals.add("0.0000000000000000000000000");
+        decimals.add("-0.0000000000000000000000000");
+        decimals.add("340282346638528859811704183484516925440.0");
+        decimals.add("340282356779733661637539395458142568448.0");
+        checkFloats(decimals);
+    }
+
+    @Test(timeout = 10000)
+    public void readToNextLineAtEndOfFile() throws IOException {
+        try (ObjCompiler.Lexer lexer = new ObjCompiler.Lexer(write("newmtl stone wall"))) {
+            assertEquals(ObjCompiler.Lexer.Keyword.NEWMTL, lexer.nextKeyword());
+            assertEquals("stone wall", lexer.readToNextLine());
+            assertFalse(lexer.hasNext());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void readToNextLineStopsAtLineTerminators() throws IOException {
+        try (ObjCompiler.Lexer lexer = new ObjCompiler.Lexer(write("usemtl a b\r\nusemtl c\nmtllib d.mtl\n"))) {
+            assertEquals(ObjCompiler.Lexer.Keyword.USEMTL, lexer.nextKeyword());
+            assertEquals("a b", lexer.readToNextLine());
+            assertEquals(ObjCompiler.Lexer.Keyword.USEMTL, lexer.nextKeyword());
+            assertEquals("c", lexer.readToNextLine());
+            assertEquals(ObjCompiler.Lexer.Keyword.MTLLIB, lexer.nextKeyword());
+            assertEquals("d.mtl", lexer.readToNextLine());
+            assertFalse(lexer.hasNext());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compiles small .obj files with materials and checks the texture table of the .mdg file.
+ */
+public class ObjCompilerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, String contents) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @Test
+    public void textureNamesAreUtf8() throws IOException {
+        String texture = "Textures/café_über.png";
+        write("materials.mtl", "newmtl stone\nmap_Kd " + texture + "\n");
+        File obj = write("quad.obj", "mtllib materials.mtl\n" +
+                                     "v 0.0 0.0 0.0\nv 1.0 0.0 0.0\nv 1.0 1.0 0.0\nvn 0.0 0.0 1.0\nvt 0.0 0.0\n" +
+                                     "usemtl stone\nf 1/1/1 2/1/1 3/1/1\n");
+        List<File> outputs = Arrays.asList(new File(folder.getRoot(), "quad.mdl"),
+                                           new File(folder.getRoot(), "quad.mdg"));
+        ObjCompiler compiler = new ObjCompiler(new ObjCompiler.Options());
+        assertTrue(compiler.compile(obj, outputs, new ArrayList<File>()));
+
+        ByteBuffer mdg = ByteBuffer.wrap(Files.readAllBytes(outputs.get(1).toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(1, mdg.getInt(36)); // nTextures
+        int ofsTextures = mdg.getInt(40);
+        byte[] expected = texture.getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.length, mdg.getInt(ofsTextures)); // lenFilename, in bytes
+        int ofsFilename = mdg.getInt(ofsTextures + 4);
+        assertArrayEquals(expected, Arrays.copyOfRange(mdg.array(), ofsFilename, ofsFilename + expected.length));
+        assertEquals(0, mdg.get(ofsFilename + expected.length));
+
+        Map<File, List<String>> references = new HashMap<File, List<String>>();
+        compiler.findReferences(outputs, references);
+        assertEquals(Collections.singletonList(texture), references.get(outputs.get(1)));
+    }
+}
@@ -0,0 +1,119 @@
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs ProcessRunner against the stand-in tools in test/tools, shell scripts that hang, fail, print a
+ * lot and record how many copies of themselves run at once, so it can be tested without the Metal
+ * tools.
+ */
+public class ProcessRunnerTest {
+    private static final File TOOLS = new File("test/tools");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void requireShell() {
+        assumeTrue(new File("/bin/sh").canExecute());
+    }
+
+    private static List<String> tool(String name, String... args) {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(TOOLS, name).getAbsolutePath());
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    @Test(timeout = 30000)
+    public void killsToolThatTimesOut() throws Exception {
+        ProcessRunner runner = new ProcessRunner(1, 500);
+        StringBuilder log = new StringBuilder();
+        ProcessRunner.Result result = runner.run(tool("hang.sh"), log);
+
+        assertTrue(result.timedOut);
+        assertFalse(result.succeeded());
+        assertTrue(result.elapsedNanos < TimeUnit.SECONDS.toNanos(10));
+        assertTrue(log.toString(), log.toString().contains("hang: started"));
+        assertTrue(log.toString(), log.toString().contains("Error: hang.sh timed out after 500 ms"));
+    }
+
+    @Test(timeout = 30000)
+    public void reportsNonZeroExitInLog() throws Exception {
+        ProcessRunner runner = new ProcessRunner(1, 0);
+        StringBuilder log = new StringBuilder();
+        ProcessRunner.Result result = runner.run(tool("fail.sh", "3"), log);
+
+        assertEquals(3, result.exitCode);
+        assertFalse(result.timedOut);
+        assertFalse(result.succeeded());
+        assertTrue(log.toString(), log.toString().contains("fail: error: something went wrong"));
+        assertTrue(log.toString(), log.toString().contains("Error: fail.sh exited with code 3"));
+    }
+
+    @Test(timeout = 60000)
+    public void doesNotDeadlockOnLotsOfOutput() throws Exception {
+        ProcessRunner runner = new ProcessRunner(1, 0);
+        StringBuilder log = new StringBuilder();
+        ProcessRunner.Result result = runner.run(tool("flood.sh", "20000"), log);
+
+        assertTrue(result.succeeded());
+        // Far more than a pipe holds, on standard error
+        assertTrue(log.length() > 1 << 20);
+        assertTrue(log.toString().contains("flood: warning 19999:"));
+        assertTrue(log.toString().contains("flood: progress 19900"));
+        assertTrue(log.toString().contains("flood: done"));
+    }
+
+    @Test(timeout = 60000)
+    public void runsAtMostMaxConcurrentProcesses() throws Exception {
+        final int maxConcurrentProcesses = 2;
+        ProcessRunner runner = new ProcessRunner(maxConcurrentProcesses, 0);
+        File dir = folder.getRoot();
+        ExecutorService callers = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ProcessRunner.Result>> results = new ArrayList<Future<ProcessRunner.Result>>();
+            for (int i = 0; i < 16; ++i) {
+                results.add(callers.submit(() -> runner.run(tool("concurrent.sh", dir.getPath()), new StringBuilder())));
+            }
+            for (Future<ProcessRunner.Result> result : results) {
+                assertTrue(result.get().succeeded());
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+
+        int runs = 0;
+        int mostAtOnce = 0;
+        for (File observed : dir.listFiles((d, name) -> name.startsWith("observed."))) {
+            ++runs;
+            String count = new String(Files.readAllBytes(observed.toPath()), StandardCharsets.US_ASCII).trim();
+            mostAtOnce = Math.max(mostAtOnce, Integer.parseInt(count));
+        }
+        assertEquals(16, runs);
+        assertEquals(maxConcurrentProcesses, mostAtOnce);
+    }
+
+    @Test(timeout = 30000)
+    public void reportsToolThatFailsToStart() throws Exception {
+        ProcessRunner runner = new ProcessRunner(1, 0);
+        StringBuilder log = new StringBuilder();
+        try {
+            runner.run(tool("missing.sh"), log);
+            fail();
+        } catch (IOException e) {
+            assertTrue(log.toString(), log.toString().contains("Error: failed to run"));
+        }
+    }
+}
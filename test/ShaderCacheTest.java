@@ -0,0 +1,117 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Stores blobs in a ShaderCache directory, with entries backdated where a test depends on their order
+ * of use, and several instances sharing it as compiler processes do.
+ */
+public class ShaderCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String key(int i) {
+        return String.format("%02x%062d", i, i);
+    }
+
+    private static byte[] blob(int i, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte)i);
+        return data;
+    }
+
+    /** Where ShaderCache keeps an entry, so that tests can backdate it. */
+    private static File entryFile(File directory, String key) {
+        return new File(new File(directory, key.substring(0, 2)), key + ".metallib");
+    }
+
+    @Test
+    public void getReturnsWhatWasPut() throws IOException {
+        ShaderCache cache = new ShaderCache(folder.getRoot(), 1 << 20);
+        assertNull(cache.get(key(1)));
+        cache.put(key(1), blob(1, 100));
+        assertArrayEquals(blob(1, 100), cache.get(key(1)));
+        assertNull(cache.get(key(2)));
+    }
+
+    @Test
+    public void trimEvictsLeastRecentlyUsed() throws IOException {
+        File directory = folder.getRoot();
+        ShaderCache cache = new ShaderCache(directory, 250);
+        for (int i = 1; i <= 3; ++i) {
+            cache.put(key(i), blob(i, 100));
+            assertTrue(entryFile(directory, key(i)).setLastModified(i * 1000000L));
+        }
+        // Using the oldest entry makes the second the least recently used
+        assertNotNull(cache.get(key(1)));
+        cache.trim();
+
+        assertArrayEquals(blob(1, 100), cache.get(key(1)));
+        assertNull(cache.get(key(2)));
+        assertArrayEquals(blob(3, 100), cache.get(key(3)));
+
+        // Already within the limit
+        cache.trim();
+        assertNotNull(cache.get(key(1)));
+        assertNotNull(cache.get(key(3)));
+    }
+
+    @Test
+    public void trimDeletesEverythingOverAZeroLimit() throws IOException {
+        ShaderCache cache = new ShaderCache(folder.getRoot(), 0);
+        cache.put(key(1), blob(1, 10));
+        cache.put(key(2), blob(2, 10));
+        cache.trim();
+        assertNull(cache.get(key(1)));
+        assertNull(cache.get(key(2)));
+    }
+
+    @Test(timeout = 60000)
+    public void racingWritersLeaveAValidEntry() throws Exception {
+        File directory = folder.getRoot();
+        final String key = key(7);
+        final byte[] data = blob(7, 1 << 16);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (int t = 0; t < 6; ++t) {
+                // Separate instances, as in separate compiler processes sharing the directory
+                final ShaderCache cache = new ShaderCache(directory, 1 << 30);
+                results.add(threads.submit(() -> {
+                    for (int i = 0; i < 50; ++i) {
+                        cache.put(key, data);
+                    }
+                    return null;
+                }));
+            }
+            for (int t = 0; t < 2; ++t) {
+                final ShaderCache cache = new ShaderCache(directory, 1 << 30);
+                results.add(threads.submit(() -> {
+                    for (int i = 0; i < 200; ++i) {
+                        byte[] read = cache.get(key);
+                        if (read != null)
+                            assertArrayEquals(data, read);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+
+        assertArrayEquals(data, new ShaderCache(directory, 1 << 30).get(key));
+        // No temporary files left behind
+        assertEquals(Collections.singletonList(entryFile(directory, key).getName()),
+                     Arrays.asList(entryFile(directory, key).getParentFile().list()));
+    }
+}
@@ -0,0 +1,103 @@
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compiles a shader with the stand-in tools in test/tools and looks its permutations up with
+ * ShaderFile. Its F_63 flag is unused, so permutations share blobs, and its masks include ones with
+ * the top bit set, which sort last.
+ */
+public class ShaderFileTest {
+    private static final File TOOLS = new File("test/tools");
+    private static final long TOP = 1L << 63;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File compile(boolean legacy) throws IOException {
+        assumeTrue(new File("/bin/sh").canExecute());
+        File shader = folder.newFile("lookup.metal");
+        Files.write(shader.toPath(), "#ifdef F_00Fog\nfog();\n#endif\n#ifdef F_63Unused\n#endif\n"
+                                     .getBytes(StandardCharsets.US_ASCII));
+        MetalShaderCompiler.Options options = new MetalShaderCompiler.Options();
+        options.setToolchainDirectory(TOOLS.getAbsoluteFile());
+        options.sysroot = folder.newFolder().getPath();
+        options.legacyShaderFormat = legacy;
+        File output = new File(folder.getRoot(), "lookup_MTL.shd");
+        assertTrue(new MetalShaderCompiler(options).compile(shader, Collections.singletonList(output),
+                                                            new ArrayList<File>()));
+        return output;
+    }
+
+    private static String contents(ByteBuffer metallib) {
+        byte[] bytes = new byte[metallib.remaining()];
+        metallib.duplicate().get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static long align8(long pos) {
+        return pos + 8 - pos % 8;
+    }
+
+    private static void checkLookups(ShaderFile file) {
+        assertEquals(4, file.getPermutationCount());
+        // The first and last entries of the sorted table
+        String noFog = contents(file.find(0));
+        String fog = contents(file.find(TOP | 1));
+        assertTrue(fog, fog.startsWith("F_00Fog\n"));
+        assertFalse(noFog, noFog.contains("F_00Fog"));
+        // The unused flag selects the same metallib
+        assertEquals(noFog, contents(file.find(TOP)));
+        assertEquals(fog, contents(file.find(1)));
+
+        assertNull(file.find(2));
+        assertNull(file.find(1L << 62));
+        assertNull(file.find(TOP | 2));
+        assertNull(file.find(-1L));
+    }
+
+    @Test(timeout = 60000)
+    public void findsPermutationsBySearch() throws IOException {
+        File output = compile(false);
+        ShaderFile file = ShaderFile.open(output);
+        assertEquals(MetalShaderCompiler.SHADER_FORMAT_VERSION, file.getVersion());
+        checkLookups(file);
+
+        // The 24-byte header, four table entries and each blob once, fog first, each of them after
+        // BinaryWriter.align(8), which pads an aligned position by 8
+        long size = align8(24) + 4 * 16;
+        size = align8(size) + file.find(1).remaining();
+        size = align8(size) + file.find(0).remaining();
+        assertEquals(size, output.length());
+    }
+
+    @Test(timeout = 60000)
+    public void findsLegacyPermutationsByWalking() throws IOException {
+        ShaderFile file = ShaderFile.open(compile(true));
+        assertEquals(MetalShaderCompiler.LEGACY_SHADER_FORMAT_VERSION, file.getVersion());
+        checkLookups(file);
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("notashader.shd");
+        Files.write(file.toPath(), "RDHS\3\0\0\0".getBytes(StandardCharsets.US_ASCII));
+        try {
+            ShaderFile.open(file);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Not a Metal .shd file", e.getMessage());
+        }
+    }
+}
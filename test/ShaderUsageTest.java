@@ -0,0 +1,71 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Reads ShaderUsage files naming shaders by their sources and outputs; MetalShaderCompilerTest checks
+ * the permutations compiled with one.
+ */
+public class ShaderUsageTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File usageFile(String contents) throws IOException {
+        File file = folder.newFile("usage.txt");
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static Set<Long> masks(long... masks) {
+        Set<Long> set = new HashSet<Long>();
+        for (long mask : masks) {
+            set.add(mask);
+        }
+        return set;
+    }
+
+    @Test
+    public void readsMasksByInputOrOutput() throws IOException {
+        File lit = new File(folder.getRoot(), "Shaders/Lit.metal");
+        File litOutput = new File(folder.getRoot(), "Assets/Shaders/Lit_MTL.shd");
+        File basic = new File(folder.getRoot(), "Shaders/Basic.metal");
+        ShaderUsage usage = ShaderUsage.read(usageFile(
+            "# Recorded by the engine\n" +
+            "\n" +
+            lit.getPath() + " 0x5 12  # fog and tint\n" +
+            litOutput.getPath() + "\t0X8000000000000000\n" +
+            basic.getParent() + "/../Shaders/./Basic.metal 1\n" +
+            "* 0x20\n"));
+
+        assertEquals(masks(0, 0x20, 5, 12, 0x8000000000000000L), usage.usedMasks(lit, litOutput));
+        assertEquals(masks(0, 0x20, 1), usage.usedMasks(basic, new File(folder.getRoot(), "Basic_MTL.shd")));
+        assertNull(usage.usedMasks(new File(folder.getRoot(), "Shaders/Unlisted.metal"),
+                                   new File(folder.getRoot(), "Unlisted_MTL.shd")));
+    }
+
+    @Test
+    public void listedWithoutMasksUsesOnlyRequired() throws IOException {
+        File shader = new File(folder.getRoot(), "Shaders/Lit.metal");
+        ShaderUsage usage = ShaderUsage.read(usageFile(shader.getPath() + "\n"));
+        assertEquals(masks(0), usage.usedMasks(shader, new File(folder.getRoot(), "Lit_MTL.shd")));
+    }
+
+    @Test
+    public void rejectsInvalidMask() throws IOException {
+        File file = usageFile("Shaders/Lit.metal 0x5\nShaders/Lit.metal fog\n");
+        try {
+            ShaderUsage.read(file);
+            fail();
+        } catch (IOException e) {
+            assertEquals(file + ":2: invalid permutation mask fog", e.getMessage());
+        }
+    }
+}
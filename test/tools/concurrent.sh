@@ -0,0 +1,8 @@
+#!/bin/sh
+# Stands in for a tool that takes a while, recording how many copies of it run at once: marks itself
+# running in the directory given, waits, counts the marked copies into observed.<pid>, and unmarks.
+dir=$1
+touch "$dir/running.$$"
+sleep "${2:-0.3}"
+ls "$dir" | grep -c '^running\.' > "$dir/observed.$$"
+rm "$dir/running.$$"
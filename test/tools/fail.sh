@@ -0,0 +1,4 @@
+#!/bin/sh
+# Stands in for a tool that fails: prints an error and exits with the given code (default 3).
+echo "fail: error: something went wrong" >&2
+exit "${1:-3}"
@@ -0,0 +1,13 @@
+#!/bin/sh
+# Stands in for a tool that prints a lot: writes the given number of lines (default 20000, about
+# 1.6 MB) to standard error, interleaved with a line to standard output every 100, then succeeds.
+lines=${1:-20000}
+i=0
+while [ "$i" -lt "$lines" ]; do
+    echo "flood: warning $i: this line pads standard error well past the 64 KB pipe buffer" >&2
+    if [ $((i % 100)) -eq 0 ]; then
+        echo "flood: progress $i"
+    fi
+    i=$((i + 1))
+done
+echo "flood: done"
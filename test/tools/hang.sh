@@ -0,0 +1,4 @@
+#!/bin/sh
+# Stands in for a tool that never finishes: prints a line, then sleeps far past any timeout.
+echo "hang: started"
+exec sleep 60